@@ -179,6 +179,16 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 		mycell = (XLSRecord) c;
 	}
 
+	/**
+	 * Throws a WorkBookException if the cell's workbook has been frozen.
+	 * 
+	 * @see com.valkyrlabs.formats.XLS.WorkBook#freeze()
+	 */
+	private void checkWritable() {
+		if (mycell.getWorkBook() != null)
+			mycell.getWorkBook().checkWritable();
+	}
+
 	/**
 	 * if this cellhandle refers to a mulblank, ensure internal mulblank properties
 	 * are set to appropriate cell in the mulblank range
@@ -1634,6 +1644,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *            i - the new index to the Format for this Cell
 	 */
 	public void setFormatId(int i) {
+		checkWritable();
 		mycell.setXFRecord(i);
 	}
 
@@ -1717,6 +1728,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *            urlstr - the URL String for this Cell
 	 */
 	public void setURL(String urlstr) {
+		checkWritable();
 		if (urlstr == null) {
 			mycell.hyperlink = null;
 			// TODO: remove existing Hlink from stream
@@ -1744,6 +1756,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *            textMark - the text that follows #
 	 */
 	public void setURL(String urlstr, String desc, String textMark) {
+		checkWritable();
 		if (mycell.hyperlink != null) {
 			mycell.hyperlink.setURL(urlstr, desc, textMark);
 		} else {
@@ -1793,6 +1806,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 */
 	// TODO: this documentation is contradictory
 	public void setFileURL(String fileURLstr, String desc, String textMark) {
+		checkWritable();
 		if (mycell.hyperlink != null) {
 			mycell.hyperlink.setFileURL(fileURLstr, desc, textMark);
 		} else {
@@ -1831,8 +1845,11 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 */
 
 	public void setVal(Object obj) throws CellTypeMismatchException {
+		checkWritable();
 		if (this.wbh.getFormulaCalculationMode() != WorkBook.CALCULATE_EXPLICIT)
 			this.clearAffectedCells(); // blow out cache
+		else
+			this.wbh.getWorkBook().getRefTracker().addPendingChange(this.getCell()); // cleared upon recalc
 
 		if (obj instanceof java.sql.Date) {
 			this.setVal((java.sql.Date) obj, null);
@@ -1878,6 +1895,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 * @throws CellTypeMismatchException
 	 */
 	public void setStringVal(String s) {
+		checkWritable();
 		try {
 			if ((s == null || s.equals("")) && !(mycell instanceof Blank))
 				changeCellType(s);
@@ -1904,6 +1922,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 * @throws CellTypeMismatchException
 	 */
 	public void setStringVal(Unicodestring us) {
+		checkWritable();
 		try {
 			if ((us == null || us.toString().equals("")) && !(mycell instanceof Blank))
 				changeCellType(null); // set to blank
@@ -1990,6 +2009,8 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 
 		if (this.wbh.getFormulaCalculationMode() != WorkBook.CALCULATE_EXPLICIT)
 			this.clearAffectedCells(); // blow out cache
+		else
+			this.wbh.getWorkBook().getRefTracker().addPendingChange(this.getCell()); // cleared upon recalc
 		if (fmt == null)
 			fmt = "m/d/yyyy";
 		this.setVal(new Double(DateConverter.getXLSDateVal(dt)));
@@ -2076,6 +2097,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *             if unable to parse string correctly
 	 */
 	public void setFormula(String formStr) throws FunctionNotSupportedException {
+		checkWritable();
 		int ixfe = this.mycell.getIxfe();
 		this.remove(true);
 		this.mycell = wsh.add(formStr, this.getCellAddress()).mycell;
@@ -2098,6 +2120,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *             if unable to parse string correctly
 	 */
 	public void setFormula(String formStr, Object value) throws Exception {
+		checkWritable();
 		if (!(this.mycell instanceof Formula)) {
 			int ixfe = this.mycell.getIxfe();
 			CellRange cr = this.mycell.getMergeRange();
@@ -2122,6 +2145,7 @@ public class CellHandle implements Cell, Serializable, Handle, Comparable<CellHa
 	 *            value - calculated value of formula
 	 */
 	public void setFormula(Stack<?> newExp, Object value) {
+		checkWritable();
 		if (!(this.mycell instanceof Formula)) {
 			int ixfe = this.mycell.getIxfe();
 			CellRange mccr = this.mycell.getMergeRange();
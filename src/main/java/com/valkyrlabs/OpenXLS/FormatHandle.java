@@ -2746,6 +2746,7 @@ public class FormatHandle implements Handle, FormatConstants {
 	 * @param f
 	 */
 	private void updateFont(Font f) {
+		wkbook.checkWritable();
 		int idx = wkbook.getFontIdx(f);
 		if (idx == -1) { // can't find it so add new
 			f = createNewFont(f);
@@ -2813,6 +2814,7 @@ public class FormatHandle implements Handle, FormatConstants {
 	 * @param xf
 	 */
 	private void updateXf(Xf xf) {
+		wkbook.checkWritable();
 		if (!myxf.toString().equals(xf.toString())) {
 			if (myxf.getUseCount() <= 1 && xfe > 15) { // used only by one cell, OK to modify
 				if (writeImmediate || wkbook.getFormatCache().get(xf.toString()) == null) {
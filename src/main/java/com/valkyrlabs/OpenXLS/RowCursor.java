@@ -0,0 +1,96 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.OpenXLS;
+
+import java.io.Closeable;
+
+/**
+ * A forward-only, read-only cursor over the cell values of one WorkSheet which
+ * reads the file directly rather than building a WorkBook in memory.
+ * <p>
+ * The cursor starts before the first cell. Each call to {@link #next()} moves
+ * it to the next cell holding a value, in file order: row by row, left to
+ * right. Blank cells are skipped. The {@link Cell} methods describe the
+ * current cell; formula cells report their cached result, they are not
+ * calculated.
+ * <p>
+ * Shared strings and formats are looked up as cells refer to them, so the
+ * memory used does not grow with the number of cells. Close the cursor when
+ * done to release the file.
+ *
+ * <pre>
+ * RowCursor cursor = WorkBookHandle.openRowCursor(file, "Sheet1");
+ * try {
+ *     while (cursor.next())
+ *         System.out.println(cursor.getCellAddress() + "=" + cursor.getVal());
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ *
+ * @see WorkBookHandle#openRowCursor(java.io.File, String)
+ */
+public interface RowCursor extends Cell, Closeable {
+
+    /**
+     * Moves to the next cell holding a value.
+     *
+     * @return false when there are no more cells on the sheet
+     */
+    boolean next();
+
+    /**
+     * Returns the type of the current value: TYPE_DOUBLE, TYPE_STRING or
+     * TYPE_BOOLEAN. Formula cells return the type of their cached result and
+     * error values are strings such as "#DIV/0!".
+     */
+    @Override
+    int getCellType();
+
+    /**
+     * Returns the current value as a double, or NaN if it is not numeric.
+     */
+    double getDoubleVal();
+
+    /**
+     * Returns the current value as an unformatted String.
+     */
+    String getStringVal();
+
+    /**
+     * Returns whether the current cell holds a formula.
+     */
+    boolean isFormula();
+
+    /**
+     * Returns the number format pattern of the current cell, or null if it
+     * cannot be resolved.
+     */
+    String getFormatPattern();
+
+    /**
+     * Releases the underlying file.
+     */
+    @Override
+    void close();
+}
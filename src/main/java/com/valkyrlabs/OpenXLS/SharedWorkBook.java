@@ -0,0 +1,121 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.OpenXLS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * A workbook read once and shared by many readers.
+ * <p>
+ * The workbook is parsed when the SharedWorkBook is made, and then frozen:
+ * its cells and formula expressions are settled so that any number of
+ * threads may read it at once without locking.  Frozen workbooks are
+ * read-only; editing their cells, formats, rows, columns, sheets or names
+ * throws a WorkBookException with READ_ONLY_EXCEPTION, and formulas return
+ * the results cached in the file.  Writing the workbook out is allowed, one
+ * thread at a time.
+ * <p>
+ * A caller which needs to edit gets its own copy from {@link #fork()}.  A fork
+ * reads the same bytes in place, parsing the global records again but the
+ * cells of each worksheet only once the sheet is used, so the records of
+ * untouched sheets are written back as they were read.
+ *
+ * <pre>
+ * SharedWorkBook template = new SharedWorkBook(new File(&quot;template.xls&quot;));
+ * // any thread
+ * Object v = template.getWorkBook().getWorkSheet(0).getCell(&quot;A1&quot;).getVal();
+ * // a thread which edits
+ * WorkBookHandle book = template.fork();
+ * book.getWorkSheet(0).getCell(&quot;A1&quot;).setVal(42);
+ * </pre>
+ *
+ * @see com.valkyrlabs.formats.XLS.WorkBook#freeze()
+ */
+public final class SharedWorkBook {
+    private final byte[] source;
+    private final WorkBookHandle book;
+
+    /**
+     * Reads and freezes the workbook in the given bytes, which must not be
+     * changed afterwards.
+     *
+     * @param source the bytes of a valid XLS or XLSX file
+     */
+    public SharedWorkBook(byte[] source) {
+        this.source = source;
+        this.book = new WorkBookHandle(source);
+        book.getWorkBook().freeze();
+    }
+
+    /**
+     * Reads and freezes the workbook in the given file.
+     */
+    public SharedWorkBook(File file) throws IOException {
+        this(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Reads and freezes the workbook in the given stream, which is read to
+     * its end but not closed.
+     */
+    public SharedWorkBook(InputStream input) throws IOException {
+        this(readAll(input));
+    }
+
+    /**
+     * Returns a handle on the frozen workbook for one reader.  Any number of
+     * threads may read the workbook at once, each through its own handle, but
+     * none may change it.  Closing the handle leaves the workbook open.
+     */
+    public WorkBookHandle getWorkBook() {
+        return new WorkBookHandle(book);
+    }
+
+    /**
+     * Returns a new, writable copy of the workbook.  Its worksheets are
+     * loaded as they are used.
+     */
+    public WorkBookHandle fork() {
+        return new WorkBookHandle(source, true);
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1)
+            sink.write(buffer, 0, count);
+        return sink.toByteArray();
+    }
+}
@@ -59,6 +59,14 @@ public class WorkBookException extends RuntimeException {
 
     public WorkBookException(String string, int writingError, Exception e) {
         super(string, e);
+        cause = writingError;
+    }
+
+    /**
+     * @return the error code, one of the static error ints, or -1 if none was given
+     */
+    public int getErrorCode() {
+        return cause;
     }
 
 }
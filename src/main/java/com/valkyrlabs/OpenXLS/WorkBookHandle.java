@@ -55,6 +55,7 @@ import com.valkyrlabs.formats.LEO.BlockByteReader;
 import com.valkyrlabs.formats.LEO.InvalidFileException;
 import com.valkyrlabs.formats.LEO.LEOFile;
 import com.valkyrlabs.formats.XLS.BiffRec;
+import com.valkyrlabs.formats.XLS.BiffRowCursor;
 import com.valkyrlabs.formats.XLS.BookProtectionManager;
 import com.valkyrlabs.formats.XLS.Boundsheet;
 import com.valkyrlabs.formats.XLS.Condfmt;
@@ -66,6 +67,7 @@ import com.valkyrlabs.formats.XLS.Mulblank;
 import com.valkyrlabs.formats.XLS.Name;
 import com.valkyrlabs.formats.XLS.OOXMLAdapter;
 import com.valkyrlabs.formats.XLS.OOXMLReader;
+import com.valkyrlabs.formats.XLS.OOXMLRowCursor;
 import com.valkyrlabs.formats.XLS.OOXMLWriter;
 import com.valkyrlabs.formats.XLS.PivotCache;
 import com.valkyrlabs.formats.XLS.Sxview;
@@ -92,15 +94,18 @@ import com.valkyrlabs.toolkit.TempFileManager;
  * </code>
  *
  * <p>
- * By default, OpenXLS will lock open WorkBook files. To close the file after
- * parsing and work with a temporary file instead, use the following setting:
+ * By default, OpenXLS maps open WorkBook files read-only. To map them
+ * copy-on-write instead, so that nothing done to the workbook can reach the
+ * file, use the following setting:
  * <br>
  * <code>
- * System.getProperties().put(WorkBookHandle.USETEMPFILE, "true");
+ * System.getProperties().put(WorkBookHandle.USETEMPFILE_PROP, "true");
  * </code><br>
- * If you enable this mode you will need to periodically clean up the generated
- * temporary files in your working directory. All OpenXLS temporary file names
- * begin with "ExtenXLS_".
+ * Either way the file must not be replaced while the workbook is open.
+ * <p>
+ * Files over 2GB are mapped a region at a time as they are read. To map all
+ * files that way, bounding the address space an open workbook uses, set
+ * <code>WorkBookHandle.WINDOWEDMAPPING_PROP</code> to "true".
  */
 public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
 
@@ -148,6 +153,10 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     // reuse
     protected WorkBookFactory myfactory = null;
     protected ProgressListener plist;
+    // load the cells of each sheet on first use
+    boolean lazySheetLoading = false;
+    // another handle's workbook, which closing this handle leaves open
+    private boolean view = false;
     Hashtable<String, WorkSheetHandle> sheethandles = new Hashtable<String, WorkSheetHandle>();
 
     /**
@@ -200,6 +209,35 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         initializeFromByteArray(barray);
     }
 
+    /**
+     * Create a new WorkBookHandle from the byte array passed in, optionally
+     * loading the cells of each worksheet only when the sheet is first used.
+     * The byte array is read in place and must not change while the workbook
+     * is open.
+     *
+     * @see SharedWorkBook#fork()
+     */
+    WorkBookHandle(byte[] barray, boolean lazySheetLoading) {
+        this.lazySheetLoading = lazySheetLoading;
+        initializeFromByteArray(barray);
+    }
+
+    /**
+     * Makes another handle on the workbook of the given handle, with its own
+     * worksheet handles.  Closing it leaves the workbook open.
+     *
+     * @see SharedWorkBook#getWorkBook()
+     */
+    WorkBookHandle(WorkBookHandle book) {
+        this.view = true;
+        this.mybook = book.mybook;
+        this.myLEOFile = book.myLEOFile;
+        this.myfactory = book.myfactory;
+        this.file = book.file;
+        this.name = book.name;
+        this.DEBUGLEVEL = book.DEBUGLEVEL;
+    }
+
     /**
      * Fetches a workbook from a URL
      * <p>
@@ -573,6 +611,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public void setFormulaCalculationMode(int CalcMode) {
+        mybook.checkWritable();
         mybook.setCalcMode(CalcMode);
     }
 
@@ -589,6 +628,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         // TODO: Check that this behavior is correct
         // This is what the old implementation did
 
+        mybook.checkWritable();
         BookProtectionManager protector = mybook.getProtectionManager();
 
         // Excel default... no kidding!
@@ -617,6 +657,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     // conversion
     @Override
     public void setDefaultRowHeight(int t) {
+        mybook.checkWritable();
         mybook.setDefaultRowHeight(t);
     }
 
@@ -631,6 +672,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public void setDefaultColWidth(int t) {
+        mybook.checkWritable();
         mybook.setDefaultColWidth(t);
     }
 
@@ -730,6 +772,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * @return NameHandle for modifying the named range
      */
     public NameHandle createNamedRange(String name, String rangeDef) {
+        mybook.checkWritable();
         NameHandle nh = new NameHandle(name, rangeDef, this);
         return nh;
     }
@@ -1068,6 +1111,14 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         if (format == FORMAT_NATIVE)
             format = this.getFormat();
 
+        // writing updates the records and the streamer's state, so one write
+        // at a time, also for the handles of a shared workbook
+        synchronized (mybook) {
+            writeFormat(dest, format);
+        }
+    }
+
+    private void writeFormat(OutputStream dest, int format) throws IOException {
         switch (format) {
             case FORMAT_XLSX:
             case FORMAT_XLSM:
@@ -1280,6 +1331,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
 
     protected void initWorkBookFactory() {
         myfactory = new WorkBookFactory();
+        myfactory.setLazySheetLoading(lazySheetLoading);
     }
 
     /**
@@ -1411,6 +1463,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * Handles tasks that need to occur after workbook has been loaded
      */
     void postLoad() {
+        mybook.setDeferredCellsHandle(this); // for sheets left unparsed by lazy loading
         initHlinks();
         initMerges();
         mybook.initializeNames(); // must initialize name expressions AFTER
@@ -1418,13 +1471,16 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         mybook.mergeMSODrawingRecords();
         mybook.initializeIndirectFormulas();
         initPivotCache(); // if any
+        if (Boolean.valueOf(System.getProperty(WorkBookFactory.COMPACTCELLSTORAGE)).booleanValue())
+            mybook.setCompactCellStorage(true);
     }
 
     void initMerges() {
         AbstractList<?> mergelookup = mybook.getMergecelllookup();
         for (int t = 0; t < mergelookup.size(); t++) {
             Mergedcells mc = (Mergedcells) mergelookup.get(t);
-            mc.initCells(this);
+            if (mc.getSheet() == null || !mc.getSheet().hasDeferredCells()) // else done as the sheet loads
+                mc.initCells(this);
         }
     }
 
@@ -1432,7 +1488,8 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         AbstractList<?> hlinklookup = mybook.getHlinklookup();
         for (int t = 0; t < hlinklookup.size(); t++) {
             Hlink hl = (Hlink) hlinklookup.get(t);
-            hl.initCells(this);
+            if (hl.getSheet() == null || !hl.getSheet().hasDeferredCells())
+                hl.initCells(this);
         }
     }
 
@@ -1457,6 +1514,13 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public void close() {
+        if (view) {
+            mybook = null;
+            myLEOFile = null;
+            myfactory = null;
+            sheethandles = null;
+            return;
+        }
         try {
             if (myLEOFile != null)
                 myLEOFile.shutdown();
@@ -1526,6 +1590,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Override
     public WorkSheetHandle getWorkSheet(int sheetnum) throws SheetNotFoundException {
         Boundsheet st = mybook.getWorkSheetByNumber(sheetnum);
+        st.ensureCellsLoaded();
         if (sheethandles.get(st.getSheetName()) != null)
             return sheethandles.get(st.getSheetName());
         else {
@@ -1546,7 +1611,9 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Override
     public WorkSheetHandle getWorkSheet(String sheetName) throws SheetNotFoundException {
         if (sheethandles.get(sheetName) != null) {
-            if (mybook.getWorkSheetByName(sheetName) != null) {
+            Boundsheet bs = mybook.getWorkSheetByName(sheetName);
+            if (bs != null) {
+                bs.ensureCellsLoaded();
                 return sheethandles.get(sheetName);
             } else {
                 throw new SheetNotFoundException("Sheet " + sheetName + " not found");
@@ -1556,6 +1623,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
             Boundsheet bs = mybook.getWorkSheetByName(sheetName);
             if (bs != null) {
                 bs.setWorkBook(this.mybook);
+                bs.ensureCellsLoaded();
                 WorkSheetHandle ret = new WorkSheetHandle(bs, this);
                 sheethandles.put(sheetName, ret);
                 return ret;
@@ -1672,6 +1740,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Override
     public void copyChartToSheet(String chartname, String sheetname)
             throws ChartNotFoundException, SheetNotFoundException {
+        mybook.checkWritable();
         mybook.copyChartToSheet(chartname, sheetname);
     }
 
@@ -1684,6 +1753,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Override
     public void copyChartToSheet(ChartHandle chart, WorkSheetHandle sheet)
             throws ChartNotFoundException, SheetNotFoundException {
+        mybook.checkWritable();
         mybook.copyChartToSheet(chart.getTitle(), sheet.getSheetName());
     }
 
@@ -1698,6 +1768,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Override
     public WorkSheetHandle copyWorkSheet(String SourceSheetName, String NewSheetName)
             throws SheetNotFoundException {
+        mybook.checkWritable();
         try {
             mybook.copyWorkSheet(SourceSheetName, NewSheetName);
         } catch (Exception e) {
@@ -1746,6 +1817,9 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * actually calculate formulas, for that use {@link #recalc()}.
      */
     public void markFormulasDirty() {
+        mybook.checkWritable();
+        // lookup caches may hold the results of any formula
+        this.getWorkBook().getRefTracker().clearLookupCaches();
         Formula[] formulas = mybook.getFormulas();
         for (int idx = 0; idx < formulas.length; idx++)
             formulas[idx].clearCachedValue();
@@ -1754,6 +1828,11 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     /**
      * Recalculates all dirty formulas in the workbook immediately.
      * <p>
+     * Formulas are calculated in dependency order, each exactly once. Only
+     * formulas without a cached value, volatile formulas such as NOW() and the
+     * formulas which depend upon them are recalculated; editing a cell clears the
+     * cached values of the formulas which reference it.
+     * <p>
      * You generally need not call this method. Dirty formulas will automatically be
      * recalculated when their values are queried. This method is only useful for
      * forcing calculation to occur at a certain time. In the case of functions such
@@ -1765,22 +1844,116 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * @see #markFormulasDirty()
      */
     public void recalc() {
+        mybook.checkWritable();
         int calcmode = mybook.getCalcMode();
         mybook.setCalcMode(CALCULATE_AUTO); // ensure referenced functions are
         // calcualted as necesary!
-        Formula[] formulas = mybook.getFormulas();
-        for (int idx = 0; idx < formulas.length; idx++) {
+        // database caches may hold values of changed cells; lookup caches drop those themselves
+        this.getWorkBook().getRefTracker().clearDatabaseCaches();
+        // cells changed in CALCULATE_EXPLICIT mode haven't yet cleared their dependents
+        this.getWorkBook().getRefTracker().clearPendingChanges();
+        // calculates dirty formulas and their dependents only, precedents first
+        mybook.recalc();
+        // KSC: Clear out database caches!
+        this.getWorkBook().getRefTracker().clearDatabaseCaches();
+        mybook.setCalcMode(calcmode); // reset
+    }
+
+    /**
+     * Sets the number of threads used by {@link #recalc()}.
+     * <p>
+     * With a parallelism greater than 1, formulas which do not depend upon each
+     * other are calculated concurrently on a ForkJoinPool of that many threads.
+     * Formulas using volatile functions, named ranges or array formulas are
+     * still calculated on the calling thread. The default, 1, calculates all
+     * formulas on the calling thread.
+     *
+     * @param parallelism number of threads, at least 1
+     */
+    public void setRecalcParallelism(int parallelism) {
+        mybook.setRecalcParallelism(parallelism);
+    }
+
+    /**
+     * Returns the number of threads used by {@link #recalc()}.
+     *
+     * @see #setRecalcParallelism(int)
+     */
+    public int getRecalcParallelism() {
+        return mybook.getRecalcParallelism();
+    }
+
+    /**
+     * Sets whether cell values are kept in compact columnar storage.
+     * <p>
+     * Compact storage holds plain numbers, strings, booleans, errors and blank
+     * cells as primitive arrays per column instead of as a record object per
+     * cell, which cuts the heap used by large sheets several times over.
+     * Cells are turned back into records as they are accessed through
+     * {@link WorkSheetHandle} or {@link CellHandle}, so it pays off most for
+     * workbooks which are mainly read, calculated and written. Formulas and
+     * cells with hyperlinks or merges are always kept as records.
+     * <p>
+     * CellHandles obtained before compacting must be fetched again. Compact
+     * storage may also be enabled for every XLS workbook as it is parsed by
+     * setting the system property
+     * "com.valkyrlabs.OpenXLS.compactCellStorage" to "true".
+     *
+     * @param compact true to compact the cells of all sheets, false to restore
+     *                them all to records
+     */
+    public void setCompactCellStorage(boolean compact) {
+        mybook.checkWritable();
+        mybook.setCompactCellStorage(compact);
+    }
+
+    /**
+     * Returns whether any cells are held in compact storage.
+     *
+     * @see #setCompactCellStorage(boolean)
+     */
+    public boolean getCompactCellStorage() {
+        return mybook.getCompactCellStorage();
+    }
+
+    /**
+     * Opens a streaming, read-only cursor over the cell values of one sheet
+     * of an XLS or XLSX file.
+     * <p>
+     * Unlike opening a WorkBookHandle, no records are parsed into memory: the
+     * cursor walks the sheet's records (or, for XLSX, the sheet's XML) in the
+     * file and decodes only the cell values, shared strings and formats it
+     * reaches, so memory use stays flat however large the file. Formula cells
+     * return their cached values. The cursor must be closed to release the
+     * file.
+     *
+     * @param file      an XLS (BIFF8) or XLSX file
+     * @param sheetName name of the sheet to read
+     * @return a cursor positioned before the sheet's first cell
+     * @throws SheetNotFoundException if the file has no sheet of that name
+     * @see RowCursor
+     */
+    public static RowCursor openRowCursor(File file, String sheetName) throws SheetNotFoundException {
+        if (isZipFile(file)) // XLSX and the other OOXML formats are zip packages
+            return new OOXMLRowCursor(file, sheetName);
+        return new BiffRowCursor(new LEOFile(file, 0), sheetName);
+    }
+
+    private static boolean isZipFile(File file) {
+        byte[] b = new byte[2];
+        InputStream in = null;
+        try {
+            in = new java.io.FileInputStream(file);
+            return in.read(b) == 2 && b[0] == 'P' && b[1] == 'K';
+        } catch (IOException e) {
+            return false;
+        } finally {
             try {
-                formulas[idx].clearCachedValue();
-                formulas[idx].calculate();
-            } catch (FunctionNotSupportedException fe) {
-                Logger.logErr("WorkBookHandle.recalc:  Error calculating Formula "
-                        + fe.toString());
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
             }
         }
-        // KSC: Clear out lookup caches!
-        this.getWorkBook().getRefTracker().clearLookupCaches();
-        mybook.setCalcMode(calcmode); // reset
     }
 
     /**
@@ -1794,6 +1967,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public void removeAllWorkSheets() {
+        mybook.checkWritable();
 
         try {
             Object ob = this.mybook.getTabID().getTabIDs().get(0);
@@ -1803,6 +1977,8 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
         } catch (Exception ex) {
         }
         WorkSheetHandle[] ws = this.getWorkSheets();
+        // no cells are needed of sheets which are all going
+        this.mybook.discardDeferredCells();
         try {
             for (int x = 0; x < ws.length; x++) {
                 try {
@@ -1850,13 +2026,45 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     public WorkBookHandle getNoSheetWorkBook() {
         // to avoid ByteStreamer.stream records expansion
         Object[] recs = this.getWorkBook().getStreamer().getBiffRecords();
-        byte[] gb = this.getBytes();
-        WorkBookHandle ret = new WorkBookHandle(gb);
+        WorkBookHandle ret = this.fork();
         this.getWorkBook().getStreamer().setBiffRecords(Arrays.asList(recs));
         ret.removeAllWorkSheets();
         return ret;
     }
 
+    /**
+     * Returns a new WorkBookHandle holding an independent copy of this WorkBook.
+     * <p>
+     * The copy is read back from this WorkBook's bytes in memory, written in its
+     * native format so that an Excel 2007 WorkBook keeps its rows and columns
+     * beyond the BIFF8 limits. For a BIFF8 WorkBook, records unchanged since
+     * they were read are copied across as they are, and the cells of each
+     * worksheet of the copy are parsed only when the sheet is first used, so
+     * copying a template costs little more than reading its global records.
+     *
+     * @return WorkBookHandle - the copy
+     * @see WorkSheetHandle#copyTo(WorkBookHandle)
+     */
+    public WorkBookHandle fork() {
+        int format = this.getFormat();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            this.write(bout, format);
+        } catch (IOException e) {
+            throw new WorkBookException("Copying WorkBook failed: " + e,
+                    WorkBookException.WRITING_ERROR, e);
+        }
+        if (format == FORMAT_XLS)
+            return new WorkBookHandle(bout.toByteArray(), true);
+        WorkBookHandle ret = new WorkBookHandle(bout.toByteArray());
+        // BIFF8 calculates formulas without a value as it writes them, OOXML
+        // writes them as #VALUE!, so the copy calculates its own rather than
+        // this WorkBook being recalculated
+        if (mybook.getCalcMode() != CALCULATE_EXPLICIT)
+            ret.recalc();
+        return ret;
+    }
+
     /**
      * Inserts a worksheet from a Source WorkBook.
      *
@@ -1870,6 +2078,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Deprecated
     public boolean addSheetFromWorkBook(WorkBookHandle sourceBook, String sourceSheetName, String destSheetName)
             throws SheetNotFoundException {
+        mybook.checkWritable();
         return this.addWorkSheet(sourceBook
                 .getWorkSheet(sourceSheetName), destSheetName) != null;
     }
@@ -1891,6 +2100,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
     @Deprecated
     public boolean addSheetFromWorkBookWithFormatting(WorkBookHandle sourceBook, String sourceSheetName,
             String destSheetName) throws SheetNotFoundException {
+        mybook.checkWritable();
         return this.addWorkSheet(sourceBook
                 .getWorkSheet(sourceSheetName), destSheetName) != null;
     }
@@ -1908,6 +2118,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * @param WorkSheetHandle the source WorkSheetHandle;
      */
     public WorkSheetHandle addWorkSheet(WorkSheetHandle sourceSheet) {
+        mybook.checkWritable();
         return this.addWorkSheet(sourceSheet, sourceSheet.getSheetName());
     }
 
@@ -1922,6 +2133,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public WorkSheetHandle addWorkSheet(WorkSheetHandle sourceSheet, String NewSheetName) {
+        mybook.checkWritable();
         sourceSheet.getSheet().populateForTransfer(); // copy all formatting +
         // images for this sheet
         List<?> chts = sourceSheet.getSheet().getCharts();
@@ -1976,6 +2188,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * @return the new ChartHandle
      */
     public ChartHandle createChart(String name, WorkSheetHandle wsh) {
+        mybook.checkWritable();
         if (wsh == null) {
             // this is a sheetless chart - TODO:
         }
@@ -2042,6 +2255,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      * @param chartname
      */
     public void deleteChart(String chartname, WorkSheetHandle wsh) throws ChartNotFoundException {
+        mybook.checkWritable();
         try {
             mybook.deleteChart(chartname, wsh.getSheet());
         } catch (ChartNotFoundException e) {
@@ -2092,6 +2306,7 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
      */
     @Override
     public WorkSheetHandle createWorkSheet(String name) {
+        mybook.checkWritable();
         try {
             this.getWorkSheet(name);
             throw new WorkBookException(
@@ -2203,9 +2418,14 @@ public class WorkBookHandle extends DocumentHandle implements WorkBook, Handle {
 
     }
 
+    /**
+     * Writes the spreadsheet to the given stream in BIFF8 (Excel '97-2003)
+     * format.
+     *
+     * @see #getBytes()
+     */
     @Override
     public void writeBytes(OutputStream bbout) throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+        this.write(bbout, FORMAT_XLS);
     }
 }
\ No newline at end of file
@@ -428,6 +428,8 @@ public class WorkSheetHandle implements Handle {
 				}
 				mycol = new ColHandle(ci, this);
 
+			} catch (WorkBookException e) {
+				throw e; // a frozen workbook cannot add the colinfo
 			} catch (Exception e) {
 				throw new ColumnNotFoundException("Unable to getCol for col number " + clnum + " " + e.toString());
 			}
@@ -878,6 +880,33 @@ public class WorkSheetHandle implements Handle {
 		return mysheet;
 	}
 
+	/**
+	 * Copies this WorkSheet into another WorkBook, under the same name.
+	 * <p>
+	 * The formats and fonts used by the sheet's cells are added to the
+	 * destination WorkBook where it lacks them, each looked up once, and the
+	 * strings are added to its shared string table.
+	 * 
+	 * @param book the destination WorkBook
+	 * @return the new WorkSheetHandle in the destination WorkBook
+	 * @see WorkBookHandle#addWorkSheet(WorkSheetHandle, String)
+	 */
+	public WorkSheetHandle copyTo(WorkBookHandle book) {
+		return copyTo(book, this.getSheetName());
+	}
+
+	/**
+	 * Copies this WorkSheet into another WorkBook under the given name.
+	 * 
+	 * @param book         the destination WorkBook
+	 * @param newSheetName the name of the new sheet
+	 * @return the new WorkSheetHandle in the destination WorkBook
+	 * @see #copyTo(WorkBookHandle)
+	 */
+	public WorkSheetHandle copyTo(WorkBookHandle book, String newSheetName) {
+		return book.addWorkSheet(this, newSheetName);
+	}
+
 	/**
 	 * Returns the Serialized bytes for this WorkSheet.
 	 * 
@@ -1883,6 +1912,8 @@ public class WorkSheetHandle implements Handle {
 				CellHandle c = this.getCell(row, col);
 				if (this.wbh.getFormulaCalculationMode() != wbh.CALCULATE_EXPLICIT)
 					c.clearAffectedCells(); // blow out cache
+				else
+					this.wbh.getWorkBook().getRefTracker().addPendingChange(c.getCell()); // cleared upon recalc
 				return c;
 			} catch (CellNotFoundException e) {
 				Logger.logInfo("Adding Cell to row failed row:" + row + " col: " + col + " failed.");
@@ -1927,10 +1958,11 @@ public class WorkSheetHandle implements Handle {
 			this.add((java.util.Date) obj, address, null);
 		} else {
 			BiffRec reca = mysheet.addValue(obj, rc, formatId);
-			if (this.wbh.getFormulaCalculationMode() != wbh.CALCULATE_EXPLICIT) {
-				ReferenceTracker rt = this.wbh.getWorkBook().getRefTracker();
+			ReferenceTracker rt = this.wbh.getWorkBook().getRefTracker();
+			if (this.wbh.getFormulaCalculationMode() != wbh.CALCULATE_EXPLICIT)
 				rt.clearAffectedFormulaCells(reca);
-			}
+			else if (reca != null)
+				rt.addPendingChange(reca); // cleared upon recalc
 			if (DEBUGLEVEL > 1)
 				if (reca != null)
 					Logger.logInfo("WorkSheetHandle.add() " + reca.toString() + " Successfully Added.");
@@ -2031,6 +2063,8 @@ public class WorkSheetHandle implements Handle {
 				CellHandle c = this.getCell(address);
 				if (this.wbh.getFormulaCalculationMode() != wbh.CALCULATE_EXPLICIT)
 					c.clearAffectedCells(); // blow out cache
+				else
+					this.wbh.getWorkBook().getRefTracker().addPendingChange(c.getCell()); // cleared upon recalc
 				return c;
 			} catch (CellNotFoundException e) {
 				Logger.logInfo("Adding Cell: " + address + " failed");
@@ -22,7 +22,7 @@
  */
 package com.valkyrlabs.formats.LEO;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
@@ -33,6 +33,7 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
@@ -225,29 +226,151 @@ public class BlockByteReader implements Serializable {
                 byte[] junk = {0x0, 0x0, 0x0, 0x0};
                 return junk;
             } else if ((check + 4) > SIZE) { // SPANNER!
-                Block bx = (Block) this.blockmap.get(block);
                 int l1 = ((SIZE * (block + 1)) - startpos);
                 int s2 = startpos % SIZE;
-                byte[] b1 = bx.getBytes(s2, s2 + l1);
-                bx = (Block) this.blockmap.get(block + 1);
+                byte[] b1 = this.getBytes(block, s2, s2 + l1);
                 l1 = 4 - l1;
-                byte[] b2 = bx.getBytes(0, l1);
+                byte[] b2 = this.getBytes(block + 1, 0, l1);
                 return ByteTools.append(b2, b1);
             }
 
-            Block bx = (Block) this.blockmap.get(block);
             startpos -= (block * SIZE);
-            return bx.getBytes(startpos, startpos + 4);
+            return this.getBytes(block, startpos, startpos + 4);
         } catch (RuntimeException e) {
             throw new WorkBookException("Smallblock based workbooks are unsupported in OpenXLS: see http://extentech.com/uimodules/docs/docs_detail.jsp?showall=true&meme_id=195", WorkBookException.SMALLBLOCK_FILE);
         }
     }
 
+    /**
+     * Reads the four byte record header at the given position in the stream
+     * in place, rather than copying it out as getHeaderBytes does.
+     *
+     * @param startpos
+     * @return the opcode in the low 16 bits and the record length in the
+     * high 16 bits
+     */
+    public int getHeader(int startpos) {
+        if (!(this.blockmap instanceof SectorTable.Chain)
+                || this.length < StorageTable.BIGSTORAGE_SIZE) {
+            byte[] h = this.getHeaderBytes(startpos);
+            return (h[0] & 0xFF) | (h[1] & 0xFF) << 8
+                    | (h[2] & 0xFF) << 16 | (h[3] & 0xFF) << 24;
+        }
+        int block = startpos / BIGBLOCK.SIZE;
+        int check = startpos % BIGBLOCK.SIZE;
+        // handle EOF that falls right on boundary
+        if (((check + 4) > BIGBLOCK.SIZE) && (blockmap.size() - 1 == block))
+            return 0;
+        return ((SectorTable.Chain) this.blockmap).getInt(block, check);
+    }
+
+    /**
+     * Returns whether records may be read from this stream by several threads
+     * at once.  Streams read straight from the file's sectors can be; others
+     * are read through Blocks, which share their buffer's position.
+     */
+    public boolean isConcurrentReadable() {
+        return this.blockmap instanceof SectorTable.Chain
+                && this.length >= StorageTable.BIGSTORAGE_SIZE;
+    }
+
+    /**
+     * Copies bytes from the given position in the stream into an array,
+     * without regard to record boundaries.
+     *
+     * @param startpos position in the stream of the first byte
+     * @param dest     array to copy the bytes into
+     * @param off      position in dest of the first byte
+     * @param len      number of bytes to copy
+     */
+    public void read(int startpos, byte[] dest, int off, int len) {
+        int[] pos = this.getReadPositions(startpos, len);
+        for (int t = 0; t + 2 < pos.length; t += 3) {
+            if (pos[t + 2] <= pos[t + 1])
+                continue;
+            if (this.blockmap instanceof SectorTable.Chain) {
+                ((SectorTable.Chain) this.blockmap).read(pos[t], pos[t + 1], pos[t + 2], dest, off);
+                off += pos[t + 2] - pos[t + 1];
+                continue;
+            }
+            byte[] b = this.blockmap.get(pos[t]).getBytes(pos[t + 1], pos[t + 2]);
+            System.arraycopy(b, 0, dest, off, b.length);
+            off += b.length;
+        }
+    }
+
+    /**
+     * Writes bytes from the given position in the stream to a channel,
+     * without regard to record boundaries.  The bytes go straight from the
+     * blocks' buffers to the channel rather than through a byte array.
+     *
+     * @param startpos position in the stream of the first byte
+     * @param len      number of bytes to write
+     * @param out      channel to write the bytes to
+     */
+    public void write(int startpos, int len, WritableByteChannel out) throws IOException {
+        int[] pos = this.getReadPositions(startpos, len);
+        for (int t = 0; t + 2 < pos.length; t += 3) {
+            int n = pos[t + 2] - pos[t + 1];
+            if (n <= 0)
+                continue;
+            ByteBuffer src = null;
+            if (this.blockmap instanceof SectorTable.Chain) {
+                src = ((SectorTable.Chain) this.blockmap).slice(pos[t], pos[t + 1], pos[t + 2]);
+            } else {
+                Block b = this.blockmap.get(pos[t]);
+                src = b.getByteBuffer();
+                int start = b.getOriginalPos() + pos[t + 1];
+                if (src != null && src.capacity() > n && start + n <= src.limit()) {
+                    src = src.duplicate();
+                    src.limit(start + n);
+                    src.position(start);
+                } else {
+                    src = null;
+                }
+            }
+            if (src == null) // short or odd last block, let the block sort it out
+                src = ByteBuffer.wrap(this.getBytes(pos[t], pos[t + 1], pos[t + 2]));
+            while (src.hasRemaining())
+                out.write(src);
+        }
+    }
+
+    /**
+     * Returns bytes start to end of one block of the stream.
+     */
+    private byte[] getBytes(int block, int start, int end) {
+        if (this.blockmap instanceof SectorTable.Chain) {
+            byte[] ret = new byte[end - start];
+            ((SectorTable.Chain) this.blockmap).read(block, start, end, ret, 0);
+            return ret;
+        }
+        return this.blockmap.get(block).getBytes(start, end);
+    }
+
+    /**
+     * Returns the position in the file of one block of the stream.
+     */
+    private long getOriginalPos(int block) {
+        if (this.blockmap instanceof SectorTable.Chain)
+            return ((SectorTable.Chain) this.blockmap).getOriginalPos(block);
+        return this.blockmap.get(block).getOriginalPos();
+    }
+
     /* Return the byte from the blocks at the proper locations...
      *
      * @see java.nio.ByteBuffer#get()
      */
     public byte get(BlockByteConsumer rec, int startpos) {
+        if (this.blockmap instanceof SectorTable.Chain
+                && this.length >= StorageTable.BIGSTORAGE_SIZE) {
+            rec.setByteReader(this);
+            if (this.getApplyRelativePosition())
+                startpos += 4;
+            startpos += rec.getOffset();
+            return ((SectorTable.Chain) this.blockmap).get(
+                    startpos / BIGBLOCK.SIZE, startpos % BIGBLOCK.SIZE);
+        }
         byte ret = this.get(rec, startpos, 1)[0];
         return ret;
     }
@@ -355,23 +478,37 @@ public class BlockByteReader implements Serializable {
                             + ","
                             + (startpos + len)
                             + ") failed - OUT OF BOUNDS.");
+        byte[] ret = new byte[len];
+        boolean chain = this.blockmap instanceof SectorTable.Chain
+                && this.length >= StorageTable.BIGSTORAGE_SIZE;
+        if (chain && (startpos % BIGBLOCK.SIZE) + len <= BIGBLOCK.SIZE) {
+            // the usual case, all in one block
+            int s = startpos % BIGBLOCK.SIZE;
+            ((SectorTable.Chain) this.blockmap).read(startpos / BIGBLOCK.SIZE, s, s + len, ret, 0);
+            return ret;
+        }
         // get the block byte boundaries
         int[] pos = this.getReadPositions(startpos, len);
         int numblocks = pos.length / 3;
         int blkdef = 0;
-        //	backingByteBuffer = blokx.getByteBuffer();
-        //	Temporarily use BAOS...
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int off = 0;
         for (int t = 0; t < numblocks; t++) {
             try { // inlining byte read
-                Block b1 = (Block) this.blockmap.get(pos[blkdef++]);
-                out.write(b1.getBytes(pos[blkdef++], pos[blkdef++]));
+                int b1 = pos[blkdef++];
+                int s = pos[blkdef++], e = pos[blkdef++];
+                if (chain) {
+                    ((SectorTable.Chain) this.blockmap).read(b1, s, e, ret, off);
+                } else {
+                    byte[] b = this.blockmap.get(b1).getBytes(s, e);
+                    System.arraycopy(b, 0, ret, off, b.length);
+                }
+                off += e - s;
                 if (false)
                     Logger.logInfo(
                             "INFO: BBR.getRecBytes() "
                                     + rec.getClass().getName()
                                     + " ACCESSING DATA for block:"
-                                    + b1.getBlockIndex()
+                                    + b1
                                     + ":"
                                     + pos[0]
                                     + "-"
@@ -381,7 +518,7 @@ public class BlockByteReader implements Serializable {
                         "ERROR: BBR.getRecBytes streaming " + rec.toString() + " bytes for block failed: " + a);
             }
         }
-        return out.toByteArray();
+        return ret;
     }
 
     /**
@@ -406,16 +543,16 @@ public class BlockByteReader implements Serializable {
 
         int offset = 0;
         int fidx = 0;
-        Block block = null;
-        Block prev;
+        long block = -1;
+        long prev;
         for (int sidx = 0; sidx < smap.length; sidx += 3) {
             prev = block;
-            block = (Block) this.blockmap.get(smap[sidx]);
+            block = this.getOriginalPos(smap[sidx]);
 
-            if (prev == null || block.getOriginalPos() + smap[sidx + 1] !=
-                    prev.getOriginalPos() + smap[sidx - 1]) {
+            if (prev == -1 || block + smap[sidx + 1] !=
+                    prev + smap[sidx - 1]) {
                 fmap[fidx++] = offset;
-                fmap[fidx++] = block.getOriginalPos() + smap[sidx + 1];
+                fmap[fidx++] = (int) (block + smap[sidx + 1]);
             }
 
             offset += smap[sidx + 2] - smap[sidx + 1];
@@ -28,33 +28,67 @@
  */
 package com.valkyrlabs.formats.LEO;
 
-import com.valkyrlabs.toolkit.TempFileManager;
-
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * TODO To change the template for this generated type comment go to
- * Window - Preferences - Java - Code Style - Code Templates
+ * The bytes of a compound file, mapped into memory from disk.
+ * <p>
+ * By default the whole file is mapped as one buffer.  A windowed buffer
+ * instead maps the file in fixed size regions as they are read, keeping only
+ * the most recently used ones; this is how files larger than a single buffer
+ * (2GB) are read, and keeps the address space used by a very large file
+ * bounded.  A dropped region is unmapped once nothing refers to it any more.
+ * <p>
+ * Files are mapped read-only, so the file must not be changed while it is
+ * open.  A copy-on-write mapping, as made by {@link #readFileUsingTemp(File)},
+ * keeps any change made through the buffer private to it; it needs the file
+ * to be writable, and falls back to a read-only mapping if it is not.
  */
 public class FileBuffer {
+    /**
+     * Size of the regions a windowed buffer maps, a whole number of sectors.
+     */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+    /**
+     * Number of regions a windowed buffer keeps mapped.
+     */
+    public static final int DEFAULT_MAX_REGIONS = 16;
 
     FileChannel channel = null;
     FileInputStream input = null;
     private transient ByteBuffer buffer = null;
-    private File tempfile = null;
+    private FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+    private long length;
+
+    // windowed mapping only
+    private int regionSize;
+    private int sectorsPerRegion;
+    private Map<Integer, ByteBuffer> regions = null;
+    private volatile Region last = null;
 
     /**
      *
      */
     public FileBuffer() {
         super();
-        // TODO Auto-generated constructor stub
+    }
+
+    /**
+     * Returns a FileBuffer over bytes already in memory.
+     */
+    public static FileBuffer wrap(ByteBuffer b) {
+        FileBuffer fb = new FileBuffer();
+        fb.buffer = b;
+        fb.length = b.limit();
+        return fb;
     }
 
     public static FileBuffer readFile(String fpath) {
@@ -66,71 +100,225 @@ public class FileBuffer {
         }
     }
 
+    /**
+     * Maps a file read-only.  Files too large for one buffer are mapped in
+     * windows.
+     */
     public static FileBuffer readFile(File fx0) {
-        try {
-            FileBuffer fb = new FileBuffer();
-            fb.input = new FileInputStream(fx0);
-            fb.channel = fb.input.getChannel();
-            int fileLength = (int) fb.channel.size();
-            // MappedByteBuffer
-            fb.buffer =
-                    fb.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
-            fb.buffer.order(ByteOrder.LITTLE_ENDIAN);
-            return fb;
-        } catch (Throwable e) {
-            throw new InvalidFileException("LEO FileBuffer.readFile() failed: " + e.toString());
-        }
+        return open(fx0, FileChannel.MapMode.READ_ONLY, 0, 0);
     }
 
-    //TODO: reimplement temp files and deal with cleanup -jm
     public static FileBuffer readFileUsingTemp(String fpath) {
         return readFileUsingTemp(new File(fpath));
     }
 
+    /**
+     * Maps a file copy-on-write.  Changes made through the buffer are kept
+     * private to it and never reach the file.
+     * <p>
+     * This used to copy the file to a temp file before mapping it; the
+     * mapping now serves the same purpose without paying for the copy.
+     */
     public static FileBuffer readFileUsingTemp(File fx0) {
+        return open(fx0, FileChannel.MapMode.PRIVATE, 0, 0);
+    }
+
+    /**
+     * Maps a file in windows of {@link #DEFAULT_REGION_SIZE} bytes, keeping
+     * at most {@link #DEFAULT_MAX_REGIONS} of them mapped.
+     *
+     * @param copyOnWrite whether to map the file copy-on-write rather than
+     *                    read-only
+     */
+    public static FileBuffer readFileWindowed(File fx0, boolean copyOnWrite) {
+        return readFileWindowed(fx0, copyOnWrite, DEFAULT_REGION_SIZE, DEFAULT_MAX_REGIONS);
+    }
+
+    /**
+     * Maps a file in windows.
+     *
+     * @param copyOnWrite whether to map the file copy-on-write rather than
+     *                    read-only
+     * @param regionSize  the size of each window, rounded down to a whole
+     *                    number of sectors
+     * @param maxRegions  the number of windows kept mapped
+     */
+    public static FileBuffer readFileWindowed(File fx0, boolean copyOnWrite, int regionSize, int maxRegions) {
+        if (regionSize < BIGBLOCK.SIZE || maxRegions < 1)
+            throw new IllegalArgumentException("region size must be at least one sector and at least one region kept");
+        return open(fx0, copyOnWrite ? FileChannel.MapMode.PRIVATE
+                : FileChannel.MapMode.READ_ONLY, regionSize, maxRegions);
+    }
+
+    /**
+     * @param regionSize 0 to map the whole file if it fits in one buffer
+     */
+    private static FileBuffer open(File fx0, FileChannel.MapMode mode, int regionSize, int maxRegions) {
+        FileBuffer fb = new FileBuffer();
         try {
-            FileBuffer fb = new FileBuffer();
-            // create Temp file and populate
-            fb.tempfile = TempFileManager.createTempFile("LEOFile_", ".tmp");
-            fb.tempfile.delete();
-
-            FileInputStream input0 = new FileInputStream(fx0);
-            FileChannel channel0 = input0.getChannel();
-            FileOutputStream output0 = new FileOutputStream(fb.tempfile);
-            FileChannel channel1 = output0.getChannel();
-            channel0.transferTo(0, fx0.length(), channel1);
-
-            channel0.close();
-            channel1.close();
-            input0.close();
-            output0.close();
-
-            fb.input = new FileInputStream(fb.tempfile);
-            fb.channel = fb.input.getChannel();
-            int fileLength = (int) fb.channel.size();
-            // MappedByteBuffer
-            fb.buffer =
-                    fb.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
-            fb.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mode == FileChannel.MapMode.PRIVATE) {
+                // a copy-on-write mapping needs a channel open for writing,
+                // although nothing is ever written to it
+                try {
+                    fb.channel = FileChannel.open(fx0.toPath(),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    mode = FileChannel.MapMode.READ_ONLY;
+                } catch (SecurityException e) {
+                    mode = FileChannel.MapMode.READ_ONLY;
+                }
+            }
+            if (fb.channel == null) {
+                fb.input = new FileInputStream(fx0);
+                fb.channel = fb.input.getChannel();
+            }
+            fb.mode = mode;
+            fb.length = fb.channel.size();
+            if (regionSize == 0 && fb.length > Integer.MAX_VALUE) {
+                regionSize = DEFAULT_REGION_SIZE;
+                maxRegions = DEFAULT_MAX_REGIONS;
+            }
+            if (regionSize == 0) {
+                // MappedByteBuffer
+                fb.buffer = fb.channel.map(mode, 0, fb.length);
+                fb.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                if (fb.length / BIGBLOCK.SIZE >= Integer.MAX_VALUE)
+                    throw new InvalidFileException("file has more sectors than can be addressed: " + fb.length);
+                fb.sectorsPerRegion = regionSize / BIGBLOCK.SIZE;
+                fb.regionSize = fb.sectorsPerRegion * BIGBLOCK.SIZE;
+                final int max = maxRegions;
+                // in access order, so the eldest is the least recently used
+                fb.regions = new LinkedHashMap<Integer, ByteBuffer>(max + 1, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                        return size() > max;
+                    }
+                };
+            }
             return fb;
         } catch (Throwable e) {
+            try {
+                fb.close();
+            } catch (Exception x) {
+            }
+            if (e instanceof InvalidFileException)
+                throw (InvalidFileException) e;
             throw new InvalidFileException("LEO FileBuffer.readFile() failed: " + e.toString());
         }
     }
 
     public void close()
             throws IOException {
-        input.close();
-        channel.close();
-        if (tempfile != null) {
-            tempfile.deleteOnExit();
-            tempfile.delete();
+        if (input != null)
+            input.close();
+        if (channel != null)
+            channel.close();
+        if (regions != null) {
+            synchronized (this) {
+                regions.clear();
+            }
+            last = null;
         }
-        tempfile = null;
     }
 
     /**
-     * @return Returns the buffer.
+     * @return the length of the file in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return whether the file is mapped in windows rather than as one
+     * buffer
+     */
+    public boolean isWindowed() {
+        return regions != null;
+    }
+
+    /**
+     * Returns the buffer holding a sector of the file.  The sector starts at
+     * {@link #getSectorOffset(int)} in it.  Callers must not rely on the
+     * buffer's position.
+     *
+     * @param sector the sector, counting the header as sector 0
+     */
+    ByteBuffer getSectorBuffer(int sector) {
+        if (regions == null)
+            return buffer;
+        return getRegion(sector / sectorsPerRegion);
+    }
+
+    /**
+     * Returns the position of a sector in the buffer returned for it by
+     * {@link #getSectorBuffer(int)}.
+     */
+    int getSectorOffset(int sector) {
+        if (regions == null)
+            return sector * BIGBLOCK.SIZE;
+        return (sector % sectorsPerRegion) * BIGBLOCK.SIZE;
+    }
+
+    /**
+     * Copies bytes of the file into an array, reading across window edges
+     * as need be.
+     *
+     * @param pos the position in the file of the first byte to copy
+     */
+    public void read(long pos, byte[] dest, int off, int len) {
+        if (pos < 0 || len < 0 || pos + len > length)
+            throw new IndexOutOfBoundsException("bytes " + pos + " to " + (pos + len) + " are not in the file: " + length);
+        if (regions == null) {
+            ByteBuffer src = buffer.duplicate();
+            src.position((int) pos);
+            src.get(dest, off, len);
+            return;
+        }
+        while (len > 0) {
+            int start = (int) (pos % regionSize);
+            int n = Math.min(len, regionSize - start);
+            ByteBuffer src = getRegion((int) (pos / regionSize)).duplicate();
+            src.position(start);
+            src.get(dest, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private ByteBuffer getRegion(int r) {
+        Region l = last;
+        if (l != null && l.index == r)
+            return l.buf;
+        return mapRegion(r);
+    }
+
+    private synchronized ByteBuffer mapRegion(int r) {
+        ByteBuffer b = regions.get(r);
+        if (b == null) {
+            long start = (long) r * regionSize;
+            if (start >= length)
+                throw new IndexOutOfBoundsException("position " + start + " is past the end of the file: " + length);
+            if (channel == null || !channel.isOpen())
+                throw new InvalidFileException("LEO FileBuffer has been closed");
+            try {
+                b = channel.map(mode, start, Math.min(regionSize, length - start));
+            } catch (IOException e) {
+                throw new InvalidFileException("LEO FileBuffer could not map " + start + ": " + e.toString());
+            }
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            regions.put(r, b);
+        }
+        last = new Region(r, b);
+        return b;
+    }
+
+    /**
+     * @return the buffer holding the whole file, or null if the file is
+     * mapped in windows
      */
     public ByteBuffer getBuffer() {
         return buffer;
@@ -141,5 +329,21 @@ public class FileBuffer {
      */
     public void setBuffer(ByteBuffer b) {
         this.buffer = b;
+        this.length = b == null ? 0 : b.limit();
+        this.regions = null;
+        this.last = null;
+    }
+
+    /**
+     * The most recently used region of a windowed buffer.
+     */
+    private static final class Region {
+        final int index;
+        final ByteBuffer buf;
+
+        Region(int index, ByteBuffer buf) {
+            this.index = index;
+            this.buf = buf;
+        }
     }
 }
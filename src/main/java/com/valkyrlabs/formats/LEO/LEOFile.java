@@ -91,7 +91,7 @@ public class LEOFile implements Serializable {
     String fileName = "New Spreadsheet";
     byte[] encryptionStorageOverage = null;
     boolean encryptedXLSX = false;
-    private List bigBlocks;
+    private SectorTable bigBlocks;
     private boolean readok = false;
     private LEOHeader header = null;
     private StorageTable directories;
@@ -112,7 +112,7 @@ public class LEOFile implements Serializable {
         }
         this.fileName = fname;
         fb = LEOFile.readFile(fname);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
     }
 
     /**
@@ -128,7 +128,7 @@ public class LEOFile implements Serializable {
         this.encryptedXLSX = encryptedXLSX;
         this.fileName = fpath.getAbsolutePath();
         fb = LEOFile.readFile(fpath, usetempfile);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
     }
 
     /**
@@ -140,7 +140,7 @@ public class LEOFile implements Serializable {
     public LEOFile(File fpath, boolean usetempfile) {
         this.fileName = fpath.getAbsolutePath();
         fb = LEOFile.readFile(fpath, usetempfile);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
     }
 
     /**
@@ -152,7 +152,7 @@ public class LEOFile implements Serializable {
         this.fileName = fpath.getAbsolutePath();
         this.DEBUGLEVEL = DEBUGLEVEL;
         fb = LEOFile.readFile(fpath);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
     }
 
     /**
@@ -183,7 +183,7 @@ public class LEOFile implements Serializable {
 
         this.fileName = target.getAbsolutePath();
         fb = LEOFile.readFile(target);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
         target.deleteOnExit();
         target.delete();
     }
@@ -277,8 +277,8 @@ public class LEOFile implements Serializable {
     }
 
     /**
-     * create a FileBuffer from a file, use system property to determine
-     * whether to use a temp file.
+     * create a FileBuffer from a file, use system properties to determine
+     * whether to map it copy-on-write and whether to map it in windows.
      *
      * @param file  containing XLS bytes
      * @param fpath
@@ -292,15 +292,20 @@ public class LEOFile implements Serializable {
         if (tmpfu != null)
             usetempfile = tmpfu.equalsIgnoreCase("true");
 
+        String windowed = (String) System.getProperties()
+                .get("com.valkyrlabs.formats.LEO.windowedmapping");
+        if (windowed != null && windowed.equalsIgnoreCase("true"))
+            return FileBuffer.readFileWindowed(fpath, usetempfile);
+
         return readFile(fpath, usetempfile);
     }
 
     /**
      * create a FileBuffer from a file, use boolean parameter to determine
-     * whether to use a temp file.
+     * whether to map it copy-on-write.
      *
      * @param file    containing XLS bytes
-     * @param whether to use a tempfile
+     * @param whether to map the file copy-on-write
      * @return
      */
     public final static FileBuffer readFile(File fpath, boolean usetempfile) {
@@ -316,13 +321,18 @@ public class LEOFile implements Serializable {
      * <p>
      * access data directly on disk through the ByteBuffer.
      *
-     * <br> By default, OpenXLS will lock open WorkBook files, to close the file after parsing and work with a
-     * temporary file instead, use the following setting:
+     * <br> By default, OpenXLS maps open WorkBook files read-only.  To map them copy-on-write, so that
+     * changes to the buffer are kept private and never reach the file, use the following setting:
      * <br><br>
      * System.getProperties().put("com.valkyrlabs.formats.LEO.usetempfile", "true");
      * <br><br>
-     * IMPORTANT NOTE: You will need to clean up temp files occasionally in your user directory (temp filenames will begin
-     * with "ExtenXLS_".)
+     * Either way the file must not be replaced while the WorkBook is open.  This setting used to copy the
+     * file to a temp file first.
+     * <br><br>
+     * Files larger than 2GB are mapped in windows of FileBuffer.DEFAULT_REGION_SIZE bytes as they are read.
+     * To map every file that way, keeping the address space used bounded, use the following setting:
+     * <br><br>
+     * System.getProperties().put("com.valkyrlabs.formats.LEO.windowedmapping", "true");
      * <br><br>
      **/
     public final static FileBuffer readFile(String fpath) {
@@ -484,13 +494,8 @@ public class LEOFile implements Serializable {
             directories.close();
             directories = null;
         }
-        if (bigBlocks != null) {
-            for (int i = 0; i < bigBlocks.size(); i++) {
-                BlockImpl b = (BlockImpl) bigBlocks.get(i);
-                b.close();
-            }
+        if (bigBlocks != null)
             bigBlocks.clear();
-        }
         bigBlocks = null;
         // FAT= null;
     }
@@ -499,6 +504,10 @@ public class LEOFile implements Serializable {
      * just closes the filebuffer withut clearing out buffers and storage tables
      */
     public void closefb() throws IOException {
+        // a windowed buffer maps the rest of the file as it is read, so
+        // keep it until close()
+        if (fb != null && fb.isWindowed())
+            return;
         if (fb != null)
             fb.close();
         fb = null;
@@ -543,7 +552,11 @@ public class LEOFile implements Serializable {
      * We should add some exception handling in here!
      */
     public void initWrapper(ByteBuffer bytebuff) {
-        int[] FAT = this.init(bytebuff);
+        this.initWrapper(FileBuffer.wrap(bytebuff));
+    }
+
+    private void initWrapper(FileBuffer buf) {
+        int[] FAT = this.init(buf);
         if (FAT != null) {
             directories.initDirectories(bigBlocks, FAT);
             // KSC: TESTING: XLS-97
@@ -594,7 +607,7 @@ public class LEOFile implements Serializable {
      */
     public void readEncryptedFile(File encryptedFile) {
         fb = readFile(encryptedFile);
-        this.initWrapper(fb.getBuffer());
+        this.initWrapper(fb);
     }
 
     public String getFileName() {
@@ -1213,7 +1226,13 @@ public class LEOFile implements Serializable {
      * read LEO file information from header.
      */
     public synchronized int[] init(ByteBuffer bbuf) {
-        int pos = 0;
+        return init(FileBuffer.wrap(bbuf));
+    }
+
+    /**
+     * read LEO file information from header.
+     */
+    synchronized int[] init(FileBuffer buf) {
         ArrayList FATSectors = new ArrayList(); // one or more
         // sectors which
         // hold the FAT
@@ -1223,35 +1242,28 @@ public class LEOFile implements Serializable {
         // indexes into
         // the sectors)
 
-        bigBlocks = new ArrayList();
-        int len = bbuf.limit() / BIGBLOCK.SIZE;
-        // get ALL BIGBLOCKS (512 byte chunks of file)
+        int len = (int) (buf.length() / BIGBLOCK.SIZE);
+        // ALL BIGBLOCKS (512 byte chunks of file); their Blocks are made
+        // as they are needed
         if (DEBUG)
             Logger.logInfo("\nINIT: Total Number of bigblocks:  " + len);
-        for (int i = 0; i < len; i++) {
-            BIGBLOCK bbd = new BIGBLOCK();
-            bbd.init(bbuf, i, pos);
-            pos += BIGBLOCK.SIZE;
-            this.bigBlocks.add(bbd);
-        }
+        int numSectors = len;
 
         // Encrypted workbooks can have random overages.
         // not ideal, but store this value in LEO and get from the
         // storage if its named 'EncryptedPackage'
-        int encryptionStorageOverageLen = (bbuf.limit() % BIGBLOCK.SIZE);
+        int encryptionStorageOverageLen = (int) (buf.length() % BIGBLOCK.SIZE);
         if (encryptionStorageOverageLen > 0) {
-            int filepos = len * BIGBLOCK.SIZE;
             if (this.encryptedXLSX) {
-                bbuf.position(filepos);
+                ByteBuffer bbuf = buf.getSectorBuffer(len);
+                bbuf.position(buf.getSectorOffset(len));
                 encryptionStorageOverage = new byte[encryptionStorageOverageLen];
                 bbuf.get(encryptionStorageOverage, 0, encryptionStorageOverage.length);
             } else {
-                BIGBLOCK bbd = new BIGBLOCK();
-                bbd.init(bbuf, len, pos); // filepos);
-                pos += encryptionStorageOverageLen;
-                this.bigBlocks.add(bbd);
+                numSectors++; // short last block
             }
         }
+        bigBlocks = new SectorTable(buf, numSectors);
 
         /***** Read in the file header */
         // header holds directory start sector and
@@ -1259,7 +1271,7 @@ public class LEOFile implements Serializable {
         header = new LEOHeader(); // read the LEO file header rec
 
         // is a valid WorkBook File?
-        if (!header.init(bbuf))
+        if (!header.init(buf.getSectorBuffer(0)))
             throw new InvalidFileException(
                     this.getFileName() + " is not a valid OLE File.");
 
@@ -1293,7 +1305,7 @@ public class LEOFile implements Serializable {
 
         /*****  Read the Directory blocks */
         directories = new StorageTable();
-        directories.init(bbuf, header, bigBlocks, FAT);
+        directories.init(buf.getSectorBuffer(0), header, bigBlocks, FAT);
         return FAT;
     }
 
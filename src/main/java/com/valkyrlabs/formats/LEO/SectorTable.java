@@ -0,0 +1,253 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.LEO;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The 512 byte sectors of a compound file, as a list of Blocks over the
+ * file's FileBuffer.
+ * <p>
+ * A BIGBLOCK object for every sector of a large file costs far more heap and
+ * open time than the sectors themselves are worth; most are only ever read
+ * through.  The table keeps the buffer and a bit per sector, and makes the
+ * BIGBLOCK for a sector the first time it is asked for.  The streams of the
+ * file are kept as {@link Chain}s of sector numbers, which BlockByteReader
+ * reads by position without making Blocks at all.
+ */
+final class SectorTable extends AbstractList<Block> implements Serializable {
+    private static final long serialVersionUID = -1842113658309757531L;
+
+    private transient FileBuffer buf;
+    private int count;
+    private transient Block[] blocks;
+    // sectors taken by a stream before their Block was made
+    private final BitSet claimed = new BitSet();
+
+    /**
+     * @param buf   the whole file
+     * @param count the number of sectors, counting a short last one
+     */
+    SectorTable(FileBuffer buf, int count) {
+        this.buf = buf;
+        this.count = count;
+        this.blocks = new Block[count];
+    }
+
+    /**
+     * Returns the Block for a sector, making it if need be.
+     */
+    @Override
+    public Block get(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("sector " + i + " of " + count);
+        Block b = blocks[i];
+        if (b == null) {
+            b = newBlock(buf, i);
+            if (claimed.get(i))
+                b.setInitialized(true);
+            blocks[i] = b;
+        }
+        return b;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Drops the table's Blocks.  Chains made from it are unaffected.
+     */
+    @Override
+    public void clear() {
+        if (blocks != null)
+            for (int i = 0; i < blocks.length; i++)
+                if (blocks[i] != null)
+                    ((BlockImpl) blocks[i]).close();
+        blocks = new Block[0];
+        claimed.clear();
+        count = 0;
+    }
+
+    /**
+     * Marks a sector as taken by a stream.
+     *
+     * @return false if another stream has already taken it
+     */
+    boolean claim(int i) {
+        Block b = blocks[i];
+        if (b != null) {
+            if (b.getInitialized())
+                return false;
+            b.setInitialized(true);
+            return true;
+        }
+        if (claimed.get(i))
+            return false;
+        claimed.set(i);
+        return true;
+    }
+
+    /**
+     * Returns whether a sector holds part of the FAT or miniFAT rather than
+     * stream data.
+     */
+    boolean isSpecial(int i) {
+        Block b = blocks[i];
+        return b != null && b.getIsSpecialBlock();
+    }
+
+    /**
+     * Returns the given sectors, which must have been claimed, as a list of
+     * Blocks.
+     */
+    Chain chain(int[] sectors, int n) {
+        return new Chain(buf, Arrays.copyOf(sectors, n));
+    }
+
+    private static Block newBlock(FileBuffer buf, int sector) {
+        BIGBLOCK b = new BIGBLOCK();
+        b.init(buf.getSectorBuffer(sector), sector, buf.getSectorOffset(sector));
+        return b;
+    }
+
+    /**
+     * The sectors of one stream, in stream order.  A Block is only made for
+     * a sector when the list is walked; reads go straight to the file buffer
+     * and may be made from several threads at once.
+     */
+    static final class Chain extends AbstractList<Block> implements Serializable {
+        private static final long serialVersionUID = 5571709741390474146L;
+
+        private transient FileBuffer buf;
+        private int[] sectors;
+        private transient Block[] made;
+
+        Chain(FileBuffer buf, int[] sectors) {
+            this.buf = buf;
+            this.sectors = sectors;
+        }
+
+        @Override
+        public Block get(int k) {
+            if (k < 0 || k >= sectors.length)
+                throw new IndexOutOfBoundsException("block " + k + " of " + sectors.length);
+            if (made == null)
+                made = new Block[sectors.length];
+            Block b = made[k];
+            if (b == null) {
+                b = newBlock(buf, sectors[k]);
+                b.setInitialized(true);
+                made[k] = b;
+            }
+            return b;
+        }
+
+        @Override
+        public int size() {
+            return sectors.length;
+        }
+
+        @Override
+        public void clear() {
+            sectors = new int[0];
+            made = null;
+        }
+
+        /**
+         * @return the position in the file of the given block
+         */
+        long getOriginalPos(int k) {
+            return (long) sectors[k] * BIGBLOCK.SIZE;
+        }
+
+        /**
+         * Copies bytes start to end of the given block into an array.
+         */
+        void read(int k, int start, int end, byte[] dest, int off) {
+            ByteBuffer data = buf.getSectorBuffer(sectors[k]);
+            int pos = buf.getSectorOffset(sectors[k]) + start;
+            int n = end - start;
+            if (pos + n > data.limit()) {
+                // short last sector, the rest reads as zeros
+                n = Math.max(0, data.limit() - pos);
+                Arrays.fill(dest, off + n, off + end - start, (byte) 0);
+            }
+            if (n == 0)
+                return;
+            ByteBuffer src = data.duplicate();
+            src.position(pos);
+            src.get(dest, off, n);
+        }
+
+        /**
+         * Returns a byte of the given block.
+         */
+        byte get(int k, int off) {
+            ByteBuffer data = buf.getSectorBuffer(sectors[k]);
+            int pos = buf.getSectorOffset(sectors[k]) + off;
+            return pos < data.limit() ? data.get(pos) : 0;
+        }
+
+        /**
+         * Reads a little-endian int starting at a byte of the given block,
+         * running on into the next block if need be.
+         */
+        int getInt(int k, int off) {
+            ByteBuffer data = buf.getSectorBuffer(sectors[k]);
+            int pos = buf.getSectorOffset(sectors[k]) + off;
+            if (off + 4 <= BIGBLOCK.SIZE && pos + 4 <= data.limit())
+                return (data.get(pos) & 0xFF) | (data.get(pos + 1) & 0xFF) << 8
+                        | (data.get(pos + 2) & 0xFF) << 16 | (data.get(pos + 3) & 0xFF) << 24;
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 8, off++) {
+                if (off == BIGBLOCK.SIZE) {
+                    k++;
+                    off = 0;
+                }
+                v |= (get(k, off) & 0xFF) << shift;
+            }
+            return v;
+        }
+
+        /**
+         * Returns bytes start to end of the given block as a buffer over the
+         * file, or null if they run past its end.
+         */
+        ByteBuffer slice(int k, int start, int end) {
+            ByteBuffer data = buf.getSectorBuffer(sectors[k]);
+            int pos = buf.getSectorOffset(sectors[k]) + start;
+            if (pos + end - start > data.limit())
+                return null;
+            ByteBuffer src = data.duplicate();
+            src.limit(pos + end - start);
+            src.position(pos);
+            return src;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -238,6 +239,8 @@ public class Storage extends BlockByteReader {
      * remove a block from this Storage's headerData
      */
     void removeBlock(Block b) {
+        if (myblocks instanceof SectorTable.Chain)
+            myblocks = new ArrayList(myblocks);
         myblocks.remove(b);
     }
 
@@ -576,18 +579,25 @@ public class Storage extends BlockByteReader {
         boolean endloop = false;
         if (getStartBlock() < 0)
             return;
-        Block thisbb = null;
+        // the sectors of a stream read from a file are kept by number
+        SectorTable table = null;
+        if (dta instanceof SectorTable && !keepStartBlock)
+            table = (SectorTable) dta;
+        int[] sectors = new int[table != null ? Math.max(16, this.getActualFileSize() / BIGBLOCK.SIZE + 2) : 0];
+        int nsectors = 0;
+        int thisbb = -1;
         int nextIdx = 0; // , lastIdx = 0, specialOffset = 1;
 
         // ksc: for root block and miniFAT cont., we add start block to block list
         if (keepStartBlock) {
             // for root storages, add rootstart block
-            thisbb = (Block) dta.get(startBlock + 1);
-            this.addBlock(thisbb); // ;
+            thisbb = startBlock + 1;
+            this.addBlock((Block) dta.get(thisbb)); // ;
         }
         for (int i = startBlock; i < FAT.length;) {
             nextIdx = FAT[i];
 
+            int add = -1;
             switch (nextIdx) {
 
                 case -4: // extraDIFAT sector
@@ -602,9 +612,9 @@ public class Storage extends BlockByteReader {
                                     "WARNING: Storage.init() Special block containing headerData.");
                         this.setIsSpecial(true);
 
-                        thisbb = (Block) dta.get(i++);
-                        if (!thisbb.getIsSpecialBlock()) {
-                            this.addBlock(thisbb); // ;
+                        thisbb = i++;
+                        if (!isSpecialBlock(dta, thisbb)) {
+                            add = thisbb;
                         }
                         nextIdx = i;
                     } else {
@@ -619,19 +629,16 @@ public class Storage extends BlockByteReader {
                 case -2: // end of Storage - keep end block
                     if (i + 1 < dta.size()) {
                         // get the "padding" block for later retrieval
-                        thisbb = (Block) dta.get(i + 1);
-                        if (thisbb == null)
-                            break;
-                        this.addBlock(thisbb); //
-                        // }
+                        thisbb = i + 1;
+                        add = thisbb;
                     }
                     endloop = true;
                     break;
 
                 default: // normal block
                     if (dta.size() > nextIdx)
-                        thisbb = (Block) dta.get(nextIdx);
-                    if (thisbb == null)
+                        thisbb = nextIdx;
+                    if (thisbb < 0)
                         break;
                     if (nextIdx != i + 1) {
                         // the next is a jumper, pickup the orphan
@@ -639,19 +646,29 @@ public class Storage extends BlockByteReader {
                             Logger.logInfo(
                                     "INFO: Storage init: jumper skipping: "
                                             + i);
-                        Block skipbb = (Block) dta.get(i + 1);
-
-                        this.addBlock(skipbb); //
-                    } else if (!thisbb.getIsSpecialBlock()) { // just skip as probably a bbdix in the midst of the secid
+                        add = i + 1;
+                    } else if (!isSpecialBlock(dta, thisbb)) { // just skip as probably a bbdix in the midst of the secid
                                                               // chain
-                        this.addBlock(thisbb); //
-
+                        add = thisbb;
                     }
             }
+            if (add >= 0) {
+                if (table == null) {
+                    this.addBlock((Block) dta.get(add));
+                } else if (table.claim(add)) {
+                    if (nsectors == sectors.length)
+                        sectors = Arrays.copyOf(sectors, nsectors * 2);
+                    sectors[nsectors++] = add;
+                }
+            }
             i = nextIdx;
             if (endloop)
                 break;
         }
+        if (table != null) {
+            myblocks = table.chain(sectors, nsectors);
+            lastblock = null;
+        }
 
         if (LEOFile.DEBUG) {
             int sz = this.getActualFileSize();
@@ -663,6 +680,12 @@ public class Storage extends BlockByteReader {
         this.setInitialized(true);
     }
 
+    private static boolean isSpecialBlock(List dta, int idx) {
+        if (dta instanceof SectorTable)
+            return ((SectorTable) dta).isSpecial(idx);
+        return ((Block) dta.get(idx)).getIsSpecialBlock();
+    }
+
     /**
      * adds a block of data to this storage
      *
@@ -681,6 +704,8 @@ public class Storage extends BlockByteReader {
         b.setInitialized(true);
         if (myblocks == null)
             myblocks = new ArrayList();
+        else if (myblocks instanceof SectorTable.Chain)
+            myblocks = new ArrayList(myblocks);
         myblocks.add(b);
         lastblock = b;
     }
@@ -22,9 +22,13 @@
  */
 package com.valkyrlabs.formats.XLS;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
+import com.valkyrlabs.OpenXLS.CellNotFoundException;
 import com.valkyrlabs.OpenXLS.ExcelTools;
+import com.valkyrlabs.formats.XLS.formulas.CompiledExpression;
 import com.valkyrlabs.formats.XLS.formulas.FormulaCalculator;
 import com.valkyrlabs.formats.XLS.formulas.FormulaParser;
 import com.valkyrlabs.formats.XLS.formulas.Ptg;
@@ -70,6 +74,9 @@ public final class Array extends com.valkyrlabs.formats.XLS.XLSRecord {
 
     private Formula parentRec = null;
     private Stack expression;
+    // result of the expression, shared by the cells of the array range until clearCachedValue
+    private transient Ptg result;
+    private transient CompiledExpression compiled;
 
     public int getFirstRow() {
         return rwFirst;
@@ -192,6 +199,7 @@ public final class Array extends com.valkyrlabs.formats.XLS.XLSRecord {
         fmla = fmla.substring(1, fmla.length() - 1);     // parse formula string and add stack to Array record
         Stack newptgs = FormulaParser.getPtgsFromFormulaString(this, fmla);
         expression = newptgs;
+        this.clearCachedValue();
         this.updateRecord();
 
     }
@@ -269,8 +277,54 @@ public final class Array extends com.valkyrlabs.formats.XLS.XLSRecord {
     }
 
 
+    /**
+     * Returns the value of the array formula for the cell holding pxp.
+     * <p>
+     * The expression is calculated once and its result, an array for most
+     * array formulas, is shared by all the cells of the range until
+     * clearCachedValue() is called, as clearing the cached value of the
+     * range's first cell does.
+     */
     public Object getValue(PtgExp pxp) {
-        return FormulaCalculator.calculateFormula(expression);
+        BiffRec cell = pxp.getParentRec();
+        int row = 0;
+        int col = 0;
+        boolean inRange = false;
+        if (cell != null) {
+            row = cell.getRowNumber() - rwFirst;
+            col = cell.getColNumber() - colFirst;
+            inRange = row >= 0 && row <= rwLast - rwFirst && col >= 0 && col <= colLast - colFirst;
+        }
+        Ptg r = null;
+        if (inRange) {
+            synchronized (this) {
+                r = result;
+            }
+        }
+        if (r == null) {
+            CompiledExpression c = compiled;
+            if (c == null || !c.isCompiledFrom(expression))
+                compiled = c = CompiledExpression.compile(expression);
+            r = (c != null) ? c.calculate() : FormulaCalculator.calculateFormulaPtg(expression);
+            if (inRange) {
+                synchronized (this) {
+                    if (result == null)
+                        result = r;
+                    else
+                        r = result;    // another cell of the range got there first
+                }
+            }
+        }
+        if (r instanceof PtgArray)
+            return ((PtgArray) r).getValueAt(row, col);
+        return r.getValue();
+    }
+
+    /**
+     * Discards the shared result so the expression is calculated again
+     */
+    public synchronized void clearCachedValue() {
+        result = null;
     }
 
     /**
@@ -282,6 +336,30 @@ public final class Array extends com.valkyrlabs.formats.XLS.XLSRecord {
         return parentRec;
     }
 
+    /**
+     * returns the Formulas of the cells of the array range, the parent formula
+     * first; all of them take their values from this record's expression
+     */
+    List<Formula> getMembers() {
+        List<Formula> ret = new ArrayList<Formula>();
+        if (parentRec != null)
+            ret.add(parentRec);
+        if (!(worksheet instanceof Boundsheet))
+            return ret;
+        for (int r = rwFirst; r <= rwLast; r++) {
+            for (int c = colFirst; c <= colLast; c++) {
+                try {
+                    BiffRec cell = ((Boundsheet) worksheet).getCell(r, c);
+                    if (cell instanceof Formula && cell != parentRec)
+                        ret.add((Formula) cell);
+                } catch (CellNotFoundException e) {
+                    // an empty cell of the range
+                }
+            }
+        }
+        return ret;
+    }
+
     /**
      * link this shared formula to it's parent formula
      */
@@ -0,0 +1,670 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.valkyrlabs.OpenXLS.Cell;
+import com.valkyrlabs.OpenXLS.ExcelTools;
+import com.valkyrlabs.OpenXLS.InvalidRecordException;
+import com.valkyrlabs.OpenXLS.RowCursor;
+import com.valkyrlabs.OpenXLS.SheetNotFoundException;
+import com.valkyrlabs.OpenXLS.WorkBookException;
+import com.valkyrlabs.formats.LEO.BlockByteReader;
+import com.valkyrlabs.formats.LEO.LEOFile;
+import com.valkyrlabs.formats.cellformat.CellFormatFactory;
+import com.valkyrlabs.toolkit.ByteTools;
+
+/**
+ * RowCursor over one worksheet of a BIFF8 workbook stream.
+ * <p>
+ * Only record headers are read while walking the stream; record bodies are
+ * copied into a single reusable buffer when they hold a cell value. The
+ * global substream is scanned once on open to find the sheet's BOF and the
+ * positions of the SST, XF and FORMAT records. Shared strings are decoded on
+ * demand: the cursor remembers where every 64th string starts so that any
+ * string can be reached by decoding at most 63 others, and keeps the most
+ * recently used strings in a small cache.
+ *
+ * @see com.valkyrlabs.OpenXLS.WorkBookHandle#openRowCursor(java.io.File, String)
+ */
+public final class BiffRowCursor implements RowCursor, XLSConstants {
+	private static final int STRING_CACHE_SIZE = 4096;
+	private static final int CHECKPOINT_INTERVAL = 64;
+
+	private LEOFile leo;
+	private BlockByteReader reader;
+	private final int length;
+	private String sheetName;
+
+	// the record being read
+	private final byte[] buf = new byte[MAXRECLEN];
+	private int opcode, reclen;
+	private int pos; // stream position of the next record, -1 at the end
+	private int depth; // BOF nesting within the sheet substream
+
+	// the current cell
+	private int row = -1, col = -1, ixfe;
+	private int type = Cell.TYPE_BLANK;
+	private double dval;
+	private String sval;
+	private boolean bval, formula;
+	private int mulCol, mulCount, mulOff; // remaining cells of a MULRK
+
+	// globals
+	private int[] xfPos = new int[64];
+	private int xfCount;
+	private final Map<Integer, Integer> formatPos = new HashMap<Integer, Integer>();
+	private final Map<Integer, String> patterns = new HashMap<Integer, String>();
+
+	private final ContinuedRecord sst;
+	private int[] checkpointSeg = new int[16], checkpointOff = new int[16];
+	private int checkpoints;
+	private int sstNext; // index of the string the SST reader is positioned at
+	private final Map<Integer, String> strings = new LinkedHashMap<Integer, String>(
+			STRING_CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, String> e) {
+			return size() > STRING_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Opens a cursor over the named sheet of a workbook.  The cursor owns
+	 * the LEOFile and shuts it down when closed.
+	 *
+	 * @throws SheetNotFoundException if the workbook has no such sheet
+	 */
+	public BiffRowCursor(LEOFile leo, String sheetName) throws SheetNotFoundException {
+		this.leo = leo;
+		this.reader = leo.getXLSBlockBytes();
+		this.length = reader.getLength();
+		this.sst = new ContinuedRecord();
+		try {
+			pos = scanGlobals(sheetName);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		if (pos < 0) {
+			close();
+			throw new SheetNotFoundException("Worksheet " + sheetName
+					+ " not found.");
+		}
+	}
+
+	/**
+	 * Walks the global substream, noting the records cells may refer to.
+	 *
+	 * @return the stream position of the sheet's BOF, or -1
+	 */
+	private int scanGlobals(String name) {
+		int sheetPos = -1;
+		boolean inSst = false;
+		for (int p = 0; p <= length - 4; p += 4 + reclen) {
+			readHeader(p);
+			if (p == 0 && opcode != BOF)
+				throw new InvalidRecordException(
+						"BiffRowCursor: workbook stream does not start with a BOF");
+			boolean wasSst = inSst;
+			inSst = false;
+			switch (opcode) {
+				case FILEPASS:
+					throw new WorkBookException(
+							"Encrypted workbooks cannot be read with a RowCursor",
+							WorkBookException.DECRYPTION_ERROR);
+				case BOUNDSHEET:
+					readBody(p, reclen);
+					int cch = buf[6] & 0xFF;
+					String sheet = readChars(buf, 8, cch, (buf[7] & 1) != 0);
+					if (sheetPos < 0 && sheet.equalsIgnoreCase(name)) {
+						sheetPos = readInt(0);
+						sheetName = sheet;
+					}
+					break;
+				case FORMAT:
+					readBody(p, 2);
+					formatPos.put(Integer.valueOf(ByteTools.readUnsignedShort(
+							buf[0], buf[1])), Integer.valueOf(p));
+					break;
+				case XF:
+					if (xfCount == xfPos.length) {
+						int[] grown = new int[xfCount * 2];
+						System.arraycopy(xfPos, 0, grown, 0, xfCount);
+						xfPos = grown;
+					}
+					xfPos[xfCount++] = p;
+					break;
+				case SST:
+					sst.addSegment(p + 12, reclen - 8); // skip the counts
+					inSst = true;
+					break;
+				case CONTINUE:
+					if (wasSst) {
+						sst.addSegment(p + 4, reclen);
+						inSst = true;
+					}
+					break;
+				case EOF:
+					return sheetPos;
+			}
+		}
+		return sheetPos;
+	}
+
+	@Override
+	public boolean next() {
+		if (mulCount > 0)
+			return nextMulrk();
+		type = Cell.TYPE_BLANK;
+		while (pos >= 0 && pos <= length - 4) {
+			int p = pos;
+			readHeader(p);
+			pos += 4 + reclen;
+			if (opcode == BOF) {
+				depth++;
+				continue;
+			}
+			if (opcode == EOF) {
+				if (--depth <= 0)
+					break;
+				continue;
+			}
+			if (depth != 1)
+				continue; // embedded chart substreams
+			formula = false;
+			switch (opcode) {
+				case NUMBER:
+					readCell(p, 14);
+					setNumber(readDouble(6));
+					return true;
+				case RK:
+					readCell(p, 10);
+					setNumber(readRk(6));
+					return true;
+				case MULRK:
+					readBody(p, reclen);
+					row = ByteTools.readUnsignedShort(buf[0], buf[1]);
+					mulCol = ByteTools.readUnsignedShort(buf[2], buf[3]);
+					mulCount = (reclen - 6) / 6;
+					mulOff = 4;
+					if (mulCount > 0)
+						return nextMulrk();
+					continue;
+				case LABELSST:
+					readCell(p, 10);
+					setString(getSharedString(readInt(6)));
+					return true;
+				case LABEL:
+				case RSTRING:
+					readCell(p, reclen);
+					setString(readChars(buf, 9,
+							ByteTools.readUnsignedShort(buf[6], buf[7]),
+							(buf[8] & 1) != 0));
+					return true;
+				case BOOLERR:
+					readCell(p, 8);
+					setBoolErr(buf[6], buf[7] != 0);
+					return true;
+				case FORMULA:
+					readCell(p, 14);
+					formula = true;
+					if (buf[12] != (byte) 0xFF || buf[13] != (byte) 0xFF) {
+						setNumber(readDouble(6));
+						return true;
+					}
+					switch (buf[6]) {
+						case 0: // the value follows in a STRING record
+							setString(readFormulaString());
+							return true;
+						case 1:
+							setBoolErr(buf[8], false);
+							return true;
+						case 2:
+							setBoolErr(buf[8], true);
+							return true;
+						default:
+							setString("");
+							return true;
+					}
+			}
+		}
+		pos = -1;
+		return false;
+	}
+
+	private boolean nextMulrk() {
+		col = mulCol++;
+		ixfe = ByteTools.readUnsignedShort(buf[mulOff], buf[mulOff + 1]);
+		setNumber(readRk(mulOff + 2));
+		mulOff += 6;
+		mulCount--;
+		formula = false;
+		return true;
+	}
+
+	/**
+	 * Reads the value of a string formula from the STRING record which
+	 * follows it, possibly after SHRFMLA, ARRAY or TABLE records.
+	 */
+	private String readFormulaString() {
+		while (pos >= 0 && pos <= length - 4) {
+			readHeader(pos);
+			if (opcode == SHRFMLA || opcode == ARRAY || opcode == TABLE) {
+				pos += 4 + reclen;
+				continue;
+			}
+			if (opcode != STRINGREC)
+				return "";
+			ContinuedRecord rec = new ContinuedRecord();
+			rec.addSegment(pos + 4, reclen);
+			pos += 4 + reclen;
+			while (pos <= length - 4) {
+				readHeader(pos);
+				if (opcode != CONTINUE)
+					break;
+				rec.addSegment(pos + 4, reclen);
+				pos += 4 + reclen;
+			}
+			return rec.readString(false);
+		}
+		return "";
+	}
+
+	private void readCell(int p, int len) {
+		readBody(p, Math.min(len, reclen));
+		row = ByteTools.readUnsignedShort(buf[0], buf[1]);
+		col = ByteTools.readUnsignedShort(buf[2], buf[3]);
+		ixfe = ByteTools.readUnsignedShort(buf[4], buf[5]);
+	}
+
+	private void setNumber(double d) {
+		type = Cell.TYPE_DOUBLE;
+		dval = d;
+		sval = null;
+	}
+
+	private void setString(String s) {
+		type = Cell.TYPE_STRING;
+		sval = s;
+		dval = Double.NaN;
+	}
+
+	private void setBoolErr(byte value, boolean isError) {
+		if (isError) {
+			setString(getErrorString(value));
+		} else {
+			type = Cell.TYPE_BOOLEAN;
+			bval = value != 0;
+			dval = bval ? 1 : 0;
+			sval = null;
+		}
+	}
+
+	private static String getErrorString(byte code) {
+		switch (code) {
+			case 0x00:
+				return "#NULL!";
+			case 0x07:
+				return "#DIV/0!";
+			case 0x0F:
+				return "#VALUE!";
+			case 0x17:
+				return "#REF!";
+			case 0x1D:
+				return "#NAME?";
+			case 0x24:
+				return "#NUM!";
+			default:
+				return "#N/A";
+		}
+	}
+
+	private int readInt(int off) {
+		return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8
+				| (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+	}
+
+	private double readDouble(int off) {
+		long bits = (readInt(off) & 0xFFFFFFFFL) | ((long) readInt(off + 4)) << 32;
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * Decodes an RK number as {@link Rk#parseRkNumber(byte[])} does.
+	 */
+	private double readRk(int off) {
+		int rk = readInt(off);
+		double d = (rk & 0x2) != 0 ? (double) (rk >> 2)
+				: Double.longBitsToDouble(((long) (rk & 0xFFFFFFFC)) << 32);
+		return (rk & 0x1) != 0 ? d / 100 : d;
+	}
+
+	private void readHeader(int p) {
+		int h = reader.getHeader(p);
+		opcode = h & 0xFFFF;
+		reclen = h >>> 16;
+		if (reclen > MAXRECLEN)
+			throw new InvalidRecordException("BiffRowCursor: record length "
+					+ reclen + " at " + p + " exceeds maximum");
+	}
+
+	private void readBody(int p, int len) {
+		reader.read(p + 4, buf, 0, len);
+	}
+
+	private static String readChars(byte[] b, int off, int cch, boolean highByte) {
+		if (highByte)
+			return new String(b, off, cch * 2, StandardCharsets.UTF_16LE);
+		return new String(b, off, cch, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the shared string at the given index, decoding it from the SST.
+	 */
+	private String getSharedString(int isst) {
+		Integer key = Integer.valueOf(isst);
+		String s = strings.get(key);
+		if (s != null)
+			return s;
+		int cp = isst / CHECKPOINT_INTERVAL;
+		if (sstNext > isst
+				|| (cp < checkpoints && cp * CHECKPOINT_INTERVAL > sstNext)) {
+			sst.seek(checkpointSeg[cp], checkpointOff[cp]);
+			sstNext = cp * CHECKPOINT_INTERVAL;
+		}
+		while (sstNext < isst) {
+			checkpoint();
+			sst.readString(true);
+			sstNext++;
+		}
+		checkpoint();
+		s = sst.readString(false);
+		sstNext++;
+		strings.put(key, s);
+		return s;
+	}
+
+	private void checkpoint() {
+		if (sstNext % CHECKPOINT_INTERVAL != 0
+				|| sstNext / CHECKPOINT_INTERVAL != checkpoints)
+			return;
+		if (checkpoints == checkpointSeg.length) {
+			int[] seg = new int[checkpoints * 2], off = new int[checkpoints * 2];
+			System.arraycopy(checkpointSeg, 0, seg, 0, checkpoints);
+			System.arraycopy(checkpointOff, 0, off, 0, checkpoints);
+			checkpointSeg = seg;
+			checkpointOff = off;
+		}
+		checkpointSeg[checkpoints] = sst.seg;
+		checkpointOff[checkpoints] = sst.off;
+		checkpoints++;
+	}
+
+	@Override
+	public int getRowNum() {
+		return row;
+	}
+
+	@Override
+	public int getColNum() {
+		return col;
+	}
+
+	@Override
+	public String getCellAddress() {
+		return ExcelTools.formatLocation(new int[] { row, col });
+	}
+
+	@Override
+	public String getWorkSheetName() {
+		return sheetName;
+	}
+
+	@Override
+	public int getCellType() {
+		return type;
+	}
+
+	@Override
+	public boolean isFormula() {
+		return formula;
+	}
+
+	@Override
+	public Object getVal() {
+		switch (type) {
+			case Cell.TYPE_DOUBLE:
+				return Double.valueOf(dval);
+			case Cell.TYPE_BOOLEAN:
+				return Boolean.valueOf(bval);
+			case Cell.TYPE_STRING:
+				return sval;
+			default:
+				return null;
+		}
+	}
+
+	@Override
+	public double getDoubleVal() {
+		return type == Cell.TYPE_STRING ? Double.NaN : dval;
+	}
+
+	@Override
+	public String getStringVal() {
+		switch (type) {
+			case Cell.TYPE_DOUBLE:
+				return ExcelTools.getNumberAsString(dval);
+			case Cell.TYPE_BOOLEAN:
+				return String.valueOf(bval);
+			case Cell.TYPE_STRING:
+				return sval;
+			default:
+				return "";
+		}
+	}
+
+	@Override
+	public int getFormatId() {
+		return ixfe;
+	}
+
+	@Override
+	public String getFormatPattern() {
+		Integer key = Integer.valueOf(ixfe);
+		if (patterns.containsKey(key))
+			return patterns.get(key);
+		String pat = null;
+		if (ixfe < xfCount) {
+			// read into separate arrays as buf may hold the rest of a MULRK
+			byte[] b = new byte[4];
+			reader.read(xfPos[ixfe] + 4, b, 0, 4);
+			int ifmt = ByteTools.readUnsignedShort(b[2], b[3]);
+			String[][] fmts = FormatConstantsImpl.getBuiltinFormats();
+			for (int x = 0; x < fmts.length && pat == null; x++) {
+				if (ifmt == Integer.parseInt(fmts[x][1], 16))
+					pat = fmts[x][0];
+			}
+			Integer fp = formatPos.get(Integer.valueOf(ifmt));
+			if (pat == null && fp != null) {
+				int p = fp.intValue();
+				reader.read(p, b, 0, 4);
+				byte[] fmt = new byte[ByteTools.readUnsignedShort(b[2], b[3])];
+				reader.read(p + 4, fmt, 0, fmt.length);
+				pat = readChars(fmt, 5,
+						ByteTools.readUnsignedShort(fmt[2], fmt[3]),
+						(fmt[4] & 1) != 0);
+			}
+		}
+		patterns.put(key, pat);
+		return pat;
+	}
+
+	@Override
+	public boolean isDate() {
+		if (type != Cell.TYPE_DOUBLE)
+			return false;
+		String pat = getFormatPattern();
+		return pat != null && Xf.isDatePattern(pat);
+	}
+
+	@Override
+	public String getFormattedStringVal() {
+		return CellFormatFactory.fromPatternString(getFormatPattern()).format(this);
+	}
+
+	@Override
+	public void close() {
+		if (leo != null)
+			leo.shutdown();
+		leo = null;
+		reader = null;
+		pos = -1;
+		mulCount = 0;
+	}
+
+	/**
+	 * A record whose body runs on into CONTINUE records, read as one
+	 * sequence of bytes.  Strings split across records carry a fresh option
+	 * byte at the start of each CONTINUE, which readString handles.
+	 */
+	private final class ContinuedRecord {
+		private int[] starts = new int[4], lengths = new int[4];
+		private int segments;
+		private final byte[] data = new byte[MAXRECLEN];
+		int seg = 0, off = 0;
+		private int loaded = -1;
+
+		void addSegment(int start, int len) {
+			if (segments == starts.length) {
+				int[] s = new int[segments * 2], l = new int[segments * 2];
+				System.arraycopy(starts, 0, s, 0, segments);
+				System.arraycopy(lengths, 0, l, 0, segments);
+				starts = s;
+				lengths = l;
+			}
+			starts[segments] = start;
+			lengths[segments] = len;
+			segments++;
+		}
+
+		void seek(int s, int o) {
+			seg = s;
+			off = o;
+		}
+
+		private void load() {
+			if (loaded == seg)
+				return;
+			if (seg >= segments)
+				throw new InvalidRecordException(
+						"BiffRowCursor: read past the end of a continued record");
+			reader.read(starts[seg], data, 0, lengths[seg]);
+			loaded = seg;
+		}
+
+		private int available() {
+			while (off >= lengths[seg] && seg < segments - 1) {
+				seg++;
+				off = 0;
+			}
+			load();
+			return lengths[seg] - off;
+		}
+
+		int readByte() {
+			if (available() <= 0)
+				throw new InvalidRecordException(
+						"BiffRowCursor: read past the end of a continued record");
+			return data[off++] & 0xFF;
+		}
+
+		int readShort() {
+			return readByte() | (readByte() << 8);
+		}
+
+		int readInt() {
+			return readShort() | (readShort() << 16);
+		}
+
+		void skip(int n) {
+			while (n > 0) {
+				int a = available();
+				if (a <= 0)
+					throw new InvalidRecordException(
+							"BiffRowCursor: read past the end of a continued record");
+				int k = Math.min(a, n);
+				off += k;
+				n -= k;
+			}
+		}
+
+		/**
+		 * Reads an XLUnicodeRichExtendedString.
+		 *
+		 * @param skip true to step over the string without decoding it
+		 */
+		String readString(boolean skip) {
+			int cch = readShort();
+			int grbit = readByte();
+			boolean high = (grbit & 0x1) != 0;
+			int runs = (grbit & 0x8) != 0 ? readShort() : 0;
+			int ext = (grbit & 0x4) != 0 ? readInt() : 0;
+			StringBuilder sb = skip ? null : new StringBuilder(cch);
+			int n = 0;
+			while (n < cch) {
+				if (off >= lengths[seg]) {
+					// characters continue in the next record after an option byte
+					seg++;
+					off = 0;
+					load();
+					high = (data[off++] & 0x1) != 0;
+				}
+				load();
+				int width = high ? 2 : 1;
+				int k = Math.min((lengths[seg] - off) / width, cch - n);
+				if (k <= 0)
+					throw new InvalidRecordException(
+							"BiffRowCursor: malformed string in continued record");
+				if (sb != null)
+					sb.append(readChars(data, off, k, high));
+				off += k * width;
+				n += k;
+			}
+			skip(runs * 4 + ext);
+			return sb == null ? null : sb.toString();
+		}
+	}
+}
@@ -160,6 +160,19 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	private SortedMap<CellAddressible, BiffRec> cellsByCol = new TreeMap<CellAddressible, BiffRec>(
 			new CellAddressible.ColumnMajorComparator());
 
+	// plain value cells held outside the cell maps, see compactCells()
+	private CellColumns compactCells = null;
+
+	// offsets of cell records left unparsed in the file, see deferCells();
+	// guarded by the workbook's monitor once the workbook is open
+	private transient int[] deferredCells = null;
+
+	// true until the deferred cell records have all been parsed and linked
+	private transient volatile boolean cellsPending = false;
+
+	// the thread parsing the deferred cell records, guarded by the workbook
+	private transient Thread cellsLoader = null;
+
 	private Map<String, String> arrFormulaLocs = new HashMap<>(); // use
 	// for
 	// trapping
@@ -730,6 +743,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * 
 	 */
 	public List assembleSheetRecs() {
+		ensureCellsLoaded();
 		return WorkBookAssembler.assembleSheetRecs(this);
 	}
 
@@ -886,6 +900,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param p
 	 */
 	public void setPane(Pane p) {
+		checkWritable();
 		if (p == null) { // adds new
 			p = (Pane) Pane.getPrototype();
 			int insertIdx = win2.getRecordIndex() + 1;
@@ -951,6 +966,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void removeCell(BiffRec cell) {
+		ensureCellsLoaded();
+		checkWritable();
 		if (cell.getOpcode() == MULBLANK) {
 			((Mulblank) cell).removeCell(cell.getColNumber());
 		}
@@ -958,10 +975,21 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 			Formula f = (Formula) cell;
 			this.wkbook.removeFormula(f);
 		}
+		this.clearLookupCaches(cell);
 		cellsByRow.remove(cell);
 		cellsByCol.remove(cell);
 	}
 
+	/**
+	 * discards the lookup function cache entries holding a cell which is
+	 * added or removed
+	 */
+	private void clearLookupCaches(BiffRec cell) {
+		ReferenceTracker rt = (wkbook == null) ? null : wkbook.getRefTracker();
+		if (rt != null)
+			rt.clearLookupCaches(cell);
+	}
+
 	/**
 	 * removes an image from the imagehandle cache (should be in WSH)
 	 * 
@@ -998,6 +1026,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param shift whether to shift subsequent rows up to fill the empty space
 	 */
 	public void removeRows(int first, int count, boolean shift) {
+		ensureCellsLoaded();
+		checkWritable();
 
 		for (int rowIdx = first; rowIdx < first + count; rowIdx++) {
 			// this.removeRowContents(rowIdx);
@@ -1096,6 +1126,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 **/
 	@Override
 	public void removeMulrk(Rk thisrk) {
+		ensureCellsLoaded();
 		Mulrk mymul = (Mulrk) thisrk.getMyMul();
 		if (mymul != null) { // Part of a mulrk. JOY!
 			AbstractList vect = mymul.removeRk(thisrk);
@@ -1137,6 +1168,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * 
 	 */
 	public void removeRowContents(int rownum) throws RowNotFoundException {
+		ensureCellsLoaded();
+		checkWritable();
 		Row r = this.getRowByNumber(rownum);
 		// First delete the desired row
 		if (r != null) {
@@ -1164,6 +1197,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param shift whether to shift subsequent columns left
 	 */
 	public void removeCols(int first, int count, boolean shift) {
+		ensureCellsLoaded();
+		checkWritable();
 
 		if (shift) {
 			ReferenceTracker.updateReferences(first, count * -1, this, false); // shift
@@ -1230,6 +1265,11 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return
 	 */
 	public ArrayList<BiffRec> getCellsByCol(int colNum) throws CellNotFoundException {
+		ensureCellsLoaded();
+		if (compactCells != null) {
+			for (BiffRec rec : compactCells.takeColumn(colNum, this))
+				restoreCell(rec);
+		}
 		SortedMap<CellAddressible, BiffRec> theCells = cellsByCol
 				.subMap(new CellAddressible.RangeBoundary(0, colNum,
 						true),
@@ -1256,6 +1296,11 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return
 	 */
 	public ArrayList<BiffRec> getCellsByRow(int rowNum) throws CellNotFoundException {
+		ensureCellsLoaded();
+		if (compactCells != null) {
+			for (BiffRec rec : compactCells.getRow(rowNum, this, true))
+				restoreCell(rec);
+		}
 		SortedMap<CellAddressible, BiffRec> theCells = cellsByRow
 				.subMap(new CellAddressible.Reference(rowNum,
 						0), new CellAddressible.Reference(rowNum + 1, 0));
@@ -1449,6 +1494,9 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param shift the number of rows by which to shift
 	 */
 	private void shiftRow(Row row, int shift) {
+		ReferenceTracker rt = (wkbook == null) ? null : wkbook.getRefTracker();
+		if (rt != null)
+			rt.clearLookupCaches(this);
 		Iterator cells = row.getCells().iterator();
 		Mulblank skipMulBlank = null;
 		while (cells.hasNext()) {
@@ -1593,7 +1641,10 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param BiffRec the cell being added (can't add a row without one...)
 	 */
 	private Row addNewRow(BiffRec cell) {
-		int rn = cell.getRowNumber();
+		return addNewRow(cell.getRowNumber());
+	}
+
+	private Row addNewRow(int rn) {
 		if (this.getRowByNumber(rn) != null)
 			return this.getRowByNumber(rn); // already exists!
 		Row r = new Row(rn, wkbook);
@@ -1618,6 +1669,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	// TODO: reduce this functionality to simply inserting a row
 	// and shifting the row number of subsequent rows and cells
 	public Row insertRow(int rownum, int firstcol, int flag, boolean shiftrows) {
+		ensureCellsLoaded();
+		checkWritable();
 		Row roe = null;
 		if (shiftrows && !this.fastCellAdds) {
 			try {
@@ -1693,6 +1746,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * if the row already exists... ignore?
 	 */
 	public void addRowRec(Row r) {
+		ensureCellsLoaded();
 		int rwn = r.getRowNumber();
 		if (rows.containsKey(Integer.valueOf(rwn))) {
 			if (DEBUGLEVEL > 2)
@@ -1729,6 +1783,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void setHidden(int gr) {
+		checkWritable();
 		grbit = (short) gr;
 		byte[] bt = ByteTools.shortToLEBytes(grbit);
 		System.arraycopy(bt, 0, getData(), 4, 2);
@@ -1750,6 +1805,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void setSelected(boolean b) {
+		checkWritable();
 		if (this.win2 != null)
 			this.win2.setSelected(b);
 		if (b) {
@@ -1762,6 +1818,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * associate an Array formula with this Boundsheet
 	 */
 	public void addArrayFormula(Array a) {
+		ensureCellsLoaded();
 		arrayformulas.add(a);
 	}
 
@@ -1769,6 +1826,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * Returns an array formula for the set address
 	 */
 	public Array getArrayFormula(String addr) {
+		ensureCellsLoaded();
 		Array form = null;
 		for (int i = 0; i < arrayformulas.size(); i++) {
 			form = (Array) arrayformulas.get(i);
@@ -1786,6 +1844,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * 
 	 */
 	public void addParentArrayRef(String addr, String ref) {
+		ensureCellsLoaded();
 		if (arrFormulaLocs.containsKey(addr))
 			Logger.logWarn("PARENT ARRAY ALREADY FOUND");
 		arrFormulaLocs.put(addr, ref);
@@ -1802,6 +1861,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @see addArrayFormula
 	 */
 	public Object getArrayFormulaParent(int[] rc) {
+		ensureCellsLoaded();
 		Iterator i = arrFormulaLocs.keySet().iterator();
 		while (i.hasNext()) {
 			String addr = (String) i.next();
@@ -1824,6 +1884,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return
 	 */
 	public boolean isArrayFormulaParent(String addr) {
+		ensureCellsLoaded();
 		return (arrFormulaLocs.get(addr) != null);
 	}
 
@@ -1835,6 +1896,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return
 	 */
 	public String getArrayRef(String formAddress) {
+		ensureCellsLoaded();
 		return (String) arrFormulaLocs.get(formAddress);
 	}
 
@@ -1844,6 +1906,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @param first zero-based int for the column (0='A')
 	 */
 	public void insertCols(int first, int count) {
+		ensureCellsLoaded();
+		checkWritable();
 
 		ReferenceTracker.updateReferences(first + 1, count, this, false); // shift
 																			// or
@@ -1889,6 +1953,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public int getNumRows() {
+		ensureCellsLoaded();
 		return rows.size();
 	}
 
@@ -1897,6 +1962,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public int getNumCells() {
+		ensureCellsLoaded();
 		int counter = 0;
 		Set cellset = rows.keySet();
 		Object[] rws = cellset.toArray();
@@ -1998,6 +2064,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public Row getRowByNumber(int r) {
+		ensureCellsLoaded();
 		return rows.get(Integer.valueOf(r));
 	}
 
@@ -2007,6 +2074,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public List getRowNums() {
+		ensureCellsLoaded();
 		Set e = rows.keySet();
 		Iterator iter = e.iterator();
 		FastAddVector rownames = new FastAddVector();
@@ -2023,6 +2091,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return
 	 */
 	public SortedMap getSortedRows() {
+		ensureCellsLoaded();
 		SortedMap sm = new TreeMap(rows);
 		return sm;
 	}
@@ -2032,6 +2101,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public Row[] getRows() {
+		ensureCellsLoaded();
 		Map rxs = new TreeMap(rows); // treemap does ordering... LHM does not
 		Row[] rarr = new Row[rxs.size()];
 		return (Row[]) rxs.values().toArray(rarr);
@@ -2041,6 +2111,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * return a Map of the Rows
 	 */
 	public Map getRowMap() {
+		ensureCellsLoaded();
 		return rows;
 	}
 
@@ -2396,6 +2467,8 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void addRecord(BiffRec rec, int[] rc) {
+		ensureCellsLoaded();
+		checkWritable();
 		// check to see if there is a BiffRec already at the address
 		// add the rec to the Cell,
 		// set as value if it's a val type rec
@@ -2405,6 +2478,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 		rec.setIsValueForCell(true);
 		rec.setStreamer(streamer);
 		rec.setWorkBook(this.getWorkBook());
+		this.clearLookupCaches(rec);
 
 		if (!this.fastCellAdds) {
 
@@ -2434,6 +2508,11 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void addCell(CellRec cell) {
+		ensureCellsLoaded();
+		if (compactCells != null) {
+			for (int c = cell.getColFirst(); c <= cell.getColLast(); c++)
+				compactCells.remove(cell.getRowNumber(), c);
+		}
 		cellsByRow.put(cell, cell);
 		cellsByCol.put(cell, cell);
 		Row row = rows.get(Integer.valueOf(cell.getRowNumber()));
@@ -2583,6 +2662,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	@Deprecated
 	@Override
 	public BiffRec getCell(String address) {
+		ensureCellsLoaded();
 		int[] rc = ExcelTools.getRowColFromString(address);
 		try {
 			return this.getCell(rc[0], rc[1]);
@@ -2601,9 +2681,12 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public BiffRec getCell(int row, int col) throws CellNotFoundException {
+		ensureCellsLoaded();
 		// get the nearest entry from the cell map
 		BiffRec theCell = cellsByRow
 				.get(new CellAddressible.Reference(row, col));
+		if (null == theCell && compactCells != null)
+			theCell = restoreCell(row, col);
 		if (null == theCell)
 			throw new CellNotFoundException(this.sheetname, row, col);
 
@@ -2613,11 +2696,261 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 		return theCell;
 	}
 
+	/**
+	 * Returns the cell at the given position for reading, or null if there is
+	 * none.
+	 * <p>
+	 * A cell held in compact storage is returned as a detached copy of its
+	 * record rather than being restored to the sheet, so the result must not
+	 * be modified or kept.
+	 * 
+	 * @see #compactCells()
+	 */
+	public BiffRec peekCell(int row, int col) {
+		ensureCellsLoaded();
+		BiffRec theCell = cellsByRow
+				.get(new CellAddressible.Reference(row, col));
+		if (null == theCell && compactCells != null)
+			return compactCells.get(row, col, this);
+		if (theCell != null && theCell.getOpcode() == MULBLANK) {
+			((Mulblank) theCell).setCurrentCell((short) col);
+		}
+		return theCell;
+	}
+
+	/**
+	 * Returns the cells of a row in column order for output.  Cells held in
+	 * compact storage are included as detached copies and stay compact.
+	 */
+	List<BiffRec> getOutputCellsByRow(int rowNum) {
+		ensureCellsLoaded();
+		SortedMap<CellAddressible, BiffRec> theCells = cellsByRow
+				.subMap(new CellAddressible.Reference(rowNum,
+						0), new CellAddressible.Reference(rowNum + 1, 0));
+		if (compactCells == null || compactCells.size() == 0)
+			return new ArrayList<BiffRec>(theCells.values());
+		List<BiffRec> compact = compactCells.getRow(rowNum, this, false);
+		if (compact.isEmpty())
+			return new ArrayList<BiffRec>(theCells.values());
+		List<BiffRec> ret = new ArrayList<BiffRec>(theCells.size()
+				+ compact.size());
+		Iterator<BiffRec> i = theCells.values().iterator();
+		BiffRec next = i.hasNext() ? i.next() : null;
+		for (BiffRec c : compact) {
+			while (next != null
+					&& ((CellRec) next).getColFirst() < c.getColNumber()) {
+				ret.add(next);
+				next = i.hasNext() ? i.next() : null;
+			}
+			ret.add(c);
+		}
+		while (next != null) {
+			ret.add(next);
+			next = i.hasNext() ? i.next() : null;
+		}
+		return ret;
+	}
+
+	/**
+	 * Moves plain value cells (numbers, shared strings, booleans, errors and
+	 * blanks without hyperlinks or merges) out of the per-record cell maps into
+	 * a columnar store which keeps about 15 bytes per cell.
+	 * <p>
+	 * Compact cells are turned back into records when they are looked up,
+	 * edited or enumerated, and are written out without being restored.
+	 * Records previously obtained from this sheet for compacted cells are
+	 * detached and must be looked up again.
+	 * 
+	 * @return the number of cells moved into compact storage
+	 */
+	public int compactCells() {
+		ensureCellsLoaded();
+		if (compactCells == null)
+			compactCells = new CellColumns();
+		int count = 0;
+		Iterator<BiffRec> i = cellsByCol.values().iterator();
+		while (i.hasNext()) {
+			BiffRec rec = i.next();
+			if (compactCells.add(rec)) {
+				i.remove();
+				cellsByRow.remove(rec);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Restores every compact cell to a record.
+	 * 
+	 * @see #compactCells()
+	 */
+	public void expandCells() {
+		if (compactCells == null)
+			return;
+		for (BiffRec rec : compactCells.takeAll(this))
+			restoreCell(rec);
+		compactCells = null;
+	}
+
+	/**
+	 * Replaces each Mulblank on this sheet with a Blank record per cell.
+	 * Looking up a cell of a Mulblank points the shared record at that
+	 * column, so reads would otherwise change the sheet.
+	 * 
+	 * @see WorkBook#freeze()
+	 */
+	void splitMulblanks() {
+		ensureCellsLoaded();
+		List<Mulblank> mulblanks = new ArrayList<Mulblank>();
+		for (BiffRec rec : cellsByRow.values()) {
+			if (rec.getOpcode() == MULBLANK)
+				mulblanks.add((Mulblank) rec);
+		}
+		for (Mulblank m : mulblanks) {
+			cellsByRow.remove(m);
+			cellsByCol.remove(m);
+			for (Blank b : m.getBlanks())
+				addCell(b);
+		}
+	}
+
+	/**
+	 * @return true if some of this sheet's cells are in compact storage
+	 */
+	public boolean hasCompactCells() {
+		return compactCells != null && compactCells.size() > 0;
+	}
+
+	/**
+	 * Returns whether a cell read from the file may go straight into compact
+	 * storage at the given address, which it may unless a cell record is
+	 * already there.
+	 * 
+	 * @see CellValueFactory
+	 */
+	boolean canAddCompactCell(int row, int col) {
+		return cellsByRow.isEmpty()
+				|| !cellsByRow.containsKey(new CellAddressible.Reference(row, col));
+	}
+
+	/**
+	 * Stores a plain value cell read from the file in compact storage, as
+	 * {@link #addCell(CellRec)} followed by {@link #compactCells()} would
+	 * for its record.
+	 * 
+	 * @see CellValueFactory
+	 */
+	void addCompactCell(int row, int col, byte type, int xf, long value) {
+		if (compactCells == null)
+			compactCells = new CellColumns();
+		compactCells.put(row, col, type, xf, value);
+		if (rows.get(Integer.valueOf(row)) == null)
+			addNewRow(row);
+		updateDimensions(row, col);
+	}
+
+	/**
+	 * Leaves a run of this sheet's cell records unparsed in the workbook
+	 * stream until the cells are first used.
+	 * 
+	 * @param start the offset of the first record of the run
+	 * @param end   the offset just past the last record of the run
+	 * @see WorkBook#loadDeferredCells(Boundsheet)
+	 */
+	void deferCells(int start, int end) {
+		int[] spans = deferredCells;
+		spans = spans == null ? new int[2] : Arrays.copyOf(spans, spans.length + 2);
+		spans[spans.length - 2] = start;
+		spans[spans.length - 1] = end;
+		deferredCells = spans;
+		cellsPending = true;
+	}
+
+	/**
+	 * @return true if some of this sheet's cell records have not been parsed
+	 *         and linked yet
+	 */
+	public boolean hasDeferredCells() {
+		return cellsPending;
+	}
+
+	/**
+	 * Returns the runs of cell records still to be parsed as start and end
+	 * offset pairs, and marks the calling thread as parsing them.  Returns
+	 * null if they are parsed already or another thread is parsing them.  The
+	 * caller holds the workbook's monitor.
+	 * 
+	 * @see #endDeferredCells()
+	 */
+	int[] claimDeferredCells() {
+		if (!cellsPending || cellsLoader != null)
+			return null;
+		cellsLoader = Thread.currentThread();
+		return deferredCells;
+	}
+
+	/**
+	 * Gives back the runs claimed by {@link #claimDeferredCells()} without
+	 * parsing them.  The caller holds the workbook's monitor.
+	 */
+	void releaseDeferredCells() {
+		cellsLoader = null;
+	}
+
+	/**
+	 * Forgets the runs of cell records still to be parsed, once they are
+	 * linked or when they are discarded.  The caller holds the workbook's
+	 * monitor.
+	 */
+	void endDeferredCells() {
+		deferredCells = null;
+		cellsLoader = null;
+		cellsPending = false;
+	}
+
+	/**
+	 * @return the thread parsing this sheet's deferred cell records, or null;
+	 *         the caller holds the workbook's monitor
+	 */
+	Thread getCellsLoader() {
+		return cellsLoader;
+	}
+
+	/**
+	 * Parses any cell records of this sheet left in the file when the
+	 * workbook was opened with lazy sheet loading.  If another thread is
+	 * parsing them, waits until it is done.
+	 */
+	public void ensureCellsLoaded() {
+		if (cellsPending)
+			getWorkBook().loadDeferredCells(this);
+	}
+
+	private BiffRec restoreCell(int row, int col) {
+		BiffRec rec = compactCells.take(row, col, this);
+		if (rec != null)
+			restoreCell(rec);
+		return rec;
+	}
+
+	private void restoreCell(BiffRec rec) {
+		cellsByRow.put((CellAddressible) rec, rec);
+		cellsByCol.put((CellAddressible) rec, rec);
+		Row row = rows.get(Integer.valueOf(rec.getRowNumber()));
+		if (null == row)
+			row = this.addNewRow(rec);
+		row.addCell(rec);
+	}
+
 	/**
 	 * get an array of all cells for this worksheet
 	 */
 	@Override
 	public BiffRec[] getCells() {
+		ensureCellsLoaded();
+		if (compactCells != null)
+			expandCells();
 		Collection<BiffRec> cells = cellsByRow.values();
 		return cells.toArray(new BiffRec[cells.size()]);
 	}
@@ -2978,6 +3311,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public void setSheetName(String newname) {
+		checkWritable();
 
 		cch = (byte) newname.length();
 		byte[] namebytes = newname.getBytes();
@@ -3018,6 +3352,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 */
 	@Override
 	public byte[] getSheetBytes() throws IOException {
+		ensureCellsLoaded();
 		this.setLocalRecs();
 		ObjectOutputStream obs = null;
 		byte[] b = null;
@@ -3452,6 +3787,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * @return NoteHandle - a handle to the Note object which allows manipulation
 	 */
 	public Note createNote(String address, String txt, String author) {
+		checkWritable();
 		// first check if a note is already attached to this addrss
 		ArrayList notes = this.getNotes();
 		if (address.indexOf('!') == -1)
@@ -3998,6 +4334,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 	 * Must do after autofilter updates or additions
 	 */
 	public void evaluateAutoFilters() {
+		ensureCellsLoaded();
 		// first must set all rows to NOT hidden
 		for (int i = 0; i < rows.size(); i++)
 			try {
@@ -5607,6 +5944,7 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 
 		cellsByCol = new TreeMap<CellAddressible, BiffRec>(
 				new CellAddressible.ColumnMajorComparator());
+		compactCells = null;
 		// TODO: clear recs
 		arrayformulas.clear();
 		// TODO: clear recs
@@ -5710,11 +6048,13 @@ public final class Boundsheet extends XLSRecord implements Sheet {
 			myidx.close();
 			myidx = null;
 		}
-		for (int i = 0; i < printRecs.size(); i++) {
-			XLSRecord r = (XLSRecord) printRecs.get(i);
-			r.close();
+		if (printRecs != null) { // a sheet read from OOXML may have none
+			for (int i = 0; i < printRecs.size(); i++) {
+				XLSRecord r = (XLSRecord) printRecs.get(i);
+				r.close();
+			}
+			printRecs.clear();
 		}
-		printRecs.clear();
 
 		// clear out refs by sheet recs
 		for (int j = 0; j < SheetRecs.size(); j++) {
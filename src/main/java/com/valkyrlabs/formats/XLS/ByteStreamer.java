@@ -27,6 +27,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +41,7 @@ import com.valkyrlabs.OpenXLS.InvalidRecordException;
 import com.valkyrlabs.OpenXLS.WorkBookException;
 import com.valkyrlabs.formats.LEO.BIGBLOCK;
 import com.valkyrlabs.formats.LEO.Block;
+import com.valkyrlabs.formats.LEO.BlockByteReader;
 import com.valkyrlabs.formats.LEO.LEOFile;
 import com.valkyrlabs.formats.LEO.Storage;
 import com.valkyrlabs.toolkit.ByteTools;
@@ -182,9 +185,19 @@ implements Serializable, XLSConstants{
     }
     
     int ridx = 0;
+
+    /** records may not be added to a frozen workbook
+     * @see WorkBook#freeze()
+     */
+    private void checkWritable() {
+        if (workbook != null)
+            workbook.checkWritable();
+    }
+
     /** add an BiffRec to this streamer.
     */
     public void addRecord(BiffRec rec){
+        checkWritable();
         rec.setStreamer(this);
         Sheet sht = rec.getSheet();
         if(sht!=null) {
@@ -200,6 +213,7 @@ implements Serializable, XLSConstants{
      * @param idx
      */
     public void addRecordToBookStreamerAt(BiffRec rec, int idx){
+         checkWritable();
          try{
         	records.add(idx,rec);
         }catch(ArrayIndexOutOfBoundsException e){
@@ -211,6 +225,7 @@ implements Serializable, XLSConstants{
     /** add an BiffRec to this streamer at the specified index.
      */
      public void addRecordToSheetStreamerAt(BiffRec rec, int idx, Boundsheet sht){
+         checkWritable();
          rec.setStreamer(this);       
          List sr = sht.getSheetRecs();
          sr.add(idx,rec);   
@@ -219,6 +234,7 @@ implements Serializable, XLSConstants{
     /** add an BiffRec to this streamer at the specified index.
     */
     public void addRecordAt(BiffRec rec, int idx){
+        checkWritable();
         rec.setStreamer(this);       
         Sheet sht = rec.getSheet();
         if(sht!=null) {
@@ -246,14 +262,14 @@ implements Serializable, XLSConstants{
      
      public void writeRecord (OutputStream out, BiffRec rec)
      throws IOException {
-    	 byte[] op = ByteTools.shortToLEBytes(rec.getOpcode());
     	 byte[] dt = rec.getData();
-    	 byte[] ln = ByteTools.shortToLEBytes((short) dt.length);
-    	 out.write(op);
-    	 out.write(ln);
+    	 short op = rec.getOpcode();
+    	 byte[] hdr = { (byte) op, (byte) (op >> 8),
+    			 (byte) dt.length, (byte) (dt.length >> 8) };
+    	 out.write(hdr);
     	 if (dt.length > 0)
     		 out.write(dt);
-    	 if (LEOFile.DEBUG) LEOFile.actualOutput+= (op.length + ln.length + dt.length); // debugging
+    	 if (LEOFile.DEBUG) LEOFile.actualOutput+= (hdr.length + dt.length); // debugging
     	 rec.postStream();
      }
 
@@ -368,10 +384,33 @@ implements Serializable, XLSConstants{
        	  
           // now output the workbook biff records
           if (LEOFile.DEBUG) LEOFile.actualOutput= 0;	// debugging          
+          // runs of records untouched since they were read are copied
+          // straight from the source file
+          WritableByteChannel channel = lockit ? null : Channels.newChannel(out);
+          BlockByteReader runbuf = null;
+          int runstart = 0, runend = 0;
           while(e.hasNext()){
 			  	rec = (BiffRec) e.next();
 			  	
 				try { // output the rec bytes
+					if (channel != null && rec instanceof XLSRecord
+							&& ((XLSRecord) rec).isPassThrough()) {
+						XLSRecord x = (XLSRecord) rec;
+						if (x.getByteReader() != runbuf || x.originalOffset != runend) {
+							if (runbuf != null)
+								runbuf.write(runstart, runend - runstart, channel);
+							runbuf = x.getByteReader();
+							runstart = x.originalOffset;
+						}
+						runend = x.originalOffset + x.reclen + 4;
+						if (LEOFile.DEBUG) LEOFile.actualOutput+= x.reclen + 4; // debugging
+						rec.postStream();
+						continue;
+					}
+					if (runbuf != null) {
+						runbuf.write(runstart, runend - runstart, channel);
+						runbuf = null;
+					}
 					// deal with CONTINUE record changes before streaming
 	  				if (ContinueHandler.createContinues(rec, out, this )) {
 	  					// Logger.logInfo("Created continues for: " + rec.toString());
@@ -403,6 +442,15 @@ implements Serializable, XLSConstants{
 							WorkBookException.WRITING_ERROR, a );
 				} 
 			}        
+          if (runbuf != null) {
+        	  try {
+        		  runbuf.write(runstart, runend - runstart, channel);
+        	  } catch (IOException a) {
+        		  throw new WorkBookException(
+        				  "Streaming WorkBook Bytes failed: " + a + " Output Corrupted.",
+        				  WorkBookException.WRITING_ERROR, a );
+        	  }
+          }
 
           // pad to fit FAT size
           if (LEOFile.DEBUG) {
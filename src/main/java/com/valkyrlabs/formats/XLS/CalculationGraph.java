@@ -0,0 +1,358 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.valkyrlabs.OpenXLS.FunctionNotSupportedException;
+import com.valkyrlabs.formats.XLS.formulas.PtgExp;
+import com.valkyrlabs.formats.XLS.formulas.PtgName;
+import com.valkyrlabs.formats.XLS.formulas.PtgNameX;
+import com.valkyrlabs.toolkit.Logger;
+
+/** Dependency graph of the Formulas in a WorkBook.
+ *
+ *  The graph is built from the ReferenceTracker: the dependents of a Formula are
+ *  the Formulas whose tracked Ptgs reference the Formula's cell.  Formulas are kept in
+ *  topological order, so when they are calculated in that order every precedent
+ *  already has a cached value and FormulaCalculator does not need to recurse.
+ *
+ *  Formulas which are part of a circular reference cannot be ordered; they are
+ *  placed after all other Formulas, in WorkBook order.
+ *
+ *  The ReferenceTracker discards the graph whenever a reference is added, removed or
+ *  moved; it is rebuilt on the next call to ReferenceTracker.getCalculationGraph().
+ *
+ *  Each Formula is also assigned a level: the length of the longest chain of precedents
+ *  leading to it.  Formulas on the same level are independent of each other, which allows
+ *  a level to be calculated in parallel once all lower levels are done.
+ *
+ * @see ReferenceTracker#getCalculationGraph()
+ */
+public class CalculationGraph {
+	/** all Formulas of the book in topological order */
+	private Formula[] formulas;
+	/** the direct dependents of each Formula, as indexes into formulas */
+	private int[][] dependents;
+	/** reverse lookup of a Formula's position in formulas */
+	private Map<Formula, Integer> index;
+	/** level of each Formula; formulas[k] only depends upon Formulas of a lower level */
+	private int[] level;
+	/** number of Formulas which could be ordered; the rest are part of circular references */
+	private int ordered;
+	/** highest level of any ordered Formula */
+	private int maxLevel;
+
+	CalculationGraph(WorkBook book) {
+		build(book.getFormulas(), book.getRefTracker());
+	}
+
+	/**
+	 * gather the direct dependents of each formula and sort topologically (Kahn's algorithm)
+	 * @param all	formulas in workbook order
+	 * @param rt	the reference tracker containing the references of all formulas
+	 */
+	private void build(Formula[] all, ReferenceTracker rt) {
+		int n= all.length;
+		Map<Formula, Integer> pos= new IdentityHashMap<Formula, Integer>(n);
+		for (int i= 0; i < n; i++)
+			pos.put(all[i], Integer.valueOf(i));
+
+		int[][] deps= new int[n][];
+		int[] indegree= new int[n];
+		for (int i= 0; i < n; i++) {
+			List<Formula> d= rt.getDependentFormulas(all[i]);
+			int[] di= new int[d.size()];
+			int count= 0;
+			for (int k= 0; k < d.size(); k++) {
+				Integer j= pos.get(d.get(k));
+				if (j==null || j.intValue()==i)	// not in this book or self-referencing
+					continue;
+				di[count++]= j.intValue();
+				indegree[j.intValue()]++;
+			}
+			if (count < di.length) {
+				int[] trimmed= new int[count];
+				System.arraycopy(di, 0, trimmed, 0, count);
+				di= trimmed;
+			}
+			deps[i]= di;
+		}
+
+		int[] order= new int[n];
+		int head= 0, tail= 0;
+		for (int i= 0; i < n; i++) {
+			if (indegree[i]==0)
+				order[tail++]= i;
+		}
+		while (head < tail) {
+			int[] di= deps[order[head++]];
+			for (int k= 0; k < di.length; k++) {
+				if (--indegree[di[k]]==0)
+					order[tail++]= di[k];
+			}
+		}
+		ordered= tail;
+		// circular references: whatever is left could not be ordered
+		if (tail < n) {
+			for (int i= 0; i < n; i++) {
+				if (indegree[i] > 0)
+					order[tail++]= i;
+			}
+		}
+
+		int[] rank= new int[n];
+		for (int k= 0; k < n; k++)
+			rank[order[k]]= k;
+		formulas= new Formula[n];
+		dependents= new int[n][];
+		index= new IdentityHashMap<Formula, Integer>(n);
+		for (int k= 0; k < n; k++) {
+			formulas[k]= all[order[k]];
+			int[] di= deps[order[k]];
+			for (int j= 0; j < di.length; j++)
+				di[j]= rank[di[j]];
+			dependents[k]= di;
+			index.put(formulas[k], Integer.valueOf(k));
+		}
+
+		level= new int[n];
+		maxLevel= 0;
+		for (int k= 0; k < ordered; k++) {
+			int[] di= dependents[k];
+			for (int j= 0; j < di.length; j++) {
+				if (di[j] < ordered && level[di[j]] <= level[k])
+					level[di[j]]= level[k] + 1;
+			}
+			if (level[k] > maxLevel)
+				maxLevel= level[k];
+		}
+	}
+
+	/**
+	 * returns the number of Formulas in the graph
+	 */
+	public int size() {
+		return formulas.length;
+	}
+
+	/**
+	 * returns all Formulas in calculation order, i.e. each Formula follows all of its precedents
+	 */
+	public Formula[] getFormulas() {
+		Formula[] ret= new Formula[formulas.length];
+		System.arraycopy(formulas, 0, ret, 0, formulas.length);
+		return ret;
+	}
+
+	/**
+	 * returns the number of levels of the graph; all Formulas of a level may be
+	 * calculated concurrently once all previous levels are calculated
+	 */
+	public int getLevelCount() {
+		return (formulas.length==0 ? 0 : maxLevel + 1);
+	}
+
+	/**
+	 * returns true if Formula f is part of this graph
+	 */
+	public boolean contains(Formula f) {
+		return index.containsKey(f);
+	}
+
+	/**
+	 * Recalculates, in dependency order, every Formula which has no cached value,
+	 * every volatile Formula such as NOW() or INDIRECT(), and all of their dependents.
+	 * Formulas with a valid cached value and no dirty precedents are not touched.
+	 * @return the number of Formulas calculated
+	 */
+	public int recalculate() {
+		boolean[] dirty= getDirty();
+		int count= 0;
+		for (int k= 0; k < formulas.length; k++) {
+			if (dirty[k]) {
+				calculate(formulas[k]);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Recalculates the same Formulas as {@link #recalculate()}, calculating the
+	 * independent Formulas of each level concurrently on the given pool.
+	 * <br>Formulas which are volatile, use named ranges or array formulas, or
+	 * are part of a circular reference share state with other Formulas; these are
+	 * calculated on the calling thread after the concurrent part of their level.
+	 * @param pool	ForkJoinPool to calculate on
+	 * @return the number of Formulas calculated
+	 */
+	public int recalculate(ForkJoinPool pool) {
+		boolean[] dirty= getDirty();
+		List<Formula>[] concurrent= new List[maxLevel + 1];
+		List<Formula>[] serial= new List[maxLevel + 1];
+		int count= 0;
+		for (int k= 0; k < ordered; k++) {
+			if (!dirty[k])
+				continue;
+			List<Formula>[] target= (isParallelSafe(formulas[k]) ? concurrent : serial);
+			if (target[level[k]]==null)
+				target[level[k]]= new ArrayList<Formula>();
+			target[level[k]].add(formulas[k]);
+			count++;
+		}
+		for (int l= 0; l <= maxLevel; l++) {
+			if (concurrent[l]!=null) {
+				Formula[] fs= new Formula[concurrent[l].size()];
+				concurrent[l].toArray(fs);
+				pool.invoke(new LevelTask(fs, 0, fs.length));
+			}
+			if (serial[l]!=null) {
+				for (int i= 0; i < serial[l].size(); i++)
+					calculate(serial[l].get(i));
+			}
+		}
+		// circular references last, as in serial recalc
+		for (int k= ordered; k < formulas.length; k++) {
+			if (dirty[k]) {
+				calculate(formulas[k]);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * returns true if Formula f may be calculated concurrently with other Formulas
+	 * of its level: it must not be volatile, nor use named ranges, which are
+	 * shared by all Formulas referencing them, nor be part of an array formula
+	 */
+	static boolean isParallelSafe(Formula f) {
+		if (f.isVolatile())
+			return false;
+		Stack exp= f.getExpression();
+		if (f.isSharedFormula() && f.shared!=null)
+			exp= f.shared.getStack();
+		else if (f.isArrayFormula())
+			return false;
+		if (exp==null)
+			return false;
+		for (int i= 0; i < exp.size(); i++) {
+			Object p= exp.get(i);
+			if (p instanceof PtgName || p instanceof PtgNameX || p instanceof PtgExp)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * calculates a range of the Formulas of one level, splitting the range
+	 * until it is small enough to calculate directly
+	 */
+	private static class LevelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		/** formulas per task below which a range is not split further */
+		private static final int THRESHOLD= 64;
+		private final Formula[] fs;
+		private final int start, end;
+
+		LevelTask(Formula[] fs, int start, int end) {
+			this.fs= fs;
+			this.start= start;
+			this.end= end;
+		}
+
+		protected void compute() {
+			if (end - start <= THRESHOLD) {
+				for (int i= start; i < end; i++)
+					calculate(fs[i]);
+				return;
+			}
+			int mid= (start + end) >>> 1;
+			invokeAll(new LevelTask(fs, start, mid), new LevelTask(fs, mid, end));
+		}
+	}
+
+	/**
+	 * flags which Formulas need calculating: those without a cached value,
+	 * volatile Formulas and all of their dependents.  Cached values of flagged
+	 * Formulas are cleared.
+	 * @return dirty flag for each Formula in calculation order
+	 */
+	boolean[] getDirty() {
+		int n= formulas.length;
+		boolean[] dirty= new boolean[n];
+		int[] queue= new int[n];
+		int tail= 0;
+		for (int k= 0; k < n; k++) {
+			Formula f= formulas[k];
+			if (f.isVolatile())
+				f.clearCachedValue();
+			if (f.needsCalculation()) {
+				dirty[k]= true;
+				queue[tail++]= k;
+			}
+		}
+		propagate(dirty, queue, tail);
+		return dirty;
+	}
+
+	/**
+	 * breadth-first walk of the dependents of the queued Formulas, flagging and
+	 * clearing each one reached
+	 * @param dirty	flags, already set for queued Formulas
+	 * @param queue	Formulas to start from, with room for all Formulas
+	 * @param tail	number of queued Formulas
+	 * @return total number of flagged Formulas
+	 */
+	private int propagate(boolean[] dirty, int[] queue, int tail) {
+		for (int head= 0; head < tail; head++) {
+			int[] di= dependents[queue[head]];
+			for (int j= 0; j < di.length; j++) {
+				if (!dirty[di[j]]) {
+					dirty[di[j]]= true;
+					formulas[di[j]].clearCachedValue();
+					queue[tail++]= di[j];
+				}
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * calculates a single Formula, logging rather than throwing unsupported functions
+	 */
+	static void calculate(Formula f) {
+		try {
+			f.calculate();
+		} catch (FunctionNotSupportedException fe) {
+			Logger.logErr("WorkBookHandle.recalc:  Error calculating Formula " + fe.toString());
+		}
+	}
+}
@@ -0,0 +1,387 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.valkyrlabs.toolkit.ByteTools;
+
+/**
+ * Columnar storage for the plain value cells of a Boundsheet.
+ * <p>
+ * Number, Rk, Labelsst, Boolerr and Blank records carry nothing but an
+ * address, an XF index and at most eight bytes of value, yet as records each
+ * costs an object, a byte array and two map entries.  CellColumns keeps those
+ * cells as parallel primitive arrays per column, sorted by row, and rebuilds
+ * the record for a cell when it is asked for.
+ * <p>
+ * Cells with hyperlinks, merges or anything else not captured by the record
+ * bytes are never stored here.
+ *
+ * @see Boundsheet#compactCells()
+ */
+final class CellColumns implements Serializable, XLSConstants {
+	private static final long serialVersionUID = -3062841553713028714L;
+
+	static final byte BLANK_CELL = 0;
+	static final byte NUMBER_CELL = 1;
+	static final byte RK_CELL = 2;
+	static final byte LABELSST_CELL = 3;
+	static final byte BOOLERR_CELL = 4;
+
+	private Column[] columns = new Column[0];
+	private int size;
+
+	/**
+	 * Returns whether the given cell can be stored without loss.
+	 */
+	static boolean isCompactable(BiffRec rec) {
+		Class<?> c = rec.getClass();
+		if (c != NumberRec.class && c != Rk.class && c != Labelsst.class
+				&& c != Blank.class && c != Boolerr.class)
+			return false;
+		XLSRecord x = (XLSRecord) rec;
+		if (x.getHyperlink() != null || x.getMergeRange() != null
+				|| x.hasContinues())
+			return false;
+		if (rec.getIxfe() < 0 || rec.getIxfe() > 0xFFFF)
+			return false;
+		if (c == Labelsst.class) {
+			Labelsst l = (Labelsst) rec;
+			if (l.isst < 0 || l.hasUnsharedString())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the given cell, replacing any cell already stored at its address.
+	 *
+	 * @return false if the cell cannot be stored here
+	 */
+	boolean add(BiffRec rec) {
+		if (!isCompactable(rec))
+			return false;
+		byte type;
+		long value = 0;
+		byte[] data = rec.getData();
+		switch (rec.getOpcode()) {
+			case NUMBER:
+				type = NUMBER_CELL;
+				value = readLong(data, 6, 8);
+				break;
+			case RK:
+				type = RK_CELL;
+				value = readLong(data, 6, 4);
+				break;
+			case LABELSST:
+				type = LABELSST_CELL;
+				value = ((Labelsst) rec).isst;
+				break;
+			case BOOLERR:
+				type = BOOLERR_CELL;
+				value = readLong(data, 6, 2);
+				break;
+			default:
+				type = BLANK_CELL;
+		}
+		put(rec.getRowNumber(), rec.getColNumber(), type, rec.getIxfe(), value);
+		return true;
+	}
+
+	/**
+	 * Stores a cell from its parts, replacing any cell already stored at its
+	 * address.
+	 *
+	 * @param type  one of the _CELL types
+	 * @param xf    the XF index, from 0 to 0xFFFF
+	 * @param value the value bytes of the record, little-endian
+	 */
+	void put(int row, int col, byte type, int xf, long value) {
+		if (col >= columns.length) {
+			Column[] grown = new Column[Math.max(col + 1, columns.length * 2)];
+			System.arraycopy(columns, 0, grown, 0, columns.length);
+			columns = grown;
+		}
+		if (columns[col] == null)
+			columns[col] = new Column();
+		if (columns[col].put(row, type, (char) xf, value))
+			size++;
+	}
+
+	/**
+	 * @return the number of cells stored
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns whether a cell is stored at the given address.
+	 */
+	boolean contains(int row, int col) {
+		return col < columns.length && columns[col] != null
+				&& columns[col].find(row) >= 0;
+	}
+
+	/**
+	 * Discards the cell stored at the given address, if any.
+	 */
+	boolean remove(int row, int col) {
+		if (col >= columns.length || columns[col] == null)
+			return false;
+		int i = columns[col].find(row);
+		if (i < 0)
+			return false;
+		columns[col].delete(i);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Builds the record for the cell stored at the given address without
+	 * removing it from this store.  The record is not added to the sheet.
+	 *
+	 * @return the record, or null if no cell is stored at the address
+	 */
+	BiffRec get(int row, int col, Boundsheet sheet) {
+		if (col >= columns.length || columns[col] == null)
+			return null;
+		int i = columns[col].find(row);
+		if (i < 0)
+			return null;
+		return columns[col].createRecord(i, col, sheet);
+	}
+
+	/**
+	 * Removes the cell stored at the given address and returns its record.
+	 *
+	 * @return the record, or null if no cell is stored at the address
+	 */
+	BiffRec take(int row, int col, Boundsheet sheet) {
+		BiffRec rec = get(row, col, sheet);
+		if (rec != null)
+			remove(row, col);
+		return rec;
+	}
+
+	/**
+	 * Builds the records of the cells stored in the given row, in column
+	 * order, optionally removing them from this store.
+	 */
+	List<BiffRec> getRow(int row, Boundsheet sheet, boolean remove) {
+		List<BiffRec> ret = new ArrayList<BiffRec>();
+		for (int col = 0; col < columns.length; col++) {
+			Column c = columns[col];
+			if (c == null)
+				continue;
+			int i = c.find(row);
+			if (i < 0)
+				continue;
+			ret.add(c.createRecord(i, col, sheet));
+			if (remove) {
+				c.delete(i);
+				size--;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes the cells stored in the given column and returns their records
+	 * in row order.
+	 */
+	List<BiffRec> takeColumn(int col, Boundsheet sheet) {
+		List<BiffRec> ret = new ArrayList<BiffRec>();
+		if (col >= columns.length || columns[col] == null)
+			return ret;
+		Column c = columns[col];
+		for (int i = 0; i < c.count; i++)
+			ret.add(c.createRecord(i, col, sheet));
+		size -= c.count;
+		columns[col] = null;
+		return ret;
+	}
+
+	/**
+	 * Removes every stored cell and returns their records in column order.
+	 */
+	List<BiffRec> takeAll(Boundsheet sheet) {
+		List<BiffRec> ret = new ArrayList<BiffRec>(size);
+		for (int col = 0; col < columns.length; col++)
+			ret.addAll(takeColumn(col, sheet));
+		columns = new Column[0];
+		size = 0;
+		return ret;
+	}
+
+	static long readLong(byte[] data, int off, int len) {
+		long l = 0;
+		for (int i = len - 1; i >= 0; i--)
+			l = (l << 8) | (data[off + i] & 0xFF);
+		return l;
+	}
+
+	private static void writeLong(long l, byte[] data, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			data[off + i] = (byte) l;
+			l >>>= 8;
+		}
+	}
+
+	/**
+	 * The cells of one column, sorted by row.
+	 */
+	private static final class Column implements Serializable {
+		private static final long serialVersionUID = 5288151466013722447L;
+
+		int[] rows = new int[4];
+		byte[] types = new byte[4];
+		char[] xfs = new char[4];
+		long[] values = new long[4];
+		int count;
+
+		int find(int row) {
+			// cells are usually added in row order
+			if (count > 0 && rows[count - 1] == row)
+				return count - 1;
+			int lo = 0, hi = count - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (rows[mid] < row)
+					lo = mid + 1;
+				else if (rows[mid] > row)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -(lo + 1);
+		}
+
+		/**
+		 * @return true if a new cell was added, false if one was replaced
+		 */
+		boolean put(int row, byte type, char xf, long value) {
+			int i = (count == 0 || rows[count - 1] < row) ? -(count + 1)
+					: find(row);
+			boolean added = i < 0;
+			if (added) {
+				i = -(i + 1);
+				if (count == rows.length) {
+					int n = count + (count >> 1) + 1;
+					rows = Arrays.copyOf(rows, n);
+					types = Arrays.copyOf(types, n);
+					xfs = Arrays.copyOf(xfs, n);
+					values = Arrays.copyOf(values, n);
+				}
+				int move = count - i;
+				if (move > 0) {
+					System.arraycopy(rows, i, rows, i + 1, move);
+					System.arraycopy(types, i, types, i + 1, move);
+					System.arraycopy(xfs, i, xfs, i + 1, move);
+					System.arraycopy(values, i, values, i + 1, move);
+				}
+				count++;
+			}
+			rows[i] = row;
+			types[i] = type;
+			xfs[i] = xf;
+			values[i] = value;
+			return added;
+		}
+
+		void delete(int i) {
+			int move = count - i - 1;
+			if (move > 0) {
+				System.arraycopy(rows, i + 1, rows, i, move);
+				System.arraycopy(types, i + 1, types, i, move);
+				System.arraycopy(xfs, i + 1, xfs, i, move);
+				System.arraycopy(values, i + 1, values, i, move);
+			}
+			count--;
+		}
+
+		BiffRec createRecord(int i, int col, Boundsheet sheet) {
+			short opcode;
+			byte[] data;
+			switch (types[i]) {
+				case NUMBER_CELL:
+					opcode = NUMBER;
+					data = new byte[14];
+					writeLong(values[i], data, 6, 8);
+					break;
+				case RK_CELL:
+					opcode = RK;
+					data = new byte[10];
+					writeLong(values[i], data, 6, 4);
+					break;
+				case LABELSST_CELL:
+					opcode = LABELSST;
+					data = new byte[10];
+					// the string's sharing count was taken when the sheet was
+					// loaded, so init must not see the real index
+					writeLong(-1, data, 6, 4);
+					break;
+				case BOOLERR_CELL:
+					opcode = BOOLERR;
+					data = new byte[8];
+					writeLong(values[i], data, 6, 2);
+					break;
+				default:
+					opcode = BLANK;
+					data = new byte[6];
+			}
+			System.arraycopy(ByteTools.shortToLEBytes((short) rows[i]), 0,
+					data, 0, 2);
+			System.arraycopy(ByteTools.shortToLEBytes((short) col), 0, data,
+					2, 2);
+			System.arraycopy(ByteTools.shortToLEBytes((short) xfs[i]), 0,
+					data, 4, 2);
+
+			XLSRecord rec = (XLSRecord) XLSRecordFactory.getBiffRecord(opcode);
+			rec.setWorkBook(sheet.getWorkBook());
+			rec.setStreamer(sheet.getStreamer());
+			rec.setData(data);
+			rec.init();
+			rec.setSheet(sheet);
+			// rows past the BIFF8 limit do not fit the record's row field
+			rec.rw = rows[i];
+			if (opcode == LABELSST) {
+				Labelsst l = (Labelsst) rec;
+				l.isst = (int) values[i];
+				writeLong(values[i], l.getData(), 6, 4);
+			}
+			return rec;
+		}
+	}
+}
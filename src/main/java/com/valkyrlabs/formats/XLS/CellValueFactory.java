@@ -0,0 +1,148 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import com.valkyrlabs.toolkit.ByteTools;
+
+/**
+ * The RecordFactory for the plain value cell records: Number, Rk, Mulrk,
+ * Labelsst, Boolerr and Blank.
+ * <p>
+ * Besides making records, it can store the cells of a record body straight
+ * into a sheet's compact storage.  Sheets of a workbook which keeps compact
+ * cell storage are read this way, so the record, its data array and its cell
+ * map entries are never made for these cells.
+ *
+ * @see Boundsheet#compactCells()
+ * @see WorkBook#getCompactValueSheet()
+ */
+final class CellValueFactory implements RecordFactory, XLSConstants {
+	private final short opcode;
+
+	CellValueFactory(short opcode) {
+		this.opcode = opcode;
+	}
+
+	@Override
+	public BiffRec newRecord() {
+		switch (opcode) {
+			case NUMBER:
+				return new NumberRec();
+			case RK:
+				return new Rk();
+			case MULRK:
+				return new Mulrk();
+			case LABELSST:
+				return new Labelsst();
+			case BOOLERR:
+				return new Boolerr();
+			default:
+				return new Blank();
+		}
+	}
+
+	/**
+	 * Stores the cells of a record body in the given sheet's compact storage.
+	 * Cells which would not be compacted once read as records are left alone.
+	 *
+	 * @param body the record body, without its header
+	 * @param len  the length of the body
+	 * @return false if nothing was stored and the record must be parsed
+	 */
+	boolean addValues(Boundsheet sheet, byte[] body, int len) {
+		if (len < 6)
+			return false;
+		int row = ByteTools.readUnsignedShort(body[0], body[1]);
+		int col = ByteTools.readShort(body[2], body[3]);
+		if (opcode == MULRK)
+			return addRks(sheet, body, len, row, col);
+		int xf = ByteTools.readShort(body[4], body[5]);
+		if (col < 0 || xf < 0 || !sheet.canAddCompactCell(row, col))
+			return false;
+		switch (opcode) {
+			case NUMBER:
+				if (len != 14)
+					return false;
+				sheet.addCompactCell(row, col, CellColumns.NUMBER_CELL, xf,
+						CellColumns.readLong(body, 6, 8));
+				return true;
+			case RK:
+				if (len != 10)
+					return false;
+				sheet.addCompactCell(row, col, CellColumns.RK_CELL, xf,
+						CellColumns.readLong(body, 6, 4));
+				return true;
+			case LABELSST:
+				if (len != 10)
+					return false;
+				int isst = ByteTools.readInt(body[6], body[7], body[8], body[9]);
+				if (isst < 0)
+					return false;
+				sheet.addCompactCell(row, col, CellColumns.LABELSST_CELL, xf,
+						isst);
+				Sst sst = sheet.getWorkBook().getSharedStringTable();
+				if (sst != null)
+					sst.initSharingOnStrings(isst);
+				return true;
+			case BOOLERR:
+				if (len != 8)
+					return false;
+				sheet.addCompactCell(row, col, CellColumns.BOOLERR_CELL, xf,
+						CellColumns.readLong(body, 6, 2));
+				return true;
+			default:
+				if (len != 6)
+					return false;
+				sheet.addCompactCell(row, col, CellColumns.BLANK_CELL, xf, 0);
+				return true;
+		}
+	}
+
+	/**
+	 * Stores the Rk cells of a Mulrk record body, all of them or none.
+	 */
+	private static boolean addRks(Boundsheet sheet, byte[] body, int len,
+			int row, int colFirst) {
+		if (len < 12 || (len - 6) % 6 != 0 || colFirst < 0)
+			return false;
+		int n = (len - 6) / 6;
+		for (int k = 0, off = 4; k < n; k++, off += 6) {
+			if (ByteTools.readShort(body[off], body[off + 1]) < 0
+					|| !sheet.canAddCompactCell(row, colFirst + k))
+				return false;
+		}
+		for (int k = 0, off = 4; k < n; k++, off += 6) {
+			int xf = ByteTools.readShort(body[off], body[off + 1]);
+			sheet.addCompactCell(row, colFirst + k, CellColumns.RK_CELL, xf,
+					CellColumns.readLong(body, off + 2, 4));
+		}
+		return true;
+	}
+}
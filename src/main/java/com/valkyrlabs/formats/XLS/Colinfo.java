@@ -189,6 +189,7 @@ extends XLSRecord implements ColumnRange {
 	 * @param int x		new column width 
 	 */
     public void setColWidth(int x){
+        checkWritable();
     	byte[] cl = ByteTools.shortToLEBytes((short) x);
         System.arraycopy(cl, 0, this.getData(), 4, 2);
         colWidth = (int) ByteTools.readUnsignedShort(this.getData()[4],this.getData()[5]);       
@@ -224,6 +225,7 @@ extends XLSRecord implements ColumnRange {
 	 */
 	public void setCollapsed(boolean b)
 	{
+		checkWritable();
 		this.collapseIt(b);
 		// all previous columns are hidden
 		for (int i= 0; i < this.colFirst; i++) {
@@ -248,6 +250,7 @@ extends XLSRecord implements ColumnRange {
 	 * @param b
 	 */
 	public void setHidden(boolean b){
+		checkWritable();
 		this.hidden = b;
 		updateGrbit();
 		this.getWorkBook().getUsersviewbegin().setDisplayOutlines(true);
@@ -258,6 +261,7 @@ extends XLSRecord implements ColumnRange {
 	 * @param x
 	 */
 	public void setOutlineLevel(int x){
+		checkWritable();
 		this.outlineLevel = x;
 		updateGrbit();
 		this.getSheet().getGuts().setColGutterSize(10 + (10*x));
@@ -356,6 +360,7 @@ extends XLSRecord implements ColumnRange {
      *
      */
     public void setIxfe(int i){
+        checkWritable();
         this.ixfe = i;
         byte[] newxfe = ByteTools.cLongToLEBytes(i);
         byte[] b = this.getData();
@@ -60,6 +60,14 @@ public class ContinueHandler implements Serializable, XLSConstants{
         this.book = b;
     }
     
+    /**
+     * Returns whether a record read before is still waiting on CONTINUE
+     * records, or on the next record to be initialized.
+     */
+    boolean isPending(){
+        return continued != null || lastCont != null;
+    }
+    
     /** add an XLSRecord to this handler
         check if it needs a Continue, if
         so, put in our continued_recs.
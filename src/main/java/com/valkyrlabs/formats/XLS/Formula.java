@@ -36,13 +36,17 @@ import com.valkyrlabs.OpenXLS.FunctionNotSupportedException;
 import com.valkyrlabs.OpenXLS.WorkBookHandle;
 import com.valkyrlabs.formats.XLS.formulas.CalculationException;
 import com.valkyrlabs.formats.XLS.formulas.CircularReferenceException;
+import com.valkyrlabs.formats.XLS.formulas.CompiledExpression;
 import com.valkyrlabs.formats.XLS.formulas.FormulaCalculator;
 import com.valkyrlabs.formats.XLS.formulas.FormulaParser;
+import com.valkyrlabs.formats.XLS.formulas.FunctionConstants;
 import com.valkyrlabs.formats.XLS.formulas.GenericPtg;
 import com.valkyrlabs.formats.XLS.formulas.Ptg;
 import com.valkyrlabs.formats.XLS.formulas.PtgArea;
 import com.valkyrlabs.formats.XLS.formulas.PtgArray;
 import com.valkyrlabs.formats.XLS.formulas.PtgExp;
+import com.valkyrlabs.formats.XLS.formulas.PtgFunc;
+import com.valkyrlabs.formats.XLS.formulas.PtgFuncVar;
 import com.valkyrlabs.formats.XLS.formulas.PtgMemArea;
 import com.valkyrlabs.formats.XLS.formulas.PtgRef;
 import com.valkyrlabs.toolkit.ByteTools;
@@ -89,6 +93,8 @@ extends XLSCellRecord {
 	
     private Object cachedValue;
     private Stack expression;
+    /** The expression compiled for calculation, made on first calculation. */
+    private transient CompiledExpression compiled;
     
 
     
@@ -98,6 +104,9 @@ extends XLSCellRecord {
     /** Whether this formula contains an indirect reference. */
     private boolean containsIndirectFunction = false;
 
+    /** Whether parsing the expression was left until first use. */
+    private boolean parseDeferred = false;
+
     /** Whether this FORMULA record has an attached STRING record. */
 	private boolean haveStringRec = false;
     
@@ -197,11 +206,17 @@ extends XLSCellRecord {
 		}
 	    
 	    // The expression needs to be parsed on input in order to add it to
-	    // the reference tracker
-	    //TODO: Add a no calculation / read only mode without ref tracking
-	    this.populateExpression();
-	    // Perform some special handling for formulas with indirect references
-	    if(containsIndirectFunction) this.registerIndirectFunction();
+	    // the reference tracker, unless the ReferenceTracker is to parse it
+	    // when it is first asked for references.  Shared formula members are
+	    // only a PtgExp but must join their SHRFMLA now.
+	    if (this.wkbook != null && this.wkbook.isLazyFormulaParsing() && !isSharedFormula()) {
+	    	parseDeferred = true;
+	    	this.wkbook.getRefTracker().addDeferredFormula(this);
+	    } else {
+	    	this.populateExpression();
+	    	// Perform some special handling for formulas with indirect references
+	    	if(containsIndirectFunction) this.registerIndirectFunction();
+	    }
 	    this.dirty= false;
 	}
     
@@ -210,6 +225,7 @@ extends XLSCellRecord {
    	 * Possible sub-records associated with Formula: array, shared string and/or shared formula
    	 */
    	private void clearExpression() {
+   		parseDeferredExpression();
    		if(expression == null)
    			return;
 
@@ -237,6 +253,7 @@ extends XLSCellRecord {
    		}
    		
    		expression = null;
+   		compiled = null;
    	}
    	
     /**
@@ -244,7 +261,7 @@ extends XLSCellRecord {
      * to create a formula.  The location and XF fields are filled in by boundsheet.add();
      */
     public void setExpression(Stack exp){
-    	if (expression != null) 
+    	if (expression != null || parseDeferred) 
     	    clearExpression();
     	expression = exp;
 	updateRecord();
@@ -396,6 +413,20 @@ extends XLSCellRecord {
             if (DEBUGLEVEL > -10)
                 Logger.logInfo("Formula.init:  Parsing Formula failed: " + e);
         }
+        if (parseDeferred) {
+        	parseDeferred = false;
+        	if (containsIndirectFunction) registerIndirectFunction();
+        }
+    }
+    
+    /**
+     * Parses the expression if that was left until first use when the
+     * formula was read, and has not been done since.
+     * 
+     * @see ReferenceTracker#parseDeferredFormulas()
+     */
+    void parseDeferredExpression() {
+    	if (parseDeferred) populateExpression();
     }
     
     /** Performs special initialization for shared formula references.
@@ -499,6 +530,7 @@ extends XLSCellRecord {
 	*/ 
 	public Ptg[] getCellRangePtgs()
 		throws FormulaNotFoundException{
+		populateExpression();
 		return ExpressionParser.getCellRangePtgs(expression);
 	}
 
@@ -539,8 +571,10 @@ extends XLSCellRecord {
 					string.setSheet( getSheet() );
 					string.setRowNumber( getRowNumber() );
 					string.setCol( getColNumber() );
-					getWorkBook().setLastFormula(this);	// for addRecord, sets appropriate formula internal record
-					getWorkBook().addRecord( string, true );
+					synchronized (getWorkBook()) {	// lastFormula is shared; formulas may be calculated concurrently
+						getWorkBook().setLastFormula(this);	// for addRecord, sets appropriate formula internal record
+						getWorkBook().addRecord( string, true );
+					}
 					haveStringRec = true;
 				} else {
 					string.setStringVal( (String) cachedValue );
@@ -559,6 +593,7 @@ extends XLSCellRecord {
     	if (!dirty && !isSharedFormula() && cachedValue!=null &&
     	    (getWorkBook().getCalcMode() != WorkBook.CALCULATE_EXPLICIT)) 
     	    		return;	
+    	populateExpression();
     	
     	
     	// If the formula needs calculation, do so
@@ -859,9 +894,11 @@ extends XLSCellRecord {
 			return cachedValue;
 		// TODO: IF ALREADY RECALCED DONT SET TO null -- need flag?
 		if(getWorkBook().getCalcMode() == WorkBook.CALCULATE_ALWAYS) {
-			if (!isExternalRef)	// if it's an external reference DONT CLEAR CACHE
+			if (!isExternalRef) {	// if it's an external reference DONT CLEAR CACHE
 				cachedValue = null; // force calc
-			else
+				if (isArrayFormula())
+					getArray().clearCachedValue();
+			} else
 				return cachedValue;
 		} 
 		return calculate();
@@ -912,7 +949,25 @@ extends XLSCellRecord {
 		if (cachedValue != null) return cachedValue;
 		populateExpression();
     	try {
-    		cachedValue= FormulaCalculator.calculateFormula(this.expression);
+    		Ptg result;
+    		Ptg only= (this.expression.size() == 1) ? (Ptg) this.expression.get(0) : null;
+    		if (only != null && only.getIsOperand()) {
+    			// shared formula members and constants; nothing worth keeping compiled
+    			compiled= null;
+    			result= only;
+    		} else {
+    			CompiledExpression c= compiled;
+    			if (c == null || !c.isCompiledFrom(this.expression))
+    				compiled= c= CompiledExpression.compile(this.expression);
+    			result= (c != null) ? c.calculate()
+    					: FormulaCalculator.calculateFormulaPtg(this.expression);
+    		}
+    		// array formula cells get their own value from the Array record; an
+    		// array result anywhere else gives its top-left value
+    		if (result instanceof PtgArray)
+    			cachedValue= ((PtgArray) result).getValueAt(0, 0);
+    		else
+    			cachedValue= result.getValue();
     	} catch (StackOverflowError e){
         	Logger.logWarn("Stack overflow while calculating " 
         			+ this.getCellAddressWithSheet()
@@ -928,51 +983,6 @@ extends XLSCellRecord {
         if(cachedValue.toString().equals("#CIR_ERR!")){
         	return new CircularReferenceException(CalculationException.CIR_ERR);
         }
-        if(cachedValue.toString().length()<1){
-            // do something...?
-        } else if (cachedValue.toString().charAt(0)=='{'){
-            // it's an array, we need to find the particular value that we want.
-        	// parse all array strings into rows, cols
-        	String arrStr= (String) cachedValue;
-        	arrStr = arrStr.substring(1, arrStr.length()-1);
-        	String[] rows= null;
-        	String[][] cols= null;
-        	// split rows
-        	rows= arrStr.split(";");
-        	cols= new String[rows.length][];
-        	for (int i= 0; i < rows.length; i++) {
-        		cols[i]= rows[i].split(",", -1);	// include empty strings 
-        	}        	
-            PtgExp pxp;
-            int rowA;
-            int colA;
-            Ptg p;
-            try{
-                pxp = (PtgExp)expression.get(0);
-                rowA = this.getRowNumber() - pxp.getRwFirst();
-                colA = this.getColNumber() - pxp.getColFirst();
-                // now, if it's a 1-dimensional array e.g {1,2,3,4,5}, nr=1, nc= 5
-                // if formula address is traversing rows then switch
-                if (rows.length==1 && rowA > 0 && colA==0) {
-                	colA= rowA;
-                	rowA= 0;
-                }
-            }catch(ClassCastException e){
-                // this is when we just calc'd a formula and have no exp reference.
-            	// assume it is the location of the formula
-                // could be incorrect, may need to revisit
-                rowA = 0;
-                colA = 0;
-            }
-            cachedValue = cols[rowA][colA];
-            // try to cast 
-            try {
-            	cachedValue= new Double((String)cachedValue);
-            } catch (Exception e) {
-            	; // let it go 
-            }            
-            if(DEBUGLEVEL > 10)Logger.log(cachedValue);
-        }
         if(this.getAttatchedString()!=null){
             this.getAttatchedString().setStringVal(String.valueOf(cachedValue));
         }
@@ -1077,10 +1087,83 @@ extends XLSCellRecord {
      * 
      * @see com.valkyrlabs.formats.XLS.XLSRecord#setCachedValue(java.lang.Object)
      */
-    public void clearCachedValue() { 
-        cachedValue= null; 
+    public void clearCachedValue() {
+        cachedValue= null;
         haveStringRec = false;
+        if (isArrayFormula())
+            getArray().clearCachedValue();
+        // lookup caches may hold the old result
+        WorkBook book= getWorkBook();
+        if (book!=null && book.getRefTracker()!=null)
+        	book.getRefTracker().clearLookupCaches(this);
 //         this.updateRecord(); no need; will be updated after recalc, which will automatically happen on write
+    }
+
+    /**
+     * returns true if this formula has no cached value and must be calculated
+     * before its value can be returned
+     */
+    public boolean needsCalculation() {
+    	return cachedValue == null;
+    }
+
+    /**
+     * returns true if this formula must be recalculated upon every recalc regardless of
+     * changes to its precedents, i.e. it is flagged fAlwaysCalc or it uses a volatile
+     * function such as NOW(), RAND(), OFFSET() or INDIRECT()
+     */
+    public boolean isVolatile() {
+    	populateExpression();
+    	if (getCalcAlways() || containsIndirectFunction)
+    		return true;
+    	Stack exp= expression;
+    	if (shared!=null) {
+    		if (shared.containsIndirectFunction) return true;
+    		exp= shared.getStack();
+    	}
+    	if (exp==null) return false;
+    	for (int i= 0; i < exp.size(); i++) {
+    		Object p= exp.get(i);
+    		int id= -1;
+    		if (p instanceof PtgFunc)
+    			id= ((PtgFunc) p).getVal();
+    		else if (p instanceof PtgFuncVar)
+    			id= ((PtgFuncVar) p).getVal();
+    		switch (id) {
+    			case FunctionConstants.xlfNow:
+    			case FunctionConstants.xlfToday:
+    			case FunctionConstants.xlfRand:
+    			case FunctionConstants.xlfRANDBETWEEN:
+    			case FunctionConstants.xlfOffset:
+    			case FunctionConstants.XLF_INDIRECT:
+    			case FunctionConstants.xlfCell:
+    			case FunctionConstants.xlfInfo:
+    				return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * set the row; a moved formula changes the dependency graph
+     */
+    public void setRowNumber(int i) {
+    	super.setRowNumber(i);
+    	invalidateCalculationGraph();
+    }
+
+    /**
+     * set the column; a moved formula changes the dependency graph
+     */
+    public void setCol(short i) {
+    	super.setCol(i);
+    	invalidateCalculationGraph();
+    }
+
+    private void invalidateCalculationGraph() {
+    	WorkBook book= getWorkBook();
+    	if (book!=null && book.getRefTracker()!=null)
+    		book.getRefTracker().invalidateCalculationGraph();
     }
     
  	public String getArrayRefs() { 
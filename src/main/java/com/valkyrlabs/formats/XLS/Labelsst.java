@@ -127,6 +127,13 @@ extends XLSCellRecord {
 		unsharedstr = this.getWorkBook().getSharedStringTable().getUStringAt(isst);
 	}
 	
+	/**
+	 * @return whether this label carries its own copy of its string
+	 */
+	boolean hasUnsharedString(){
+		return unsharedstr != null;
+	}
+	
 	public Unicodestring getUnsharedString(){
 	    if(unsharedstr ==null)
 			this.initUnsharedString();		
@@ -156,7 +163,7 @@ extends XLSCellRecord {
 	    if(unsharedstr !=null)
 	    	return unsharedstr.toString();
 	    else 
-	    	return this.getWorkBook().getSharedStringTable().getUStringAt(isst).toCachingString();
+	    	return this.getWorkBook().getSharedStringTable().getStringAt(isst);
     }
 	
 	/**
@@ -394,6 +394,30 @@ public final class Mulblank extends XLSCellRecord /*implements Mul*/
     int getNumFields(){
         return (colLast - colFirst) + 1;
     }
+
+    /**
+     * returns a Blank record for each cell of this Mulblank, each with its own
+     * ixfe and merge range, for replacing this record in its sheet
+     */
+    List<Blank> getBlanks() {
+    	List<Blank> blanks= new ArrayList<Blank>(getNumFields());
+    	for (int i= colFirst; i <= colLast; i++) {
+			byte[] newblank = {0,0,0,0,0,0};
+			// set the row...
+			System.arraycopy(this.getBytesAt(0, 2), 0, newblank, 0, 2);
+			// set the col...
+			System.arraycopy(ByteTools.shortToLEBytes((short) i),0,newblank,2,2);
+			// set the ixfe
+			System.arraycopy(rgixfe, ((i-colFirst) * 2), newblank, 4, 2);
+			Blank b = new Blank(newblank);
+			b.streamer = this.streamer;
+			b.setWorkBook(this.getWorkBook());
+			b.setSheet(this.getSheet());
+			b.setMergeRange(this.getMergeRange(i));
+			blanks.add(b);
+    	}
+    	return blanks;
+    }
     
     
 
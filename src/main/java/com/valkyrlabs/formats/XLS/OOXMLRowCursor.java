@@ -0,0 +1,590 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.valkyrlabs.OpenXLS.Cell;
+import com.valkyrlabs.OpenXLS.ExcelTools;
+import com.valkyrlabs.OpenXLS.RowCursor;
+import com.valkyrlabs.OpenXLS.SheetNotFoundException;
+import com.valkyrlabs.OpenXLS.WorkBookException;
+import com.valkyrlabs.formats.cellformat.CellFormatFactory;
+import com.valkyrlabs.toolkit.Logger;
+
+/**
+ * RowCursor over one worksheet of an OOXML (XLSX) package.
+ * <p>
+ * The sheet part is pulled straight off its zip entry; each {@code <c>}
+ * element is decoded into the cursor's fields and nothing else is kept, so
+ * no CellHandles, BIFF records or deferred formula lists are built. The
+ * shared string part is read on a second stream only as far as the highest
+ * index a cell has referred to, and the strings read are packed into one
+ * char array.  styles.xml is only parsed if a format is asked for.
+ *
+ * @see com.valkyrlabs.OpenXLS.WorkBookHandle#openRowCursor(java.io.File, String)
+ */
+public final class OOXMLRowCursor implements RowCursor {
+	private ZipFile zip;
+	private final String sheetName;
+	private String sstPath, stylesPath;
+
+	private InputStream sheetIn;
+	private XmlPullParser xpp;
+
+	// the current cell
+	private int row = -1, col = -1, ixfe;
+	private int type = Cell.TYPE_BLANK;
+	private double dval;
+	private String sval;
+	private boolean bval, formula;
+
+	// shared strings read so far
+	private InputStream sstIn;
+	private XmlPullParser sstParser;
+	private char[] sstChars = new char[1024];
+	private int[] sstEnds = new int[64];
+	private int sstCount;
+
+	// styles, loaded on first use
+	private int[] xfFormats;
+	private Map<Integer, String> numFmts;
+
+	/**
+	 * Opens a cursor over the named sheet of an XLSX file.
+	 *
+	 * @throws SheetNotFoundException if the workbook has no such sheet
+	 */
+	public OOXMLRowCursor(File file, String sheetName) throws SheetNotFoundException {
+		try {
+			zip = new ZipFile(file);
+			String sheetPath = findSheet(sheetName);
+			if (sheetPath == null) {
+				close();
+				throw new SheetNotFoundException("Worksheet " + sheetName
+						+ " not found.");
+			}
+			ZipEntry entry = OOXMLAdapter.getEntry(zip, sheetPath);
+			if (entry == null) {
+				close();
+				throw new SheetNotFoundException("Worksheet " + sheetName
+						+ " not found.");
+			}
+			sheetIn = OOXMLAdapter.wrapInputStream(zip.getInputStream(entry));
+			xpp = newParser(sheetIn);
+		} catch (IOException e) {
+			close();
+			throw new WorkBookException("OOXMLRowCursor: cannot open "
+					+ file + ": " + e.toString(),
+					WorkBookException.UNSPECIFIED_INIT_ERROR, e);
+		} catch (XmlPullParserException e) {
+			close();
+			throw new WorkBookException("OOXMLRowCursor: cannot open "
+					+ file + ": " + e.toString(),
+					WorkBookException.UNSPECIFIED_INIT_ERROR, e);
+		}
+		this.sheetName = sheetName;
+	}
+
+	private static XmlPullParser newParser(InputStream in) throws XmlPullParserException {
+		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		XmlPullParser p = factory.newPullParser();
+		p.setInput(in, null); // using XML 1.0 specification
+		return p;
+	}
+
+	/**
+	 * Follows the package relationships to the workbook part and from its
+	 * sheet list to the part holding the named sheet.  Also notes the
+	 * shared string and style parts.
+	 *
+	 * @return the zip entry name of the sheet part, or null
+	 */
+	private String findSheet(String name) throws IOException, XmlPullParserException {
+		String wb = null;
+		ArrayList rels = OOXMLAdapter.parseRels(OOXMLAdapter.wrapInputStream(
+				zip.getInputStream(OOXMLAdapter.getEntry(zip, "_rels/.rels"))));
+		for (int i = 0; i < rels.size() && wb == null; i++) {
+			String[] c = (String[]) rels.get(i);
+			if (c[0].equals("document"))
+				wb = resolve("", c[1]);
+		}
+		if (wb == null)
+			return null;
+		String dir = wb.substring(0, wb.lastIndexOf('/') + 1);
+
+		// workbook.xml: sheet name -> relationship id
+		String rId = null;
+		InputStream in = OOXMLAdapter.wrapInputStream(zip.getInputStream(
+				OOXMLAdapter.getEntry(zip, wb)));
+		try {
+			XmlPullParser p = newParser(in);
+			for (int ev = p.getEventType(); ev != XmlPullParser.END_DOCUMENT
+					&& rId == null; ev = p.next()) {
+				if (ev != XmlPullParser.START_TAG || !p.getName().equals("sheet"))
+					continue;
+				String nm = null, id = null;
+				for (int i = 0; i < p.getAttributeCount(); i++) {
+					String an = p.getAttributeName(i);
+					if (an.equalsIgnoreCase("name"))
+						nm = p.getAttributeValue(i);
+					else if (an.equalsIgnoreCase("id"))
+						id = p.getAttributeValue(i);
+				}
+				if (name.equalsIgnoreCase(nm))
+					rId = id;
+			}
+		} finally {
+			in.close();
+		}
+
+		// workbook.xml.rels: relationship id -> part, plus sst and styles
+		String sheetPath = null;
+		String wbRels = dir + "_rels/" + wb.substring(dir.length()) + ".rels";
+		rels = OOXMLAdapter.parseRels(OOXMLAdapter.wrapInputStream(
+				zip.getInputStream(OOXMLAdapter.getEntry(zip, wbRels))));
+		for (int i = 0; i < rels.size(); i++) {
+			String[] c = (String[]) rels.get(i);
+			if (c[0].equals("sst"))
+				sstPath = resolve(dir, c[1]);
+			else if (c[0].equals("styles"))
+				stylesPath = resolve(dir, c[1]);
+			else if (c[0].equals("sheet") && c[2].equals(rId))
+				sheetPath = resolve(dir, c[1]);
+		}
+		return rId == null ? null : sheetPath;
+	}
+
+	/**
+	 * Resolves a relationship target against the directory of its source.
+	 */
+	private static String resolve(String dir, String target) {
+		target = target.replace('\\', '/');
+		if (target.startsWith("/"))
+			return target.substring(1);
+		while (target.startsWith("../")) {
+			target = target.substring(3);
+			int z = dir.lastIndexOf('/', dir.length() - 2);
+			dir = dir.substring(0, z + 1);
+		}
+		if (target.startsWith("./"))
+			target = target.substring(2);
+		return dir + target;
+	}
+
+	@Override
+	public boolean next() {
+		if (xpp == null)
+			return false;
+		try {
+			String t = null, v = null;
+			boolean inCell = false;
+			for (int ev = xpp.next(); ev != XmlPullParser.END_DOCUMENT; ev = xpp.next()) {
+				if (ev == XmlPullParser.START_TAG) {
+					String tnm = xpp.getName();
+					if (tnm.equals("c")) {
+						inCell = true;
+						formula = false;
+						t = null;
+						v = null;
+						ixfe = 0;
+						int c = col + 1;
+						for (int i = 0; i < xpp.getAttributeCount(); i++) {
+							String nm = xpp.getAttributeName(i); // r, s=style, t=type
+							String av = xpp.getAttributeValue(i);
+							if (nm.equals("r"))
+								c = parseRef(av);
+							else if (nm.equals("s"))
+								ixfe = Integer.parseInt(av);
+							else if (nm.equals("t"))
+								t = av;
+						}
+						col = c;
+					} else if (tnm.equals("row")) {
+						int r = row + 1;
+						for (int i = 0; i < xpp.getAttributeCount(); i++) {
+							if (xpp.getAttributeName(i).equals("r"))
+								r = Integer.parseInt(xpp.getAttributeValue(i)) - 1;
+						}
+						row = r;
+						col = -1;
+					} else if (inCell && tnm.equals("v")) {
+						v = xpp.nextText();
+					} else if (inCell && tnm.equals("f")) {
+						formula = true;
+					} else if (inCell && tnm.equals("is")) {
+						v = readStringItem(xpp, "is");
+						t = "inlineStr";
+					}
+				} else if (ev == XmlPullParser.END_TAG) {
+					String tnm = xpp.getName();
+					if (tnm.equals("c")) {
+						inCell = false;
+						if (v != null) {
+							setValue(t, v);
+							return true;
+						}
+					} else if (tnm.equals("sheetData")) {
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new WorkBookException("OOXMLRowCursor: error reading "
+					+ sheetName + ": " + e.toString(),
+					WorkBookException.RUNTIME_ERROR, e);
+		} catch (XmlPullParserException e) {
+			throw new WorkBookException("OOXMLRowCursor: error reading "
+					+ sheetName + ": " + e.toString(),
+					WorkBookException.RUNTIME_ERROR, e);
+		}
+		endSheet();
+		return false;
+	}
+
+	private void setValue(String t, String v) throws IOException, XmlPullParserException {
+		if (t == null || t.equals("n")) {
+			type = Cell.TYPE_DOUBLE;
+			dval = Double.parseDouble(v);
+			sval = null;
+		} else if (t.equals("s")) {
+			type = Cell.TYPE_STRING;
+			sval = getSharedString(Integer.parseInt(v.trim()));
+		} else if (t.equals("b")) {
+			type = Cell.TYPE_BOOLEAN;
+			bval = v.trim().equals("1") || v.trim().equalsIgnoreCase("true");
+			dval = bval ? 1 : 0;
+		} else { // str, inlineStr, e (error) and d (ISO 8601 date)
+			type = Cell.TYPE_STRING;
+			sval = v;
+		}
+	}
+
+	/**
+	 * Parses a cell reference such as "AB12" without allocating.
+	 *
+	 * @return the column; the row is stored in the row field
+	 */
+	private int parseRef(String ref) {
+		int c = 0, r = 0, i = 0, n = ref.length();
+		for (; i < n; i++) {
+			char ch = ref.charAt(i);
+			if (ch >= 'A' && ch <= 'Z')
+				c = c * 26 + (ch - 'A' + 1);
+			else if (ch >= 'a' && ch <= 'z')
+				c = c * 26 + (ch - 'a' + 1);
+			else if (ch != '$')
+				break;
+		}
+		for (; i < n; i++) {
+			char ch = ref.charAt(i);
+			if (ch >= '0' && ch <= '9')
+				r = r * 10 + (ch - '0');
+		}
+		if (r > 0)
+			row = r - 1;
+		return c - 1;
+	}
+
+	/**
+	 * Reads the text of a string item (an {@code <si>} or {@code <is>}
+	 * element), joining its rich text runs and leaving out phonetic runs.
+	 * The parser is left on the item's end tag.
+	 */
+	private static String readStringItem(XmlPullParser p, String tag)
+			throws IOException, XmlPullParserException {
+		StringBuilder sb = new StringBuilder();
+		int skip = 0;
+		for (int ev = p.next(); ev != XmlPullParser.END_DOCUMENT; ev = p.next()) {
+			if (ev == XmlPullParser.START_TAG) {
+				String tnm = p.getName();
+				if (tnm.equals("rPh"))
+					skip++;
+				else if (skip == 0 && tnm.equals("t"))
+					sb.append(p.nextText());
+			} else if (ev == XmlPullParser.END_TAG) {
+				String tnm = p.getName();
+				if (tnm.equals("rPh"))
+					skip--;
+				else if (tnm.equals(tag))
+					break;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a shared string, reading the shared string part forward as far
+	 * as needed.
+	 */
+	private String getSharedString(int isst) throws IOException, XmlPullParserException {
+		if (isst >= sstCount && sstPath != null) {
+			if (sstParser == null) {
+				ZipEntry entry = OOXMLAdapter.getEntry(zip, sstPath);
+				if (entry == null) {
+					sstPath = null;
+					return "";
+				}
+				sstIn = OOXMLAdapter.wrapInputStream(zip.getInputStream(entry));
+				sstParser = newParser(sstIn);
+			}
+			int ev = sstParser.getEventType();
+			while (isst >= sstCount && ev != XmlPullParser.END_DOCUMENT) {
+				ev = sstParser.next();
+				if (ev == XmlPullParser.START_TAG && sstParser.getName().equals("si"))
+					addSharedString(readStringItem(sstParser, "si"));
+			}
+		}
+		if (isst < 0 || isst >= sstCount)
+			return "";
+		int start = isst == 0 ? 0 : sstEnds[isst - 1];
+		return new String(sstChars, start, sstEnds[isst] - start);
+	}
+
+	private void addSharedString(String s) {
+		int start = sstCount == 0 ? 0 : sstEnds[sstCount - 1];
+		int end = start + s.length();
+		if (end > sstChars.length) {
+			char[] grown = new char[Math.max(end, sstChars.length * 2)];
+			System.arraycopy(sstChars, 0, grown, 0, start);
+			sstChars = grown;
+		}
+		s.getChars(0, s.length(), sstChars, start);
+		if (sstCount == sstEnds.length) {
+			int[] grown = new int[sstCount * 2];
+			System.arraycopy(sstEnds, 0, grown, 0, sstCount);
+			sstEnds = grown;
+		}
+		sstEnds[sstCount++] = end;
+	}
+
+	/**
+	 * Reads the number formats and cell formats of styles.xml.
+	 */
+	private void loadStyles() {
+		xfFormats = new int[0];
+		numFmts = new HashMap<Integer, String>();
+		ZipEntry entry = stylesPath == null || zip == null ? null
+				: OOXMLAdapter.getEntry(zip, stylesPath);
+		if (entry == null)
+			return;
+		int[] xfs = new int[64];
+		int count = 0;
+		InputStream in = null;
+		try {
+			in = OOXMLAdapter.wrapInputStream(zip.getInputStream(entry));
+			XmlPullParser p = newParser(in);
+			boolean inCellXfs = false;
+			for (int ev = p.getEventType(); ev != XmlPullParser.END_DOCUMENT; ev = p.next()) {
+				if (ev == XmlPullParser.START_TAG) {
+					String tnm = p.getName();
+					if (tnm.equals("cellXfs")) {
+						inCellXfs = true;
+					} else if (tnm.equals("numFmt")) {
+						String id = null, code = null;
+						for (int i = 0; i < p.getAttributeCount(); i++) {
+							if (p.getAttributeName(i).equals("numFmtId"))
+								id = p.getAttributeValue(i);
+							else if (p.getAttributeName(i).equals("formatCode"))
+								code = p.getAttributeValue(i);
+						}
+						if (id != null && code != null)
+							numFmts.put(Integer.valueOf(id), code);
+					} else if (inCellXfs && tnm.equals("xf")) {
+						int fmt = 0;
+						for (int i = 0; i < p.getAttributeCount(); i++) {
+							if (p.getAttributeName(i).equals("numFmtId"))
+								fmt = Integer.parseInt(p.getAttributeValue(i));
+						}
+						if (count == xfs.length) {
+							int[] grown = new int[count * 2];
+							System.arraycopy(xfs, 0, grown, 0, count);
+							xfs = grown;
+						}
+						xfs[count++] = fmt;
+					}
+				} else if (ev == XmlPullParser.END_TAG
+						&& p.getName().equals("cellXfs")) {
+					inCellXfs = false;
+				}
+			}
+		} catch (Exception e) {
+			Logger.logWarn("OOXMLRowCursor: cannot read styles: " + e.toString());
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+		xfFormats = new int[count];
+		System.arraycopy(xfs, 0, xfFormats, 0, count);
+	}
+
+	@Override
+	public int getRowNum() {
+		return row;
+	}
+
+	@Override
+	public int getColNum() {
+		return col;
+	}
+
+	@Override
+	public String getCellAddress() {
+		return ExcelTools.formatLocation(new int[] { row, col });
+	}
+
+	@Override
+	public String getWorkSheetName() {
+		return sheetName;
+	}
+
+	@Override
+	public int getCellType() {
+		return type;
+	}
+
+	@Override
+	public boolean isFormula() {
+		return formula;
+	}
+
+	@Override
+	public Object getVal() {
+		switch (type) {
+			case Cell.TYPE_DOUBLE:
+				return Double.valueOf(dval);
+			case Cell.TYPE_BOOLEAN:
+				return Boolean.valueOf(bval);
+			case Cell.TYPE_STRING:
+				return sval;
+			default:
+				return null;
+		}
+	}
+
+	@Override
+	public double getDoubleVal() {
+		return type == Cell.TYPE_STRING ? Double.NaN : dval;
+	}
+
+	@Override
+	public String getStringVal() {
+		switch (type) {
+			case Cell.TYPE_DOUBLE:
+				return ExcelTools.getNumberAsString(dval);
+			case Cell.TYPE_BOOLEAN:
+				return String.valueOf(bval);
+			case Cell.TYPE_STRING:
+				return sval;
+			default:
+				return "";
+		}
+	}
+
+	@Override
+	public int getFormatId() {
+		return ixfe;
+	}
+
+	@Override
+	public String getFormatPattern() {
+		if (xfFormats == null)
+			loadStyles();
+		if (ixfe < 0 || ixfe >= xfFormats.length)
+			return null;
+		int ifmt = xfFormats[ixfe];
+		String pat = numFmts.get(Integer.valueOf(ifmt));
+		if (pat != null)
+			return pat;
+		String[][] fmts = FormatConstantsImpl.getBuiltinFormats();
+		for (int x = 0; x < fmts.length; x++) {
+			if (ifmt == Integer.parseInt(fmts[x][1], 16))
+				return fmts[x][0];
+		}
+		return null;
+	}
+
+	@Override
+	public boolean isDate() {
+		if (type != Cell.TYPE_DOUBLE)
+			return false;
+		String pat = getFormatPattern();
+		return pat != null && Xf.isDatePattern(pat);
+	}
+
+	@Override
+	public String getFormattedStringVal() {
+		return CellFormatFactory.fromPatternString(getFormatPattern()).format(this);
+	}
+
+	/**
+	 * Drops the sheet stream once its cells are exhausted.
+	 */
+	private void endSheet() {
+		xpp = null;
+		try {
+			if (sheetIn != null)
+				sheetIn.close();
+		} catch (IOException e) {
+		}
+		sheetIn = null;
+	}
+
+	@Override
+	public void close() {
+		endSheet();
+		sstParser = null;
+		try {
+			if (sstIn != null)
+				sstIn.close();
+			if (zip != null)
+				zip.close();
+		} catch (IOException e) {
+			Logger.logWarn("OOXMLRowCursor: " + e.toString());
+		}
+		sstIn = null;
+		zip = null;
+	}
+}
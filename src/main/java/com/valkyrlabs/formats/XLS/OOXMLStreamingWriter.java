@@ -0,0 +1,309 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+
+import com.valkyrlabs.OpenXLS.DateConverter;
+import com.valkyrlabs.OpenXLS.ExcelTools;
+import com.valkyrlabs.OpenXLS.RowNotFoundException;
+import com.valkyrlabs.OpenXLS.WorkBookHandle;
+import com.valkyrlabs.OpenXLS.WorkSheetHandle;
+
+/**
+ * Write-only XLSX output that streams worksheet rows into the package as
+ * they are appended.
+ * <p>
+ * The workbook supplies everything but the cells of the streamed sheets:
+ * sheet names and settings, styles (a style id is the format id of a
+ * FormatHandle on the workbook), names, and any sheets built the usual way,
+ * which are written on {@link #close()}. Rows of a streamed sheet are held
+ * in a window of the most recent rows, where they can still be changed with
+ * {@link #setCell(int, int, Object, int)}; older rows are written to the
+ * sheet's part and dropped. Only the window, the shared string table and the
+ * style table stay in memory however many rows are written.
+ *
+ * <pre>
+ * WorkBookHandle book = new WorkBookHandle();
+ * OOXMLStreamingWriter out = new OOXMLStreamingWriter(book, stream);
+ * out.startSheet(book.getWorkSheet(0));
+ * for (...)
+ *     out.appendRow(new Object[] { name, Double.valueOf(amount) }, null);
+ * out.close();
+ * </pre>
+ *
+ * Values may be Strings, Numbers, Booleans, Dates or Calendars. A String
+ * starting with "=" is written as a formula without a cached value.
+ */
+public class OOXMLStreamingWriter extends OOXMLWriter implements Closeable {
+	public static final int DEFAULT_WINDOW = 100;
+
+	private final WorkBookHandle book;
+	private final int window;
+	private final boolean shareDupes;
+	private final BitSet streamed = new BitSet();
+
+	// the sheet being streamed
+	private WorkSheetHandle sheet;
+	private int sheetId = -1;
+	private final ArrayDeque<WindowRow> rows = new ArrayDeque<WindowRow>();
+	private int nextRow;
+	private final ArrayList hyperlinks = new ArrayList();
+
+	private boolean closed;
+
+	/**
+	 * Starts writing an XLSX package for the workbook, keeping a window of
+	 * {@link #DEFAULT_WINDOW} rows.
+	 */
+	public OOXMLStreamingWriter(WorkBookHandle book, OutputStream out) throws IOException {
+		this(book, out, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Starts writing an XLSX package for the workbook.
+	 *
+	 * @param window the number of most recent rows kept in memory
+	 */
+	public OOXMLStreamingWriter(WorkBookHandle book, OutputStream out, int window) throws IOException {
+		if (window < 1)
+			throw new IllegalArgumentException("window must be at least 1 row");
+		this.book = book;
+		this.window = window;
+		// strings repeat across a report; keep one SST entry per value
+		shareDupes = book.getWorkBook().isSharedupes();
+		book.getWorkBook().setSharedupes(true);
+		beginOOXML(book, out);
+	}
+
+	/**
+	 * Starts streaming the rows of a sheet of the workbook.  Any sheet
+	 * being streamed is ended first.  Cells already in the sheet are not
+	 * written.
+	 */
+	public void startSheet(WorkSheetHandle ws) throws IOException {
+		checkOpen();
+		endSheet();
+		int id = ws.getSheetNum();
+		if (streamed.get(id))
+			throw new IllegalStateException("sheet " + ws.getSheetName()
+					+ " has already been written");
+		streamed.set(id);
+		sheet = ws;
+		sheetId = id;
+		nextRow = 0;
+		writeSheetPrefix(sheet, book, sheetId);
+	}
+
+	/**
+	 * Appends a row to the sheet being streamed.  Null values are left out,
+	 * or written as blank cells if given a style.
+	 *
+	 * @param values   the row's values from column A on
+	 * @param styleIds the format id of each cell, or null for the default
+	 * @return the 0-based number of the new row
+	 */
+	public int appendRow(Object[] values, int[] styleIds) throws IOException {
+		checkSheet();
+		if (rows.size() == window)
+			flushRow();
+		rows.addLast(new WindowRow(values, styleIds));
+		return nextRow++;
+	}
+
+	/**
+	 * Changes a cell of a row still in the window.
+	 *
+	 * @throws RowNotFoundException if the row has already been written out
+	 *                              or has not been appended yet
+	 */
+	public void setCell(int row, int col, Object value, int styleId) throws RowNotFoundException {
+		checkSheet();
+		int first = nextRow - rows.size();
+		if (row < first || row >= nextRow)
+			throw new RowNotFoundException(sheet.getSheetName() + "!"
+					+ (row + 1) + " is not in the window of rows "
+					+ (first + 1) + "-" + nextRow);
+		// the window is small, walk it from the newest row
+		Iterator<WindowRow> it = rows.descendingIterator();
+		WindowRow r = it.next();
+		for (int i = nextRow - 1; i > row; i--)
+			r = it.next();
+		r.set(col, value, styleId);
+	}
+
+	/**
+	 * Writes out the rows left in the window and closes the sheet being
+	 * streamed, if any.
+	 */
+	public void endSheet() throws IOException {
+		if (sheet == null)
+			return;
+		while (!rows.isEmpty())
+			flushRow();
+		writer.write("</sheetData>");
+		writer.write("\r\n");
+		writeSheetSuffix(book, sheet, sheetId, hyperlinks);
+		hyperlinks.clear();
+		sheet = null;
+		sheetId = -1;
+	}
+
+	/**
+	 * Ends the sheet being streamed, writes the workbook's remaining parts
+	 * and closes the output.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		endSheet();
+		try {
+			writeOOXML(book);
+			finishOOXML(book);
+		} finally {
+			closed = true;
+			book.getWorkBook().setSharedupes(shareDupes);
+		}
+	}
+
+	/**
+	 * Sheets that were streamed have already been written.
+	 */
+	@Override
+	protected void writeSheetOOXML(WorkBookHandle bk, WorkSheetHandle ws, int id) throws IOException {
+		if (!streamed.get(id))
+			super.writeSheetOOXML(bk, ws, id);
+	}
+
+	private void flushRow() throws IOException {
+		int row = nextRow - rows.size();
+		WindowRow r = rows.removeFirst();
+		Object[] vals = r.values;
+		int[] styles = r.styles;
+		boolean started = false;
+		int n = Math.max(vals.length, styles.length);
+		for (int col = 0; col < n; col++) {
+			Object v = col < vals.length ? vals[col] : null;
+			int styleId = col < styles.length ? styles[col] : 0;
+			if (v == null && styleId <= 0)
+				continue;
+			if (!started) {
+				writer.write("<row r=\"" + (row + 1) + "\">");
+				writer.write("\r\n");
+				started = true;
+			}
+			writeCell(row, col, v, styleId);
+		}
+		if (started) {
+			writer.write("</row>");
+			writer.write("\r\n");
+		}
+	}
+
+	private void writeCell(int row, int col, Object v, int styleId) throws IOException {
+		writer.write("<c r=\"" + ExcelTools.formatLocation(new int[] { row, col }) + "\"");
+		if (styleId > 0)
+			writer.write(" s=\"" + styleId + "\"");
+		if (v instanceof Date || v instanceof Calendar) {
+			Calendar c;
+			if (v instanceof Date) {
+				c = (Calendar) DateConverter.getCalendar().clone();
+				c.setTime((Date) v);
+			} else
+				c = (Calendar) v;
+			v = Double.valueOf(DateConverter.getXLSDateVal(c,
+					book.getWorkBook().getDateFormat()));
+		}
+		if (v == null) {
+			writer.write(">");
+		} else if (v instanceof Number) {
+			double d = ((Number) v).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				writer.write(" t=\"e\"><v>#NUM!</v>");
+			else
+				writer.write(" t=\"n\"><v>" + v + "</v>");
+		} else if (v instanceof Boolean) {
+			writer.write(" t=\"b\"><v>" + (((Boolean) v).booleanValue() ? 1 : 0) + "</v>");
+		} else {
+			String s = v.toString();
+			if (s.startsWith("=") && s.length() > 1) {
+				writer.write("><f>" + stripNonAscii(s.substring(1)) + "</f>");
+			} else {
+				int isst = book.getWorkBook().getSharedStringTable().insertUnicodestring(s);
+				writer.write(" t=\"s\"><v>" + isst + "</v>");
+			}
+		}
+		writer.write("</c>");
+		writer.write("\r\n");
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("writer is closed");
+	}
+
+	private void checkSheet() {
+		checkOpen();
+		if (sheet == null)
+			throw new IllegalStateException("no sheet is being streamed; call startSheet first");
+	}
+
+	/**
+	 * The values and style ids of a row not yet written out.
+	 */
+	private static final class WindowRow {
+		Object[] values;
+		int[] styles;
+
+		WindowRow(Object[] values, int[] styles) {
+			this.values = values == null ? new Object[0] : values.clone();
+			this.styles = styles == null ? new int[0] : styles.clone();
+		}
+
+		void set(int col, Object value, int styleId) {
+			if (col >= values.length)
+				values = Arrays.copyOf(values, col + 1);
+			if (col >= styles.length)
+				styles = Arrays.copyOf(styles, col + 1);
+			values[col] = value;
+			styles[col] = styleId;
+		}
+	}
+}
@@ -80,6 +80,20 @@ public class OOXMLWriter extends OOXMLAdapter implements OOXMLConstants {
      * @throws IOException 
      */
      public  void getOOXML(WorkBookHandle bk, OutputStream out) throws IOException {
+         beginOOXML(bk, out);
+         // writeOOXML files to zip
+         writeOOXML(bk);
+         finishOOXML(bk);
+     }
+
+     /**
+      * resets the content lists and opens the zip and writer over the output
+      * 
+      * @param bk
+      * @param out       outputStream used by ZipOutputStream
+      * @throws IOException
+      */
+     protected  void beginOOXML(WorkBookHandle bk, OutputStream out) throws IOException {
          // clear out  ArrayLists ContentLists
          mainContentList= new ArrayList();       // main .rels
          wbContentList= new ArrayList();         // workbook.xml.rels
@@ -105,8 +119,16 @@ public class OOXMLWriter extends OOXMLAdapter implements OOXMLConstants {
              
          // retrive external directory used to store passthrough files
          externalDir= getTempDir(bk.getWorkBook().getFactory().getFileName());
-         // writeOOXML files to zip
-         writeOOXML(bk);
+         bk.getWorkBook().setDxfs(null); // rebuilt as sheets are written
+     }
+
+     /**
+      * writes the package-level parts and closes the zip
+      * 
+      * @param bk
+      * @throws IOException
+      */
+     protected  void finishOOXML(WorkBookHandle bk) throws IOException {
          // write main .rels file            
          writeRels(mainContentList, "_rels/.rels");      // TODO: if have doc properties, must add to .rels
          // write [Content_Types].xml
@@ -458,7 +480,6 @@ public class OOXMLWriter extends OOXMLAdapter implements OOXMLConstants {
          wbContentList.add(new String[] {"/xl/styles.xml", "styles"});           
          writeWorkBookOOXML(bk);             
          WorkSheetHandle wsh[]= bk.getWorkSheets();
-         bk.getWorkBook().setDxfs(null); // rebuild
          for(int i= 0; i < wsh.length; i++)
          {
            writeSheetOOXML(bk, wsh[i], i);
@@ -1118,7 +1139,20 @@ public class OOXMLWriter extends OOXMLAdapter implements OOXMLConstants {
          }       
          writer.write( "</sheetData>" );
          writer.write( "\r\n" );
-             
+         writeSheetSuffix(bk, sheet, id, hyperlinks);
+      }
+
+      /**
+       * Writes everything after the <sheetData> element of a worksheet and the
+       * sheet's .rels, closing the worksheet
+       * 
+       * @param bk
+       * @param sheet
+       * @param id
+       * @param hyperlinks   hyperlinks collected while writing the rows
+       * @throws IOException
+       */
+      protected void writeSheetSuffix(WorkBookHandle bk, WorkSheetHandle sheet, int id, ArrayList hyperlinks) throws IOException {
           // after sheetData include "supporting features"
           // *******************************************************************************************************
           // In Order:
@@ -67,9 +67,9 @@ public class PivotCache implements XLSConstants{
 			BlockByteReader bytes= child.getBlockReader();
 			int len= bytes.getLength();
 			for (int i = 0; i <= len - 4;) {
-				byte[] headerbytes = bytes.getHeaderBytes(i);
-				short opcode = ByteTools.readShort(headerbytes[0], headerbytes[1]);
-				int reclen = ByteTools.readShort(headerbytes[2], headerbytes[3]);
+				int header = bytes.getHeader(i);
+				short opcode = (short) header;
+				int reclen = (short) (header >> 16);
 				BiffRec rec = XLSRecordFactory.getBiffRecord( opcode );
 				if (wbh!=null) rec.setDebugLevel(wbh.getDebugLevel()); // KSC: added to propogate debug level
 				
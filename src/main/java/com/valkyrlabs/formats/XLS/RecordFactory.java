@@ -0,0 +1,46 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+/**
+ * Makes the record objects for one BIFF8 opcode.
+ * <p>
+ * Factories registered with {@link XLSRecordFactory#register(short, RecordFactory)}
+ * are looked up by opcode before the built-in record classes, so a record
+ * class may be replaced or an unknown opcode given a class of its own.
+ */
+public interface RecordFactory {
+
+	/**
+	 * Returns a new, uninitialized record.  The opcode is set on it by
+	 * {@link XLSRecordFactory#getBiffRecord(short)}.
+	 */
+	BiffRec newRecord();
+}
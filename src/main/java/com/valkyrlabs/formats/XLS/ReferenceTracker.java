@@ -23,6 +23,7 @@
 package com.valkyrlabs.formats.XLS;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.valkyrlabs.OpenXLS.*;
 import com.valkyrlabs.formats.XLS.charts.Ai;
@@ -48,34 +49,65 @@ import com.valkyrlabs.toolkit.Logger;
  * 
  *  All PtgRefs and Areas 
  *
+ *  The tracked references, names and formula bookkeeping are guarded by the
+ *  monitor of the workbook, which also guards parsing, so that formulas parsed
+ *  while another thread looks up references never take the two in different
+ *  orders.  The lookup and database caches are concurrent and need no lock.
  */
 public class ReferenceTracker {
     
+	// the workbook's monitor, see the class comment
+	private final Object lock;
 
 	// the sheets allow for faster refs
     // each sheet contains a collection of rows.
-	private Map sheetMap = new HashMap();
+	private final Map sheetMap = new HashMap();
 	// store ptgNames
-	private Map nameRefs = new HashMap();
+	private final Map nameRefs = new HashMap();
     
-	// Database calc caches
-    private Map criteriaDBs = new HashMap();
-    private Map CollectionDBs = new HashMap();
-    private Map vlookups = new HashMap();
-    private	Collection crs = new Vector();
+	// Database calc caches; concurrent for parallel recalc
+    private final ConcurrentHashMap<String, Object> criteriaDBs = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentHashMap<String, Object> CollectionDBs = new ConcurrentHashMap<String, Object>();
+    private final Collection crs = new Vector();
     
-    // VLOOKUPs and other lookups need to calc col ptgs
-	private Map lookupColsCache = new HashMap();
-    public Map getLookupColCache(){
-    	return lookupColsCache;
+    // VLOOKUPs and other lookups need to calc col ptgs; entries are dropped when one of their cells changes
+	private final LookupCache<Ptg[]> lookupColumns = new LookupCache<Ptg[]>();
+	// values of the rows and columns searched by lookups, dropped when one of their cells changes
+	private final LookupCache<LookupIndex> lookupIndexes = new LookupCache<LookupIndex>();
+
+	// dependency graph of all formulas; discarded upon any reference change
+	private CalculationGraph calcGraph = null;
+	// cells changed in CALCULATE_EXPLICIT mode, whose dependents are cleared upon the next recalc
+	private List pendingChanges = new ArrayList();
+	// set by the first reported cell change, see hasChangedCells()
+	private boolean cellsChanged = false;
+	// formulas read without parsing their expressions, whose references are not tracked yet
+	private List<Formula> deferredFormulas = new ArrayList<Formula>();
+
+    /**
+     * @param book	the workbook whose references are tracked, whose monitor
+     * 				guards them
+     */
+    ReferenceTracker(WorkBook book) {
+    	lock= book;
     }
-    
-    /** 
-     * 
-     * @return Returns the vlookups.
+
+    /**
+     * returns the cache of the column cell references of ranges searched by
+     * VLOOKUP and the other lookup functions
+     * @see PtgArea#getColComponents(int)
      */
-    public Map getVlookups() {
-        return vlookups;
+    public LookupCache<Ptg[]> getLookupColumnCache() {
+    	return lookupColumns;
+    }
+
+    /**
+     * returns the cache of the indexes of rows and columns searched by the
+     * lookup functions
+     * @see LookupIndex
+     */
+    public LookupCache<LookupIndex> getLookupIndexCache() {
+    	return lookupIndexes;
     }
 	
 
@@ -83,7 +115,7 @@ public class ReferenceTracker {
      * 
      * @return Returns the criteriaDBs.
      */
-    public Map getCriteriaDBs() {
+    public ConcurrentHashMap<String, Object> getCriteriaDBs() {
         return criteriaDBs;
     }
 
@@ -93,7 +125,7 @@ public class ReferenceTracker {
      * 
      * @return Returns the CollectionDBs.
      */
-    public Map getListDBs() {
+    public ConcurrentHashMap<String, Object> getListDBs() {
         return CollectionDBs;
     }
 
@@ -108,24 +140,68 @@ public class ReferenceTracker {
         // refPtgMap    =   new HashMap();
         
         // Databases
-        criteriaDBs = new HashMap();
-        CollectionDBs = new HashMap();
-        vlookups = new HashMap();
+        criteriaDBs.clear();
+        CollectionDBs.clear();
+        lookupColumns.clear();
+        lookupIndexes.clear();
     }
     
     /**
      * clear out VLOOKUP and related function caches 
      */
 		public void clearLookupCaches() {
-			lookupColsCache.clear();
-			lookupColsCache= new HashMap();
-			criteriaDBs.clear();
-	        criteriaDBs = new HashMap();
-	        CollectionDBs.clear();
-	        CollectionDBs = new HashMap();
-	        vlookups.clear();
-	        vlookups = new HashMap();
+			lookupColumns.clear();
+			lookupIndexes.clear();
+			clearDatabaseCaches();
 		}
+
+    /**
+     * clear out the DSUM and related database function caches, which are
+     * not dropped upon cell changes 
+     */
+    public void clearDatabaseCaches() {
+    	criteriaDBs.clear();
+    	CollectionDBs.clear();
+    }
+
+    /**
+     * returns the cached index of the cells searched by a lookup function 
+     * @param key	sheet and coordinates of the cells
+     * @return LookupIndex or null if none is cached
+     */
+    public LookupIndex getLookupIndex(LookupIndex.Key key) {
+    	return lookupIndexes.get(key);
+    }
+
+    /**
+     * caches the index of the cells searched by a lookup function until
+     * one of those cells changes 
+     * @param index	LookupIndex to cache
+     */
+    public void addLookupIndex(LookupIndex index) {
+    	lookupIndexes.put(index.getKey(), index);
+    }
+
+    /**
+     * discards the lookup cache entries which hold a changed cell
+     * @param changedRec	changed cell
+     */
+    public void clearLookupCaches(BiffRec changedRec) {
+    	Boundsheet sheet= changedRec.getSheet();
+    	int row= changedRec.getRowNumber();
+    	int col= changedRec.getColNumber();
+    	lookupColumns.remove(sheet, row, col);
+    	lookupIndexes.remove(sheet, row, col);
+    }
+
+    /**
+     * discards the lookup cache entries of all cells on a sheet, whose cells have moved
+     * @param sheet	sheet whose rows or columns were inserted or removed
+     */
+    public void clearLookupCaches(Boundsheet sheet) {
+    	lookupColumns.remove(sheet);
+    	lookupIndexes.remove(sheet);
+    }
 	    
     /**
      * Returns ALL formulas on the cellhandles sheet that reference this CellHandle.
@@ -144,16 +220,18 @@ public class ReferenceTracker {
      * 
      * @return Collection of of calculated cells
      */
-    public synchronized Map clearAffectedFormulaCellsOnSheet(CellHandle cx, String sheetname){
-        HashMap hm = (HashMap)clearAffectedFormulaCells(cx);
-        HashMap retmap = new HashMap();
-        Iterator i = hm.keySet().iterator();
-        while(i.hasNext()) {
-            String s= (String)i.next();
-            if(s.indexOf(sheetname)>-1)
-            	retmap.put(s, hm.get(s));
-        }
-        return retmap;
+    public Map clearAffectedFormulaCellsOnSheet(CellHandle cx, String sheetname){
+    	synchronized (lock) {
+	        HashMap hm = (HashMap)clearAffectedFormulaCells(cx);
+	        HashMap retmap = new HashMap();
+	        Iterator i = hm.keySet().iterator();
+	        while(i.hasNext()) {
+	            String s= (String)i.next();
+	            if(s.indexOf(sheetname)>-1)
+	            	retmap.put(s, hm.get(s));
+	        }
+	        return retmap;
+    	}
     }
     
     
@@ -172,8 +250,10 @@ public class ReferenceTracker {
      *  
      * @return Map of calculated cells
      */
-	 public synchronized Map clearAffectedFormulaCells(CellHandle cx) {
-        return clearAffectedFormulaCells(cx.getCell(), new HashMap());
+	 public Map clearAffectedFormulaCells(CellHandle cx) {
+    	synchronized (lock) {
+	        return clearAffectedFormulaCells(cx.getCell(), new HashMap());
+    	}
     }
 	 
 		/**
@@ -191,8 +271,10 @@ public class ReferenceTracker {
 	     *  
 	     * @return Map of calculated cells
 	     */
-		 public synchronized Map clearAffectedFormulaCells(BiffRec cx) {
-	        return clearAffectedFormulaCells(cx, new HashMap());
+		 public Map clearAffectedFormulaCells(BiffRec cx) {
+	    	synchronized (lock) {
+		        return clearAffectedFormulaCells(cx, new HashMap());
+	    	}
 	    }
 	 
 	/**
@@ -208,95 +290,253 @@ public class ReferenceTracker {
      * 
      * @return Collection of of calculated cells
      */
-     private synchronized Map clearAffectedFormulaCells(BiffRec changedRec, Map affectedCellHandles) {
+     private Map clearAffectedFormulaCells(BiffRec changedRec, Map affectedCellHandles) {
+     	synchronized (lock) {
 
-    	 if(affectedCellHandles==null)
-            affectedCellHandles = new HashMap();     
+	    	 cellsChanged= true;
+	    	 clearLookupCaches(changedRec);
+	    	 parseDeferredFormulas();
+	    	 if(affectedCellHandles==null)
+	            affectedCellHandles = new HashMap();     
 
-        String newRecSheetName = changedRec.getSheet().getSheetName();
-        // get ref collection for the sheet
-        TrackedPtgs ptgRefs= (TrackedPtgs)sheetMap.get(GenericPtg.qualifySheetname(newRecSheetName));	// now tracked ptgs are stored per sheet        
-        if (ptgRefs==null) return affectedCellHandles;
-        Iterator parents= ptgRefs.getParents(changedRec);	// finds ALL parents affected by cell newRec
-        while(parents.hasNext()) {
-            BiffRec br = (BiffRec) parents.next();
-            short op= br.getOpcode();
-            if(op == XLSRecord.NAME){
-                  String theName = ((Name)br).getNameA();
-                  if (nameRefs.containsKey(theName)){
-                      // add all formulas that refer
-                      ArrayList list = (ArrayList)(nameRefs.get(theName)); // gets the ptgname
-                      for (int i=0;i<list.size();i++) {
-                          BiffRec ptgParent = ((Ptg)list.get(i)).getParentRec();
-                          if (ptgParent.getOpcode()==XLSConstants.NAME)
-                        	  continue; // a Named Range referencing another named range ... will be caught later
-  	                      String adr = ptgParent.getSheet().getSheetName()+"!" +ptgParent.getCellAddress();
-  	                      if(affectedCellHandles.get(adr)==null) {
-  	                    	  ReferenceTracker.addRec(ptgParent, affectedCellHandles);
-  	                    	  affectedCellHandles = (HashMap) clearAffectedFormulaCells(ptgParent,affectedCellHandles); // recurse parent formula and get cells it affects
-  	                      }                         
-                      }
-                  }
-            } else if (op==XLSConstants.CONDFMT ||
-            		op==XLSConstants.AI) {	// ignore since these records are not themselves referenced
-            } else if (op==XLSConstants.SHRFMLA) {	 // Shared Formula references are now reference-tracked; to find specific formula affected, use Shrfmla.getAffected
-            	Shrfmla sh= (Shrfmla) br;
-            	Formula f= sh.getAffected(changedRec);
-            	if (f!=null) {
-                    String adr = f.getSheet().getSheetName()+"!" +f.getCellAddress();
-                    if(!affectedCellHandles.containsKey(adr)) {
-                        ReferenceTracker.addRec(f, affectedCellHandles);
-                        affectedCellHandles = (HashMap) clearAffectedFormulaCells(f,affectedCellHandles);	// recurse parent formula and get cells it affects
-                    }
-            	}
-            } else {  // regular Formula
-            	if (br.getSheet()!=null) {
-                    String adr = br.getSheet().getSheetName()+"!" +br.getCellAddress();
-                    if(!affectedCellHandles.containsKey(adr)) {
-                        ReferenceTracker.addRec(br, affectedCellHandles);
-                    	affectedCellHandles = (HashMap) clearAffectedFormulaCells(br,affectedCellHandles);	// recurse parent formula and get cells it affects
-                    }
-            	} // ignore no sheet                 	
-            }
-    }
-    return affectedCellHandles;
+	        String newRecSheetName = changedRec.getSheet().getSheetName();
+	        // get ref collection for the sheet
+	        TrackedPtgs ptgRefs= (TrackedPtgs)sheetMap.get(GenericPtg.qualifySheetname(newRecSheetName));	// now tracked ptgs are stored per sheet        
+	        if (ptgRefs==null) return affectedCellHandles;
+	        Iterator parents= ptgRefs.getParents(changedRec);	// finds ALL parents affected by cell newRec
+	        while(parents.hasNext()) {
+	            BiffRec br = (BiffRec) parents.next();
+	            short op= br.getOpcode();
+	            if(op == XLSRecord.NAME){
+	                  String theName = ((Name)br).getNameA();
+	                  if (nameRefs.containsKey(theName)){
+	                      // add all formulas that refer
+	                      ArrayList list = (ArrayList)(nameRefs.get(theName)); // gets the ptgname
+	                      for (int i=0;i<list.size();i++) {
+	                          BiffRec ptgParent = ((Ptg)list.get(i)).getParentRec();
+	                          if (ptgParent.getOpcode()==XLSConstants.NAME)
+	                        	  continue; // a Named Range referencing another named range ... will be caught later
+	  	                      String adr = ptgParent.getSheet().getSheetName()+"!" +ptgParent.getCellAddress();
+	  	                      if(affectedCellHandles.get(adr)==null) {
+	  	                    	  ReferenceTracker.addRec(ptgParent, affectedCellHandles);
+	  	                    	  affectedCellHandles = (HashMap) clearAffectedFormulaCells(ptgParent,affectedCellHandles); // recurse parent formula and get cells it affects
+	  	                      }                         
+	                      }
+	                  }
+	            } else if (op==XLSConstants.CONDFMT ||
+	            		op==XLSConstants.AI) {	// ignore since these records are not themselves referenced
+	            } else if (op==XLSConstants.SHRFMLA) {	 // Shared Formula references are now reference-tracked; to find specific formulas affected, use Shrfmla.getAffectedMembers
+	            	List<Formula> members= ((Shrfmla) br).getAffectedMembers(changedRec);
+	            	for (int i= 0; i < members.size(); i++) {
+	            		Formula f= members.get(i);
+	                    String adr = f.getSheet().getSheetName()+"!" +f.getCellAddress();
+	                    if(!affectedCellHandles.containsKey(adr)) {
+	                        ReferenceTracker.addRec(f, affectedCellHandles);
+	                        affectedCellHandles = (HashMap) clearAffectedFormulaCells(f,affectedCellHandles);	// recurse parent formula and get cells it affects
+	                    }
+	            	}
+	            } else if (op==XLSConstants.ARRAY) {	// all the formulas of the array range share its result
+	            	List<Formula> members= ((Array) br).getMembers();
+	            	for (int i= 0; i < members.size(); i++) {
+	            		Formula f= members.get(i);
+	                    String adr = f.getSheet().getSheetName()+"!" +f.getCellAddress();
+	                    if(!affectedCellHandles.containsKey(adr)) {
+	                        ReferenceTracker.addRec(f, affectedCellHandles);
+	                        affectedCellHandles = (HashMap) clearAffectedFormulaCells(f,affectedCellHandles);	// recurse parent formula and get cells it affects
+	                    }
+	            	}
+	            } else {  // regular Formula
+	            	if (br.getSheet()!=null) {
+	                    String adr = br.getSheet().getSheetName()+"!" +br.getCellAddress();
+	                    if(!affectedCellHandles.containsKey(adr)) {
+	                        ReferenceTracker.addRec(br, affectedCellHandles);
+	                    	affectedCellHandles = (HashMap) clearAffectedFormulaCells(br,affectedCellHandles);	// recurse parent formula and get cells it affects
+	                    }
+	            	} // ignore no sheet                 	
+	            }
+	    }
+	    return affectedCellHandles;
+     	}
+     }
+
+     /**
+      * Returns the formulas which directly reference the cell changedRec.
+      * Named range references are resolved to the formulas using the name and
+      * shared formula references to their member formulas.
+      * 
+      * Unlike clearAffectedFormulaCells this does not recurse and does not clear 
+      * any cached values; it is used to build the CalculationGraph 
+      * @param changedRec cell to lookup references
+      * @return list of distinct formulas which reference changedRec
+      */
+     List<Formula> getDependentFormulas(BiffRec changedRec) {
+     	synchronized (lock) {
+	    	 ArrayList<Formula> ret= new ArrayList<Formula>();
+	    	 parseDeferredFormulas();
+	    	 if (changedRec.getSheet()==null) return ret;
+	    	 TrackedPtgs ptgRefs= (TrackedPtgs)sheetMap.get(GenericPtg.qualifySheetname(changedRec.getSheet().getSheetName()));
+	    	 if (ptgRefs==null) return ret;
+	    	 IdentityHashMap<Formula, Formula> found= new IdentityHashMap<Formula, Formula>();
+	    	 Iterator parents= ptgRefs.getParents(changedRec);
+	    	 while(parents.hasNext()) {
+	    		 BiffRec br = (BiffRec) parents.next();
+	    		 short op= br.getOpcode();
+	    		 if (op==XLSConstants.NAME) {
+	    			 ArrayList list = (ArrayList) nameRefs.get(((Name)br).getNameA());
+	    			 if (list==null) continue;
+	    			 for (int i=0;i<list.size();i++) {
+	    				 BiffRec ptgParent = ((Ptg)list.get(i)).getParentRec();
+	    				 if (ptgParent instanceof Formula)
+	    					 found.put((Formula)ptgParent, (Formula)ptgParent);
+	    			 }
+	    		 } else if (op==XLSConstants.SHRFMLA) {	// only the members whose relative references reach the cell
+	    			 List<Formula> members= ((Shrfmla) br).getAffectedMembers(changedRec);
+	    			 for (int i= 0; i < members.size(); i++)
+	    				 found.put(members.get(i), members.get(i));
+	    		 } else if (op==XLSConstants.ARRAY) {	// all the formulas of the array range
+	    			 List<Formula> members= ((Array) br).getMembers();
+	    			 for (int i= 0; i < members.size(); i++)
+	    				 found.put(members.get(i), members.get(i));
+	    		 } else if (br instanceof Formula && br.getSheet()!=null) {
+	    			 found.put((Formula)br, (Formula)br);
+	    		 }	// CONDFMT, AI: not themselves referenced
+	    	 }
+	    	 ret.addAll(found.keySet());
+	    	 return ret;
+     	}
+     }
+     
+     /**
+      * records a cell changed in CALCULATE_EXPLICIT mode, in which cached formula values
+      * are kept; the formulas affected by the change are cleared upon the next recalc
+      * @param changedRec	changed cell
+      */
+     public void addPendingChange(BiffRec changedRec) {
+     	synchronized (lock) {
+	    	 cellsChanged= true;
+	    	 clearLookupCaches(changedRec);
+	    	 pendingChanges.add(changedRec);
+     	}
      }
 
+     /**
+      * returns true once a cell change has been reported to this tracker;
+      * cell records parsed after that may hold outdated formula results
+      * @see Boundsheet#ensureCellsLoaded()
+      */
+     public boolean hasChangedCells() {
+     	synchronized (lock) {
+	    	 return cellsChanged;
+     	}
+     }
+     
+     /**
+      * clears the cached values of all formulas affected by pending changes
+      * @see #addPendingChange(BiffRec)
+      */
+     public void clearPendingChanges() {
+     	synchronized (lock) {
+	    	 Map affected= new HashMap();
+	    	 for (int i= 0; i < pendingChanges.size(); i++)
+	    		 clearAffectedFormulaCells((BiffRec) pendingChanges.get(i), affected);
+	    	 pendingChanges.clear();
+     	}
+     }
+     
+     /**
+      * returns the dependency graph of all formulas in the workbook, building it if necessary
+      * <br>The graph is discarded whenever a tracked reference changes
+      * @param book	the WorkBook this ReferenceTracker belongs to
+      * @return CalculationGraph
+      */
+     public CalculationGraph getCalculationGraph(WorkBook book) {
+     	synchronized (lock) {
+	    	 parseDeferredFormulas();
+	    	 if (calcGraph==null)
+	    		 calcGraph= new CalculationGraph(book);
+	    	 return calcGraph;
+     	}
+     }
+     
+     /**
+      * records a formula whose expression is left unparsed until first use;
+      * its references are tracked once it is parsed
+      * @see WorkBook#setLazyFormulaParsing(boolean)
+      */
+     void addDeferredFormula(Formula f) {
+     	synchronized (lock) {
+	    	 deferredFormulas.add(f);
+     	}
+     }
+     
+     /**
+      * parses the expressions of all formulas read without them, so that 
+      * their references are tracked, then registers their INDIRECT references
+      * <br>Called before any lookup of the formulas referencing a cell
+      */
+     public void parseDeferredFormulas() {
+     	synchronized (lock) {
+	    	 if (deferredFormulas.isEmpty())
+	    		 return;
+	    	 List<Formula> fmlas= deferredFormulas;
+	    	 deferredFormulas= new ArrayList<Formula>();
+	    	 for (int i= 0; i < fmlas.size(); i++)
+	    		 fmlas.get(i).parseDeferredExpression();
+	    	 WorkBook book= fmlas.get(0).getWorkBook();
+	    	 if (book!=null)
+	    		 book.initializeIndirectFormulas();
+     	}
+     }
+     
+     /**
+      * discard the formula dependency graph so that it is rebuilt upon next use
+      */
+     public void invalidateCalculationGraph() {
+     	synchronized (lock) {
+	    	 calcGraph= null;
+     	}
+     }
+     
      /**
       * retrieve all chart-related (==Ai) references to the particular cell 
       * @param newRec	cell to lookup references
       * @return list of Ai records that reference cell
       */
      public List<Ai> getChartReferences(BiffRec newRec) {
-         String newRecSheetName = newRec.getSheet().getSheetName();
-         ArrayList<Ai> ret= new ArrayList();
-         // get ref collection for the sheet
-         TrackedPtgs ptgRefs= (TrackedPtgs)sheetMap.get(GenericPtg.qualifySheetname(newRecSheetName));	// now tracked ptgs are stored per sheet
-         if (ptgRefs==null) return ret;
-         Iterator parents= ptgRefs.getParents(newRec);	// finds ALL parents affected by cell newRec
-         while(parents.hasNext()) {
-             BiffRec br = (BiffRec) parents.next();
-             short op= br.getOpcode();
-             if (op==XLSConstants.AI)  
-            	 ret.add((Ai) br);
-         }
-         return ret;
+     	synchronized (lock) {
+	         String newRecSheetName = newRec.getSheet().getSheetName();
+	         ArrayList<Ai> ret= new ArrayList();
+	         // get ref collection for the sheet
+	         TrackedPtgs ptgRefs= (TrackedPtgs)sheetMap.get(GenericPtg.qualifySheetname(newRecSheetName));	// now tracked ptgs are stored per sheet
+	         if (ptgRefs==null) return ret;
+	         Iterator parents= ptgRefs.getParents(newRec);	// finds ALL parents affected by cell newRec
+	         while(parents.hasNext()) {
+	             BiffRec br = (BiffRec) parents.next();
+	             short op= br.getOpcode();
+	             if (op==XLSConstants.AI)  
+	            	 ret.add((Ai) br);
+	         }
+	         return ret;
+     	}
      }
      
      /**
       * Add to the collection of PtgNames for referenceTracker
       */
     public void addPtgNameReference(PtgName p) {
-        String name = p.getTextString().toUpperCase(); // case-insensitive
-        Object refs = nameRefs.get(name);	
-        if(refs==null) {
-            refs = new ArrayList();
-            ((ArrayList)refs).add(p);
-            nameRefs.put(name, refs);
-        }else {		
-            ArrayList ptgNames = (ArrayList) refs;
-            if (!ptgNames.contains(p))ptgNames.add(p);
-        }
+    	synchronized (lock) {
+	        String name = p.getTextString().toUpperCase(); // case-insensitive
+	        Object refs = nameRefs.get(name);	
+	        if(refs==null) {
+	            refs = new ArrayList();
+	            ((ArrayList)refs).add(p);
+	            nameRefs.put(name, refs);
+	        }else {		
+	            ArrayList ptgNames = (ArrayList) refs;
+	            if (!ptgNames.contains(p))ptgNames.add(p);
+	        }
+	        calcGraph= null;
+    	}
     }
      
     /** 
@@ -311,7 +551,10 @@ public class ReferenceTracker {
     		// formula vals pointing to it, but do not recalc them
           // yes get rid of them all...
             try {
-                ((Formula)celly).clearCachedValue();
+                if (celly instanceof Array)
+                    ((Array)celly).clearCachedValue();
+                else
+                    ((Formula)celly).clearCachedValue();
             }catch(ClassCastException e) {};
     }
     
@@ -326,41 +569,45 @@ public class ReferenceTracker {
      * @return
      */
     public Ptg addCellRange(Ptg ptgRef) {    	
-    	// system setting to disable ref tracking...
-    	String trackprop = System.getProperty(WorkBookHandle.REFTRACK_PROP);
-    	if(trackprop != null)
-    		if(trackprop.equals("false"))
-    			return ptgRef;
+    	synchronized (lock) {
+	    	// system setting to disable ref tracking...
+	    	String trackprop = System.getProperty(WorkBookHandle.REFTRACK_PROP);
+	    	if(trackprop != null)
+	    		if(trackprop.equals("false"))
+	    			return ptgRef;
     	
-        if(!(ptgRef instanceof PtgRef))
-            return ptgRef;
-        if (ptgRef instanceof PtgAreaErr3d || ptgRef instanceof PtgRefErr3d || ptgRef instanceof PtgRefErr)
-        	return ptgRef;
+	        if(!(ptgRef instanceof PtgRef))
+	            return ptgRef;
+	        if (ptgRef instanceof PtgAreaErr3d || ptgRef instanceof PtgRefErr3d || ptgRef instanceof PtgRefErr)
+	        	return ptgRef;
         
-        String sheetname = "";        try {
-            try{
-	            sheetname = ((PtgRef)ptgRef).getSheetName();
-	            sheetname = GenericPtg.qualifySheetname(sheetname);
-            }catch(Exception ex){
-                sheetname = "WorkBookRanges";
-            }
-            // fast fail erroneous Sheet refs
-            if(sheetname.equals("#REF!")){
-            	return ptgRef;
-            }
+	        String sheetname = "";        try {
+	            try{
+		            sheetname = ((PtgRef)ptgRef).getSheetName();
+		            sheetname = GenericPtg.qualifySheetname(sheetname);
+	            }catch(Exception ex){
+	                sheetname = "WorkBookRanges";
+	            }
+	            // fast fail erroneous Sheet refs
+	            if(sheetname.equals("#REF!")){
+	            	return ptgRef;
+	            }
             
-            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname); // now tracked ptgs are stored per sheet not per row
-            if (ptgs==null) {
-            	ptgs= new TrackedPtgs(new LocationComparer());
-            	sheetMap.put(sheetname, ptgs);
-            }
-        	if(!ptgs.contains(ptgRef)) 	            	// **no duplicates allowed** (matches on location+parent rec) 
-                ptgs.add(ptgRef);
-        } catch (Exception e) {
-        }
-    	return ptgRef;
+	            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname); // now tracked ptgs are stored per sheet not per row
+	            if (ptgs==null) {
+	            	ptgs= new TrackedPtgs(new LocationComparer());
+	            	sheetMap.put(sheetname, ptgs);
+	            }
+	        	if(!ptgs.contains(ptgRef)) {	            	// **no duplicates allowed** (matches on location+parent rec) 
+	                ptgs.add(ptgRef);
+	                calcGraph= null;
+	        	}
+	        } catch (Exception e) {
+	        }
+	    	return ptgRef;
             
             
+    	}
     }
     /**
      * Clears out the cached location of ptgrefs in the target
@@ -371,20 +618,22 @@ public class ReferenceTracker {
      * @param targetSheet
      */
     public void clearPtgLocationCaches(String targetSheet) {
-        try {
-            targetSheet = GenericPtg.qualifySheetname(targetSheet);
-            Iterator ptgs= ((TrackedPtgs)sheetMap.get(targetSheet)).values().iterator();
-//            Iterator ptgs= ((TrackedPtgs) sheetMap.get(targetSheet)).iterator();
-            while (ptgs.hasNext()) {
-                try{
-                    PtgRef p = (PtgRef)ptgs.next();
-                    p.clearLocationCache();
-                } catch (Exception ex) {
-                }
-            }
-        } catch (Exception e) {
+    	synchronized (lock) {
+	        try {
+	            targetSheet = GenericPtg.qualifySheetname(targetSheet);
+	            Iterator ptgs= ((TrackedPtgs)sheetMap.get(targetSheet)).values().iterator();
+	//            Iterator ptgs= ((TrackedPtgs) sheetMap.get(targetSheet)).iterator();
+	            while (ptgs.hasNext()) {
+	                try{
+	                    PtgRef p = (PtgRef)ptgs.next();
+	                    p.clearLocationCache();
+	                } catch (Exception ex) {
+	                }
+	            }
+	        } catch (Exception e) {
             
-        }
+	        }
+    	}
     }
 
     /** removes a cellrange Ptg (Area, Area3d etc.) to be tracked
@@ -392,25 +641,28 @@ public class ReferenceTracker {
      * @param cr
      */
     public void removeCellRange(Ptg cr) {
-    	if(!(cr instanceof PtgRef)){
-    		return;
+    	synchronized (lock) {
+	    	if(!(cr instanceof PtgRef)){
+	    		return;
+	    	}
+	        try{
+	        	String sheetname = "";
+	    		try{
+	    			sheetname = ((PtgRef)cr).getSheetName();
+	    			sheetname = GenericPtg.qualifySheetname(sheetname);
+	    		}catch(Exception ex){
+	    			sheetname = "WorkBookRanges";
+	    		}
+	            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname);
+	            if (ptgs!=null) {
+	            	ptgs.remove(cr);
+	            	calcGraph= null;
+	            }
+	        } catch (Exception e) {
+	           // this is common and not a problem normally - then we won't report a warning
+	        	//Logger.logWarn("ReferenceTracker.removeCellRange failed for: " + cr.toString() +":"+ e);
+	        }
     	}
-        try{
-        	String sheetname = "";
-    		try{
-    			sheetname = ((PtgRef)cr).getSheetName();
-    			sheetname = GenericPtg.qualifySheetname(sheetname);
-    		}catch(Exception ex){
-    			sheetname = "WorkBookRanges";
-    		}
-            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname);
-            if (ptgs!=null) {
-            	ptgs.remove(cr);
-            }
-        } catch (Exception e) {
-           // this is common and not a problem normally - then we won't report a warning
-        	//Logger.logWarn("ReferenceTracker.removeCellRange failed for: " + cr.toString() +":"+ e);
-        }
     }
     
     /** updates the tracked ptg by using a new parent record
@@ -419,25 +671,28 @@ public class ReferenceTracker {
      * @param parent  new parent record of ptg
      */
     public void updateInRefTracker(PtgRef pr, XLSRecord parent) {
-    	if (pr instanceof PtgRefErr || pr instanceof PtgRefErr3d)
-    		return; 
-        try{
-        	String sheetname = "";
-    		try{
-    			sheetname = ((PtgRef)pr).getSheetName();
-    			sheetname = GenericPtg.qualifySheetname(sheetname);
-    		}catch(Exception ex){
-    			sheetname = "WorkBookRanges";
-    		}
+    	synchronized (lock) {
+	    	if (pr instanceof PtgRefErr || pr instanceof PtgRefErr3d)
+	    		return; 
+	        try{
+	        	String sheetname = "";
+	    		try{
+	    			sheetname = ((PtgRef)pr).getSheetName();
+	    			sheetname = GenericPtg.qualifySheetname(sheetname);
+	    		}catch(Exception ex){
+	    			sheetname = "WorkBookRanges";
+	    		}
             
-            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname);
-            if (ptgs!=null) {
-            	ptgs.update(pr, parent);
-            }            	
-        } catch (Exception e) {
-           // this is common and not a problem normally - then we won't report a warning
-        	//Logger.logWarn("ReferenceTracker.removeCellRange failed for: " + cr.toString() +":"+ e);
-        }
+	            TrackedPtgs ptgs= (TrackedPtgs)sheetMap.get(sheetname);
+	            if (ptgs!=null) {
+	            	ptgs.update(pr, parent);
+	            	calcGraph= null;
+	            }            	
+	        } catch (Exception e) {
+	           // this is common and not a problem normally - then we won't report a warning
+	        	//Logger.logWarn("ReferenceTracker.removeCellRange failed for: " + cr.toString() +":"+ e);
+	        }
+    	}
     }
 
 	    
@@ -456,8 +711,11 @@ public class ReferenceTracker {
 	 *	@return all existing Cell Range references used in Formulas, Charts, and Names
 	 */
 	public CellRange[] getCellRanges(){
-		CellRange[] ret = new CellRange[this.crs.size()];
-		return (CellRange[]) crs.toArray(ret);
+		synchronized (lock) {
+			parseDeferredFormulas();
+			CellRange[] ret = new CellRange[this.crs.size()];
+			return (CellRange[]) crs.toArray(ret);
+		}
 	}
 
 
@@ -477,89 +735,94 @@ public class ReferenceTracker {
 	 */
 		
 	public static void updateReferences(int start, int shiftamount, Boundsheet thissheet, boolean shiftRow){
-		// shift is 0-based, so that references to row shiftrow-1 and up are shifted
-		// claritas is different, 1-based + shifts shiftrow+1 hence shiftInclusive setting
-		// NOTE: shared formula references are the only ones that are NOT shifted via
-		// updateReferences since PtgRefN and PtgAreaN's are NOT included in the
-		// referenceTracker collection
-		boolean shiftInclusive= thissheet.isShiftInclusive();	// claritas-specific setting which directs us to expand ranges rather than shift when start of range==start
-		boolean isExcel2008= thissheet.getWorkBook().getIsExcel2007();	// limits are different between BIFF8 and Excel 2007
-		if (shiftInclusive) start++;	// make 1-based
+		synchronized (thissheet.getWorkBook()) {
+			// shift is 0-based, so that references to row shiftrow-1 and up are shifted
+			// claritas is different, 1-based + shifts shiftrow+1 hence shiftInclusive setting
+			// NOTE: shared formula references are the only ones that are NOT shifted via
+			// updateReferences since PtgRefN and PtgAreaN's are NOT included in the
+			// referenceTracker collection
+			thissheet.getWorkBook().loadDeferredCells();	// formulas on every sheet may refer to the shifted cells
+			thissheet.getWorkBook().getRefTracker().parseDeferredFormulas();
+			thissheet.getWorkBook().getRefTracker().clearLookupCaches(thissheet);	// indexed cells have moved
+			boolean shiftInclusive= thissheet.isShiftInclusive();	// claritas-specific setting which directs us to expand ranges rather than shift when start of range==start
+			boolean isExcel2008= thissheet.getWorkBook().getIsExcel2007();	// limits are different between BIFF8 and Excel 2007
+			if (shiftInclusive) start++;	// make 1-based
  				
-		HashSet updated= new HashSet(); // tracks which Ptgs have been already updated
+			HashSet updated= new HashSet(); // tracks which Ptgs have been already updated
 		
-		String sheetname= GenericPtg.qualifySheetname(thissheet.getSheetName());		
-		TrackedPtgs trackedptgs= (TrackedPtgs) thissheet.getWorkBook().getRefTracker().sheetMap.get(sheetname);
-		if (trackedptgs==null || trackedptgs.size()==0) return;
-		Object[] ptgs= null;
+			String sheetname= GenericPtg.qualifySheetname(thissheet.getSheetName());		
+			TrackedPtgs trackedptgs= (TrackedPtgs) thissheet.getWorkBook().getRefTracker().sheetMap.get(sheetname);
+			if (trackedptgs==null || trackedptgs.size()==0) return;
+			Object[] ptgs= null;
 		
-		ptgs= trackedptgs.toArray();
+			ptgs= trackedptgs.toArray();
 			
-		int i= (shiftamount>0?ptgs.length-1:0);
-		int end= (shiftamount>0?0:ptgs.length);
-		int inc= (shiftamount>0?-1:+1);
-		boolean done= false;
-		while (!done) {		
-			Ptg p= (Ptg) ptgs[i];
-			// skip these
-			if (p instanceof PtgRefErr || p instanceof PtgRefErr3d)  // these shouldn't be in the reference tracker ...
-				continue;
+			int i= (shiftamount>0?ptgs.length-1:0);
+			int end= (shiftamount>0?0:ptgs.length);
+			int inc= (shiftamount>0?-1:+1);
+			boolean done= false;
+			while (!done) {		
+				Ptg p= (Ptg) ptgs[i];
+				// skip these
+				if (p instanceof PtgRefErr || p instanceof PtgRefErr3d)  // these shouldn't be in the reference tracker ...
+					continue;
 				
-			PtgRef pr= (PtgRef) p;
-            if (!updated.contains(pr)) {
-				String sht;
-				try {
-					sht= pr.getSheetName();
-				} catch (Exception e) {	// shouldn't happen
-                	Logger.logErr("ReferenceTracker.updateReferences:  Error in Formula Reference Location: " + e.toString());
-                	continue;	  
-				}
-				sht= GenericPtg.qualifySheetname(sht);
-				if (sheetname.equals(sht)) {						
-					if (shiftPtg(pr, sht, start, shiftamount, isExcel2008, shiftRow)) {
-						updated.add(pr);		// record which has already been updated to avoid incorrect expansion or movement
+				PtgRef pr= (PtgRef) p;
+	            if (!updated.contains(pr)) {
+					String sht;
+					try {
+						sht= pr.getSheetName();
+					} catch (Exception e) {	// shouldn't happen
+	                	Logger.logErr("ReferenceTracker.updateReferences:  Error in Formula Reference Location: " + e.toString());
+	                	continue;	  
 					}
-				}		            
-            } 
-            i+=inc;
-            if (shiftamount>0)
-            	done= (i<0);
-            else
-            	done= (i==ptgs.length);
-        }
-		// also update merged ranges which fall within range
-        if (thissheet.hasMergedCells()) {
-            // update mergedcells first, as they may grow in record size and are not handled by continues.        
-            Iterator itx = thissheet.getMergedCellsRecs().iterator();
-            while(itx.hasNext()){
-                Mergedcells mrg = (Mergedcells)itx.next();
-                CellRange[] rngs= mrg.getMergedRanges();
-        		for(int j= 0; j < rngs.length; j++) {
-        			try {
-        				int[] rc= rngs[j].getRangeCoords();
-        				rc[0]--; rc[2]--;	// 1-based ...?
-        				boolean isRange= (rc.length>2);
-        				boolean bUpdated= false;
-        		        if(shiftRow) {	
-        					if (rc[0]>=start) {	// shift
-        						rc[0]+=shiftamount;
-        						if (isRange)
-        							rc[2]+=shiftamount;
-        						bUpdated= true;
-        					} else if (isRange && rc[2]>=start) { // expand
-        						rc[2]+=shiftamount;
-        						bUpdated= true;
-        					}
-        		        }    
-        		        if (bUpdated) {
-        		        	String newrange= thissheet + "!" + ExcelTools.formatLocation(rc);
-        		        	rngs[j].setRange(newrange);
-        		        }
-        			} catch (CellNotFoundException e) {        				
-        			}
-        		}
-            }
-        }
+					sht= GenericPtg.qualifySheetname(sht);
+					if (sheetname.equals(sht)) {						
+						if (shiftPtg(pr, sht, start, shiftamount, isExcel2008, shiftRow)) {
+							updated.add(pr);		// record which has already been updated to avoid incorrect expansion or movement
+						}
+					}		            
+	            } 
+	            i+=inc;
+	            if (shiftamount>0)
+	            	done= (i<0);
+	            else
+	            	done= (i==ptgs.length);
+	        }
+			// also update merged ranges which fall within range
+	        if (thissheet.hasMergedCells()) {
+	            // update mergedcells first, as they may grow in record size and are not handled by continues.        
+	            Iterator itx = thissheet.getMergedCellsRecs().iterator();
+	            while(itx.hasNext()){
+	                Mergedcells mrg = (Mergedcells)itx.next();
+	                CellRange[] rngs= mrg.getMergedRanges();
+	        		for(int j= 0; j < rngs.length; j++) {
+	        			try {
+	        				int[] rc= rngs[j].getRangeCoords();
+	        				rc[0]--; rc[2]--;	// 1-based ...?
+	        				boolean isRange= (rc.length>2);
+	        				boolean bUpdated= false;
+	        		        if(shiftRow) {	
+	        					if (rc[0]>=start) {	// shift
+	        						rc[0]+=shiftamount;
+	        						if (isRange)
+	        							rc[2]+=shiftamount;
+	        						bUpdated= true;
+	        					} else if (isRange && rc[2]>=start) { // expand
+	        						rc[2]+=shiftamount;
+	        						bUpdated= true;
+	        					}
+	        		        }    
+	        		        if (bUpdated) {
+	        		        	String newrange= thissheet + "!" + ExcelTools.formatLocation(rc);
+	        		        	rngs[j].setRange(newrange);
+	        		        }
+	        			} catch (CellNotFoundException e) {        				
+	        			}
+	        		}
+	            }
+	        }
+		}
 	}
 
 
@@ -809,21 +1072,18 @@ public class ReferenceTracker {
      * clear out object references in prep for closing workbook
      */
 	public void close() {
-		this.sheetMap.clear();
-		this.nameRefs.clear();
-		this.criteriaDBs.clear();
-		this.CollectionDBs.clear();
-		this.vlookups.clear();
-		this.crs.clear();
-		this.lookupColsCache.clear();
-		sheetMap = new HashMap();
-		nameRefs = new HashMap();
-		// Database calc caches
-	    criteriaDBs = new HashMap();
-	    CollectionDBs = new HashMap();
-	    vlookups = new HashMap();
-	    crs = new Vector();	    
-		lookupColsCache = new HashMap();
+		synchronized (lock) {
+			this.sheetMap.clear();
+			this.nameRefs.clear();
+			this.criteriaDBs.clear();
+			this.CollectionDBs.clear();
+			this.crs.clear();
+			this.lookupColumns.clear();
+			this.lookupIndexes.clear();
+			this.pendingChanges.clear();
+			this.deferredFormulas.clear();
+			calcGraph= null;
+		}
 	}
 }
 
@@ -844,6 +1104,8 @@ public class ReferenceTracker {
 class TrackedPtgs extends TreeMap {
 	private static final long serialVersionUID = 1L;
 	static final long SECONDPTGFACTOR= (((long)XLSRecord.MAXCOLS + (long)XLSRecord.MAXROWS*XLSRecord.MAXCOLS));
+	/** spatial index of the tracked areas (keys >= SECONDPTGFACTOR), kept in step with the map */
+	private AreaIndex areas= new AreaIndex();
 
 	/**
 	 * set the custom Comparitor for tracked Ptgs
@@ -883,7 +1145,7 @@ class TrackedPtgs extends TreeMap {
 	 */
 	public boolean add(Object o){
 		try {		
-			super.put(this.getKey(o), o);
+			this.put(this.getKey(o), o);
 		} catch (IllegalArgumentException e)  {	// SHOULD NOT HAPPEN -- happens upon RefErrs but they shouldnt be added ...
 	// 	TESTING: report error
 //	System.err.println("Illegal PtgRef Location: " + o.toString());			
@@ -901,6 +1163,27 @@ class TrackedPtgs extends TreeMap {
 		return false;
 	}
 
+	/**
+	 * override of put to keep the area index in step with the stored ptgs
+	 */
+	@Override
+	public Object put(Object key, Object value) {
+		Object old= super.put(key, value);
+		long loc= ((long[]) key)[0];
+		if (loc >= SECONDPTGFACTOR) {
+			if (old!=null)
+				areas.remove(loc, (PtgRef) old);
+			areas.add(loc, (PtgRef) value);
+		}
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		areas= new AreaIndex();
+	}
+
 	
 	/**
 	 * returns EVERY parent that references the cell "cell"
@@ -933,59 +1216,22 @@ class TrackedPtgs extends TreeMap {
 			}
 		}
 		// now see if test cell falls into any areas
-		
-		m= Collections.synchronizedMap(this.tailMap(getKey(SECONDPTGFACTOR, 0))); // NOW GET ALL PTGAREAS ...
-		if (m!=null) {			
-			synchronized (m.keySet()) {
-				Iterator ii= m.keySet().iterator();
-				while (ii.hasNext()) {
-					key= ii.next();
-					long testkey= ((long[]) key)[0];
-/*			Object[] keys= m.keySet().toArray();
-			for (int i= 0; i < keys.length; i++) {
-					long testkey= ((long[])keys[i])[0];*/
-					double firstkey= testkey / SECONDPTGFACTOR;		
-					double secondkey= (testkey % SECONDPTGFACTOR);	
-					if ((long)firstkey <= (long)loc && (long)secondkey >= (long)loc) {					
-						int col0= (int)firstkey%XLSRecord.MAXCOLS;
-						int col1= (int)secondkey%XLSRecord.MAXCOLS;
-						int rw0= ((int) (firstkey/XLSRecord.MAXCOLS))-1;
-						int rw1= ((int) (secondkey/XLSRecord.MAXCOLS))-1;
-						if (this.isaffected(rc, new int[] {rw0, col0, rw1, col1})) {
-							parents.add(((PtgRef)this.get(key)).getParentRec());
-//							parents.add(((PtgRef)this.get(keys[i])).getParentRec());
-						}
-					} else if (firstkey > loc) // we're done
-						break;				
-				}
-			}
-		}
+		areas.getParents(rc[0], rc[1], parents);
 //com.valkyrlabs.toolkit.Logger.log("");		
 //		return parents.toArray();	//iterator();
 		return parents.iterator();
     }
     
-    /**
-     * returns true if cell coordinates are contained within the area coordinates 
-     * @param cellrc
-     * @param arearc
-     * @return
-     */
-    private boolean isaffected(int[] cellrc, int[] arearc) {
-        if(cellrc[0] < arearc[0])return false; // row above the first ref row?
-        if(cellrc[0] > arearc[2])return false; // row after the last ref row?
-        
-        if(cellrc[1] < arearc[1])return false; // col before the first ref col?
-        if(cellrc[1] > arearc[3])return false; // col after the last ref col?
-        return true;
-    }
-
     /**
      * remove this PtgRef object via it's key
      */
     @Override
     synchronized public Object remove(Object o) {
-    	return super.remove(getKey(o));
+    	long[] key= (long[]) getKey(o);
+    	Object old= super.remove(key);
+    	if (old!=null && key[0] >= SECONDPTGFACTOR)
+    		areas.remove(key[0], (PtgRef) old);
+    	return old;
     }
     
     
@@ -1023,6 +1269,246 @@ class TrackedPtgs extends TreeMap {
 	}*/
 }
 
+/**
+ * AreaIndex answers which of the area references tracked for a sheet contain
+ * a given cell, without testing every area on the sheet.
+ * 
+ * Areas are stored in the canonical nodes of a segment tree over rows, so an
+ * area is held by at most two nodes per tree level and a lookup visits only
+ * the one node per level whose rows include the cell.  Each row node in turn
+ * holds its areas in the canonical nodes of a segment tree over columns.
+ * Single-column areas -- the usual column ranges -- sit at the column leaves,
+ * and a row node only walks its column tree once it holds more wider areas
+ * than are cheaper to test one by one.
+ */
+class AreaIndex implements java.io.Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int LEVELS= 20;	// leaves are rows 0 .. 2^20-1, the Excel 2007 limit
+	private static final int MAXROW= (1 << LEVELS) - 1;
+	private static final int COLLEVELS= 14;	// column leaves are columns 0 .. 2^14-1, XLSRecord.MAXCOLS
+	private final HashMap<Long, Node> nodes= new HashMap<Long, Node>();
+
+	/**
+	 * add an area given its tracked location key
+	 * @param loc	area location key, as PtgArea.getHashCode
+	 * @param ptg	the tracked area
+	 */
+	void add(long loc, PtgRef ptg) {
+		int[] rc= getArea(loc);
+		if (rc==null) return;
+		int lo= rc[0], hi= rc[2]+1;
+		for (int level= LEVELS; lo < hi; level--) {
+			if ((lo & 1)==1)
+				getNode(level, lo++, true).add(rc[1], rc[3], ptg);
+			if ((hi & 1)==1)
+				getNode(level, --hi, true).add(rc[1], rc[3], ptg);
+			lo >>= 1;
+			hi >>= 1;
+		}
+	}
+
+	/**
+	 * remove an area previously added with the same location key
+	 */
+	void remove(long loc, PtgRef ptg) {
+		int[] rc= getArea(loc);
+		if (rc==null) return;
+		int lo= rc[0], hi= rc[2]+1;
+		for (int level= LEVELS; lo < hi; level--) {
+			if ((lo & 1)==1)
+				remove(level, lo++, rc[1], rc[3], ptg);
+			if ((hi & 1)==1)
+				remove(level, --hi, rc[1], rc[3], ptg);
+			lo >>= 1;
+			hi >>= 1;
+		}
+	}
+
+	private void remove(int level, int i, int col0, int col1, PtgRef ptg) {
+		Node n= getNode(level, i, false);
+		if (n!=null && n.remove(col0, col1, ptg))
+			nodes.remove(Long.valueOf(getNodeKey(level, i)));
+	}
+
+	/**
+	 * adds the parent records of all areas containing the cell to parents
+	 */
+	void getParents(int row, int col, List parents) {
+		if (nodes.isEmpty() || row < 0 || row > MAXROW) return;
+		for (int level= LEVELS, i= row; level >= 0; level--, i >>= 1) {
+			Node n= getNode(level, i, false);
+			if (n!=null)
+				n.getParents(col, parents);
+		}
+	}
+
+	/**
+	 * decodes an area location key into {first row, first col, last row, last col},
+	 * clipped to the index bounds; null if the area is empty
+	 */
+	private static int[] getArea(long loc) {
+		long firstkey= loc / TrackedPtgs.SECONDPTGFACTOR;
+		long secondkey= loc % TrackedPtgs.SECONDPTGFACTOR;
+		int col0= (int) (firstkey % XLSRecord.MAXCOLS);
+		int col1= (int) (secondkey % XLSRecord.MAXCOLS);
+		int rw0= Math.max((int) (firstkey / XLSRecord.MAXCOLS) - 1, 0);
+		int rw1= Math.min((int) (secondkey / XLSRecord.MAXCOLS) - 1, MAXROW);
+		if (rw0 > rw1 || col0 > col1) return null;
+		return new int[] {rw0, col0, rw1, col1};
+	}
+
+	private static long getNodeKey(int level, int i) {
+		return ((long) level << 32) | i;
+	}
+
+	private Node getNode(int level, int i, boolean create) {
+		Long key= Long.valueOf(getNodeKey(level, i));
+		Node n= nodes.get(key);
+		if (n==null && create) {
+			n= new Node();
+			nodes.put(key, n);
+		}
+		return n;
+	}
+
+	/** an area spanning several columns, while its node tests such areas one by one */
+	private static final class Entry implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		final int col0, col1;
+		final PtgRef ptg;
+		Entry(int col0, int col1, PtgRef ptg) {
+			this.col0= col0;
+			this.col1= col1;
+			this.ptg= ptg;
+		}
+	}
+
+	/**
+	 * the areas held by one row node.  Areas are kept in a segment tree over
+	 * columns, whose leaves bucket the single-column areas by column.  While a
+	 * node holds no more than MAXSCAN wider areas they are simply tested one
+	 * by one, which is cheaper than walking the column tree.
+	 */
+	private static final class Node implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		private static final int MAXSCAN= 8;
+		private final HashMap<Integer, ArrayList<PtgRef>> cols= new HashMap<Integer, ArrayList<PtgRef>>();	// by column tree node
+		private ArrayList<Entry> wide;	// wider areas tested one by one, or null once they are in the column tree
+		private int spanning;			// wider areas in the column tree
+		private int spanLevels;			// bit per column tree level holding wider areas
+
+		void add(int col0, int col1, PtgRef ptg) {
+			if (col0==col1) {
+				addToColNode(COLLEVELS, col0, ptg);
+			} else if (spanning > 0) {
+				addSpan(col0, col1, ptg);
+			} else {
+				if (wide==null) wide= new ArrayList<Entry>();
+				wide.add(new Entry(col0, col1, ptg));
+				if (wide.size() > MAXSCAN) {
+					for (int i= 0; i < wide.size(); i++) {
+						Entry e= wide.get(i);
+						addSpan(e.col0, e.col1, e.ptg);
+					}
+					wide= null;
+				}
+			}
+		}
+
+		private void addSpan(int col0, int col1, PtgRef ptg) {
+			int lo= col0, hi= col1+1;
+			for (int level= COLLEVELS; lo < hi; level--) {
+				if ((lo & 1)==1)
+					addToColNode(level, lo++, ptg);
+				if ((hi & 1)==1)
+					addToColNode(level, --hi, ptg);
+				lo >>= 1;
+				hi >>= 1;
+			}
+			spanning++;
+		}
+
+		private void addToColNode(int level, int i, PtgRef ptg) {
+			Integer key= getColKey(level, i);
+			ArrayList<PtgRef> l= cols.get(key);
+			if (l==null) {
+				l= new ArrayList<PtgRef>(2);
+				cols.put(key, l);
+			}
+			l.add(ptg);
+			if (level < COLLEVELS) spanLevels |= 1 << level;
+		}
+
+		/** @return true if the node is now empty */
+		boolean remove(int col0, int col1, PtgRef ptg) {
+			if (col0==col1) {
+				removeFromColNode(COLLEVELS, col0, ptg);
+			} else if (wide!=null) {
+				for (int i= 0; i < wide.size(); i++) {
+					if (wide.get(i).ptg==ptg) {
+						wide.remove(i);
+						break;
+					}
+				}
+				if (wide.isEmpty()) wide= null;
+			} else {
+				boolean found= false;
+				int lo= col0, hi= col1+1;
+				for (int level= COLLEVELS; lo < hi; level--) {
+					if ((lo & 1)==1)
+						found |= removeFromColNode(level, lo++, ptg);
+					if ((hi & 1)==1)
+						found |= removeFromColNode(level, --hi, ptg);
+					lo >>= 1;
+					hi >>= 1;
+				}
+				if (found && --spanning==0) spanLevels= 0;
+			}
+			return cols.isEmpty() && wide==null;
+		}
+
+		private boolean removeFromColNode(int level, int i, PtgRef ptg) {
+			Integer key= getColKey(level, i);
+			ArrayList<PtgRef> l= cols.get(key);
+			if (l==null) return false;
+			for (int k= 0; k < l.size(); k++) {
+				if (l.get(k)==ptg) {
+					l.remove(k);
+					if (l.isEmpty()) cols.remove(key);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void getParents(int col, List parents) {
+			if (col < 0 || col >= (1 << COLLEVELS)) return;
+			addParents(cols.get(getColKey(COLLEVELS, col)), parents);
+			if (wide!=null) {
+				for (int i= 0; i < wide.size(); i++) {
+					Entry e= wide.get(i);
+					if (e.col0 <= col && e.col1 >= col)
+						parents.add(e.ptg.getParentRec());
+				}
+			}
+			for (int level= COLLEVELS-1, i= col >> 1; spanLevels!=0 && level >= 0; level--, i >>= 1) {
+				if ((spanLevels & (1 << level))!=0)
+					addParents(cols.get(getColKey(level, i)), parents);
+			}
+		}
+
+		private static void addParents(ArrayList<PtgRef> l, List parents) {
+			if (l==null) return;
+			for (int i= 0; i < l.size(); i++)
+				parents.add(l.get(i).getParentRec());
+		}
+
+		private static Integer getColKey(int level, int i) {
+			return Integer.valueOf((level << 16) | i);
+		}
+	}
+}
+
 /**
  * custom comparitor which compares keys for TrackerPtgs
  * consisting of a long ptg location hash, long parent record hashcode
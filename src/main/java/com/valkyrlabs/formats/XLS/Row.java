@@ -137,6 +137,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * Set the height of a row in twips (1/20th of a point)
      */
     public void setRowHeight(int x) {
+        checkWritable();
         if (DEBUGLEVEL > 3) Logger.logInfo("Updating Row Height: " + this.getRowNumber() + " to: " + x);
         fUnsynced = true;  // set bit 6 = row height and default font DO NOT MATCH
         updateGrbit();
@@ -319,7 +320,8 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      */
     public List getValRecs(int outputId) {
         ArrayList v = new ArrayList();
-        Collection cx = this.getCells();
+        // compact cells are written without being restored to records
+        Collection cx = this.getSheet().getOutputCellsByRow(this.getRowNumber());
         Iterator it = cx.iterator();
         while (it.hasNext()) {
             BiffRec br = (BiffRec) it.next();
@@ -524,6 +526,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
     }
 
     public void setHeight(int twips) {
+        checkWritable();
         if (twips < 2 || twips > 8192) throw new IllegalArgumentException(
                 "twips value " + twips
                         + " is out of range, must be between 2 and 8192 inclusive");
@@ -560,6 +563,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * @param x
      */
     public void setOutlineLevel(int x) {
+        checkWritable();
         this.outlineLevel = x;
         this.getSheet().getGuts().setRowGutterSize(10 + (10 * x));
         this.getSheet().getGuts().setMaxRowLevel(x + 1);
@@ -583,6 +587,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * @param b
      */
     public void setCollapsed(boolean b) {
+        checkWritable();
         fCollapsed = b;
         fHidden = b;
         boolean keepgoing = true;
@@ -627,6 +632,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * @param b
      */
     public void setHidden(boolean b) {
+        checkWritable();
         fHidden = b;
         updateGrbit();
 //		implement bit masking set on grbit
@@ -668,6 +674,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      *                                  encoded in the 1.5 byte wide field provided for it
      */
     public void setIxfe(int ixfe) {
+        checkWritable();
         if ((ixfe & ~0xFFF) != 0) throw new IllegalArgumentException(
                 "ixfe value 0x" + Integer.toHexString(ixfe)
                         + " out of range, must be between 0x0 and 0xfff");
@@ -702,6 +709,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * sets this row to have a thick top border
      */
     public void setHasThickTopBorder(boolean hasBorder) {
+        checkWritable();
         this.fBorderTop = hasBorder;
         if (hasBorder) {
             FormatHandle fh = new FormatHandle(null, this.getXfRec());
@@ -753,6 +761,7 @@ public final class Row extends com.valkyrlabs.formats.XLS.XLSRecord {
      * sets this row to have a thick bottom border
      */
     public void setHasThickBottomBorder(boolean hasBorder) {
+        checkWritable();
         this.fBorderBottom = hasBorder;
         if (hasBorder) {
             FormatHandle fh = new FormatHandle(null, this.getXfRec());
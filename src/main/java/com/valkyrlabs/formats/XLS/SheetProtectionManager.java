@@ -70,9 +70,17 @@ Structure of the Worksheet Protection Block, BIFF5-BIFF8:
 		else super.addRecord( record );
 	}
 	
+	/** Throws a WorkBookException if the sheet's workbook has been frozen.
+	 */
+	private void checkWritable() {
+		if (sheet != null && sheet.getWorkBook() != null)
+			sheet.getWorkBook().checkWritable();
+	}
+
 	/** Sets whether the sheet is protected.
 	 */
 	public void setProtected( boolean value ) {
+		checkWritable();
 		if (value) {
 			if (protect == null) 
 				addProtectionRecord();
@@ -137,6 +145,7 @@ Structure of the Worksheet Protection Block, BIFF5-BIFF8:
 	/**
 	 */
 	public void setProtected (int option, boolean value) {
+		checkWritable();
 		// special cases for legacy records
 		switch (option) {
 		case FeatHeadr.ALLOWOBJECTS:
@@ -191,6 +200,7 @@ Structure of the Worksheet Protection Block, BIFF5-BIFF8:
 	 * @param pass the string password to set or null to remove the password
 	 */
 	public void setPassword (String pass) {
+		checkWritable();
 		if (pass != null && !pass.equals( "" )) {
 			insertPassword();
 			super.setPassword( pass );
@@ -202,6 +212,7 @@ Structure of the Worksheet Protection Block, BIFF5-BIFF8:
 	 *             or null to remove the password
 	 */
 	public void setPasswordHashed (String pass) {
+		checkWritable();
 		if (pass != null) {
 			insertPassword();
 			super.setPasswordHashed( pass );
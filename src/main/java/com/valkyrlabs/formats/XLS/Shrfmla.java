@@ -25,18 +25,13 @@ package com.valkyrlabs.formats.XLS;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeSet;
 
 import com.valkyrlabs.OpenXLS.ExcelTools;
-import com.valkyrlabs.formats.XLS.formulas.FormulaParser;
-import com.valkyrlabs.formats.XLS.formulas.GenericPtg;
-import com.valkyrlabs.formats.XLS.formulas.Ptg;
-import com.valkyrlabs.formats.XLS.formulas.PtgAreaN;
-import com.valkyrlabs.formats.XLS.formulas.PtgExp;
-import com.valkyrlabs.formats.XLS.formulas.PtgRef;
-import com.valkyrlabs.formats.XLS.formulas.PtgRefN;
+import com.valkyrlabs.formats.XLS.formulas.*;
 import com.valkyrlabs.toolkit.ByteTools;
 import com.valkyrlabs.toolkit.Logger;
 
@@ -84,6 +79,14 @@ public final class Shrfmla extends XLSRecord {
     /** Whether this formula contains an indirect reference. */
     boolean containsIndirectFunction = false;
     
+    /** The expression instance members are calculated with in turn, and the
+     * template Ptgs it was converted from. */
+    private transient Stack instance;
+    private transient Ptg[] instanceOf;
+    private transient boolean instanceBusy = false;
+    /** The instance compiled for calculation, or null if it can't be. */
+    private transient CompiledExpression instanceCompiled;
+    
     public int getFirstRow(){
         return (int)rwFirst;
     }
@@ -341,6 +344,87 @@ public final class Shrfmla extends XLSRecord {
 	public Stack instantiate (Formula parent) {
 		return convertStack( expression, parent );
 	}
+	
+	/**
+	 * calculates this shared formula for a member formula
+	 * <br>Members take turns at one converted instance of the expression, its
+	 * references re-pointed at the cells of each in turn, rather than each 
+	 * being converted anew.  A member calculated while the instance is in use,
+	 * by a member referencing it or on another thread, gets its own copy.
+	 * @param member	member formula
+	 * @return calculated value
+	 */
+	public Object calculate (Formula member) {
+		Stack exp= acquireInstance( member );
+		if (exp == null)
+			return FormulaCalculator.calculateFormula( instantiate( member ) );
+		try {
+			if (instanceCompiled != null)
+				return instanceCompiled.calculate().getValue();
+			return FormulaCalculator.calculateFormula( exp );
+		} finally {
+			synchronized (this) {
+				instanceBusy= false;
+			}
+		}
+	}
+	
+	/**
+	 * returns the shared instance of the expression converted for member,
+	 * or null if it is in use or the expression holds Ptgs which can't be 
+	 * re-pointed at another member
+	 */
+	private synchronized Stack acquireInstance (Formula member) {
+		if (instanceBusy || expression == null)
+			return null;
+		int n= expression.size();
+		boolean same= instance != null && instanceOf.length == n;
+		for (int i= 0; i < n; i++) {
+			Ptg ptg= (Ptg) expression.get( i );
+			if (!isRepointable( ptg ))
+				return null;
+			same= same && instanceOf[i] == ptg;
+		}
+		if (!same) {
+			instance= instantiate( member );
+			instanceOf= new Ptg[n];
+			expression.toArray( instanceOf );
+			instanceCompiled= CompiledExpression.compile( instance );
+		} else {
+			for (int i= 0; i < n; i++) {
+				Ptg ptg= (Ptg) instance.get( i );
+				if (instanceOf[i] instanceof PtgRefN)
+					((PtgRefN) instanceOf[i]).convertToPtgRef( member, (PtgRef) ptg );
+				else if (instanceOf[i] instanceof PtgAreaN)
+					((PtgAreaN) instanceOf[i]).convertToPtgArea( member, (PtgArea) ptg );
+				else
+					ptg.setParentRec( member );
+			}
+		}
+		instanceBusy= true;
+		return instance;
+	}
+	
+	/**
+	 * returns true if a converted copy of ptg holds nothing specific to the 
+	 * member it was converted for but its location and parent record
+	 */
+	private static boolean isRepointable (Ptg ptg) {
+		return ptg instanceof PtgRefN || ptg instanceof PtgAreaN 
+				|| ptg instanceof PtgInt || ptg instanceof PtgNumber
+				|| ptg instanceof PtgStr || ptg instanceof PtgBool
+				|| ptg instanceof PtgErr || ptg instanceof PtgMissArg
+				|| ptg instanceof PtgParen || ptg instanceof PtgAtr
+				|| ptg instanceof PtgFunc || ptg instanceof PtgFuncVar
+				|| ptg instanceof PtgAdd || ptg instanceof PtgSub
+				|| ptg instanceof PtgMlt || ptg instanceof PtgDiv
+				|| ptg instanceof PtgPower || ptg instanceof PtgConcat
+				|| ptg instanceof PtgEQ || ptg instanceof PtgNE
+				|| ptg instanceof PtgLT || ptg instanceof PtgLE
+				|| ptg instanceof PtgGT || ptg instanceof PtgGE
+				|| ptg instanceof PtgUPlus || ptg instanceof PtgUMinus
+				|| ptg instanceof PtgPercent;
+	}
     /**Set if the formula contains Indirect()
      * @param containsIndirectFunction The containsIndirectFunction to set.
      */
@@ -359,43 +443,98 @@ public final class Shrfmla extends XLSRecord {
     
     
     /**
-     * determine which formula in set of shared formula members is affected by cell br
+     * determine which formulas in set of shared formula members reference cell br
+     * <br>The references of each member are its offsets from the relative Ptgs,
+     * so this is found without instantiating the member expressions
      * @param br	cell
-     * @return		formula which references cell
+     * @return		formulas which reference cell, in member order
      */
-    protected Formula getAffected(BiffRec br) {
-    	int[] rc= new int[2];
-    	rc[0]= br.getRowNumber();
-    	rc[1]= br.getColNumber();
-    	Iterator<Formula> ii= members.iterator();
+    List<Formula> getAffectedMembers(BiffRec br) {
+    	List<Formula> ret= new ArrayList<Formula>();
+    	int row= br.getRowNumber();
+    	int col= br.getColNumber();
     	boolean isExcel2007= this.getWorkBook().getIsExcel2007();
+    	// first row, last row, first col, last col of each reference, 
+    	// and which of those are relative to the member
+    	int n= ptgcache.length;
+    	int[] refs= new int[n*4];
+    	boolean[] rel= new boolean[n*4];
+    	for (int i= 0; i < n; i++) {
+    		PtgRefN first, last;
+    		if (ptgcache[i] instanceof PtgRefN) {
+    			first= last= (PtgRefN) ptgcache[i];
+    		} else {
+    			first= ((PtgAreaN) ptgcache[i]).getFirstPtgN();
+    			last= ((PtgAreaN) ptgcache[i]).getLastPtgN();
+    		}
+    		setRef(first, refs, rel, i*4, 0, isExcel2007);
+    		setRef(last, refs, rel, i*4, 1, isExcel2007);
+    	}
+    	// only members on the rows whose references may reach the cell need be looked at
+    	int lo= MAXROWS, hi= -1;
+    	for (int i= 0; i < n*4; i+= 4) {
+    		int a= 0, b= MAXROWS;
+    		if (rel[i]) b= row - refs[i];
+    		else if (refs[i] > row) continue;
+    		if (rel[i+1]) a= row - refs[i+1];
+    		else if (refs[i+1] < row) continue;
+    		if (a > b) continue;
+    		lo= Math.min(lo, a);
+    		hi= Math.max(hi, b);
+    	}
+    	if (hi < Math.max(lo, 0))
+    		return ret;
+    	SortedSet rows= members;
+    	if (members.isEmpty())
+    		return ret;
+    	if (lo > ((Formula) members.first()).getRowNumber() || hi < ((Formula) members.last()).getRowNumber())
+    		rows= members.subSet(new MemberPosition(Math.max(lo, 0)), 
+    				new MemberPosition(Math.min(hi, MAXROWS) + 1));
+    	Iterator<Formula> ii= rows.iterator();
     	while (ii.hasNext()) {
     		Formula f= ii.next();
-    		int[] frc= new int[2];
-        	frc[0]= f.getRowNumber();
-        	frc[1]= f.getColNumber();
-        	for (int i= 0; i < ptgcache.length; i++) {
-    			if (ptgcache[i] instanceof PtgRefN) {
-    				int[] refrc= ((PtgRefN)ptgcache[i]).getRealRowCol();
-    				if ((refrc[0]+frc[0])==rc[0] &&
-    						(adjustCol(refrc[1]+frc[1], isExcel2007))==rc[1])	
-    					return f;
-    			} else {	// it's a PtgAreaN
-    				int[] refrc= ((PtgAreaN)ptgcache[i]).getRealRowCol();
-    				refrc[0]+= frc[0];
-    				refrc[2]+= frc[1];
-    				refrc[1]= adjustCol(refrc[1]+frc[0], isExcel2007);
-    				refrc[3]= adjustCol(refrc[3]+frc[0], isExcel2007);
-    				if (refrc[0] <= rc[0] &&
-    						refrc[1] <= rc[1] &&
-    						refrc[2] >= rc[0] &&
-    						refrc[3] >= rc[1])
-    					return f;
+    		int frow= f.getRowNumber();
+    		int fcol= f.getColNumber();
+    		for (int i= 0; i < n*4; i+= 4) {
+    			int r0= rel[i] ? refs[i] + frow : refs[i];
+    			int r1= rel[i+1] ? refs[i+1] + frow : refs[i+1];
+    			if (row < r0 || row > r1)
+    				continue;
+    			int c0= rel[i+2] ? adjustCol(refs[i+2] + fcol, isExcel2007) : refs[i+2];
+    			int c1= rel[i+3] ? adjustCol(refs[i+3] + fcol, isExcel2007) : refs[i+3];
+    			if (col >= c0 && col <= c1) {
+    				ret.add(f);
+    				break;
     			}
-        	}
+    		}
     	}
-    	return null;
+    	return ret;
     }
+    
+    /**
+     * a row position among the members, bounding those on given rows
+     */
+    private static final class MemberPosition extends XLSRecord {
+    	private static final long serialVersionUID = 1L;
+    	
+    	MemberPosition(int row) {
+    		setIsValueForCell(true);
+    		rw= row;
+    	}
+    }
+    
+    /**
+     * stores the row and column offsets of one end of a relative reference
+     */
+    private static void setRef(PtgRefN p, int[] refs, boolean[] rel, int idx, int end, boolean isExcel2007) {
+    	int[] rc= p.getRealRowCol();
+    	rel[idx+end]= p.isRowRel();
+    	// absolute rows are unsigned; 0xFFFF is the last row, as in a whole column
+    	refs[idx+end]= (rel[idx+end] || isExcel2007) ? rc[0] : (rc[0] & 0xFFFF);
+    	rel[idx+2+end]= p.isColRel();
+    	refs[idx+2+end]= rc[1];
+    }
+
     /**
      * basic algorithm to adjust column dimensions when > MAXCOLS
      * @param c
@@ -28,7 +28,6 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -102,7 +101,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
     private int numconts = -1;
     private int[] boundaries = null;
     private byte[] grbits = null;
-    private List stringvector = new SstArrayList();
+    private StringPool stringvector = new StringPool();
     private HashSet dupeSstEntries = new HashSet();
     private HashSet existingSstEntries = new HashSet();
     private Extsst myextsst = null;
@@ -558,8 +557,11 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         if (shareDups)
             bk.getWorkBook().setSharedupes(true);
 
-        return (ArrayList) bk.getWorkBook().getSharedStringTable()
-                .getStringVector();
+        StringPool strings = bk.getWorkBook().getSharedStringTable().stringvector;
+        ArrayList ret = new ArrayList(strings.size());
+        for (int i = 0; i < strings.size(); i++)
+            ret.add(strings.view(i));
+        return ret;
     }
 
     int getOrigSstLen() {
@@ -1058,30 +1060,36 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
     }
 
     /**
-     * given unicode bytes, create a Unicodestring and add it to the string vector
+     * given unicode bytes, add them to the string vector, as a Unicodestring
+     * only if they cannot be kept as bytes
      */
-    Unicodestring initString(byte[] newStringBytes, int strpos,
-                             boolean extrstbrk) {
-        // create a new Unicodestring, set its data
-        Unicodestring newString = new Unicodestring();
-        newString.setSSTPos(strpos);
-        newString.init(newStringBytes, extrstbrk);
-
-        // add the new String to the String table and return the new pointer
-        if (DEBUGLEVEL > 5)
-            Logger.logInfo(" val: " + newString.toString());
-        if (newString.getLen() == 0) {
+    void initString(byte[] newStringBytes, int strpos,
+                    boolean extrstbrk) {
+        if (newStringBytes.length == 0) {
             Logger.logInfo("Adding zero-length string!");
+            return;
+        }
+        if (StringPool.isPackable(newStringBytes)) {
+            retpos = stringvector.addBytes(newStringBytes);
         } else {
-            this.putString(newString);
+            // create a new Unicodestring, set its data
+            Unicodestring newString = new Unicodestring();
+            newString.setSSTPos(strpos);
+            newString.init(newStringBytes, extrstbrk);
+            this.putString(newString, true);
         }
-        return newString;
+        if (DEBUGLEVEL > 5)
+            Logger.logInfo(" val: " + stringvector.getString(retpos));
     }
 
-    private int putString(Unicodestring newString) {
-        ++retpos;
-        ((SstArrayList) stringvector).put(newString, Integer.valueOf(
-                retpos));
+    /**
+     * add a Unicodestring to the string vector
+     *
+     * @param keep whether the caller holds on to newString, which must then
+     *             stay the string's object in the table
+     */
+    private int putString(Unicodestring newString, boolean keep) {
+        retpos = stringvector.add(newString, keep);
         return retpos;
     }
 
@@ -1092,7 +1100,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         cbounds.clear();
         sstgrbits.clear();
         stringvector.clear();
-        stringvector = new SstArrayList();
+        stringvector = new StringPool();
         dupeSstEntries.clear();
         dupeSstEntries = new HashSet();
         existingSstEntries.clear();
@@ -1142,13 +1150,12 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
             cbounds.clear();
             sstgrbits.clear();
             byte[] strb = null;
-            Iterator it = stringvector.iterator();
-            while (it.hasNext()) {
-                Object ob = it.next();
-                Unicodestring str = (Unicodestring) ob;
+            for (int i = 0; i < stringvector.size(); i++) {
+                Unicodestring str = stringvector.view(i);
 
                 // from updateUnicodeStrings()
                 str.setSSTPos(thispos);
+                stringvector.setPosition(i, thispos);
 
                 strb = str.read();
                 try {
@@ -1356,8 +1363,9 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
     /**
      * Called from LabelSst on initialization from a new workbook, this
      * pre-populates the list of strings that are currently shared.
+     * Sheets loaded in parallel call this from several threads.
      */
-    void initSharingOnStrings(int isst) {
+    synchronized void initSharingOnStrings(int isst) {
         Integer iSst = Integer.valueOf(isst);
         if (existingSstEntries.contains(iSst)) {
             // really is just a switch -doesn't track # times string is shared ...
@@ -1403,7 +1411,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         // get the existing position of this string
         // but only if we're not ignoring dupes
         if (this.getWorkBook().isSharedupes()) {
-            retpos = ((SstArrayList) stringvector).find(us); // indexOf will not
+            retpos = stringvector.find(us); // indexOf will not
             // match entire
             // unicode
             // string
@@ -1419,7 +1427,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
                 reclen += strlen; // utf double encoding.
                 datalen += strlen;
             }
-            retpos = this.putString(us);
+            retpos = this.putString(us, true);
         } else {
             // this is a duplicate string, track it!
             dupeSstEntries.add(Integer.valueOf(retpos));
@@ -1446,7 +1454,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
 
         reclen += str.getLen();
         datalen += str.getLen();
-        retpos = this.putString(str);
+        retpos = this.putString(str, false);
         return retpos;
     }
 
@@ -1461,8 +1469,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         if (this.getWorkBook().isSharedupes()) {
             retpos = stringvector.indexOf(s);
             if (retpos > -1) {
-                Unicodestring str = (Unicodestring) stringvector.get(retpos);
-                if (str.hasFormattingRuns())
+                if (stringvector.hasFormattingRuns(retpos))
                     retpos = -1; // do not match if there are formatting runs
                 // embedded
             }
@@ -1494,6 +1501,22 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         return (Unicodestring) stringvector.get(i);
     }
 
+    /**
+     * Return the String value of the Unicodestring at the corresponding index
+     * without making a Unicodestring for it
+     */
+    String getStringAt(int i) {
+        return stringvector.getString(i);
+    }
+
+    /**
+     * Return the position in the Sst data at which the string at the
+     * corresponding index was last written
+     */
+    int getSSTPos(int i) {
+        return stringvector.getPosition(i);
+    }
+
     /**
      * find this unicode string (including formatting) in stringarray
      *
@@ -1501,7 +1524,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
      * @return
      */
     int find(Unicodestring us) {
-        return ((SstArrayList) stringvector).find(us);
+        return stringvector.find(us);
     }
 
     /**
@@ -1551,7 +1574,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         sb.append("cstTotal:" + cstTotal + " cstUnique:" + cstUnique
                 + " numConts:" + numconts);
         for (int i = 0; i < stringvector.size(); i++) {
-            sb.append("\n " + stringvector.get(i));
+            sb.append("\n " + stringvector.getString(i));
         }
         return sb.toString();
     }
@@ -1572,8 +1595,8 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         zip.write(("<sst xmlns=\"" + OOXMLConstants.xmlns + "\" count=\""
                 + cstTotal + "\" uniqueCount=\"" + cstUnique + "\">"));
         zip.write("\r\n");
-        for (int i = 0; i < this.getStringVector().size(); i++) {
-            Unicodestring us = ((Unicodestring) this.getStringVector().get(i));
+        for (int i = 0; i < stringvector.size(); i++) {
+            Unicodestring us = stringvector.view(i);
             ArrayList frs = us.getFormattingRuns();
             String s = us.getStringVal();
             s = OOXMLAdapter.stripNonAscii(s).toString();
@@ -1645,7 +1668,7 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
     public ArrayList getAllStrings() {
         ArrayList al = new ArrayList(stringvector.size());
         for (int i = 0; i < stringvector.size(); i++) {
-            al.add(stringvector.get(i).toString());
+            al.add(stringvector.getString(i));
         }
         return al;
     }
@@ -1669,44 +1692,4 @@ public final class Sst extends com.valkyrlabs.formats.XLS.XLSRecord {
         }
         return len;
     }
-
-    /**
-     * Override ArrayList to allow matching based on .toString. Required because
-     * we call ArrayList.indexOf(String) when ArrayList contains UnicodeStrings.
-     */
-    private class SstArrayList extends ArrayList {
-        /**
-         * serialVersionUID
-         */
-        private static final long serialVersionUID = 7904551471519095640L;
-        private final HashMap container = new HashMap();
-
-        public boolean put(Object o, Integer isst) {
-            container.put(((Unicodestring) o).toCachingString(), isst);
-            return super.add(o);
-        }
-
-        public int indexOf(Object o) {
-            Object oo = container.get(o.toString());
-            if (oo == null)
-                return -1;
-            return ((Integer) oo).intValue();
-        }
-
-        public boolean remove(Object o) {
-            Logger.logWarn("String being removed from SST array, Indexing may be off");
-            container.remove(((Unicodestring) o).toCachingString());
-            return super.remove(o);
-        }
-
-        /**
-         * find this particular unicode string, including formatting
-         *
-         * @param us
-         * @return
-         */
-        public int find(Unicodestring us) {
-            return (super.indexOf(us));
-        }
-    }
 }
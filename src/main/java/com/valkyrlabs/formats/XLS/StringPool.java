@@ -0,0 +1,430 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+import com.valkyrlabs.toolkit.ByteTools;
+import com.valkyrlabs.toolkit.Logger;
+
+/**
+ * The unique strings of an Sst.
+ * <p>
+ * Plain and rich western strings are kept as their BIFF8 bytes, one after
+ * another in a single byte array, so compressed strings stay one byte per
+ * character (Latin-1) and the others two (UTF-16LE).  Their text is decoded
+ * when asked for, and a Unicodestring is made for one only when
+ * {@link #get(int)} is called, after which that object is the string.
+ * Strings with Far East phonetic data, and Unicodestrings added by callers
+ * which keep hold of them, are stored as objects.
+ * <p>
+ * Lookups by value go through an open-addressing table of string numbers,
+ * hashed and compared on the characters in the byte array, so no key
+ * Strings are kept.  As with the HashMap this replaces, an equal string
+ * added later takes over the table entry.
+ * <p>
+ * The text of the last {@value #DECODED_SIZE} or so strings read is kept,
+ * so cells showing the same few strings don't decode them on every read
+ * while the pool as a whole stays in bytes.
+ *
+ * @see Sst
+ */
+final class StringPool extends AbstractList implements Serializable {
+	private static final long serialVersionUID = 2420131563387436511L;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+	// a power of two
+	private static final int DECODED_SIZE = 1024;
+
+	private byte[] arena = new byte[256];
+	private int used;
+	// string i is arena[starts[i]..starts[i + 1]); empty if held as an object
+	private int[] starts = new int[17];
+	private int[] hashes = new int[16];
+	private Unicodestring[] views = new Unicodestring[16];
+	private int[] positions;
+	private int count;
+	// string number + 1 per slot, 0 for empty
+	private int[] table = new int[32];
+	// recently decoded strings, in the slot of their number modulo the size
+	private transient Decoded[] decoded;
+
+	/**
+	 * Returns whether the given Unicodestring bytes can be kept in the byte
+	 * array: western, and exactly as long as their header says.
+	 */
+	static boolean isPackable(byte[] b) {
+		if (b.length < 3 || (b[2] & ~0x9) != 0)
+			return false;
+		int cch = ByteTools.readShort(b[0], b[1]);
+		if (cch < 0)
+			return false;
+		int len = ((b[2] & 0x1) != 0) ? cch * 2 : cch;
+		if ((b[2] & 0x8) == 0)
+			return b.length == 3 + len;
+		if (b.length < 5)
+			return false;
+		int runs = ByteTools.readShort(b[3], b[4]);
+		return runs >= 0 && b.length == 5 + len + runs * 4;
+	}
+
+	/**
+	 * Adds a string from its bytes, which must be packable.
+	 *
+	 * @return the index of the new string
+	 */
+	int addBytes(byte[] b) {
+		ensureCapacity(count + 1);
+		if (used + b.length > arena.length)
+			arena = Arrays.copyOf(arena, Math.max(used + b.length, arena.length * 2));
+		System.arraycopy(b, 0, arena, used, b.length);
+		used += b.length;
+		return append(null, hash(count));
+	}
+
+	/**
+	 * Adds a Unicodestring.
+	 *
+	 * @param keep whether the object itself must be kept because the caller
+	 *             holds on to it; otherwise it may be stored as bytes
+	 * @return the index of the new string
+	 */
+	int add(Unicodestring us, boolean keep) {
+		if (!keep && us.isWesternString()) {
+			byte[] b = us.read();
+			if (isPackable(b))
+				return addBytes(b);
+		}
+		ensureCapacity(count + 1);
+		String s = us.toCachingString();
+		return append(us, (s == null) ? 0 : s.hashCode());
+	}
+
+	private int append(Unicodestring us, int hash) {
+		int i = count++;
+		views[i] = us;
+		hashes[i] = hash;
+		starts[count] = used;
+		if (count * 2 > table.length)
+			rehash(table.length * 2);
+		else
+			index(i);
+		return i;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n <= views.length)
+			return;
+		int cap = Math.max(n, views.length * 2);
+		views = Arrays.copyOf(views, cap);
+		hashes = Arrays.copyOf(hashes, cap);
+		starts = Arrays.copyOf(starts, cap + 1);
+		if (positions != null)
+			positions = Arrays.copyOf(positions, cap);
+	}
+
+	/**
+	 * Enters string i in the table, replacing an equal string already there.
+	 */
+	private void index(int i) {
+		int mask = table.length - 1;
+		int h = hashes[i];
+		String s = null;
+		for (int slot = spread(h) & mask;; slot = (slot + 1) & mask) {
+			int e = table[slot] - 1;
+			if (e < 0) {
+				table[slot] = i + 1;
+				return;
+			}
+			if (hashes[e] == h) {
+				if (s == null)
+					s = getString(i);
+				if (s != null && equalTo(e, s)) {
+					table[slot] = i + 1;
+					return;
+				}
+			}
+		}
+	}
+
+	private void rehash(int size) {
+		table = new int[size];
+		for (int i = 0; i < count; i++)
+			index(i);
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the index of the string equal to the given value, or -1.
+	 */
+	public int indexOf(Object o) {
+		if (o == null)
+			return -1;
+		String s = o.toString();
+		int h = s.hashCode();
+		int mask = table.length - 1;
+		for (int slot = spread(h) & mask;; slot = (slot + 1) & mask) {
+			int e = table[slot] - 1;
+			if (e < 0)
+				return -1;
+			if (hashes[e] == h && equalTo(e, s))
+				return e;
+		}
+	}
+
+	/**
+	 * Returns the index of the first string equal to the given one including
+	 * its formatting, or -1.
+	 */
+	int find(Unicodestring us) {
+		byte[] b = us.isWesternString() ? us.read() : null;
+		for (int i = 0; i < count; i++) {
+			if (views[i] != null) {
+				if (us.equals(views[i]))
+					return i;
+			} else if (b != null && b.length == starts[i + 1] - starts[i]) {
+				int off = starts[i];
+				int k = 0;
+				while (k < b.length && b[k] == arena[off + k])
+					k++;
+				if (k == b.length)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the Unicodestring at the given index, making it if needed.
+	 * The same object is returned from then on, and changes to it are
+	 * changes to the string.
+	 */
+	public synchronized Object get(int i) {
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+		if (views[i] == null)
+			views[i] = view(i);
+		return views[i];
+	}
+
+	/**
+	 * Returns the Unicodestring at the given index without keeping it.
+	 * Changes to a string made here are not stored unless it was already
+	 * made by {@link #get(int)}.
+	 */
+	Unicodestring view(int i) {
+		Unicodestring us = views[i];
+		if (us != null)
+			return us;
+		us = new Unicodestring();
+		us.init(Arrays.copyOfRange(arena, starts[i], starts[i + 1]), false);
+		return us;
+	}
+
+	/**
+	 * Returns the text of the string at the given index.
+	 */
+	String getString(int i) {
+		Unicodestring us = views[i];
+		if (us != null)
+			return us.toCachingString();
+		Decoded[] cache = decoded;
+		if (cache == null)
+			decoded = cache = new Decoded[DECODED_SIZE];
+		int slot = i & (DECODED_SIZE - 1);
+		Decoded d = cache[slot];
+		if (d != null && d.index == i)
+			return d.text;
+		String s = decode(i);
+		cache[slot] = new Decoded(i, s);
+		return s;
+	}
+
+	/**
+	 * Returns the text of the string at the given index, decoded from the
+	 * byte array.
+	 */
+	private String decode(int i) {
+		int off = starts[i];
+		int cch = ByteTools.readShort(arena[off], arena[off + 1]);
+		byte grbit = arena[off + 2];
+		int hdr = ((grbit & 0x8) != 0) ? 5 : 3;
+		if ((grbit & 0x1) != 0)
+			return new String(arena, off + hdr, cch * 2, UTF16LE);
+		return new String(arena, off + hdr, cch, LATIN1);
+	}
+
+	/**
+	 * Returns whether the string at the given index has formatting runs.
+	 */
+	boolean hasFormattingRuns(int i) {
+		if (views[i] != null)
+			return views[i].hasFormattingRuns();
+		int off = starts[i];
+		return (arena[off + 2] & 0x8) != 0
+				&& ByteTools.readShort(arena[off + 3], arena[off + 4]) > 0;
+	}
+
+	/**
+	 * Returns whether the string at the given index equals s.
+	 */
+	private boolean equalTo(int i, String s) {
+		if (views[i] != null)
+			return s.equals(views[i].toCachingString());
+		int off = starts[i];
+		int cch = ByteTools.readShort(arena[off], arena[off + 1]);
+		if (cch != s.length())
+			return false;
+		byte grbit = arena[off + 2];
+		int p = off + (((grbit & 0x8) != 0) ? 5 : 3);
+		if ((grbit & 0x1) != 0) {
+			for (int k = 0; k < cch; k++, p += 2) {
+				if (s.charAt(k) != (char) ((arena[p] & 0xFF) | (arena[p + 1] << 8)))
+					return false;
+			}
+		} else {
+			for (int k = 0; k < cch; k++, p++) {
+				if (s.charAt(k) != (char) (arena[p] & 0xFF))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the String hash code of the text of string i.
+	 */
+	private int hash(int i) {
+		int off = starts[i];
+		int cch = ByteTools.readShort(arena[off], arena[off + 1]);
+		byte grbit = arena[off + 2];
+		int p = off + (((grbit & 0x8) != 0) ? 5 : 3);
+		int h = 0;
+		if ((grbit & 0x1) != 0) {
+			for (int k = 0; k < cch; k++, p += 2)
+				h = 31 * h + (char) ((arena[p] & 0xFF) | (arena[p + 1] << 8));
+		} else {
+			for (int k = 0; k < cch; k++, p++)
+				h = 31 * h + (arena[p] & 0xFF);
+		}
+		return h;
+	}
+
+	/**
+	 * Records where the string at the given index was written in the Sst.
+	 */
+	void setPosition(int i, int pos) {
+		if (positions == null)
+			positions = new int[views.length];
+		positions[i] = pos;
+	}
+
+	/**
+	 * Returns where the string at the given index was last written in the
+	 * Sst, or -1.
+	 */
+	int getPosition(int i) {
+		if (views[i] != null)
+			return views[i].getSSTPos();
+		return (positions == null) ? -1 : positions[i];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean add(Object o) {
+		add((Unicodestring) o, true);
+		return true;
+	}
+
+	public boolean remove(Object o) {
+		Unicodestring us = (Unicodestring) o;
+		Logger.logWarn("String being removed from SST array, Indexing may be off");
+		int i = find(us);
+		if (i < 0)
+			return false;
+		remove(i);
+		return true;
+	}
+
+	/**
+	 * Removes the string at the given index.  Its bytes stay in the byte
+	 * array until the pool is cleared.
+	 */
+	public synchronized Object remove(int i) {
+		Object ret = view(i);
+		int n = count - i - 1;
+		System.arraycopy(views, i + 1, views, i, n);
+		System.arraycopy(hashes, i + 1, hashes, i, n);
+		System.arraycopy(starts, i + 1, starts, i, n + 1);
+		if (positions != null)
+			System.arraycopy(positions, i + 1, positions, i, n);
+		count--;
+		views[count] = null;
+		decoded = null;
+		rehash(table.length);
+		modCount++;
+		return ret;
+	}
+
+	public synchronized void clear() {
+		arena = new byte[256];
+		used = 0;
+		starts = new int[17];
+		hashes = new int[16];
+		views = new Unicodestring[16];
+		positions = null;
+		count = 0;
+		table = new int[32];
+		decoded = null;
+		modCount++;
+	}
+
+	/**
+	 * The text of a string, decoded from the byte array.
+	 */
+	private static final class Decoded {
+		final int index;
+		final String text;
+
+		Decoded(int index, String text) {
+			this.index = index;
+			this.text = text;
+		}
+	}
+}
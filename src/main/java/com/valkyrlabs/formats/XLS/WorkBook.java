@@ -41,6 +41,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -50,6 +51,10 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import com.valkyrlabs.OpenXLS.Cell;
 import com.valkyrlabs.OpenXLS.CellNotFoundException;
@@ -58,6 +63,7 @@ import com.valkyrlabs.OpenXLS.DateConverter;
 import com.valkyrlabs.OpenXLS.FormatHandle;
 import com.valkyrlabs.OpenXLS.FormulaNotFoundException;
 import com.valkyrlabs.OpenXLS.ImageHandle;
+import com.valkyrlabs.OpenXLS.InvalidRecordException;
 import com.valkyrlabs.OpenXLS.SheetNotFoundException;
 import com.valkyrlabs.OpenXLS.WorkBookException;
 import com.valkyrlabs.OpenXLS.WorkBookHandle;
@@ -164,7 +170,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	private Theme theme = null;
 
 	// Reference Tracking
-	private ReferenceTracker refTracker = new ReferenceTracker();
+	private ReferenceTracker refTracker = new ReferenceTracker(this);
 
 	// various
 	private AbstractList boundsheets = new Vector(); // TODO:
@@ -792,6 +798,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * add a Name object to the collection of names
 	 */
 	public int addName(Name n) {
+		checkWritable();
 		if (n.getItab() != 0) {
 			// its a sheet level name
 			try {
@@ -838,6 +845,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	}
 
 	public void addNameUpdateSheetRefs(Name n, String origWorkBookName) {
+		checkWritable();
 		if (bookNameRecs.get(n.getNameA()) == null) {
 			Name newName = new Name(this, n.getName());
 			try {
@@ -992,6 +1000,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * @return
 	 */
 	public List getFormulaList() {
+		loadDeferredCells();
 		return formulas;
 	}
 
@@ -1002,6 +1011,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * @return
 	 */
 	public Formula[] getFormulas() {
+		loadDeferredCells();
 		Formula[] n = new Formula[formulas.size()];
 		formulas.toArray(n);
 		return n;
@@ -1016,6 +1026,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 		this.formulashash.remove(fmla.getCellAddressWithSheet());
 		formulas.remove(fmla);
 		fmla.destroy();
+		refTracker.invalidateCalculationGraph();
 	}
 
 	/**
@@ -1309,6 +1320,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	}
 
 	public Formula getFormula(String cellAddress) throws FormulaNotFoundException {
+		loadDeferredCells();
 		Formula formula = (Formula) formulashash.get(cellAddress);
 		if (formula == null)
 			throw new FormulaNotFoundException(
@@ -1397,6 +1409,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * sets the selected worksheet
 	 */
 	public void setSelectedSheet(Boundsheet bs) {
+		checkWritable();
 		Boundsheet[] bsx = this.getWorkSheets();
 		for (int t = 0; t < bsx.length; t++) {
 			if (bsx[t] != bs)
@@ -1963,6 +1976,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * @return
 	 */
 	public int getNumFormulas() {
+		loadDeferredCells();
 		return formulas.size();
 	}
 
@@ -2126,6 +2140,8 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * 
 	 */
 	public void removeWorkSheet(Boundsheet sheet) {
+		checkWritable();
+		loadDeferredCells(); // formulas on other sheets may refer to it
 
 		int sheetNum = sheet.getSheetNum();
 		// remove the sheet
@@ -2356,6 +2372,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 
 	/** Sets whether the sheet selection tabs should be shown. */
 	public void setShowSheetTabs(boolean show) {
+		checkWritable();
 		win1.setShowSheetTabs(show);
 	}
 
@@ -2363,6 +2380,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * set the first visible tab
 	 */
 	public void setFirstVisibleSheet(Boundsheet bs2) {
+		checkWritable();
 		win1.setFirstTab(bs2.getSheetNum());
 	}
 
@@ -2723,6 +2741,8 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 * change the tab order of a boundsheet
 	 */
 	public void changeWorkSheetOrder(Boundsheet bs, int idx) {
+		checkWritable();
+		loadDeferredCells();
 		// reorder the sheet vector
 		if (idx >= 0 && idx < boundsheets.size()) {
 			boundsheets.remove(bs);
@@ -2767,6 +2787,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 */
 	public void addBoundsheet(Boundsheet bound, String origSheetName, String newSheetName, String origWorkBookName,
 			boolean SSTPopulatedBoundsheet) {
+		checkWritable();
 		bound.streamer = streamer;
 		boolean old_allowdupes = this.isSharedupes();
 		this.setDupeStringMode(ALLOWDUPES);
@@ -3011,6 +3032,9 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 		copying = false;
 	}
 
+	/** marks an external xf not yet transferred */
+	private static final int UNMAPPED_XF = -2;
+
 	/**
 	 * traverses all rows and their associated cells in the newly transfered sheet,
 	 * ensuring formula/cell references and format references are correctly
@@ -3025,12 +3049,15 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 													// workbook
 		HashMap localXfs = (HashMap) this.getXfrecsAsString();
 		List boundXfs = bound.getTransferXfs();
+		// the local xf of each source xf, looked up once per sheet
+		int[] xfMap = new int[boundXfs.size()];
+		Arrays.fill(xfMap, UNMAPPED_XF);
 		// Set the workbook on all the cells
 		Row[] rows = bound.getRows();
 		for (int i = 0; i < rows.length; i++) {
 			rows[i].setWorkBook(this);
 			if (rows[i].getIxfe() != this.getDefaultIxfe())
-				transferFormatRecs(rows[i], localFonts, boundFonts, localXfs, boundXfs); // 20080709
+				transferFormatRecs(rows[i], localFonts, boundFonts, localXfs, boundXfs, xfMap); // 20080709
 																							// KSC:
 																							// handle
 																							// default
@@ -3064,12 +3091,12 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 				}
 				// 20080226 KSC: transfer format, fonts and xf here instead
 				// of populateWorkbookWithRemoteData()
-				transferFormatRecs(b, localFonts, boundFonts, localXfs, boundXfs);
+				transferFormatRecs(b, localFonts, boundFonts, localXfs, boundXfs, xfMap);
 			}
 		}
 		// 20080226 KSC: handle xf's for columns
 		for (Colinfo co : bound.getColinfos()) {
-			transferFormatRecs(co, localFonts, boundFonts, localXfs, boundXfs);
+			transferFormatRecs(co, localFonts, boundFonts, localXfs, boundXfs, xfMap);
 		}
 		List c = bound.getCharts();
 		for (int i = 0; i < c.size(); i++) {
@@ -3190,12 +3217,21 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 *                   workbook
 	 * @param boundXfs   List of string version of all xfs, xf nums in external
 	 *                   workbook
+	 * @param xfMap      the local xf numbers of the external xfs already
+	 *                   transferred, or UNMAPPED_XF
 	 */
 	private void transferFormatRecs(BiffRec b, HashMap<String, Integer> localFonts, List boundFonts,
-			HashMap<String, Integer> localXfs, List boundXfs) {
+			HashMap<String, Integer> localXfs, List boundXfs, int[] xfMap) {
 		int oldXfNum = b.getIxfe();
-		int localNum = this
-				.transferFormatRecs(oldXfNum, localFonts, boundFonts, localXfs, boundXfs);
+		int localNum;
+		if (oldXfNum >= 0 && oldXfNum < xfMap.length) {
+			if (xfMap[oldXfNum] == UNMAPPED_XF)
+				xfMap[oldXfNum] = this
+						.transferFormatRecs(oldXfNum, localFonts, boundFonts, localXfs, boundXfs);
+			localNum = xfMap[oldXfNum];
+		} else
+			localNum = this
+					.transferFormatRecs(oldXfNum, localFonts, boundFonts, localXfs, boundXfs);
 		if (localNum != -1)
 			b.setIxfe(localNum);
 	}
@@ -3511,6 +3547,409 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 		}
 	}
 
+	/** number of threads recalc() calculates on; 1 is serial */
+	private int recalcParallelism = 1;
+	private transient ForkJoinPool recalcPool = null;
+
+	/**
+	 * Sets the number of threads used to recalculate formulas.  1, the default,
+	 * calculates on the calling thread.
+	 * 
+	 * @see WorkBookHandle#setRecalcParallelism(int)
+	 * @param parallelism
+	 */
+	public void setRecalcParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("recalc parallelism must be at least 1");
+		if (recalcPool != null && recalcPool.getParallelism() != parallelism) {
+			recalcPool.shutdown();
+			recalcPool = null;
+		}
+		recalcParallelism = parallelism;
+	}
+
+	/**
+	 * returns the number of threads used to recalculate formulas
+	 */
+	public int getRecalcParallelism() {
+		return recalcParallelism;
+	}
+
+	/** whether every formula has been recalculated since the workbook was read */
+	private boolean recalculated = false;
+
+	/**
+	 * Recalculates dirty formulas and their dependents in dependency order, using
+	 * as many threads as set via setRecalcParallelism.  The first recalc of a
+	 * workbook recalculates every formula, as the results saved in the file
+	 * may be out of date.
+	 * 
+	 * @return the number of formulas calculated
+	 * @see CalculationGraph
+	 */
+	public int recalc() {
+		checkWritable();
+		if (!recalculated) {
+			getRefTracker().clearLookupCaches();
+			Formula[] all = getFormulas();
+			for (int i = 0; i < all.length; i++)
+				all[i].clearCachedValue();
+			recalculated = true;
+		}
+		CalculationGraph graph = getCalculationGraph();
+		if (recalcParallelism <= 1)
+			return graph.recalculate();
+		if (recalcPool == null)
+			recalcPool = new ForkJoinPool(recalcParallelism);
+		return graph.recalculate(recalcPool);
+	}
+
+	/** whether sheets loaded on demand move their cells into compact storage */
+	private boolean compactCellStorage = false;
+
+	/** whether formula expressions read from the file are parsed upon first use */
+	private boolean lazyFormulaParsing = false;
+
+	/** whether this workbook has been frozen for shared reading */
+	private volatile boolean readOnly = false;
+
+	/** the handle which links merges and hyperlinks of sheets loaded on demand */
+	private transient WorkBookHandle deferredCellsHandle = null;
+
+	/**
+	 * Sets the handle used to link the merged cells and hyperlinks of sheets
+	 * whose cells are parsed on demand.
+	 * 
+	 * @see Boundsheet#ensureCellsLoaded()
+	 */
+	public void setDeferredCellsHandle(WorkBookHandle wbh) {
+		deferredCellsHandle = wbh;
+	}
+
+	/**
+	 * Parses the cell records of every sheet left in the file by lazy sheet
+	 * loading.
+	 */
+	public void loadDeferredCells() {
+		for (int i = 0; i < boundsheets.size(); i++)
+			((Boundsheet) boundsheets.get(i)).ensureCellsLoaded();
+	}
+
+	/**
+	 * Forgets the cell records of every sheet left in the file by lazy sheet
+	 * loading, without parsing them.  Used when all the sheets are about to be
+	 * removed.
+	 */
+	public synchronized void discardDeferredCells() {
+		for (int i = 0; i < boundsheets.size(); i++) {
+			Boundsheet bs = (Boundsheet) boundsheets.get(i);
+			awaitCellsLoader(bs);
+			bs.endDeferredCells();
+		}
+	}
+
+	/**
+	 * Parses the cell records of every sheet left in the file by lazy sheet
+	 * loading on up to the given number of threads.  The records of each
+	 * sheet are created and decoded on the pool, then added to the workbook
+	 * on this thread in sheet order, so the result is the same as parsing the
+	 * sheets one by one.
+	 * 
+	 * @see WorkBookFactory#PARALLELSHEETLOADING
+	 * @param parallelism
+	 */
+	public void loadDeferredCells(int parallelism) {
+		if (parallelism <= 1) {
+			loadDeferredCells();
+			return;
+		}
+		final Boundsheet[] shts = getWorkSheets();
+		List<ForkJoinTask<List<BiffRec>>> decoded = new ArrayList<ForkJoinTask<List<BiffRec>>>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (int i = 0; i < shts.length; i++) {
+				final int[] spans;
+				synchronized (this) {
+					spans = shts[i].claimDeferredCells();
+				}
+				if (spans == null) {
+					decoded.add(null);
+					continue;
+				}
+				decoded.add(pool.submit(new Callable<List<BiffRec>>() {
+					@Override
+					public List<BiffRec> call() throws InvalidRecordException {
+						return factory.decodeDeferredCells(WorkBook.this, spans);
+					}
+				}));
+			}
+			// link each sheet as soon as it is ready, while later ones decode
+			for (int i = 0; i < shts.length; i++) {
+				if (decoded.get(i) == null)
+					continue;
+				List<BiffRec> recs;
+				try {
+					recs = decoded.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new WorkBookException("loading cells of sheet "
+							+ shts[i].getSheetName() + " was interrupted",
+							WorkBookException.UNSPECIFIED_INIT_ERROR, e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new WorkBookException("loading cells of sheet "
+							+ shts[i].getSheetName() + " failed: " + cause,
+							WorkBookException.UNSPECIFIED_INIT_ERROR, (Exception) cause);
+				}
+				linkDeferredCells(shts[i], null, recs);
+			}
+		} finally {
+			pool.shutdown();
+			// sheets left unlinked by a failure can be loaded on their own
+			synchronized (this) {
+				for (int i = 0; i < decoded.size(); i++) {
+					if (decoded.get(i) != null && shts[i].getCellsLoader() == Thread.currentThread())
+						shts[i].releaseDeferredCells();
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Parses the cell records of a sheet left in the file by lazy sheet
+	 * loading and links them as they would have been if parsed with the rest
+	 * of the workbook.
+	 * 
+	 * @see WorkBookFactory#LAZYSHEETLOADING
+	 * @param bs
+	 */
+	synchronized void loadDeferredCells(Boundsheet bs) {
+		if (awaitCellsLoader(bs))
+			return; // the records being linked use the sheet
+		int[] spans = bs.claimDeferredCells();
+		if (spans == null)
+			return; // another thread got here first
+		linkDeferredCells(bs, spans, null);
+	}
+
+	/**
+	 * Waits while another thread parses a sheet's deferred cell records.  The
+	 * caller holds this workbook's monitor.
+	 * 
+	 * @return true if the calling thread is parsing them itself
+	 */
+	private boolean awaitCellsLoader(Boundsheet bs) {
+		Thread loader;
+		while ((loader = bs.getCellsLoader()) != null) {
+			if (loader == Thread.currentThread())
+				return true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WorkBookException("loading cells of sheet "
+						+ bs.getSheetName() + " was interrupted",
+						WorkBookException.UNSPECIFIED_INIT_ERROR, e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a sheet's cell records to the workbook, either parsing them from
+	 * the given runs of the stream or taking them already decoded.
+	 */
+	private synchronized void linkDeferredCells(Boundsheet bs, int[] spans, List<BiffRec> decoded) {
+		try {
+			addDeferredCells(bs, spans, decoded);
+		} finally {
+			// the cells are in, or as many as could be parsed; wake the
+			// threads waiting for them
+			bs.endDeferredCells();
+			notifyAll();
+		}
+	}
+
+	private void addDeferredCells(Boundsheet bs, int[] spans, List<BiffRec> decoded) {
+		// parse as if the records had been read in place; this may happen
+		// while the rest of the workbook is still being parsed
+		Bof bof = lastBOF;
+		Boundsheet bound = lastbound;
+		Formula formula = lastFormula;
+		ContinueHandler continues = contHandler;
+		boolean inChart = inChartSubstream;
+		Chart chart = currchart;
+		lastBOF = bs.getMyBof();
+		lastbound = bs;
+		lastFormula = null;
+		contHandler = new ContinueHandler(this);
+		inChartSubstream = false;
+		currchart = null;
+		int firstFormula = formulas.size();
+		try {
+			if (decoded != null)
+				factory.addDecodedCells(this, decoded);
+			else
+				for (int i = 0; i < spans.length; i += 2)
+					factory.parseDeferredCells(this, spans[i], spans[i + 1]);
+		} catch (InvalidRecordException e) {
+			throw new WorkBookException("loading cells of sheet "
+					+ bs.getSheetName() + " failed: " + e.toString(),
+					WorkBookException.UNSPECIFIED_INIT_ERROR, e);
+		} finally {
+			lastBOF = bof;
+			lastbound = bound;
+			lastFormula = formula;
+			contHandler = continues;
+			inChartSubstream = inChart;
+			currchart = chart;
+		}
+
+		if (deferredCellsHandle != null) {
+			List merges = bs.getMergedCellsRecs();
+			for (int i = 0; i < merges.size(); i++)
+				((Mergedcells) merges.get(i)).initCells(deferredCellsHandle);
+			for (int i = 0; i < hlinklookup.size(); i++) {
+				Hlink hl = (Hlink) hlinklookup.get(i);
+				if (hl.getSheet() == bs)
+					hl.initCells(deferredCellsHandle);
+			}
+		}
+		initializeIndirectFormulas();
+		// results saved in the file may not reflect cells changed since
+		if (refTracker.hasChangedCells()) {
+			for (int i = firstFormula; i < formulas.size(); i++)
+				((Formula) formulas.get(i)).clearCachedValue();
+		}
+		if (compactCellStorage)
+			bs.compactCells();
+	}
+
+	/**
+	 * Returns the sheet being read if plain value cell records may go
+	 * straight into its compact storage without being made, or null if they
+	 * must be parsed and added as usual.
+	 * 
+	 * @see CellValueFactory
+	 */
+	Boundsheet getCompactValueSheet() {
+		if (!compactCellStorage || copying || inChartSubstream
+				|| lastBOF == null || contHandler.isPending())
+			return null;
+		long lb = lastBOF.getLbPlyPos();
+		if (!lastBOF.isValidBIFF8())
+			lb += 8;
+		return getWorkSheet(Long.valueOf(lb));
+	}
+
+	/**
+	 * Moves the plain value cells of every sheet into compact columnar storage,
+	 * or restores them all to records.
+	 * 
+	 * @see WorkBookHandle#setCompactCellStorage(boolean)
+	 * @see Boundsheet#compactCells()
+	 * @param compact
+	 * @return the number of cells moved into compact storage
+	 */
+	public int setCompactCellStorage(boolean compact) {
+		compactCellStorage = compact;
+		int count = 0;
+		Boundsheet[] shts = this.getWorkSheets();
+		for (int i = 0; i < shts.length; i++) {
+			// sheets not loaded yet are compacted as they load
+			if (shts[i].hasDeferredCells())
+				continue;
+			if (compact)
+				count += shts[i].compactCells();
+			else
+				shts[i].expandCells();
+		}
+		return count;
+	}
+
+	/**
+	 * Sets whether the expressions of formulas read from now on are left as
+	 * record bytes until first used.  Their references are not tracked until
+	 * then; the ReferenceTracker parses any still waiting before it answers
+	 * for the dependents of a cell or shifts references.
+	 * 
+	 * @see ReferenceTracker#parseDeferredFormulas()
+	 * @param lazy
+	 */
+	public void setLazyFormulaParsing(boolean lazy) {
+		lazyFormulaParsing = lazy;
+	}
+
+	/**
+	 * returns true if formulas being read are to leave their expressions
+	 * unparsed until first used
+	 */
+	boolean isLazyFormulaParsing() {
+		return lazyFormulaParsing && !copying;
+	}
+
+	/**
+	 * Settles this workbook so that it may be read from several threads at
+	 * once, and makes it read-only.
+	 * <p>
+	 * Every sheet's cells are loaded and restored from compact storage, its
+	 * Mulblanks are split into a Blank per cell, and formula expressions
+	 * still waiting are parsed, so that reading cells no longer changes the
+	 * workbook.  Formulas return their cached results from then on.  Edits to cells, rows, columns, sheets and formats throw a
+	 * WorkBookException with READ_ONLY_EXCEPTION.
+	 * 
+	 * @see com.valkyrlabs.OpenXLS.SharedWorkBook
+	 */
+	public synchronized void freeze() {
+		if (readOnly)
+			return;
+		loadDeferredCells();
+		setCompactCellStorage(false);
+		Boundsheet[] shts = this.getWorkSheets();
+		for (int i = 0; i < shts.length; i++)
+			shts[i].splitMulblanks();
+		getRefTracker().parseDeferredFormulas();
+		setCalcMode(CALCULATE_EXPLICIT);
+		readOnly = true;
+	}
+
+	/**
+	 * returns true if this workbook has been frozen
+	 * 
+	 * @see #freeze()
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Throws a WorkBookException if this workbook has been frozen.
+	 * 
+	 * @see #freeze()
+	 */
+	public void checkWritable() {
+		if (readOnly)
+			throw new WorkBookException("WorkBook is read-only",
+					WorkBookException.READ_ONLY_EXCEPTION);
+	}
+
+	/**
+	 * returns true if any sheet holds cells in compact storage
+	 */
+	public boolean getCompactCellStorage() {
+		Boundsheet[] shts = this.getWorkSheets();
+		for (int i = 0; i < shts.length; i++) {
+			if (shts[i].hasCompactCells())
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Sets the OpenXLS calculation mode for the workbook.
 	 * 
@@ -3609,6 +4048,7 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 		this.formulas.add(rec);
 		String shn = rec.getSheet().getSheetName() + "!" + rec.getCellAddress();
 		this.formulashash.put(shn, rec);
+		refTracker.invalidateCalculationGraph();
 	}
 
 	public boolean isSharedupes() {
@@ -3638,6 +4078,16 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 		return refTracker;
 	}
 
+	/**
+	 * returns the dependency graph of the formulas in this WorkBook,
+	 * which determines the order and extent of recalculation
+	 * 
+	 * @see WorkBookHandle#recalc()
+	 */
+	public CalculationGraph getCalculationGraph() {
+		return refTracker.getCalculationGraph(this);
+	}
+
 	// OOXML Additions
 	private boolean isExcel2007 = false;
 
@@ -3924,6 +4374,10 @@ public class WorkBook implements Serializable, XLSConstants, Book {
 	 */
 	public void close() {
 		closeSheets();
+		if (recalcPool != null) {
+			recalcPool.shutdown();
+			recalcPool = null;
+		}
 
 		if (this.isExcel2007) {
 			try {
@@ -23,8 +23,10 @@
 package com.valkyrlabs.formats.XLS;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import com.valkyrlabs.OpenXLS.CellHandle;
 import com.valkyrlabs.OpenXLS.InvalidRecordException;
@@ -47,6 +49,49 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
     protected LEOFile myLEO;
     private String fname;
 
+    /**
+     * Set this system property to "true" to leave the cell records of each
+     * worksheet unparsed until the sheet's cells are first used.
+     * 
+     * @see Boundsheet#ensureCellsLoaded()
+     */
+    public static final String LAZYSHEETLOADING = "com.valkyrlabs.OpenXLS.lazySheetLoading";
+
+    /**
+     * Set this system property to the number of threads to parse worksheet
+     * cell records on when a workbook is opened, or to "true" for one per
+     * processor.  The records are still added to the workbook one sheet at a
+     * time in sheet order, so the workbook is the same as if parsed on one
+     * thread.  Lazy sheet loading takes precedence.
+     * 
+     * @see WorkBook#loadDeferredCells(int)
+     */
+    public static final String PARALLELSHEETLOADING = "com.valkyrlabs.OpenXLS.parallelSheetLoading";
+
+    /**
+     * Set this system property to "true" to keep plain value cells in compact
+     * storage.  Their records are read straight into it without being made.
+     * 
+     * @see WorkBook#setCompactCellStorage(boolean)
+     */
+    public static final String COMPACTCELLSTORAGE = "com.valkyrlabs.OpenXLS.compactCellStorage";
+
+    /**
+     * Set this system property to "true" to leave the expressions of formulas
+     * unparsed until they are calculated, inspected or their references are
+     * needed.  Their cached results are read as usual.
+     * 
+     * @see WorkBook#setLazyFormulaParsing(boolean)
+     */
+    public static final String LAZYFORMULAPARSING = "com.valkyrlabs.OpenXLS.lazyFormulaParsing";
+
+    // the stream cell records were left in by lazy sheet loading
+    private transient BlockByteReader deferredReader;
+    // the body of the value cell record being read into compact storage
+    private transient byte[] valueBody = new byte[16];
+    // load sheets lazily whatever the system property says
+    private boolean lazySheetLoading = false;
+
     public void setDebugLevel(int d) {
 	DEBUGLEVEL = d;
     }
@@ -103,6 +148,14 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 	return fname;
     }
 
+    /**
+     * Loads the cells of each worksheet only when the sheet is first used, as
+     * the {@link #LAZYSHEETLOADING} system property does for all workbooks.
+     */
+    public void setLazySheetLoading(boolean lazy) {
+	lazySheetLoading = lazy;
+    }
+
     /**
      * sets the workbook filename associated with this wbfactory
      * 
@@ -122,10 +175,7 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 	    return rec.getOpcode();
 	}
 
-	byte[] b1 = parsedata.getHeaderBytes(i);
-
-	short opcode = ByteTools.readShort(b1[0], b1[1]);
-	return opcode;
+	return (short) parsedata.getHeader(i);
     }
 
     LEOFile getLEOFile() {
@@ -172,6 +222,28 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 
 	myLEO = leo;
 
+	// lazy sheet loading skips over runs of cell records in worksheets;
+	// parallel loading does too, then parses them all before returning
+	boolean bLazy = !bPerformRecordLevelValidation && WorkBookHandle.dump_input == null
+		&& (lazySheetLoading || Boolean.valueOf(System.getProperty(LAZYSHEETLOADING)).booleanValue());
+	int loadThreads = 1;
+	if (!bLazy && !bPerformRecordLevelValidation && WorkBookHandle.dump_input == null
+		&& blockByteReader.isConcurrentReadable()) {
+	    loadThreads = getLoadParallelism();
+	    bLazy = loadThreads > 1;
+	}
+	Boundsheet lazySheet = null;
+	if (bLazy)
+	    deferredReader = blockByteReader;
+	// records are kept for record-level validation and the dump
+	boolean bCompactValues = !bPerformRecordLevelValidation && WorkBookHandle.dump_input == null
+		&& book instanceof WorkBook && Boolean.valueOf(System.getProperty(COMPACTCELLSTORAGE)).booleanValue();
+	if (bCompactValues)
+	    ((WorkBook) book).setCompactCellStorage(true);
+	if (!bPerformRecordLevelValidation && WorkBookHandle.dump_input == null && book instanceof WorkBook
+		&& Boolean.valueOf(System.getProperty(LAZYFORMULAPARSING)).booleanValue())
+	    ((WorkBook) book).setLazyFormulaParsing(true);
+
 	book.setDebugLevel(this.DEBUGLEVEL);
 	book.setFactory(this);
 	boolean infile = false;
@@ -194,9 +266,9 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 	for (int i = 0; i <= blen - 4;) {
 
 	    this.fireProgressChanged(); // ""
-	    byte[] headerbytes = parsedata.getHeaderBytes(i);
-	    opcode = ByteTools.readShort(headerbytes[0], headerbytes[1]);
-	    reclen = ByteTools.readShort(headerbytes[2], headerbytes[3]);
+	    int header = parsedata.getHeader(i);
+	    opcode = (short) header;
+	    reclen = (short) (header >> 16);
 
 	    if (lastOpcode==EOF && (opcode == 0) || (opcode == 0xffffffff)) {
 		int startpos = i - 3, junkreclen = 0, offset = 0;
@@ -214,6 +286,22 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 		else if ((reclen + 1) > blen)
 		    throw new InvalidRecordException("WorkBookFactory.getWorkBook() Reclen longer than data pos:" + i + " opcode:0x" + Integer.toHexString(opcode));
 
+		if (lazySheet != null && BofCount == 1 && isDeferredCellRecord(opcode)) {
+		    int end = skipCellRecords(parsedata, i, blen);
+		    if (end > i) {
+			lazySheet.deferCells(i, end);
+			i = end;
+			lastOpcode = opcode;
+			continue;
+		    }
+		}
+
+		if (bCompactValues && BofCount == 1 && addCompactValues(book, opcode, i, reclen, parsedata)) {
+		    i += reclen + 4;
+		    lastOpcode = opcode;
+		    continue;
+		}
+
 		if (opcode == BOF || infile) { // if the first Bof has been
 					       // reached, start
 		    infile = true;
@@ -241,6 +329,8 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 			}
 
 		    if (rec == null) { // Effectively an EOF
+			if (loadThreads > 1)
+			    ((WorkBook) book).loadDeferredCells(loadThreads);
 			if (DEBUGLEVEL > 0)
 			    Logger.logInfo("done parsing WorkBook storage.");
 			this.done = true;
@@ -265,6 +355,9 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
         		}
 		    
 			BofCount++;
+			if (bLazy && BofCount == 1 && rec.getSheet() != null
+				&& ((Bof) rec).isSheetBof() && !((Bof) rec).isChartBof())
+			    lazySheet = rec.getSheet();
 			/***** KSC: record-level validation ****/
 			if (bPerformRecordLevelValidation && curSubstream==null) {
 			    // after global substream is processed, switch to sheet substream 
@@ -275,6 +368,8 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 			}
 		    } else if (opcode == EOF) {
 			BofCount--;
+			if (BofCount == 0)
+			    lazySheet = null;
 
  			/***** KSC: record-level validation ****/
  			if (bPerformRecordLevelValidation && BofCount==0 && curSubstream != null) {
@@ -298,6 +393,8 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 		
 	    }
 	}
+	if (loadThreads > 1)
+	    ((WorkBook) book).loadDeferredCells(loadThreads);
 	if (DEBUGLEVEL > 0)
 	    Logger.logInfo("done");
 	progress = blen;
@@ -311,6 +408,189 @@ public class WorkBookFactory implements com.valkyrlabs.toolkit.ProgressNotifier,
 	return book;
     }
 
+    /**
+     * Returns the number of threads set by {@link #PARALLELSHEETLOADING}, or
+     * 1 if it is not set.
+     */
+    private static int getLoadParallelism() {
+	String threads = System.getProperty(PARALLELSHEETLOADING);
+	if (threads == null)
+	    return 1;
+	if (threads.equalsIgnoreCase("true"))
+	    return Runtime.getRuntime().availableProcessors();
+	try {
+	    return Math.max(1, Integer.parseInt(threads.trim()));
+	} catch (NumberFormatException e) {
+	    return 1;
+	}
+    }
+
+    /**
+     * Returns whether a record belongs to the cell table of a worksheet and is
+     * kept out of the record stream, so may be parsed later.
+     */
+    private static boolean isDeferredCellRecord(short opcode) {
+	switch (opcode) {
+	    case ROW:
+	    case DBCELL:
+	    case BLANK:
+	    case MULBLANK:
+	    case NUMBER:
+	    case RK:
+	    case MULRK:
+	    case LABEL:
+	    case LABELSST:
+	    case BOOLERR:
+	    case FORMULA:
+	    case SHRFMLA:
+	    case ARRAY:
+	    case STRINGREC:
+		return true;
+	    default:
+		return false;
+	}
+    }
+
+    /**
+     * Finds the end of the run of cell records starting at the given offset.
+     * A record followed by CONTINUE records ends the run before it, as those
+     * are joined up by the ContinueHandler as they are read.
+     * 
+     * @return the offset of the first record not in the run
+     */
+    private static int skipCellRecords(BlockByteReader parsedata, int start, int blen) {
+	int i = start;
+	while (i <= blen - 4) {
+	    int header = parsedata.getHeader(i);
+	    short opcode = (short) header;
+	    int reclen = (short) (header >> 16);
+	    if (!isDeferredCellRecord(opcode) || reclen < 0 || i + reclen + 4 > blen)
+		break;
+	    int next = i + reclen + 4;
+	    if (next <= blen - 4) {
+		if ((short) parsedata.getHeader(next) == CONTINUE)
+		    break;
+	    }
+	    i = next;
+	}
+	return i;
+    }
+
+    /**
+     * Parses a run of cell records left unread by lazy sheet loading.
+     * 
+     * @param book  the WorkBook, set up as it was when the run was reached
+     * @param start the offset of the first record of the run
+     * @param end   the offset just past the last record of the run
+     */
+    synchronized void parseDeferredCells(Book book, int start, int end) throws InvalidRecordException {
+	for (int i = start; i < end;) {
+	    int header = deferredReader.getHeader(i);
+	    short opcode = (short) header;
+	    short reclen = (short) (header >> 16);
+	    if (!addCompactValues(book, opcode, i, reclen, deferredReader))
+		this.parse(book, opcode, i, reclen, deferredReader);
+	    i += reclen + 4;
+	}
+    }
+
+    /**
+     * Stores a plain value cell record straight into the compact cell storage
+     * of the sheet being read, if the workbook keeps it, rather than parsing
+     * the record.
+     * 
+     * @return false if the record must be parsed
+     * @see CellValueFactory
+     */
+    private synchronized boolean addCompactValues(Book book, short opcode, int offset, int reclen, BlockByteReader bytebuf) {
+	RecordFactory factory = XLSRecordFactory.getRecordFactory(opcode);
+	if (!(factory instanceof CellValueFactory) || !(book instanceof WorkBook)
+		|| reclen < 0 || offset + reclen + 4 > bytebuf.getLength())
+	    return false;
+	Boundsheet sheet = ((WorkBook) book).getCompactValueSheet();
+	if (sheet == null)
+	    return false;
+	// a record with CONTINUEs is joined up by the ContinueHandler
+	int next = offset + reclen + 4;
+	if (next <= bytebuf.getLength() - 4 && (short) bytebuf.getHeader(next) == CONTINUE)
+	    return false;
+	if (valueBody.length < reclen)
+	    valueBody = new byte[reclen];
+	bytebuf.read(offset + 4, valueBody, 0, reclen);
+	return ((CellValueFactory) factory).addValues(sheet, valueBody, reclen);
+    }
+
+    /**
+     * Returns whether a cell record's init() reads nothing but its own bytes
+     * and the workbook's global records, so it may be run apart from the
+     * records before it and on any thread.
+     */
+    private static boolean isSelfContainedCellRecord(short opcode) {
+	switch (opcode) {
+	    case ROW:
+	    case DBCELL:
+	    case BLANK:
+	    case MULBLANK:
+	    case NUMBER:
+	    case RK:
+	    case MULRK:
+	    case LABELSST:
+	    case BOOLERR:
+		return true;
+	    default:
+		return false;
+	}
+    }
+
+    /**
+     * Creates the records of runs of cell records left unread by lazy sheet
+     * loading without adding them to the workbook.  Self-contained records are
+     * initialized here; formulas and the records tied to them are left for
+     * {@link #addDecodedCells(Book, List)}.  This touches nothing shared but
+     * the stream, so may run for several sheets at once.
+     * 
+     * @param spans start and end offset pairs of the runs
+     */
+    List<BiffRec> decodeDeferredCells(Book book, int[] spans) throws InvalidRecordException {
+	List<BiffRec> recs = new ArrayList<BiffRec>();
+	for (int s = 0; s < spans.length; s += 2) {
+	    for (int i = spans[s]; i < spans[s + 1];) {
+		int header = deferredReader.getHeader(i);
+		short opcode = (short) header;
+		short reclen = (short) (header >> 16);
+		if ((reclen < 0) || (reclen > XLSConstants.MAXRECLEN))
+		    throw new InvalidRecordException("InvalidRecordException BAD RECORD LENGTH: " + " off: " + i + " op: " + Integer.toHexString(opcode) + " len: " + reclen);
+		BiffRec rec = XLSRecordFactory.getBiffRecord(opcode);
+		rec.setWorkBook((WorkBook) book);
+		rec.setByteReader(deferredReader);
+		rec.setLength(reclen);
+		rec.setOffset(i);
+		rec.setDebugLevel(this.DEBUGLEVEL);
+		rec.setStreamer(book.getStreamer());
+		if (isSelfContainedCellRecord(opcode))
+		    rec.init();
+		recs.add(rec);
+		i += reclen + 4;
+	    }
+	}
+	return recs;
+    }
+
+    /**
+     * Adds records made by {@link #decodeDeferredCells(Book, int[])} to the
+     * workbook in order, initializing those which were left.
+     */
+    synchronized void addDecodedCells(Book book, List<BiffRec> recs) {
+	for (int i = 0; i < recs.size(); i++) {
+	    BiffRec rec = recs.get(i);
+	    // none of these is followed by a CONTINUE, so the handler would
+	    // do no more than init them
+	    if (!isSelfContainedCellRecord(rec.getOpcode()))
+		book.getContinueHandler().addRec(rec, rec.getLength() - 4);
+	    book.addRecord(rec, true);
+	}
+    }
+
     /**
      * create the individual records based on type
      */
@@ -57,6 +57,7 @@ public interface XLSConstants
     public static String CALC_MODE_PROP = "com.valkyrlabs.OpenXLS.calcmode";
     public static String REFTRACK_PROP = "com.valkyrlabs.OpenXLS.trackreferences";
     public static String USETEMPFILE_PROP = "com.valkyrlabs.formats.LEO.usetempfile";    
+    public static String WINDOWEDMAPPING_PROP = "com.valkyrlabs.formats.LEO.windowedmapping";
     public static String VALIDATEWORKBOOK = "com.valkyrlabs.formats.LEO.validateworkbook";
 	// Debug options
 	public static int DEBUG_LOW		= 50;
@@ -782,6 +782,16 @@ public class XLSRecord implements BiffRec, BlockByteConsumer, Serializable, XLSC
         }
     }
    
+    /**
+     * Throws a WorkBookException if this record's workbook has been frozen.
+     * 
+     * @see WorkBook#freeze()
+     */
+    protected void checkWritable() {
+        if (wkbook != null)
+            wkbook.checkWritable();
+    }
+
     /** set the XF (format) record for this rec
     */
     public void setXFRecord(int i){
@@ -794,6 +804,7 @@ public class XLSRecord implements BiffRec, BlockByteConsumer, Serializable, XLSC
     /** set the XF (format) record for this rec
     */
     public void setIxfe(int i){
+        checkWritable();
         this.ixfe = i;
         byte[] newxfe = ByteTools.cLongToLEBytes(i);
         byte[] b = this.getData();
@@ -1041,6 +1052,29 @@ public class XLSRecord implements BiffRec, BlockByteConsumer, Serializable, XLSC
     public void postStream() {
     	// nothing here -- use to blow out data
     }
+
+    /**
+     * Returns whether this record's bytes, header included, may be copied
+     * as they are from the stream the record was read from.
+     * <p>
+     * Every change to a record goes through its data array, so a record
+     * whose bytes were never read into one is clean.  Records that are
+     * assembled with their Continues on output are never clean.
+     */
+    boolean isPassThrough() {
+    	if (data != null || databuf == null || hasContinues())
+    		return false;
+    	switch (opcode) {
+    		case CONTINUE:
+    		case SST:
+    		case SXLI:
+    		case TXO:
+    		case MSODRAWINGGROUP:
+    			return false;
+    	}
+    	return reclen <= MAXRECLEN
+    			&& originalOffset + reclen + 4 <= databuf.getLength();
+    }
     
     /**
      * clear out object references in prep for closing workbook
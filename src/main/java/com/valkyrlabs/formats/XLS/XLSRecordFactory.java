@@ -51,6 +51,42 @@ implements XLSConstants {
 	/** Maps BIFF8 record opcodes to classes. */
 	// Removed static object instance creations as very difficult (impossible) to dereference so as can release memeory ...
 // TRY :	private static final Map records;
+
+	// registered factories indexed by opcode, looked up before the switch in
+	// getBiffRecord; replaced whole on each change so reads need no lock
+	private static volatile RecordFactory[] factories = new RecordFactory[0];
+
+	static {
+		// the value cells, which may be read straight into compact storage
+		short[] cells = { NUMBER, RK, MULRK, LABELSST, BOOLERR, BLANK };
+		for (int i = 0; i < cells.length; i++)
+			register(cells[i], new CellValueFactory(cells[i]));
+	}
+
+	/**
+	 * Registers the factory to make the records of an opcode with, in place
+	 * of the built-in record class.
+	 * 
+	 * @param opcode  the BIFF8 record opcode
+	 * @param factory the factory, or null to go back to the built-in class
+	 */
+	public static synchronized void register(short opcode, RecordFactory factory) {
+		int i = opcode & 0xFFFF;
+		RecordFactory[] f = factories;
+		f = Arrays.copyOf(f, Math.max(f.length, i + 1));
+		f[i] = factory;
+		factories = f;
+	}
+
+	/**
+	 * Returns the factory registered for an opcode, or null if its records
+	 * are made from the built-in classes.
+	 */
+	public static RecordFactory getRecordFactory(short opcode) {
+		RecordFactory[] f = factories;
+		int i = opcode & 0xFFFF;
+		return i < f.length ? f[i] : null;
+	}
 	
 	// subset of ptgLookup below used for pattern matching in formula strings
 	public static String[][] ptgOps= {
@@ -361,11 +397,17 @@ implements XLSConstants {
 	
 	/** Get an instance of the record type corresponding to the given opcode.
 	 * @param opcode the BIFF8 record opcode to be resolved
-	 * @return an instance of the class corresponding to the given opcode
-	 *         or an XLSRecord if the opcode is unknown
+	 * @return an instance of the class registered for the given opcode or
+	 *         corresponding to it, or an XLSRecord if the opcode is unknown
 	 * @throws RuntimeException if instantiation of the record fails
 	 */
 	public static BiffRec getBiffRecord (short opcode) {
+		RecordFactory factory= getRecordFactory( opcode );
+		if (factory != null) {
+			BiffRec record= factory.newRecord();
+			record.setOpcode( opcode );
+			return record;
+		}
 		// TRY THIS:
 		BiffRec record= null;
 		try {
@@ -0,0 +1,149 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS.formulas;
+
+import java.util.Arrays;
+import java.util.Stack;
+
+import com.valkyrlabs.OpenXLS.FunctionNotSupportedException;
+
+/**
+ * A formula expression compiled for repeated calculation.
+ * <p>
+ * FormulaCalculator works through an expression token by token each time it
+ * is calculated, copying it into new Stacks and finding the operand count of
+ * each operator as it goes.  Compiling does that work once: parens and
+ * attribute Ptgs are dropped and the operand count of each operator, control
+ * and function Ptg is recorded.  Calculating the program calls calculatePtg
+ * on the same Ptgs, with the same operands and in the same order, as
+ * FormulaCalculator would.
+ * <p>
+ * The program is two arrays, holding the Ptgs of the expression rather than
+ * copies, so changes made to them, such as references being moved or
+ * re-pointed, are seen.  Changes to the expression Stack itself are not;
+ * check {@link #isCompiledFrom(Stack)} before use.
+ *
+ * @see FormulaCalculator#calculateFormulaPtg(Stack)
+ */
+public final class CompiledExpression {
+    /** the Ptgs to calculate, in expression order */
+    private final Ptg[] program;
+    /** the operand count of each Ptg in program, or -1 for an operand */
+    private final short[] counts;
+    /** the most values on the calculation stack at once */
+    private final int depth;
+
+    private CompiledExpression(Ptg[] program, short[] counts, int depth) {
+        this.program = program;
+        this.counts = counts;
+        this.depth = depth;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @return the compiled expression, or null if it holds a Ptg which can't be
+     * calculated or too few operands for an operator; FormulaCalculator
+     * reports these when calculating the expression itself
+     */
+    public static CompiledExpression compile(Stack expression) {
+        int n = expression.size();
+        Ptg[] program = new Ptg[n];
+        short[] counts = new short[n];
+        int len = 0, top = 0, depth = 0;
+        for (int i = 0; i < n; i++) {
+            Ptg p = (Ptg) expression.get(i);
+            if (p.getIsOperator() || p.getIsControl() || p.getIsFunction()) {
+                if (p.getIsControl() && top > 0 && p.getOpcode() == 0x15)
+                    continue; // parens are only for display
+                int t = FormulaCalculator.getNumOperands(p);
+                if (t > top)
+                    return null;
+                top -= t;
+                counts[len] = (short) t;
+            } else if (p.getIsOperand()) {
+                counts[len] = -1;
+            } else if (p instanceof PtgAtr) {
+                continue;
+            } else {
+                return null;
+            }
+            program[len++] = p;
+            depth = Math.max(depth, ++top);
+        }
+        if (top == 0)
+            return null;
+        if (len < n) {
+            program = Arrays.copyOf(program, len);
+            counts = Arrays.copyOf(counts, len);
+        }
+        return new CompiledExpression(program, counts, depth);
+    }
+
+    /**
+     * returns true if this was compiled from expression as it now stands
+     */
+    public boolean isCompiledFrom(Stack expression) {
+        int n = expression.size(), j = 0;
+        for (int i = 0; i < n; i++) {
+            Ptg p = (Ptg) expression.get(i);
+            if (j < program.length && program[j] == p)
+                j++;
+            else if (!(p instanceof PtgAtr || (p.getIsControl() && p.getOpcode() == 0x15)))
+                return false;
+        }
+        return j == program.length;
+    }
+
+    /**
+     * Calculates the expression.
+     *
+     * @return the resulting Ptg, as FormulaCalculator.calculateFormulaPtg would return
+     */
+    public Ptg calculate() throws FunctionNotSupportedException {
+        Ptg[] vals = new Ptg[depth];
+        int top = 0;
+        for (int i = 0; i < program.length; i++) {
+            Ptg p = program[i];
+            int t = counts[i];
+            if (t < 0) {
+                vals[top++] = p;
+                continue;
+            }
+            Ptg[] vx = new Ptg[t];
+            top -= t;
+            System.arraycopy(vals, top, vx, 0, t);
+            try {
+                p = p.calculatePtg(vx);
+            } catch (CalculationException e) {
+                PtgErr err = new PtgErr(e.getErrorCode());
+                if (e.getName().equals("#CIR_ERR!")) {
+                    err.setCircularError(true);
+                }
+                p = err;
+            }
+            vals[top++] = p;
+        }
+        return vals[top - 1];
+    }
+}
@@ -112,34 +112,28 @@ public class DatabaseCalculator {
      */
     private static DB getDb(Ptg operands) {
         ReferenceTracker DBcache = operands.getParentRec().getWorkBook().getRefTracker();
-
-        //gonna try never caching this... painful, but if we dont'
-        if (DBcache.getListDBs().get(operands.toString()) != null) {
-            //Logger.logInfo("getDB: " + operands.toString()+ "using cache.");
-            return (DB) DBcache.getListDBs().get(operands.toString());
-        }
-        //}
-        // create new
-        //Logger.logErr("getDB: " + operands.toString()+ "NOT cached.");
+        String key = operands.toString();
+        DB ret = (DB) DBcache.getListDBs().get(key);
+        if (ret != null)
+            return ret;
+        // create new; parsing may calculate cells which use this cache, so
+        // not inside computeIfAbsent
         Ptg[] dbrange = PtgCalculator.getAllComponents(operands);
-        DB ret = DB.parseList(dbrange);
-        DBcache.getListDBs().put(operands.toString(), ret);
-        return ret;
+        ret = DB.parseList(dbrange);
+        Object cached = DBcache.getListDBs().putIfAbsent(key, ret);
+        return cached != null ? (DB) cached : ret;
     }
 
     private static Criteria getCriteria(Ptg operands) {
         ReferenceTracker DBcache = operands.getParentRec().getWorkBook().getRefTracker();
-
-        // test without cache
-        if (DBcache.getCriteriaDBs().get(operands.toString()) != null) {
-            //Logger.logInfo("getCriteria: " + operands.toString()+ "using cache.");
-            return (Criteria) DBcache.getCriteriaDBs().get(operands.toString());
-        }
-        //Logger.logErr("getCriteria: " + operands.toString()+ "NOT cached.");
+        String key = operands.toString();
+        Criteria ret = (Criteria) DBcache.getCriteriaDBs().get(key);
+        if (ret != null)
+            return ret;
         Ptg[] criteria = PtgCalculator.getAllComponents(operands);
-        Criteria ret = Criteria.parseCriteria(criteria);
-        DBcache.getCriteriaDBs().put(operands.toString(), ret);
-        return ret;
+        ret = Criteria.parseCriteria(criteria);
+        Object cached = DBcache.getCriteriaDBs().putIfAbsent(key, ret);
+        return cached != null ? (Criteria) cached : ret;
     }
 
     /**
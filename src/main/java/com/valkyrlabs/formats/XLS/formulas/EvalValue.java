@@ -0,0 +1,152 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS.formulas;
+
+/**
+ * EvalValue holds one value produced while calculating a formula, tagged with
+ * its type, so that numbers can pass from an operand to the operator using
+ * them without being boxed.
+ * <p>
+ * Operands put their values in an EvalValue through
+ * {@link Ptg#getValue(EvalValue)}.  Each thread has one EvalValue for this,
+ * returned by {@link #forThread()}; since evaluating an operand may calculate
+ * other formulas on the same thread, a value must be read before the next
+ * operand is evaluated:
+ * <pre>
+ * EvalValue v = EvalValue.forThread();
+ * operand.getValue(v);
+ * if (v.isNumber())
+ *     d = v.getDouble();
+ * </pre>
+ *
+ * @see GenericPtg#getNumbersOrValues(Ptg[], double[])
+ */
+public final class EvalValue {
+    /**
+     * no value has been set, or the value is null
+     */
+    public static final int EMPTY = 0;
+    public static final int NUMBER = 1;
+    public static final int STRING = 2;
+    public static final int BOOLEAN = 3;
+    /**
+     * a CalculationException or an error Ptg
+     */
+    public static final int ERROR = 4;
+    /**
+     * an array value
+     */
+    public static final int ARRAY = 5;
+    /**
+     * any other object
+     */
+    public static final int OTHER = 6;
+
+    private static final ThreadLocal<EvalValue> VALUES = new ThreadLocal<EvalValue>() {
+        @Override
+        protected EvalValue initialValue() {
+            return new EvalValue();
+        }
+    };
+
+    private int type = EMPTY;
+    private double number = 0;
+    private Object object = null;
+
+    /**
+     * @return the calling thread's EvalValue
+     */
+    public static EvalValue forThread() {
+        return VALUES.get();
+    }
+
+    /**
+     * sets the value to a number, unboxed
+     */
+    public void setNumber(double d) {
+        type = NUMBER;
+        number = d;
+        object = null;
+    }
+
+    /**
+     * sets the value to the given object, as returned by {@link Ptg#getValue()}.
+     * Only Doubles and Integers are taken as numbers; other Numbers keep
+     * their own conversions.
+     */
+    public void set(Object o) {
+        object = o;
+        number = 0;
+        if (o == null) {
+            type = EMPTY;
+        } else if (o instanceof Double) {
+            type = NUMBER;
+            number = ((Double) o).doubleValue();
+        } else if (o instanceof Integer) {
+            type = NUMBER;
+            number = ((Integer) o).intValue();
+        } else if (o instanceof String) {
+            type = STRING;
+        } else if (o instanceof Boolean) {
+            type = BOOLEAN;
+        } else if (o instanceof CalculationException || o instanceof PtgErr) {
+            type = ERROR;
+        } else if (o instanceof PtgArray) {
+            type = ARRAY;
+        } else {
+            type = OTHER;
+        }
+    }
+
+    /**
+     * @return one of EMPTY, NUMBER, STRING, BOOLEAN, ERROR, ARRAY or OTHER
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the value is a number, available unboxed from
+     * {@link #getDouble()}
+     */
+    public boolean isNumber() {
+        return type == NUMBER;
+    }
+
+    /**
+     * @return the numeric value, or 0 if the value is not a number
+     */
+    public double getDouble() {
+        return number;
+    }
+
+    /**
+     * Returns the value as an object, as {@link Ptg#getValue()} would; a
+     * number set unboxed is returned as a Double.
+     */
+    public Object getValue() {
+        if (type == NUMBER && object == null)
+            object = new Double(number);
+        return object;
+    }
+}
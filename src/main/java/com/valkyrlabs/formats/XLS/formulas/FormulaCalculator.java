@@ -96,6 +96,24 @@ public class FormulaCalculator {
         return finalptg;
     }
 
+    /**
+     * returns the number of operands the operator, control or function Ptg p
+     * takes from the calculation stack
+     */
+    static int getNumOperands(Ptg p) {
+        int t = 0;
+        if (p.getIsBinaryOperator()) t = 2;
+        if (p.getIsUnaryOperator()) t = 1;
+        if (p.getIsStandAloneOperator()) t = 0;
+        if (p.getOpcode() == 0x22 || p.getOpcode() == 0x42 || p.getOpcode() == 0x62) {
+            t = p.getNumParams();
+        }// it's a ptgfunkvar!
+        if (p.getOpcode() == 0x21 || p.getOpcode() == 0x41 || p.getOpcode() == 0x61) {
+            t = p.getNumParams();
+        }// guess that ptgfunc is not only one..
+        return t;
+    }
+
     /**
      * This is a very similar method to the handle ptg method in formula parser.
      * Instead of creating a tree however it calculates in the order recommended by
@@ -117,15 +135,7 @@ public class FormulaCalculator {
                 if (DEBUG) Logger.logInfo("opr: " + p.toString());
             }
             // make sure we have the correct amount popped back in..
-            if (p.getIsBinaryOperator()) t = 2;
-            if (p.getIsUnaryOperator()) t = 1;
-            if (p.getIsStandAloneOperator()) t = 0;
-            if (p.getOpcode() == 0x22 || p.getOpcode() == 0x42 || p.getOpcode() == 0x62) {
-                t = p.getNumParams();
-            }// it's a ptgfunkvar!
-            if (p.getOpcode() == 0x21 || p.getOpcode() == 0x41 || p.getOpcode() == 0x61) {
-                t = p.getNumParams();
-            }// guess that ptgfunc is not only one..
+            t = getNumOperands(p);
 
             Ptg[] vx = new Ptg[t];
             for (; x < t; x++) vx[(t - 1) - x] = (Ptg) vals.pop();// get'em
@@ -1380,6 +1380,7 @@ public final class FormulaParser {
             a.setSheet(form.getSheet());
             a.setWorkBook(form.getWorkBook());
             a.init(fmla, rc[0], rc[1]);    // init Array record from Formula String
+            a.setParentRec(form);
             form.addInternalRecord(a);    // link array record to parent formula
         }
 		
@@ -629,7 +629,7 @@ public class FunctionConstants {
             {"Second", String.valueOf(xlfSecond), String.valueOf(FTYPE_PTGFUNC)},
             {"Quartile", String.valueOf(xlfQuartile), String.valueOf(FTYPE_PTGFUNC)},
             {"Frequency", String.valueOf(xlfFrequency), String.valueOf(FTYPE_PTGFUNC)},
-            {"Linest", String.valueOf(xlfLinest), String.valueOf(FTYPE_PTGFUNC)},
+            {"Linest", String.valueOf(xlfLinest), String.valueOf(FTYPE_PTGFUNCVAR)},
             {"Correl", String.valueOf(xlfCorrel), String.valueOf(FTYPE_PTGFUNC)},
             {"Slope", String.valueOf(xlfSlope), String.valueOf(FTYPE_PTGFUNC)},
             {"Intercept", String.valueOf(xlfIntercept), String.valueOf(FTYPE_PTGFUNC)},
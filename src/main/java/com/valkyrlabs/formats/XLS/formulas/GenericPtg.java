@@ -57,8 +57,15 @@ public abstract class GenericPtg
      * @return
      */
     protected static Object[] getValuesFromPtgs(Ptg[] pthings) {
-        Object[] obar = new Object[pthings.length];
-        for (int t = 0; t < obar.length; t++) {
+        return getValuesFromPtgs(pthings, new Object[pthings.length], 0);
+    }
+
+    /**
+     * fills in the values of the operands from the given one on, as
+     * getValuesFromPtgs(Ptg[]) does
+     */
+    private static Object[] getValuesFromPtgs(Ptg[] pthings, Object[] obar, int from) {
+        for (int t = from; t < obar.length; t++) {
             if (pthings[t] instanceof PtgErr)
                 return null;
             if (pthings[t] instanceof PtgArray) {
@@ -71,40 +78,103 @@ public abstract class GenericPtg
                 }
                 obar[t] = v;
             } else {
-                Object pval = pthings[t].getValue();
-                if (pval instanceof PtgArray) {
-                    obar[t] = ((PtgArray) pval).getComponents();    // get all items in array as Ptgs
-                    Object v = null;
-                    try {
-                        v = getValuesFromObjects((Object[]) obar[t]);    // get value array from the ptgs
-                    } catch (NumberFormatException e) {    // string or non-numeric values
-                        v = getStringValuesFromPtgs((Ptg[]) obar[t]);
-                    }
-                    obar[t] = v;
-                } else if (pval instanceof Name) {    // then get it's components ...
-                    obar[t] = pthings[t].getComponents();
-                    Object v = null;
-                    try {
-                        v = getValuesFromPtgs((Ptg[]) obar[t]);    // get value array from the ptgs
-                    } catch (NumberFormatException e) {    // string or non-numeric values
-                        v = getStringValuesFromPtgs((Ptg[]) obar[t]);
-                    }
-                    obar[t] = v;
-                } else {    // it's a single value
-                    try {
-                        obar[t] = new Double(getDoubleValueFromObject(pval));
-                    } catch (NumberFormatException e) {
-                        if (pval instanceof CalculationException)
-                            obar[t] = pval.toString();
-                        else
-                            obar[t] = pval;
-                    }
-                }
+                obar[t] = getOperandValue(pthings[t], pthings[t].getValue());
             }
         }
         return obar;
     }
 
+    /**
+     * converts the value of an operand which is not itself an array, as
+     * getValuesFromPtgs(Ptg[]) does
+     */
+    private static Object getOperandValue(Ptg p, Object pval) {
+        if (pval instanceof PtgArray) {
+            Object[] comps = ((PtgArray) pval).getComponents();    // get all items in array as Ptgs
+            try {
+                return getValuesFromObjects(comps);    // get value array from the ptgs
+            } catch (NumberFormatException e) {    // string or non-numeric values
+                return getStringValuesFromPtgs((Ptg[]) comps);
+            }
+        } else if (pval instanceof Name) {    // then get it's components ...
+            Ptg[] comps = p.getComponents();
+            try {
+                return getValuesFromPtgs(comps);    // get value array from the ptgs
+            } catch (NumberFormatException e) {    // string or non-numeric values
+                return getStringValuesFromPtgs(comps);
+            }
+        } else {    // it's a single value
+            try {
+                return new Double(getDoubleValueFromObject(pval));
+            } catch (NumberFormatException e) {
+                if (pval instanceof CalculationException)
+                    return pval.toString();
+                return pval;
+            }
+        }
+    }
+
+    /**
+     * Returns the error an operator yields for these operand values: as in
+     * Excel, the first operand holding an error such as #DIV/0! or #N/A is
+     * passed on, rather than being treated as text.
+     *
+     * @param values operand values as from getValuesFromPtgs(Ptg[])
+     * @return the error, or null if no operand is an error
+     */
+    protected static Ptg getOperandError(Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof String))
+                continue;
+            String s = (String) values[i];
+            if (s.length() < 2 || s.charAt(0) != '#')
+                continue;
+            byte code = CalculationException.getErrorCode(s);
+            if (code != 0 || s.equals("#NULL!"))
+                return new PtgErr(code);
+        }
+        return null;
+    }
+
+    /**
+     * returned by getNumbersOrValues when all the operands are numbers
+     */
+    protected static final Object[] ALL_NUMBERS = new Object[0];
+
+    /**
+     * Evaluates the operands of an operator, each just once.  If all of them
+     * are numbers their values are put unboxed in <code>numbers</code> and
+     * ALL_NUMBERS is returned; otherwise the values are returned as from
+     * getValuesFromPtgs(Ptg[]), for the operator's general path.
+     *
+     * @param pthings the operands
+     * @param numbers receives the numeric values; at least as long as pthings
+     * @return ALL_NUMBERS if all the operands are numbers
+     */
+    protected static Object[] getNumbersOrValues(Ptg[] pthings, double[] numbers) {
+        EvalValue v = EvalValue.forThread();
+        for (int t = 0; t < pthings.length; t++) {
+            boolean evaluated = false;
+            if (!(pthings[t] instanceof PtgErr) && !(pthings[t] instanceof PtgArray)) {
+                pthings[t].getValue(v);
+                if (v.isNumber()) {
+                    numbers[t] = v.getDouble();
+                    continue;
+                }
+                evaluated = true;
+            }
+            // not all numbers; carry on as getValuesFromPtgs, keeping the values read so far
+            Object[] obar = new Object[pthings.length];
+            for (int i = 0; i < t; i++)
+                obar[i] = new Double(numbers[i]);
+            if (!evaluated)
+                return getValuesFromPtgs(pthings, obar, t);
+            obar[t] = getOperandValue(pthings[t], v.getValue());
+            return getValuesFromPtgs(pthings, obar, t + 1);
+        }
+        return ALL_NUMBERS;
+    }
+
     /**
      * Returns an array of doubles from number-type ptg's sent in.
      * This should only be referenced by sub-classes.
@@ -406,6 +476,14 @@ public abstract class GenericPtg
         return null;
     }
 
+    /*
+        Return a cursor over the cells in this range, or null
+        if this Ptg is not a range.
+    */
+    public RangeCursor getRangeCursor() {
+        return null;
+    }
+
     /**
      * pass  in arbitrary number of values (probably other Ptgs)
      * and return the resultant value.
@@ -536,6 +614,14 @@ public abstract class GenericPtg
         return null;
     }
 
+    /**
+     * puts the value of this ptg in the given EvalValue; overridden by
+     * operands which hold numbers unboxed
+     */
+    public void getValue(EvalValue value) {
+        value.set(this.getValue());
+    }
+
     /**
      * Gets the value of the ptg represented as an int.
      * <p>
@@ -572,7 +658,11 @@ public abstract class GenericPtg
         Object pob = null;
         Double d = null;
         try {
-            pob = this.getValue();
+            EvalValue v = EvalValue.forThread();
+            this.getValue(v);
+            if (v.isNumber())
+                return v.getDouble();
+            pob = v.getValue();
             if (pob == null) {
                 Logger.logErr("Unable to calculate Formula at " + this.getLocation());
                 return java.lang.Double.NaN;
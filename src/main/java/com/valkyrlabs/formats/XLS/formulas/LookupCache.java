@@ -0,0 +1,240 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS.formulas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.valkyrlabs.formats.XLS.Boundsheet;
+import com.valkyrlabs.formats.XLS.ReferenceTracker;
+
+/**
+ * LookupCache keeps what the lookup functions read from ranges of cells,
+ * keyed by the sheet and coordinates of those cells, until a cell inside a
+ * range changes.
+ * <p>
+ * The cache holds at most {@link #getMaxSize()} entries; once full, the
+ * least recently used entries are dropped.  The numbers of hits and misses
+ * are counted so the size can be tuned for a workbook.
+ * <p>
+ * Lookups take no lock, so formulas calculated in parallel do not wait on
+ * each other here; only adding and dropping entries are serialized.  The cells of each sheet's
+ * entries lie within bounds kept per sheet, so a cell changing outside them
+ * is dismissed without looking at the entries.
+ *
+ * @see ReferenceTracker#getLookupIndexCache()
+ * @see ReferenceTracker#getLookupColumnCache()
+ */
+public final class LookupCache<V> {
+    /**
+     * the number of entries kept unless set otherwise
+     */
+    public static final int DEFAULT_MAX_SIZE = 512;
+
+    private final ConcurrentHashMap<LookupIndex.Key, Entry<V>> entries = new ConcurrentHashMap<LookupIndex.Key, Entry<V>>();
+    // per sheet, {firstRow, firstCol, lastRow, lastCol} taking in the cells of all its entries; guarded by itself
+    private final Map<Boundsheet, int[]> bounds = new ConcurrentHashMap<Boundsheet, int[]>();
+    private volatile int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LookupCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the number of entries kept
+     */
+    public LookupCache(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("lookup cache size must be positive");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * returns the entry cached for the given cells, counting a hit or a miss
+     *
+     * @return the entry, or null if none is cached
+     */
+    public V get(LookupIndex.Key key) {
+        Entry<V> e = entries.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        e.used = System.nanoTime();
+        return e.value;
+    }
+
+    /**
+     * caches an entry for the given cells, dropping the least recently used
+     * entries if the cache is full
+     */
+    public void put(LookupIndex.Key key, V value) {
+        synchronized (bounds) {
+            int[] b = bounds.get(key.getSheet());
+            if (b == null) {
+                b = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1 };
+                bounds.put(key.getSheet(), b);
+            }
+            key.extend(b);
+            entries.put(key, new Entry<V>(value));    // within the bounds before remove can narrow them
+        }
+        if (entries.size() > maxSize)
+            evict();
+    }
+
+    /**
+     * drops the least recently used entries beyond the maximum size
+     */
+    private synchronized void evict() {
+        int excess = entries.size() - maxSize;
+        if (excess <= 0)
+            return;
+        List<Map.Entry<LookupIndex.Key, Entry<V>>> all = new ArrayList<Map.Entry<LookupIndex.Key, Entry<V>>>(entries.entrySet());
+        Collections.sort(all, new Comparator<Map.Entry<LookupIndex.Key, Entry<V>>>() {
+            public int compare(Map.Entry<LookupIndex.Key, Entry<V>> a, Map.Entry<LookupIndex.Key, Entry<V>> b) {
+                return Long.compare(a.getValue().used, b.getValue().used);
+            }
+        });
+        for (int i = 0; i < excess && i < all.size(); i++)
+            entries.remove(all.get(i).getKey(), all.get(i).getValue());
+    }
+
+    /**
+     * drops the entries which hold the cell at row, col on the given sheet
+     */
+    public void remove(Boundsheet sheet, int row, int col) {
+        if (entries.isEmpty())
+            return;
+        synchronized (bounds) {
+            int[] b = bounds.get(sheet);
+            if (b == null || row < b[0] || col < b[1] || row > b[2] || col > b[3])
+                return;
+            // the bounds are narrowed to the entries left
+            int[] left = { Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1 };
+            Iterator<LookupIndex.Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                LookupIndex.Key k = keys.next();
+                if (k.getSheet() != sheet)
+                    continue;
+                if (k.contains(sheet, row, col))
+                    keys.remove();
+                else
+                    k.extend(left);
+            }
+            System.arraycopy(left, 0, b, 0, 4);
+        }
+    }
+
+    /**
+     * drops the entries of all cells on the given sheet
+     */
+    public void remove(Boundsheet sheet) {
+        if (entries.isEmpty())
+            return;
+        synchronized (bounds) {
+            if (bounds.remove(sheet) == null)
+                return;
+            Iterator<LookupIndex.Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().getSheet() == sheet)
+                    keys.remove();
+            }
+        }
+    }
+
+    /**
+     * drops all entries; the hit and miss counts are kept
+     */
+    public void clear() {
+        synchronized (bounds) {
+            entries.clear();
+            bounds.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries cached
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of entries kept before the least recently used is dropped
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * sets the number of entries kept, dropping the least recently used
+     * entries beyond it
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("lookup cache size must be positive");
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * @return the number of lookups which found a cached entry
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which found no cached entry
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "LookupCache[size=" + entries.size() + ", max=" + maxSize
+                + ", hits=" + hits.sum() + ", misses=" + misses.sum() + "]";
+    }
+
+    /**
+     * a cached value and when it was last used
+     */
+    private static final class Entry<V> {
+        final V value;
+        volatile long used = System.nanoTime();
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS.formulas;
+
+import java.util.HashMap;
+
+import com.valkyrlabs.formats.XLS.BiffRec;
+import com.valkyrlabs.formats.XLS.Boundsheet;
+import com.valkyrlabs.formats.XLS.Formula;
+import com.valkyrlabs.formats.XLS.ReferenceTracker;
+import com.valkyrlabs.formats.XLS.XLSRecord;
+
+/**
+ * LookupIndex holds the values of one row or column of cells searched by the
+ * lookup functions, arranged so that VLOOKUP, HLOOKUP, MATCH and LOOKUP find a
+ * value without reading and parsing every cell on each call.
+ * <p>
+ * Exact matches are found through a hash of the first position of each number
+ * and text value.  Approximate matches use a binary search over the numbers
+ * when they are sorted, as these functions require of their data; otherwise
+ * the numbers are scanned in order, which gives the same result as reading
+ * the cells one by one.
+ * <p>
+ * Indexes of ranges are cached by the workbook's {@link ReferenceTracker},
+ * keyed by the sheet and coordinates of their cells, and are dropped once a
+ * cell inside them is reported changed, or once they are the least recently
+ * used and no longer fit in its {@link LookupCache}.  A row or column holding
+ * a volatile formula is indexed for the current calculation only.
+ *
+ * @see ReferenceTracker#getLookupIndex(LookupIndex.Key)
+ */
+public final class LookupIndex {
+    private final Key key;
+    private final XLSRecord parent;
+    private final Object[] values;
+    private final boolean[] blank;
+
+    // the numbers in position order, and their positions; blanks and values
+    // which don't read as numbers are left out
+    private final double[] numberValues;
+    private final int[] numberPositions;
+    private final boolean numeric;
+    private final boolean ascending;
+    private final boolean descending;
+
+    // first position of each number and text value, made upon the first exact match
+    private HashMap<Double, Integer> numberMap = null;
+    private HashMap<String, Integer> textMap = null;
+
+    /**
+     * Makes an index of the values of the given cell references, which is not
+     * cached.
+     */
+    public LookupIndex(Ptg[] cells) {
+        this(null, null, getValues(cells), getBlanks(cells));
+    }
+
+    private LookupIndex(Key key, XLSRecord parent, Object[] values, boolean[] blank) {
+        this.key = key;
+        this.parent = parent;
+        this.values = values;
+        this.blank = blank;
+        int n = values.length;
+        double[] numbers = new double[n];
+        int count = 0;
+        boolean allNumbers = true;
+        for (int i = 0; i < n; i++) {
+            Object v = values[i];
+            double d = Double.NaN;
+            if (blank[i] || v == null) {
+                allNumbers = false;
+            } else if (v instanceof Number) {
+                d = ((Number) v).doubleValue();
+            } else {
+                allNumbers = false;
+                try {
+                    d = Double.parseDouble(v.toString());
+                } catch (NumberFormatException e) {
+                    // not a number
+                }
+            }
+            numbers[i] = d;
+            if (!Double.isNaN(d))
+                count++;
+        }
+        numberValues = new double[count];
+        numberPositions = new int[count];
+        boolean up = true;
+        boolean down = true;
+        for (int i = 0, k = 0; i < n; i++) {
+            double d = numbers[i];
+            if (Double.isNaN(d))
+                continue;
+            if (k > 0) {
+                if (d < numberValues[k - 1])
+                    up = false;
+                else if (d > numberValues[k - 1])
+                    down = false;
+            }
+            numberValues[k] = d;
+            numberPositions[k++] = i;
+        }
+        numeric = allNumbers;
+        ascending = up;
+        descending = down;
+    }
+
+    /**
+     * Returns the index of a range which is a single row or column.
+     *
+     * @return null if the range is not a single row or column of cells
+     */
+    public static LookupIndex get(Ptg range) {
+        RangeCursor cells = range.getRangeCursor();
+        int[] rc = (cells == null) ? null : cells.getSingleRange();
+        if (rc == null || (rc[0] != rc[2] && rc[1] != rc[3]))
+            return null;
+        return get(range, cells, rc);
+    }
+
+    /**
+     * Returns the index of one column of a range.
+     *
+     * @param col the zero-based column on the sheet
+     * @return null if the range is not a rectangle of cells
+     */
+    public static LookupIndex getColumn(Ptg range, int col) {
+        RangeCursor cells = range.getRangeCursor();
+        int[] rc = (cells == null) ? null : cells.getSingleRange();
+        if (rc == null || col < 0)
+            return null;
+        rc[1] = rc[3] = col;
+        return get(range, cells, rc);
+    }
+
+    /**
+     * Returns the index of one row of a range.
+     *
+     * @param row the zero-based row on the sheet
+     * @return null if the range is not a rectangle of cells
+     */
+    public static LookupIndex getRow(Ptg range, int row) {
+        RangeCursor cells = range.getRangeCursor();
+        int[] rc = (cells == null) ? null : cells.getSingleRange();
+        if (rc == null || row < 0)
+            return null;
+        rc[0] = rc[2] = row;
+        return get(range, cells, rc);
+    }
+
+    /**
+     * Returns the key of one column of a range, under which its cells are cached.
+     *
+     * @param col the zero-based column on the sheet
+     * @return null if the range is not a rectangle of cells
+     */
+    static Key getColumnKey(Ptg range, int col) {
+        RangeCursor cells = range.getRangeCursor();
+        int[] rc = (cells == null) ? null : cells.getSingleRange();
+        if (rc == null || col < 0)
+            return null;
+        rc[1] = rc[3] = col;
+        if (rc[2] < rc[0])    // as getColComponents reads at least the first row
+            rc[2] = rc[0];
+        return new Key(cells.getRangeSheet(), rc, false);
+    }
+
+    /**
+     * looks up the index of the given cells in the workbook's ReferenceTracker,
+     * reading and caching it if it's not there
+     */
+    private static LookupIndex get(Ptg range, RangeCursor cells, int[] rc) {
+        XLSRecord parent = range.getParentRec();
+        ReferenceTracker tracker = parent.getWorkBook().getRefTracker();
+        Key key = new Key(cells.getRangeSheet(), rc, cells.showsZeroValues());
+        LookupIndex index = tracker.getLookupIndex(key);
+        if (index != null)
+            return index;
+
+        RangeCursor vector = new RangeCursor(parent);
+        vector.addRange(key.sheet, rc[0], rc[1], rc[2], rc[3]);
+        int n = (rc[2] - rc[0] + 1) * (rc[3] - rc[1] + 1);
+        Object[] values = new Object[n];
+        boolean[] blank = new boolean[n];
+        boolean isVolatile = false;
+        for (int i = 0; i < n && vector.next(); i++) {
+            values[i] = vector.getValue();
+            blank[i] = vector.isBlank();
+            BiffRec cell = vector.getCell();
+            Formula f = (cell == null) ? null : cell.getFormulaRec();
+            if (f != null && f.isVolatile())
+                isVolatile = true;
+        }
+        index = new LookupIndex(key, parent, values, blank);
+        if (!isVolatile)
+            tracker.addLookupIndex(index);
+        return index;
+    }
+
+    private static Object[] getValues(Ptg[] cells) {
+        Object[] values = new Object[cells.length];
+        for (int i = 0; i < cells.length; i++)
+            values[i] = cells[i].getValue();
+        return values;
+    }
+
+    private static boolean[] getBlanks(Ptg[] cells) {
+        boolean[] blank = new boolean[cells.length];
+        for (int i = 0; i < cells.length; i++)
+            blank[i] = (cells[i] instanceof PtgRef) && ((PtgRef) cells[i]).isBlank();
+        return blank;
+    }
+
+    /**
+     * @return the sheet and coordinates of the indexed cells, or null if this
+     * index is not cached
+     */
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of positions in this index
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return the value at the given position, as {@link PtgRef#getValue()}
+     * returns it
+     */
+    public Object getValue(int position) {
+        return values[position];
+    }
+
+    /**
+     * @return true if every position holds a number
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * @return true if the numbers never decrease from one to the next
+     */
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * @return true if the numbers never increase from one to the next
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Returns the first position holding the given number.  Values which are
+     * not numbers but read as one, such as the string "12", count as numbers.
+     *
+     * @return the position, or -1 if the number is not found
+     */
+    public synchronized int findNumber(double d) {
+        if (numberMap == null) {
+            numberMap = new HashMap<Double, Integer>(numberValues.length * 2);
+            for (int k = numberValues.length - 1; k >= 0; k--)
+                numberMap.put(getNumberKey(numberValues[k]), Integer.valueOf(numberPositions[k]));
+        }
+        Integer position = numberMap.get(getNumberKey(d));
+        return (position == null) ? -1 : position.intValue();
+    }
+
+    // -0.0 and 0.0 are equal but hash differently
+    private static Double getNumberKey(double d) {
+        return Double.valueOf((d == 0) ? 0.0 : d);
+    }
+
+    /**
+     * Returns the first position whose value is equal to the given text,
+     * ignoring case.  Values other than strings are compared as their
+     * toString(); blanks are never matched.
+     *
+     * @return the position, or -1 if the text is not found
+     */
+    public synchronized int findText(String s) {
+        if (textMap == null) {
+            textMap = new HashMap<String, Integer>(values.length * 2);
+            for (int i = values.length - 1; i >= 0; i--) {
+                Object v = values[i];
+                if (v != null && !blank[i])
+                    textMap.put(foldCase(v.toString()), Integer.valueOf(i));
+            }
+        }
+        Integer position = textMap.get(foldCase(s));
+        return (position == null) ? -1 : position.intValue();
+    }
+
+    /**
+     * folds the case of each character so that two strings fold alike exactly
+     * when they are equalsIgnoreCase
+     */
+    private static String foldCase(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++)
+            c[i] = Character.toLowerCase(Character.toUpperCase(c[i]));
+        return new String(c);
+    }
+
+    /**
+     * Returns the position VLOOKUP and HLOOKUP match for a number when an
+     * approximate match is allowed: the first position holding the number or,
+     * failing that, the position before the first larger number.  If no
+     * number is larger the last position matches.
+     *
+     * @return the position, or -1 if the number is smaller than the number
+     * at the first position
+     */
+    public int findApproximate(double d) {
+        int k;
+        if (ascending) {
+            k = searchAscending(d, false);
+        } else {
+            for (k = 0; k < numberValues.length; k++) {
+                if (numberValues[k] >= d)
+                    break;
+            }
+        }
+        if (k == numberValues.length)
+            return values.length - 1;
+        int position = numberPositions[k];
+        if (numberValues[k] == d)
+            return position;
+        return position - 1;
+    }
+
+    /**
+     * @return the first position holding a number larger than the given one,
+     * or the size of the index if there is none
+     */
+    public int findGreater(double d) {
+        int k;
+        if (ascending) {
+            k = searchAscending(d, true);
+        } else {
+            for (k = 0; k < numberValues.length; k++) {
+                if (numberValues[k] > d)
+                    break;
+            }
+        }
+        return (k == numberValues.length) ? values.length : numberPositions[k];
+    }
+
+    /**
+     * @return the first position holding a number smaller than the given one,
+     * or the size of the index if there is none
+     */
+    public int findLess(double d) {
+        int k;
+        if (descending) {
+            int lo = 0;
+            int hi = numberValues.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (numberValues[mid] < d)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            k = lo;
+        } else {
+            for (k = 0; k < numberValues.length; k++) {
+                if (numberValues[k] < d)
+                    break;
+            }
+        }
+        return (k == numberValues.length) ? values.length : numberPositions[k];
+    }
+
+    /**
+     * finds the first of the ascending numbers which is larger than d, or if
+     * not strict, larger than or equal to d
+     */
+    private int searchAscending(double d, boolean strict) {
+        int lo = 0;
+        int hi = numberValues.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (numberValues[mid] > d || (!strict && numberValues[mid] == d))
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the value of a cell relative to a position of this index as an
+     * operand; VLOOKUP reads its result some columns to the right of the
+     * matched position, HLOOKUP some rows below it.
+     *
+     * @return null if this index is not cached, so has no cells
+     */
+    public Ptg getPtgVal(int position, int rowOffset, int colOffset) {
+        if (key == null)
+            return null;
+        int row = key.firstRow + rowOffset;
+        int col = key.firstCol + colOffset;
+        if (key.firstCol == key.lastCol)
+            row += position;
+        else
+            col += position;
+        RangeCursor cell = new RangeCursor(parent);
+        cell.addRange(key.sheet, row, col, row, col);
+        cell.next();
+        Object value = cell.getValue();
+        if (value instanceof Ptg)
+            return (Ptg) value;
+        else if (value instanceof Boolean)
+            return new PtgBool(((Boolean) value).booleanValue());
+        else if (value instanceof Integer)
+            return new PtgInt(((Integer) value).intValue());
+        else if (value instanceof Number)
+            return new PtgNumber(((Number) value).doubleValue());
+        else if (value instanceof String)
+            return new PtgStr((String) value);
+        else
+            return new PtgErr(PtgErr.ERROR_VALUE);
+    }
+
+    /**
+     * Identifies the cells of an index by their sheet and coordinates, and by
+     * whether empty cells read as 0 on the sheet of the formula using them.
+     */
+    public static final class Key {
+        private final Boundsheet sheet;
+        private final int firstRow;
+        private final int firstCol;
+        private final int lastRow;
+        private final int lastCol;
+        private final boolean zeros;
+
+        Key(Boundsheet sheet, int[] rc, boolean zeros) {
+            this.sheet = sheet;
+            firstRow = rc[0];
+            firstCol = rc[1];
+            lastRow = rc[2];
+            lastCol = rc[3];
+            this.zeros = zeros;
+        }
+
+        /**
+         * @return the sheet of the indexed cells
+         */
+        public Boundsheet getSheet() {
+            return sheet;
+        }
+
+        /**
+         * @return true if the cell at row, col on the given sheet is one of
+         * the indexed cells
+         */
+        public boolean contains(Boundsheet sh, int row, int col) {
+            return sh == sheet && row >= firstRow && row <= lastRow
+                    && col >= firstCol && col <= lastCol;
+        }
+
+        /**
+         * widens bounds, {firstRow, firstCol, lastRow, lastCol}, to take in
+         * the indexed cells
+         */
+        void extend(int[] bounds) {
+            bounds[0] = Math.min(bounds[0], firstRow);
+            bounds[1] = Math.min(bounds[1], firstCol);
+            bounds[2] = Math.max(bounds[2], lastRow);
+            bounds[3] = Math.max(bounds[3], lastCol);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.sheet == sheet && k.firstRow == firstRow && k.firstCol == firstCol
+                    && k.lastRow == lastRow && k.lastCol == lastCol && k.zeros == zeros;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(sheet);
+            h = 31 * h + firstRow;
+            h = 31 * h + firstCol;
+            h = 31 * h + lastRow;
+            h = 31 * h + lastCol;
+            return zeros ? h : ~h;
+        }
+    }
+}
@@ -272,6 +272,8 @@ public class LookupReferenceCalculator {
         Ptg table_array = operands[1];
         PtgInt row_index_num = (PtgInt) operands[2];
         int rowNum = row_index_num.getVal() - 1;// reduce 1 for ordinal base off firstcol
+        if (rowNum < 0)
+            return new PtgErr(PtgErr.ERROR_VALUE);
         if (operands.length > 3) {
             if (operands[3].getValue() != null) {
                 Object o = operands[3].getValue();
@@ -281,10 +283,7 @@ public class LookupReferenceCalculator {
                     sorted = (((Integer) o).intValue() != 0);
             }
         }
-        int[] retarea = {0, 0};
-        Boundsheet bs = lookup_value.getParentRec().getSheet();
-        WorkBook bk = table_array.getParentRec().getWorkBook();
-        PtgRef[] lookupComponents = null;
+        LookupIndex index = null;
         PtgRef[] valueComponents = null;
         // first, get the lookup Column Vals
         if (table_array instanceof PtgName) {
@@ -297,18 +296,23 @@ public class LookupReferenceCalculator {
 
                 //				 TODO: check rc sanity here
                 int firstrow = range[0];
-                lookupComponents = (PtgRef[]) pa.getRowComponents(firstrow);
-                valueComponents = (PtgRef[]) pa.getRowComponents(firstrow + rowNum);
+                if (firstrow + rowNum > range[2])    // beyond the table
+                    return new PtgErr(PtgErr.ERROR_REF);
+                index = LookupIndex.getRow(pa, firstrow);
+                if (index == null) {    // not a single range of cells
+                    index = new LookupIndex(pa.getRowComponents(firstrow));
+                    valueComponents = (PtgRef[]) pa.getRowComponents(firstrow + rowNum);
+                }
             } catch (/*20070209 KSC: FormulaNotFound*/Exception e) {
                 Logger.logWarn("Error in LookupReferenceCalculator: Cannot determine PtgArea location. " + e);
             }
 
         }
         // error check
-        if (lookupComponents == null || lookupComponents.length == 0) return new PtgErr(PtgErr.ERROR_REF);
+        if (index == null || index.size() == 0) return new PtgErr(PtgErr.ERROR_REF);
         // lets check if we are dealing with strings or numbers....
         try {
-            String val = lookupComponents[0].getValue().toString();
+            String val = index.getValue(0).toString();
             Double d = new Double(val);
         } catch (NumberFormatException e) {
             isNumber = false;
@@ -323,34 +327,41 @@ public class LookupReferenceCalculator {
                 return new PtgErr(PtgErr.ERROR_NA);
             }
 
-            for (int i = 0; i < lookupComponents.length; i++) {
-                double val;
-                try {
-                    val = Double.parseDouble(
-                            lookupComponents[i].getValue().toString());
-                } catch (NumberFormatException e) {
-                    // Ignore entries in the table that aren't numbers.
-                    continue;
-                }
-
-                if (val == match_num) {
-                    return valueComponents[i].getPtgVal();
-                } else if (sorted && val > match_num) {
-                    if (i == 0) return new PtgErr(PtgErr.ERROR_NA);
-                    else return valueComponents[i - 1].getPtgVal();
-                }
-            }
-
-            if (sorted) return valueComponents[lookupComponents.length - 1].getPtgVal();
-            else return new PtgErr(PtgErr.ERROR_NA);
+            // Ignore entries in the table that aren't numbers.
+            int i;
+            if (sorted)
+                i = index.findApproximate(match_num);
+            else
+                i = index.findNumber(match_num);
+            if (i < 0)
+                return new PtgErr(PtgErr.ERROR_NA);
+            return getPtgVal(index, valueComponents, i, rowNum, 0);
 
+        } else if (!sorted) {
+            int i = index.findText(lookup_value.getValue().toString());
+            if (i < 0)
+                return new PtgErr(PtgErr.ERROR_NA);
+            return getPtgVal(index, valueComponents, i, rowNum, 0);
         } else {
-            //TODO: need to handle as string
+            //TODO: need to handle approximate match as string
         }
 
         return new PtgErr(PtgErr.ERROR_NULL);
     }
 
+    /**
+     * returns the result of a lookup from the cell relative to the matched
+     * position of the index, or from the given result cells if the index was
+     * not cached
+     */
+    private static Ptg getPtgVal(LookupIndex index, PtgRef[] resultCells, int position,
+                                 int rowOffset, int colOffset) {
+        if (resultCells != null)
+            return resultCells[position].getPtgVal();
+        Ptg p = index.getPtgVal(position, rowOffset, colOffset);
+        return (p != null) ? p : new PtgErr(PtgErr.ERROR_REF);
+    }
+
     /**
      * HYPERLINK
      * Creates a shortcut or jump that opens a document
@@ -608,19 +619,35 @@ public class LookupReferenceCalculator {
     public static Ptg calcLookup(Ptg[] operands) {
         String lookup = operands[0].getValue().toString().toUpperCase();
         if (operands.length > 2) { //normal version of lookup
-            Ptg[] vector = operands[1].getComponents();
-            Ptg[] returnvector = operands[2].getComponents();
-            if (returnvector == null) // happens when operands[2] is a PtgRef
-                return new PtgNumber(0);    // this is what excel does
-
             //If the LOOKUP function can't find the lookup_value, the function matches the largest value in lookup_vector that is less than or equal to lookup_value.
             //If lookup_value is smaller than the smallest value in lookup_vector, LOOKUP returns the #N/A error value
             Object retval = null;
-            for (int i = 0; i < vector.length; i++) {
-                if (Calculator.compareCellValue(vector[i].getValue(), lookup, ">"))
-                    break;
-                if (i < returnvector.length)
-                    retval = returnvector[i].getValue();
+            // a row or column of numbers is searched in its index
+            LookupIndex lookupIndex = null;
+            LookupIndex resultIndex = null;
+            if (operands[1] instanceof PtgArea && operands[2] instanceof PtgArea
+                    && operands[0].getValue() instanceof Number) {
+                lookupIndex = LookupIndex.get(operands[1]);
+                if (lookupIndex != null && lookupIndex.isNumeric())
+                    resultIndex = LookupIndex.get(operands[2]);
+            }
+            if (resultIndex != null) {
+                double d = ((Number) operands[0].getValue()).doubleValue();
+                int i = Math.min(lookupIndex.findGreater(d), resultIndex.size()) - 1;
+                if (i >= 0)
+                    retval = resultIndex.getValue(i);
+            } else {
+                Ptg[] vector = operands[1].getComponents();
+                Ptg[] returnvector = operands[2].getComponents();
+                if (returnvector == null) // happens when operands[2] is a PtgRef
+                    return new PtgNumber(0);    // this is what excel does
+
+                for (int i = 0; i < vector.length; i++) {
+                    if (Calculator.compareCellValue(vector[i].getValue(), lookup, ">"))
+                        break;
+                    if (i < returnvector.length)
+                        retval = returnvector[i].getValue();
+                }
             }
             if (retval instanceof Number)
                 return new PtgNumber(((Number) retval).doubleValue());
@@ -726,6 +753,7 @@ public class LookupReferenceCalculator {
             Object lookupValue = operands[0].getValue();    // should be one value or a reference
             Ptg lookupArray = operands[1];    // array or array reference (PtgArea)
             Ptg[] values = null;
+            LookupIndex index = null;
             int matchType = 1;
             if (operands.length > 2) {
                 Object o = operands[2].getValue();
@@ -744,10 +772,14 @@ public class LookupReferenceCalculator {
             }
             if (lookupArray instanceof PtgArea) {
                 PtgArea pa = (PtgArea) lookupArray;
-                values = pa.getComponents();
+                index = LookupIndex.get(pa);
+                if (index == null)
+                    values = pa.getComponents();
             } else if (lookupArray instanceof PtgMemFunc) {
                 PtgMemFunc pa = (PtgMemFunc) lookupArray;
-                values = pa.getComponents();
+                index = LookupIndex.get(pa);
+                if (index == null)
+                    values = pa.getComponents();
             } else if (lookupArray instanceof PtgArray) {
                 PtgArray pa = (PtgArray) lookupArray;
                 values = pa.getComponents();
@@ -774,15 +806,51 @@ public class LookupReferenceCalculator {
                 Logger.logErr("match: unknown type of lookup array");
             }
 
+            // exact matches, and a single row or column of numbers, are searched in its index
+            if (index != null && matchType == 0
+                    && (lookupValue instanceof Number || lookupValue instanceof String)) {
+                boolean isNumber = (lookupValue instanceof Number);
+                int i;
+                if (isNumber)
+                    i = index.findNumber(((Number) lookupValue).doubleValue());
+                else
+                    i = index.findText((String) lookupValue);
+                if (i < 0)
+                    return new PtgErr(PtgErr.ERROR_NA);
+                Object v = index.getValue(i);
+                if (isNumber ? (v instanceof Number) : (v instanceof String))
+                    return new PtgInt(i + 1);    // 1-based
+            } else if (index != null && lookupValue instanceof Number && index.isNumeric()) {
+                double d = ((Number) lookupValue).doubleValue();
+                int i = -1;
+                if (matchType == 1 && index.isAscending())
+                    i = index.findGreater(d) - 1;    // the last value <= lookupValue
+                else if (matchType == -1 && index.isDescending())
+                    i = index.findLess(d) - 1;    // the last value >= lookupValue
+                if (i < 0)
+                    return new PtgErr(PtgErr.ERROR_NA);
+                return new PtgInt(i + 1);    // 1-based
+            }
+            Object[] vals;
+            if (index != null) {
+                vals = new Object[index.size()];
+                for (int i = 0; i < vals.length; i++)
+                    vals[i] = index.getValue(i);
+            } else {
+                vals = new Object[values.length];
+                for (int i = 0; i < vals.length; i++)
+                    vals[i] = values[i].getValue();
+            }
+
             // Step # 2- traverse thru value array to find lookupValue using matchType rules
             // ALSO must ensure for matchType!=0 that array is in ascending or descending order
             int retIndex = -1;
             // TODO: matchType==0 Strings can match wildcards ...
-            for (int i = 1; i <= values.length; i++) {
-                Object v0 = values[i - 1].getValue();
+            for (int i = 1; i <= vals.length; i++) {
+                Object v0 = vals[i - 1];
                 Object v1 = null;
-                if (i < values.length)
-                    v1 = values[i].getValue();
+                if (i < vals.length)
+                    v1 = vals[i];
                 int mType = -2; // -1 means v0<v1, 0 means v0==v1, 1 means v0>v1
                 int match = -2;    // test lookupValue against v0 (i-1)
                 if (v0 instanceof Integer) {
@@ -801,11 +869,11 @@ public class LookupReferenceCalculator {
                     // 1.6 only match= (((Boolean) v0).compareTo((Boolean)lookupValue));
                     boolean bv1 = ((Boolean) lookupValue).booleanValue();
                     match = ((bv0 == bv1) ? 0 : ((!bv0 && bv1) ? -1 : +1));
-                } else if (v0 instanceof String) {
-                    if (v1 != null) mType = (((String) v0).compareTo((String) v1));
-                    match = (((String) v0).compareTo((String) lookupValue));
+                } else if (v0 instanceof String) {    // text compares case-insensitively
+                    if (v1 != null) mType = (((String) v0).compareToIgnoreCase((String) v1));
+                    match = (((String) v0).compareToIgnoreCase((String) lookupValue));
                 }
-                if (i < values.length) { // only check order
+                if (i < vals.length) { // only check order
                     if ((matchType == 1 && mType > 0)// not in ascending order
                             ||
                             (matchType == -1 && mType < 0)) // not in descending order
@@ -954,30 +1022,34 @@ public class LookupReferenceCalculator {
      * array  Required. An array or range of cells on a worksheet that you want to transpose. The transpose of an array is created by using the first row of the array as the first column of the new array, the second row of the array as the second column of the new array, and so on.
      */
     protected static Ptg calcTranspose(Ptg[] operands) {
-        String retArray = "";
-        PtgArray ret = new PtgArray();
+        Object[][] transposed;
         if (!(operands[0] instanceof PtgArray)) {
             Ptg[] arr = operands[0].getComponents();
-            //it's a list of values, convert to row-based
+            // range components run down each column in turn, so each column
+            // of the range becomes a row; any other list becomes one column
+            int nr = 1;
+            if (operands[0] instanceof PtgArea) {
+                int[] rc = ((PtgArea) operands[0]).getIntLocation();
+                if ((rc[2] - rc[0] + 1) * (rc[3] - rc[1] + 1) == arr.length)
+                    nr = rc[2] - rc[0] + 1;
+            }
+            transposed = new Object[arr.length / nr][nr];
             for (int i = 0; i < arr.length; i++) {
-                retArray = retArray + arr[i].getValue().toString() + ";";
+                transposed[i / nr][i % nr] = arr[i].getValue();
             }
-            retArray = "{" + retArray.substring(0, retArray.length() - 1) + "}";
-            ret.setVal(retArray);
         } else {    // transpose row/cols of an existing array
             PtgArray pa = (PtgArray) operands[0];
-            Ptg[] arr = pa.getComponents();
             int nc = pa.getNumberOfColumns() + 1;
             int nr = pa.getNumberOfRows() + 1;
+            transposed = new Object[nc][nr];
             for (int i = 0; i < nc; i++) {
-                for (int j = 0; j < nc * nr; j += nc) {
-                    retArray = retArray + arr[i + j].getValue().toString() + ",";
+                for (int j = 0; j < nr; j++) {
+                    transposed[i][j] = pa.getValueAt(j, i);
                 }
-                retArray = retArray.substring(0, retArray.length() - 1) + ";";
             }
-            retArray = "{" + retArray.substring(0, retArray.length() - 1) + "}";
-            ret.setVal(retArray);
         }
+        PtgArray ret = new PtgArray();
+        ret.setVal(transposed);
         return ret;
     }
 
@@ -1169,6 +1241,8 @@ public class LookupReferenceCalculator {
                 colNum = ((Double) o).intValue() - 1; // reduce 1 for ordinal base off firstcol
             else    // assume int?
                 colNum = ((Integer) o).intValue() - 1; // reduce 1 for ordinal base off firstcol
+            if (colNum < 0)
+                return new PtgErr(PtgErr.ERROR_VALUE);
             if (operands.length > 3) {
                 Object vx = operands[3].getValue();
                 if (vx != null) {
@@ -1182,7 +1256,7 @@ public class LookupReferenceCalculator {
                 }
             }
 
-            PtgRef[] lookupComponents = null;
+            LookupIndex index = null;
             PtgRef[] valueComponents = null;
             // first, get the lookup Column Vals
             if (table_array instanceof PtgName) {    // 20090211 KSC:
@@ -1202,8 +1276,15 @@ public class LookupReferenceCalculator {
                     int[] range = table_array.getIntLocation();
                     //			 TODO: check rc sanity here
                     int firstcol = range[1];
-                    lookupComponents = (PtgRef[]) pa.getColComponents(firstcol);
-                    valueComponents = (PtgRef[]) pa.getColComponents(firstcol + colNum);
+                    if (firstcol + colNum > range[3])    // beyond the table
+                        return new PtgErr(PtgErr.ERROR_REF);
+                    index = LookupIndex.getColumn(pa, firstcol);
+                    if (index == null) {    // not a single range of cells
+                        Ptg[] lookupComponents = pa.getColComponents(firstcol);
+                        if (lookupComponents != null)
+                            index = new LookupIndex(lookupComponents);
+                        valueComponents = (PtgRef[]) pa.getColComponents(firstcol + colNum);
+                    }
                 } catch (/*20070209 KSC: FormulaNotFound*/Exception e) {
                     Logger.logWarn("LookupReferenceCalculator.calcVlookup cannot determine PtgArea location. " + e);
                 }
@@ -1223,14 +1304,19 @@ public class LookupReferenceCalculator {
                         Logger.logWarn("LookupReferenceCalculator.calcVlookup could not determine row col from PtgMemFunc.");
                     }
 
-                    lookupComponents = (PtgRef[]) pa.getColComponents(firstcol);
-                    valueComponents = (PtgRef[]) pa.getColComponents(firstcol + colNum);
+                    index = LookupIndex.getColumn(pa, firstcol);
+                    if (index == null) {    // not a single range of cells
+                        Ptg[] lookupComponents = pa.getColComponents(firstcol);
+                        if (lookupComponents != null)
+                            index = new LookupIndex(lookupComponents);
+                        valueComponents = (PtgRef[]) pa.getColComponents(firstcol + colNum);
+                    }
                 } catch (/*20070209 KSC: FormulaNotFound*/Exception e) {
                     Logger.logWarn("LookupReferenceCalculator.calcVlookup cannot determine PtgArea location. " + e);
                 }
             }
             // error check
-            if (lookupComponents == null || lookupComponents.length == 0)
+            if (index == null || index.size() == 0)
                 return new PtgErr(PtgErr.ERROR_REF);
             if (lookup_value == null || lookup_value.getValue() == null) // 20070221 KSC: Error trap getValue
                 return new PtgErr(PtgErr.ERROR_NULL);
@@ -1256,32 +1342,15 @@ public class LookupReferenceCalculator {
                     return new PtgErr(PtgErr.ERROR_NA);
                 }
 
-                for (int i = 0; i < lookupComponents.length; i++) {
-                    double val;
-
-                    try {
-                        val = Double.parseDouble(
-                                lookupComponents[i].getValue().toString());
-                        if (val == 0) {    // VLOOKUP does NOT treat blanks as 0's
-                            if (lookupComponents[i].refCell[0] == null) {
-                                continue;
-                            }
-                        }
-                    } catch (NumberFormatException e) {
-                        // Ignore entries in the table that aren't numbers.
-                        continue;
-                    }
-
-                    if (val == match_num) {
-                        return valueComponents[i].getPtgVal();
-                    } else if (rangeLookup && val > match_num) {
-                        if (i == 0) return new PtgErr(PtgErr.ERROR_NA);
-                        else return valueComponents[i - 1].getPtgVal();
-                    }
-                }
-
-                if (rangeLookup) return valueComponents[lookupComponents.length - 1].getPtgVal();
-                else return new PtgErr(PtgErr.ERROR_NA);
+                // VLOOKUP does NOT treat blanks as 0's, and ignores entries in the table that aren't numbers
+                int i;
+                if (rangeLookup)
+                    i = index.findApproximate(match_num);
+                else
+                    i = index.findNumber(match_num);
+                if (i < 0)
+                    return new PtgErr(PtgErr.ERROR_NA);
+                return getPtgVal(index, valueComponents, i, 0, colNum);
             }
 
             // It's a String
@@ -1289,39 +1358,28 @@ public class LookupReferenceCalculator {
                 if (rangeLookup) {    // approximate match
                     String match_str = lookup_value.getValue().toString();
                     int match_len = match_str.length();
-                    for (int i = 0; i < lookupComponents.length; i++) {
+                    for (int i = 0; i < index.size(); i++) {
                         try {
-                            String val = lookupComponents[i].getValue().toString();
+                            String val = index.getValue(i).toString();
                             if (val.equalsIgnoreCase(match_str)) {// we found it
-                                return valueComponents[i].getPtgVal();
+                                return getPtgVal(index, valueComponents, i, 0, colNum);
                             } else if (val.length() >= match_len && val.substring(0, match_len).equalsIgnoreCase(match_str)) { // matches up to length, but not all, return previous
-                                return valueComponents[i - 1].getPtgVal();
+                                if (i > 0)
+                                    return getPtgVal(index, valueComponents, i - 1, 0, colNum);
                             } else if (ExcelTools.getIntVal(val.substring(0, 1)) > ExcelTools.getIntVal(match_str.substring(0, 1))) {
-                                return valueComponents[i - 1].getPtgVal();
-                            } else if (i == lookupComponents.length - 1) {// we reached the last one so use this
-                                return valueComponents[i].getPtgVal();
+                                if (i > 0)
+                                    return getPtgVal(index, valueComponents, i - 1, 0, colNum);
+                            } else if (i == index.size() - 1) {// we reached the last one so use this
+                                return getPtgVal(index, valueComponents, i, 0, colNum);
                             }
                         } catch (Exception e) {
                         } // 20070209 KSC: ignore errors in lookup cells
                     }
                 } else { // unsorted
-                    String match_str = lookup_value.getValue().toString();
-                    for (int i = 0; i < lookupComponents.length; i++) {
-                        try {
-                            String val = lookupComponents[i].getValue().toString();
-                            try {
-                                if (val.equalsIgnoreCase(match_str)) {// we found it
-                                    return valueComponents[i].getPtgVal();
-                                } else if (i == lookupComponents.length - 1) {// we reached the last one so error out
-                                    return new PtgErr(PtgErr.ERROR_NA);
-                                }
-                            } catch (Exception e) {
-                                Logger.logErr("LookupReferenceCalculator.calcVLookup error: " + e.toString());
-                                return new PtgErr(PtgErr.ERROR_NA);
-                            }
-                        } catch (Exception e) {
-                        } // 20070209 KSC: ignore errors in lookup cells
-                    }
+                    int i = index.findText(lookup_value.getValue().toString());
+                    if (i < 0)
+                        return new PtgErr(PtgErr.ERROR_NA);
+                    return getPtgVal(index, valueComponents, i, 0, colNum);
                 }
             }
         } catch (Exception e) {    // appears that an error with operands results in a #NA error
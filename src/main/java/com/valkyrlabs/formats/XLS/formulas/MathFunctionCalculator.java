@@ -54,10 +54,26 @@ public class MathFunctionCalculator {
     protected static Ptg calcSum(Ptg[] operands) throws CalculationException {
         if (operands.length < 1) return PtgCalculator.getNAError();
         double result = 0;
-        double[] dub = PtgCalculator.getDoubleValueArray(operands);
-        if (dub == null) return PtgCalculator.getNAError();
-        for (int i = 0; i < dub.length; i++) {
-            result += dub[i];
+        for (int i = 0; i < operands.length; i++) {
+            RangeCursor cells = operands[i].getRangeCursor();
+            if (cells == null) {
+                double[] dub = PtgCalculator.getDoubleValueArray(operands[i]);
+                if (dub == null) return PtgCalculator.getNAError();
+                for (int j = 0; j < dub.length; j++) {
+                    result += dub[j];
+                }
+                continue;
+            }
+            // sum ranges in place, without a Ptg or array entry per cell
+            while (cells.next()) {
+                if (cells.isNumber()) {
+                    result += cells.getDoubleValue();
+                } else {
+                    Double d = PtgCalculator.getDoubleValue(cells.getValue());
+                    if (d == null) return PtgCalculator.getNAError();
+                    result += d.doubleValue();
+                }
+            }
         }
         return new PtgNumber(result);
     }
@@ -625,12 +641,24 @@ Returns the matrix inverse of an array
             double[][] a1 = PtgCalculator.getArray(operands[0]);
             double[][] a2 = PtgCalculator.getArray(operands[1]);
             if (a1[0].length != a2.length)
-                PtgCalculator.getValueError();
-            double sum = 0.0;
-            for (int i = 0; i < a1[0].length; i++) {
-                sum += a1[0][i] * a2[i][0];
+                return PtgCalculator.getValueError();
+            int nr = a1.length;
+            int nc = a2[0].length;
+            Object[][] product = new Object[nr][nc];
+            for (int r = 0; r < nr; r++) {
+                for (int c = 0; c < nc; c++) {
+                    double sum = 0.0;
+                    for (int i = 0; i < a2.length; i++) {
+                        sum += a1[r][i] * a2[i][c];
+                    }
+                    product[r][c] = new Double(sum);
+                }
             }
-            return new PtgNumber(sum);
+            if (nr == 1 && nc == 1)
+                return new PtgNumber(((Double) product[0][0]).doubleValue());
+            PtgArray pa = new PtgArray();
+            pa.setVal(product);
+            return pa;
         } catch (Exception e) {
 //		Logger.logErr("MMULT: error in operands " + e.toString());
         }
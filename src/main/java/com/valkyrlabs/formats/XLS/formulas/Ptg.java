@@ -236,6 +236,14 @@ public interface Ptg extends XLSConstants, Serializable {
      */
     Ptg[] getComponents();
 
+    /**
+     * If this Ptg refers to a range of cells (ie PtgArea) return a cursor
+     * over the values of those cells, else return null.
+     * <p>
+     * Unlike getComponents() no Ptg is created for each cell.
+     */
+    RangeCursor getRangeCursor();
+
     /**
      * @return byte[] containing the whole ptg, including identifying opcode
      */
@@ -326,6 +334,13 @@ public interface Ptg extends XLSConstants, Serializable {
      */
     Object getValue();
 
+    /**
+     * puts the value of an operand ptg in the given EvalValue, numbers
+     * unboxed where the operand holds them so.  The value is otherwise the
+     * same as {@link #getValue()}.
+     */
+    void getValue(EvalValue value);
+
     /**
      * Gets the value of the ptg represented as an int.
      * <p>
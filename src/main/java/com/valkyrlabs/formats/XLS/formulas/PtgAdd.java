@@ -77,9 +77,14 @@ public class PtgAdd extends GenericPtg implements Ptg {
      */
     public Ptg calculatePtg(Ptg[] form) {
         try {
-            Object[] o = getValuesFromPtgs(form);
+            double[] dub = new double[2];
+            Object[] o = (form.length == 2) ? getNumbersOrValues(form, dub) : getValuesFromPtgs(form);
+            if (o == ALL_NUMBERS)
+                return new PtgNumber(dub[0] + dub[1]);
             if (o == null) return new PtgErr(PtgErr.ERROR_VALUE);
             if (!o[0].getClass().isArray()) {
+                Ptg err = getOperandError(o);
+                if (err != null) return err;
                 if (o.length != 2) {
                     return new PtgErr(PtgErr.ERROR_VALUE);
                 }
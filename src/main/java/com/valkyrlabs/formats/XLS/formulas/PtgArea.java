@@ -22,6 +22,7 @@
  */
 package com.valkyrlabs.formats.XLS.formulas;
 
+import java.util.ArrayList;
 import java.util.Vector;
 
 import com.valkyrlabs.OpenXLS.CellHandle;
@@ -219,12 +220,11 @@ public class PtgArea extends PtgRef implements Ptg {
         Vector v = new Vector();
         try {
             // TODO: check rc sanity here
-            int startcol = -1;
-            int startrow = -1;
-            int endrow = -1;
-            int endcol = -1;
-            int[] startloc = null;
-            int[] endloc = null;
+            int[] rc = getComponentBounds();
+            int startrow = rc[0];
+            int startcol = rc[1];
+            int endrow = rc[2];
+            int endcol = rc[3];
 
             /*
              * if (this.wholeRow) {
@@ -237,37 +237,14 @@ public class PtgArea extends PtgRef implements Ptg {
              * endrow= this.getSheet().getMaxRow();
              * }
              */
-            if (firstPtg != null) {
-                startloc = firstPtg.getRealIntLocation();
-                startcol = startloc[1];
-                startrow = startloc[0];
-            } else {
-                startloc = ExcelTools.getRangeRowCol(locax);
-                startcol = startloc[1];
-                startrow = startloc[0];
-            }
-
-            if (lastPtg != null) {
-                endloc = lastPtg.getRealIntLocation();
-                endcol = endloc[1];
-                endrow = endloc[0];
-            } else {
-                endloc = ExcelTools.getRangeRowCol(locax);
-                endcol = endloc[3];
-                endrow = endloc[2];
-            }
 
             // usually don't need to set sheet on setlocation becuase uses parent_rec's
             // sheet
             // cases of named range or if location sheet does not = parent_rec sheet, set
             // sheet explicitly
             String sht = null; // usual case, don't need to set sheet
-            Boundsheet sh = parent_rec.getSheet();
-            if (sh == null || (this.sheetname != null && !this.sheetname.equals(sh.getSheetName()))) {
-                if (sh == null || !GenericPtg.qualifySheetname(this.sheetname)
-                        .equals(GenericPtg.qualifySheetname(sh.getSheetName())))
-                    sht = this.sheetname + "!";
-            }
+            if (!isOnParentSheet())
+                sht = this.sheetname + "!";
             // loop through the cols
             for (; startcol <= endcol; startcol++) {
                 // loop through the rows inside
@@ -291,6 +268,71 @@ public class PtgArea extends PtgRef implements Ptg {
         return pref;
     }
 
+    /**
+     * Returns a cursor over the cells of this range which visits the same
+     * cells as getComponents(), reading values straight from the sheet
+     * instead of creating a PtgRef for each cell.
+     */
+    public RangeCursor getRangeCursor() {
+        RangeCursor cursor = new RangeCursor(parent_rec);
+        try {
+            int[] rc = getComponentBounds();
+            Boundsheet bs;
+            if (isOnParentSheet())
+                bs = parent_rec.getSheet();
+            else
+                bs = cursor.getSheet(parent_rec.getWorkBook(), this.sheetname);
+            cursor.addRange(bs, rc[0], rc[1], rc[2], rc[3]);
+        } catch (Exception e) {
+            Logger.logErr("calculating formula range value failed.", e);
+        }
+        return cursor;
+    }
+
+    /**
+     * returns the actual first row, first col, last row and last col
+     * covered by this range
+     */
+    private int[] getComponentBounds() {
+        int[] startloc;
+        int[] endloc;
+        int[] rc = new int[4];
+        if (firstPtg != null) {
+            startloc = firstPtg.getRealIntLocation();
+            rc[1] = startloc[1];
+            rc[0] = startloc[0];
+        } else {
+            startloc = ExcelTools.getRangeRowCol(locax);
+            rc[1] = startloc[1];
+            rc[0] = startloc[0];
+        }
+
+        if (lastPtg != null) {
+            endloc = lastPtg.getRealIntLocation();
+            rc[3] = endloc[1];
+            rc[2] = endloc[0];
+        } else {
+            endloc = ExcelTools.getRangeRowCol(locax);
+            rc[3] = endloc[3];
+            rc[2] = endloc[2];
+        }
+        return rc;
+    }
+
+    /**
+     * true if the cells of this range are on the parent record's sheet, so
+     * need no explicit sheet qualifier
+     */
+    private boolean isOnParentSheet() {
+        Boundsheet sh = parent_rec.getSheet();
+        if (sh == null || (this.sheetname != null && !this.sheetname.equals(sh.getSheetName()))) {
+            if (sh == null || !GenericPtg.qualifySheetname(this.sheetname)
+                    .equals(GenericPtg.qualifySheetname(sh.getSheetName())))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * returns the row/col ints for the ref
      * <p>
@@ -683,7 +725,7 @@ public class PtgArea extends PtgRef implements Ptg {
         refCell = this.getRefCells();
         Object returnval = new Double(0);
         String retstr = null;
-        String array = "";
+        ArrayList array = new ArrayList();
         boolean isArray = (this.parent_rec instanceof Array);
         for (int t = 0; t < refCell.length; t++) {
             BiffRec cel = refCell[t];
@@ -695,12 +737,18 @@ public class PtgArea extends PtgRef implements Ptg {
                 Formula f = cel.getFormulaRec();
                 if (f != null) {
                     Object oby = f.calculateFormula();
-                    String s = String.valueOf(oby);
-                    try {
-                        // Double d = new Double(s);
-                        returnval = new Double(s);
-                    } catch (NumberFormatException ex) {
-                        retstr = s; // 20090202 KSC: was +=
+                    if (oby instanceof Double) {
+                        returnval = oby;
+                    } else if (oby instanceof Integer) {
+                        returnval = new Double(((Integer) oby).intValue());
+                    } else {
+                        String s = String.valueOf(oby);
+                        try {
+                            // Double d = new Double(s);
+                            returnval = new Double(s);
+                        } catch (NumberFormatException ex) {
+                            retstr = s; // 20090202 KSC: was +=
+                        }
                     }
 
                 } else {
@@ -715,15 +763,14 @@ public class PtgArea extends PtgRef implements Ptg {
                 break;
             //
             if (retstr != null)
-                array = array + retstr + ",";
+                array.add(retstr);
             else
-                array = array + returnval + ",";
+                array.add(returnval);
             retstr = null;
         }
-        if (isArray && array != null && array.length() > 1) { // 20090817 KSC: [BugTracker 2683]
-            array = "{" + array.substring(0, array.length() - 1) + "}";
+        if (isArray && !array.isEmpty()) { // 20090817 KSC: [BugTracker 2683]
             PtgArray pa = new PtgArray();
-            pa.setVal(array);
+            pa.setVal(new Object[][] { array.toArray() });
             return pa;
         }
         if (retstr != null)
@@ -743,13 +790,10 @@ public class PtgArea extends PtgRef implements Ptg {
     public Ptg[] getColComponents(int colNum) {
         if (colNum < 0)
             return null;
-        String lu = this.toString();
-        Object p = parent_rec.getWorkBook().getRefTracker().getVlookups().get(lu);
-
-        if (p != null) {
-            PtgArea par = (PtgArea) p;
-            Ptg[] ret = (Ptg[]) par.getParentRec().getWorkBook()
-                    .getRefTracker().getLookupColCache().get(lu + ":" + Integer.valueOf(colNum));
+        LookupCache<Ptg[]> cache = parent_rec.getWorkBook().getRefTracker().getLookupColumnCache();
+        LookupIndex.Key key = LookupIndex.getColumnKey(this, colNum);
+        if (key != null) {
+            Ptg[] ret = cache.get(key);
             if (ret != null)
                 return ret;
         }
@@ -788,9 +832,9 @@ public class PtgArea extends PtgRef implements Ptg {
             Logger.logErr("Getting column range in PtgArea failed.", e);
         }
 
-        // cache
-        parent_rec.getWorkBook().getRefTracker().getVlookups().put(this.toString(), this);
-        parent_rec.getWorkBook().getRefTracker().getLookupColCache().put(lu + ":" + Integer.valueOf(colNum), v);
+        // cache until one of the cells changes
+        if (key != null && v != null)
+            cache.put(key, v);
         return v;
     }
 
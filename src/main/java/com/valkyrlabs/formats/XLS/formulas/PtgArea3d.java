@@ -709,6 +709,52 @@ public class PtgArea3d extends PtgArea implements Ptg, IxtiListener {
         return comps;
     }
 
+    /**
+     * Returns a cursor over the cells of this range which visits the same
+     * cells as getComponents(), reading values straight from the referenced
+     * sheet instead of creating a PtgRef3d for each cell.
+     */
+    public RangeCursor getRangeCursor() {
+        RangeCursor cursor = new RangeCursor(parent_rec);
+        try {
+            int startrow = 0, startcol = 0, endrow = 0, endcol = 0;
+            if (!this.wholeCol && !this.wholeRow) { // normal case
+                int[] startloc = firstPtg.getRealIntLocation(); // Get Actual Coordinates
+                startcol = startloc[1];
+                startrow = startloc[0];
+                int[] endloc = lastPtg.getRealIntLocation(); // Get Actual Coordinates
+                endcol = endloc[1];
+                endrow = endloc[0];
+            } else if (this.wholeRow) { // like $1:$1
+                startcol = 0;
+                try {
+                    endcol = this.getSheet().getMaxCol();
+                } catch (NullPointerException ne) { // sheet records are not set yet
+                    return null;
+                }
+                startrow = endrow = firstPtg.rw;
+            } else if (this.wholeCol) { // like $J:$J
+                startrow = 0;
+                startcol = endcol = firstPtg.col;
+                try {
+                    endrow = this.getSheet().getMaxRow();
+                } catch (NullPointerException ne) { // sheet records are not set yet
+                    return null;
+                }
+            }
+            Boundsheet bs;
+            String loc = this.toString();
+            if (loc.indexOf("!") > -1)
+                bs = cursor.getSheet(parent_rec.getWorkBook(), loc.substring(0, loc.indexOf("!")));
+            else
+                bs = parent_rec.getSheet();
+            cursor.addRange(bs, startrow, startcol, endrow, endcol);
+        } catch (Exception e) {
+            Logger.logErr("calculating range value in PtgArea3d failed.", e);
+        }
+        return cursor;
+    }
+
     /**
      * sets the column to be relative (relative is true) or absolute (relative is
      * false)
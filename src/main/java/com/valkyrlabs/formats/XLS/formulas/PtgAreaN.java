@@ -151,6 +151,23 @@ public class PtgAreaN extends PtgArea {
         return par;
     }
 
+    /**
+     * Points a PtgArea made by {@link #convertToPtgArea(XLSRecord)} at the
+     * range this reference denotes for another record, so that one PtgArea
+     * may serve each member of a shared formula in turn
+     *
+     * @param r   the member formula
+     * @param par the PtgArea to re-point
+     */
+    public void convertToPtgArea(com.valkyrlabs.formats.XLS.XLSRecord r, PtgArea par) {
+        firstPtgN.convertToPtgRef(r, par.getFirstPtg());
+        lastPtgN.convertToPtgRef(r, par.getLastPtg());
+        par.parent_rec = r;
+        par.clearLocationCache();
+        par.hashcode = par.getHashCode();
+        par.updateRecord();
+    }
+
 
     /**
      * update record bytes
@@ -29,6 +29,7 @@
  */
 package com.valkyrlabs.formats.XLS.formulas;
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -367,6 +368,36 @@ public class PtgArray extends GenericPtg implements Ptg {
         this.init(databytes);
     }
 
+    /**
+     * Sets the values of this array from a matrix, one inner array per row.
+     * Doubles, Integers and Booleans are stored as they are, any other value as
+     * its String form would be by {@link #setVal(String)}; null is an empty value.
+     *
+     * @param values rows of the array, all of the same length
+     */
+    public void setVal(Object[][] values) {
+        int ncols = values[0].length;
+        ByteArrayOutputStream databytes = new ByteArrayOutputStream(
+                11 + values.length * ncols * 9);
+        databytes.write(0x60); // 20h=tArrayR, 40h=tArrayV, 60h=tArrayA
+        for (int i = 1; i < 8; i++)
+            databytes.write(0);
+        databytes.write((ncols - 1) & 0xFF); // nc-1
+        databytes.write((values.length - 1) & 0xFF); // nr-1
+        databytes.write(((values.length - 1) >> 8) & 0xFF);
+        for (int j = 0; j < values.length; j++) {
+            for (int i = 0; i < ncols; i++) {
+                byte[] valbytes = this.valueIntoByteArray(values[j][i]);
+                databytes.write(valbytes, 0, valbytes.length);
+            }
+        }
+        isIntermediary = (ncols >= 255); // see setVal(String)
+        if (isIntermediary)
+            nc = ncols - 1;
+        record = databytes.toByteArray();
+        this.init(record);
+    }
+
     @Override
     public Object getValue() {
         // 20090820 KSC: value = entire array instead of 1st value;
@@ -418,6 +449,29 @@ public class PtgArray extends GenericPtg implements Ptg {
         return getString();
     }
 
+    /**
+     * returns the value at the given 0-based row and column of this array:
+     * a Double, a Boolean or a String, error values being Strings such as "#N/A!"
+     * <br>
+     * The position is the offset of a cell within the range of an array
+     * formula: a single-row array is read along its row by cells going down
+     * a column, and a position outside of the array gives #N/A.
+     *
+     * @param row 0-based row
+     * @param col 0-based column
+     * @return the value, or a CalculationException for a position outside the array
+     */
+    public Object getValueAt(int row, int col) {
+        if (nr == 0 && row > 0 && col == 0) {
+            col = row;
+            row = 0;
+        }
+        int loc = row * (nc + 1) + col;
+        if (row < 0 || col < 0 || row > nr || col > nc || loc >= arrVals.size())
+            return new CalculationException(CalculationException.NA);
+        return arrVals.get(loc);
+    }
+
     /**
      * Turns a vector of values into a byte array representation for the data section of this record
      *
@@ -489,6 +543,25 @@ public class PtgArray extends GenericPtg implements Ptg {
         return databytes;
     }
 
+    /**
+     * Turns a single value into the byte array representation of an array element
+     */
+    private byte[] valueIntoByteArray(Object val) {
+        byte[] thisElement = new byte[9];
+        if (val instanceof Double || val instanceof Integer) {
+            thisElement[0] = 0x1; // id for number value
+            byte[] b = ByteTools.toBEByteArray(((Number) val).doubleValue());
+            System.arraycopy(b, 0, thisElement, 1, b.length);
+            return thisElement;
+        }
+        if (val instanceof Boolean) {
+            thisElement[0] = 0x4; // id for boolean value
+            thisElement[1] = (byte) (((Boolean) val).booleanValue() ? 1 : 0);
+            return thisElement;
+        }
+        return this.valuesIntoByteArray((val == null) ? "" : val.toString());
+    }
+
     /**
      * Returns the second section of bytes for the PtgArray.
      * These are the bytes that are split off the end of the
@@ -22,9 +22,6 @@
  */
 package com.valkyrlabs.formats.XLS.formulas;
 
-import java.util.Enumeration;
-import java.util.Vector;
-
 import com.valkyrlabs.OpenXLS.ExcelTools;
 import com.valkyrlabs.toolkit.FastAddVector;
 import com.valkyrlabs.toolkit.Logger;
@@ -102,60 +99,88 @@ public class PtgCalculator {
      * @throws CircularReferenceException TODO
      */
     protected static double[] getDoubleValueArray(Ptg[] operands) throws CalculationException {
-
-        Double d = null;
-        // we don't know the size ahead of time, so use a vector for now.
-        Vector<Ptg> cv = new Vector<>();
-
-        for (int i = 0; i < operands.length; i++) {
-            // is it multidimensional?
-            Ptg[] pthings = operands[i].getComponents(); // optimized -- do it once!  -jm
-            if (pthings != null) {
-                for (int x = 0; x < pthings.length; x++) {
-                    cv.add(pthings[x]);
+        // we don't know the size ahead of time, so grow as needed
+        double[] darr = new double[Math.max(operands.length, 16)];
+        int i = 0;
+        for (int x = 0; x < operands.length; x++) {
+            // ranges are read in place rather than as a Ptg per cell
+            RangeCursor cells = operands[x].getRangeCursor();
+            if (cells != null) {
+                while (cells.next()) {
+                    if (i == darr.length)
+                        darr = grow(darr);
+                    if (cells.isNumber()) {
+                        darr[i++] = cells.getDoubleValue();
+                    } else {
+                        Double d = getDoubleValue(cells.getValue());
+                        if (d == null)
+                            return null;
+                        darr[i++] = d.doubleValue();
+                    }
                 }
-            } else {
-                cv.add(operands[i]);
+                continue;
+            }
+            // is it multidimensional?
+            Ptg[] pthings = operands[x].getComponents(); // optimized -- do it once!  -jm
+            if (pthings == null)
+                pthings = new Ptg[]{operands[x]};
+            for (int y = 0; y < pthings.length; y++) {
+                if (i == darr.length)
+                    darr = grow(darr);
+                Double d = getDoubleValue(pthings[y].getValue());
+                if (d == null)
+                    return null;
+                darr[i++] = d.doubleValue();
             }
         }
+        if (i == darr.length)
+            return darr;
+        double[] ret = new double[i];
+        System.arraycopy(darr, 0, ret, 0, i);
+        return ret;
+    }
 
-        double[] darr = new double[cv.size()];
-        int i = 0;
-        Enumeration<Ptg> en = cv.elements();
-        while (en.hasMoreElements()) {
-            d = null;//new Double(0.0);		// 20081229 KSC: reset
-            Ptg pthing = (Ptg) en.nextElement();
-            Object ob = pthing.getValue();
-            if (ob == null || ob.toString().trim().equals("")) {    // 20060802 KSC: added trim
-                darr[i] = 0;
-            } else if (ob.toString().equals("#CIR_ERR!")) {
-                throw new CircularReferenceException(CalculationException.VALUE);
-            } else {
+    private static double[] grow(double[] darr) {
+        double[] d = new double[darr.length * 2];
+        System.arraycopy(darr, 0, d, 0, darr.length);
+        return d;
+    }
 
-                try {
-                    if (ob instanceof Double) {
-                        d = (Double) ob;
-                    } else {
-                        String s = ob.toString();
-                        d = new Double(s);
-                    }
-                } catch (NumberFormatException e) {
-                    try {
-                        String s = ob.toString();
-                        if (s.equals("#N/A")) {    // 20090130 KSC: if error value, propagate error (ala Excel) -- null caught in calling method propagates "#N/A"
-                            return null;
-                        }
-                    } catch (Exception ee) {
-                        Logger.logWarn("PtgCalculator getting Double value array failed: " + ee);
-                        d = new Double(Double.NaN);
-                    }
+    /**
+     * converts a single operand value to a double the way the value array
+     * functions expect: empty and non-numeric values are 0.
+     *
+     * @return the value, or null if the value is #N/A, which should be propagated
+     * @throws CircularReferenceException if the value is a circular reference error
+     */
+    protected static Double getDoubleValue(Object ob) throws CalculationException {
+        Double d = null;
+        if (ob == null || ob.toString().trim().equals("")) {    // 20060802 KSC: added trim
+            return new Double(0);
+        } else if (ob.toString().equals("#CIR_ERR!")) {
+            throw new CircularReferenceException(CalculationException.VALUE);
+        }
+        try {
+            if (ob instanceof Double) {
+                d = (Double) ob;
+            } else {
+                String s = ob.toString();
+                d = new Double(s);
+            }
+        } catch (NumberFormatException e) {
+            try {
+                String s = ob.toString();
+                if (s.equals("#N/A")) {    // 20090130 KSC: if error value, propagate error (ala Excel) -- null caught in calling method propagates "#N/A"
+                    return null;
                 }
-                if (d != null)
-                    darr[i] = d.doubleValue();
+            } catch (Exception ee) {
+                Logger.logWarn("PtgCalculator getting Double value array failed: " + ee);
+                d = new Double(Double.NaN);
             }
-            i++;
         }
-        return darr;
+        if (d == null)
+            return new Double(0);
+        return d;
     }
 
     protected static double[] getDoubleValueArray(Ptg operands) throws CalculationException {
@@ -181,17 +206,34 @@ public class PtgCalculator {
         if (operand instanceof PtgRef) {
             int[] rc = ((PtgRef) operand).getIntLocation();
             String sheet = ((PtgRef) operand).getSheetName();
-            com.valkyrlabs.formats.XLS.WorkBook bk = operand.getParentRec().getWorkBook();
+            com.valkyrlabs.formats.XLS.Boundsheet bs = operand.getParentRec().getWorkBook().getWorkSheetByName(sheet);
             nrows = rc[2] - rc[0] + 1;
             ncols = rc[3] - rc[1] + 1;
             arr = new double[nrows][ncols];
             for (int j = rc[1]; j <= rc[3]; j++) {
                 for (int i = rc[0]; i <= rc[2]; i++) {
-                    String cell = ExcelTools.formatLocation(new int[]{i, j});
-                    arr[i - rc[0]][j - rc[1]] = bk.getCell(sheet, cell).getDblVal();
+                    // read without restoring compact cells to the sheet
+                    com.valkyrlabs.formats.XLS.BiffRec cell = bs.peekCell(i, j);
+                    if (cell == null)
+                        throw new com.valkyrlabs.OpenXLS.CellNotFoundException(sheet, i, j);
+                    arr[i - rc[0]][j - rc[1]] = cell.getDblVal();
                 }
             }
 
+        } else if (operand instanceof PtgArray) {
+            PtgArray pa = (PtgArray) operand;
+            nrows = pa.getNumberOfRows() + 1;
+            ncols = pa.getNumberOfColumns() + 1;
+            arr = new double[nrows][ncols];
+            for (int i = 0; i < nrows; i++) {
+                for (int j = 0; j < ncols; j++) {
+                    Object o = pa.getValueAt(i, j);
+                    if (o instanceof Number)
+                        arr[i][j] = ((Number) o).doubleValue();
+                    else
+                        arr[i][j] = Double.parseDouble(String.valueOf(o));
+                }
+            }
         } else { // should be an array
             String arrStr = operand.toString().substring(1);
             arrStr = arrStr.substring(0, arrStr.length() - 1);
@@ -201,7 +243,7 @@ public class PtgCalculator {
                 String[] s = rows[i].split(",", -1);    // include empty strings
                 arr[i] = new double[s.length];
                 for (int j = 0; j < s.length; j++) {
-                    arr[i][j] = new Double(s[j]).doubleValue();
+                    arr[i][j] = Double.parseDouble(s[j]);
                 }
             }
         }
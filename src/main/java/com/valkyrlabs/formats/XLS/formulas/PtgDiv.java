@@ -78,9 +78,17 @@ public final class PtgDiv extends GenericPtg implements Ptg {
      */
     public Ptg calculatePtg(Ptg[] form) {
         try {
-            Object[] o = getValuesFromPtgs(form);
+            double[] dub = new double[2];
+            Object[] o = (form.length == 2) ? getNumbersOrValues(form, dub) : getValuesFromPtgs(form);
+            if (o == ALL_NUMBERS) {
+                if (dub[1] == 0)
+                    return new PtgErr(PtgErr.ERROR_DIV_ZERO);
+                return new PtgNumber(dub[0] / dub[1]);
+            }
             if (o == null) return new PtgErr(PtgErr.ERROR_VALUE); // some error in value(s)
             if (!o[0].getClass().isArray()) {
+                Ptg err = getOperandError(o);
+                if (err != null) return err;
                 //double[] dub = super.getValuesFromPtgs(form);
                 // there should always be only two ptg's in this, error if not.
                 if (o.length != 2) {
@@ -145,7 +145,7 @@ public class PtgExp extends GenericPtg implements Ptg {
         Object o = null;
         Formula f = (Formula) this.getParentRec();
         if (f.isSharedFormula()) {
-            o = FormulaCalculator.calculateFormula(f.shared.instantiate(f));
+            o = f.shared.calculate(f);
 //			throw new UnsupportedOperationException (
 //					"Shared formulas must be instantiated for calculation");
         } else {
@@ -169,7 +169,7 @@ public class PtgExp extends GenericPtg implements Ptg {
         Object o = null;
         Formula f = ((Formula) this.getParentRec());
         if (f.isSharedFormula()) {
-            o = FormulaCalculator.calculateFormula(f.shared.instantiate(f));
+            o = f.shared.calculate(f);
         } else {
             Object r = null;
             if (f.getInternalRecords().size() > 0)
@@ -194,6 +194,8 @@ public class PtgExp extends GenericPtg implements Ptg {
 //			Double d = new Double(o.toString());
         else if (o instanceof Double)
             return new PtgNumber(((Double) o).doubleValue());
+        else if (o instanceof CalculationException)
+            return new PtgErr(((CalculationException) o).getErrorCode());
         //p = new PtgNumber(d.doubleValue());
 //		}catch(NumberFormatException e){
         if (o.toString().equalsIgnoreCase("true") || o.toString().equalsIgnoreCase("false"))
@@ -282,6 +282,24 @@ public class PtgMemFunc extends GenericPtg {
         return ptgs;
     }
 
+    /**
+     * Returns a cursor over the cells of this complex range, in the same
+     * order as getComponents(), reading values straight from the sheet.
+     */
+    public RangeCursor getRangeCursor() {
+        Ptg[] p = getComponents();
+        if (p == null)
+            return null;
+        RangeCursor cursor = new RangeCursor(parent_rec);
+        for (int i = 0; i < p.length; i++) {
+            if (p[i] instanceof PtgRef)
+                cursor.addRef((PtgRef) p[i]);
+            else
+                cursor.addPtg(p[i]);
+        }
+        return cursor;
+    }
+
     /**
      * @return Returns the firstPtg.
      */
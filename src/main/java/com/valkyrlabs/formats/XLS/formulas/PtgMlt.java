@@ -85,10 +85,15 @@ public class PtgMlt extends GenericPtg implements Ptg {
             return form[1];
 
         try {
+            double[] dub = new double[2];
+            Object[] o = (form.length == 2) ? getNumbersOrValues(form, dub) : getValuesFromPtgs(form);
+            if (o == ALL_NUMBERS)
+                return new PtgNumber(dub[0] * dub[1]);
             // 20090202 KSC: Handle array formulas
-            Object[] o = getValuesFromPtgs(form);
             if (o == null) return new PtgErr(PtgErr.ERROR_VALUE); // some error in value(s)
             if (!o[0].getClass().isArray()) {
+                Ptg err = getOperandError(o);
+                if (err != null) return err;
                 //double[] dub = super.getValuesFromPtgs(form);
                 // there should always be only two ptg's in this, error if not.
                 if (o.length != 2) {
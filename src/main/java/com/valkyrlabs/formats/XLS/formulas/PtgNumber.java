@@ -80,6 +80,10 @@ public class PtgNumber extends GenericPtg implements Ptg {
         return d;
     }
 
+    public void getValue(EvalValue value) {
+        value.setNumber(val);
+    }
+
     public void init(byte[] b) {
         ptgId = b[0];
         record = b;
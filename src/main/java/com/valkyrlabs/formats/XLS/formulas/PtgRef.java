@@ -797,27 +797,27 @@ public class PtgRef extends GenericPtg implements Ptg {
      * @return
      */
     public boolean isBlank() {
-        getRefCells();
-        return (refCell[0] == null || ((XLSRecord) refCell[0]).isBlank);//getOpcode()==BLANK);
+        BiffRec cell = getValueCell();
+        return (cell == null || ((XLSRecord) cell).isBlank);//getOpcode()==BLANK);
     }
 
     /**
      * returns the value of the cell refereced by the PtgRef
      */
     public Object getValue() {
-        getRefCells();
+        BiffRec cell = getValueCell();
         Object retValue = null;
-        if (refCell[0] != null) {
-            if (refCell[0].getFormulaRec() != null) {
-                Formula f = refCell[0].getFormulaRec();
+        if (cell != null) {
+            if (cell.getFormulaRec() != null) {
+                Formula f = cell.getFormulaRec();
                 retValue = f.calculateFormula();
                 return retValue;
             } else {
-                if (refCell[0].getDataType().equals("Float")) {
-                    retValue = new Double(refCell[0].getDblVal());
+                if (((XLSRecord) cell).getCellType() == Cell.TYPE_FP) {
+                    retValue = new Double(cell.getDblVal());
                     return retValue;
                 } else {
-                    retValue = refCell[0].getInternalVal();
+                    retValue = cell.getInternalVal();
                     return retValue;
                 }
             }
@@ -832,22 +832,42 @@ public class PtgRef extends GenericPtg implements Ptg {
         }
     }
 
+    /**
+     * puts the value of the referenced cell in the given EvalValue; numeric
+     * cells are read without boxing
+     */
+    public void getValue(EvalValue value) {
+        if (getClass() != PtgRef.class && getClass() != PtgRef3d.class) {
+            value.set(getValue());    // error refs etc. evaluate themselves
+            return;
+        }
+        BiffRec cell = getValueCell();
+        if (cell == null) {
+            value.set(getValue());
+        } else if (cell.getFormulaRec() != null) {
+            value.set(cell.getFormulaRec().calculateFormula());
+        } else if (((XLSRecord) cell).getCellType() == Cell.TYPE_FP) {
+            value.setNumber(cell.getDblVal());
+        } else {
+            value.set(cell.getInternalVal());
+        }
+    }
+
     /**
      * returns the value of the ptg formatted via the underlying cell's number format
      *
      * @return String underlying cell value formatted via cell's format pattern
      */
     public String getFormattedValue() {
-        getRefCells();
         Object retValue = null;
-        BiffRec cell = refCell[0];
+        BiffRec cell = getValueCell();
 
         if (cell != null) {
             if (cell.getFormulaRec() != null) {
                 Formula f = cell.getFormulaRec();
                 retValue = f.calculateFormula();
             } else {
-                if (cell.getDataType().equals("Float")) {
+                if (((XLSRecord) cell).getCellType() == Cell.TYPE_FP) {
                     retValue = new Double(cell.getDblVal());
                 } else {
                     retValue = cell.getInternalVal();
@@ -870,18 +890,40 @@ public class PtgRef extends GenericPtg implements Ptg {
      * @return Returns the refCell.
      */
     public BiffRec[] getRefCells() {
-        refCell = new BiffRec[1];
+        // filled before it is published, as cached ranges share their PtgRefs
+        // between threads
+        BiffRec[] cells = new BiffRec[1];
         try {
-            Boundsheet bs = null;
-            if ((sheetname != null) && (parent_rec != null)) {
-                bs = this.parent_rec.getWorkBook().getWorkSheetByName(sheetname);
-            } else if (parent_rec != null) {
-                bs = parent_rec.getSheet();
-            }
-            refCell[0] = bs.getCell(rw, col);
+            cells[0] = getRefSheet().getCell(rw, col);
+        } catch (Exception ex) {
+        }
+        refCell = cells;
+        return cells;
+    }
+
+    /**
+     * returns the referenced cell for reading its value, or null if there is
+     * none.  Unlike {@link #getRefCells()} this never changes the sheet, as
+     * cells held in compact storage are read as detached copies, so formulas
+     * may be calculated on several threads at once.
+     *
+     * @see Boundsheet#peekCell(int, int)
+     */
+    BiffRec getValueCell() {
+        try {
+            return getRefSheet().peekCell(rw, col);
         } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private Boundsheet getRefSheet() throws SheetNotFoundException {
+        if ((sheetname != null) && (parent_rec != null)) {
+            return this.parent_rec.getWorkBook().getWorkSheetByName(sheetname);
+        } else if (parent_rec != null) {
+            return parent_rec.getSheet();
         }
-        return refCell;
+        return null;
     }
 
     public boolean changeLocation(String newLoc, Formula f) {
@@ -463,6 +463,12 @@ public class PtgRef3d extends PtgRef implements Ptg, IxtiListener {
         return refCell;
     }
 
+    BiffRec getValueCell() {
+        if (sheetname == null)
+            sheetname = this.getSheetName();
+        return super.getValueCell();
+    }
+
     /**
      * PtgRef's have no sub-compnents
      */
@@ -219,6 +219,32 @@ public class PtgRefN extends PtgRef {
      */
     public PtgRef convertToPtgRef(XLSRecord r/*PtgExp pxp*/) {
         //XLSRecord r = (XLSRecord)pxp.getParentRec();
+        int[] i = getLocation(r);
+
+        PtgRef prf = new PtgRef(i, r, false);
+//	  	String s = ExcelTools.formatLocation(i, fRwRel, fColRel);
+//	  	PtgRef prf = new PtgRef(s, r /*pxp.getParentRec()*/, false); //false);	 	
+
+        return prf;
+    }
+
+    /**
+     * Points a PtgRef made by {@link #convertToPtgRef(XLSRecord)} at the cell
+     * this reference denotes for another record, so that one PtgRef may serve
+     * each member of a shared formula in turn
+     *
+     * @param r   the member formula
+     * @param ref the PtgRef to re-point
+     */
+    public void convertToPtgRef(XLSRecord r, PtgRef ref) {
+        ref.setParentRec(r);
+        ref.setLocation(getLocation(r));
+    }
+
+    /**
+     * returns the {row, col} this reference denotes for record r
+     */
+    private int[] getLocation(XLSRecord r) {
         int[] i = new int[2];
         if (fRwRel) {
             i[0] = r.getRowNumber() + rw;
@@ -234,12 +260,7 @@ public class PtgRefN extends PtgRef {
         if (i[1] >= MAXCOLS_BIFF8 &&
                 !r.getWorkBook().getIsExcel2007())    // TODO: determine if this is an OK maxcol (Excel 2007)
             i[1] -= MAXCOLS_BIFF8;
-
-        PtgRef prf = new PtgRef(i, r, false);
-//	  	String s = ExcelTools.formatLocation(i, fRwRel, fColRel);
-//	  	PtgRef prf = new PtgRef(s, r /*pxp.getParentRec()*/, false); //false);	 	
-
-        return prf;
+        return i;
     }
 
     /**
@@ -78,9 +78,18 @@ public class PtgSub extends GenericPtg implements Ptg {
      */
     public Ptg calculatePtg(Ptg[] form) {
         try {
-            Object[] o = getValuesFromPtgs(form);
+            double[] dub = new double[2];
+            Object[] o = (form.length == 2) ? getNumbersOrValues(form, dub) : getValuesFromPtgs(form);
+            if (o == ALL_NUMBERS) {
+                // blank handling:
+                if (form[0].isBlank()) dub[0] = 0;
+                if (form[1].isBlank()) dub[1] = 0;
+                return new PtgNumber(dub[0] - dub[1]);
+            }
             if (o == null) return new PtgErr(PtgErr.ERROR_VALUE); // some error in value(s)
             if (!o[0].getClass().isArray()) {
+                Ptg err = getOperandError(o);
+                if (err != null) return err;
                 if (o.length != 2) {
                     Logger.logWarn("calculating formula failed, wrong number of values in PtgSub");
                     return new PtgErr(PtgErr.ERROR_VALUE);    // 20081203 KSC: handle error's ala Excel return null;
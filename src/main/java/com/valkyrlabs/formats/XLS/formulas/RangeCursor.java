@@ -0,0 +1,328 @@
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 Extentech Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with OpenXLS.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+package com.valkyrlabs.formats.XLS.formulas;
+
+import com.valkyrlabs.OpenXLS.Cell;
+import com.valkyrlabs.OpenXLS.SheetNotFoundException;
+import com.valkyrlabs.formats.XLS.BiffRec;
+import com.valkyrlabs.formats.XLS.Boundsheet;
+import com.valkyrlabs.formats.XLS.Formula;
+import com.valkyrlabs.formats.XLS.WorkBook;
+import com.valkyrlabs.formats.XLS.XLSRecord;
+
+/**
+ * RangeCursor walks the cells referenced by a range operand in place, reading
+ * each value directly from the sheet's cell store.
+ * <p>
+ * Cells are visited in the same order as {@link Ptg#getComponents()} and
+ * yield the same values as the component's {@link PtgRef#getValue()}, but no
+ * PtgRef, location string or value array is created per cell, so aggregate
+ * functions can consume large ranges without allocating per cell:
+ * <pre>
+ * RangeCursor cells = operand.getRangeCursor();
+ * while (cells.next()) {
+ *     if (cells.isNumber())
+ *         sum += cells.getDoubleValue();
+ * }
+ * </pre>
+ *
+ * @see Ptg#getRangeCursor()
+ */
+public class RangeCursor {
+    // each block is a rectangle of cells on one sheet, or a single Ptg which is evaluated as-is
+    private Boundsheet[] sheets = new Boundsheet[1];
+    private int[] bounds = new int[4];
+    private Ptg[] ptgs = new Ptg[1];
+    private int blocks = 0;
+
+    private final boolean showZeroValues;
+    private String lastSheetName = null;
+    private Boundsheet lastSheet = null;
+
+    // current position
+    private int block = -1;
+    private int row = -1;
+    private int col = -1;
+    private BiffRec cell = null;
+
+    // current value, evaluated lazily
+    private boolean evaluated = false;
+    private boolean number = false;
+    private double dval = 0;
+    private Object value = null;
+
+    /**
+     * @param parent the record containing the range operand; empty cells
+     *               evaluate to 0 unless its sheet hides zero values
+     */
+    RangeCursor(XLSRecord parent) {
+        boolean showZeros = true;
+        try {
+            showZeros = parent.getSheet().getWindow2().getShowZeroValues();
+        } catch (NullPointerException e) {
+            // assume zero, which the vast majority of cases are
+        }
+        showZeroValues = showZeros;
+    }
+
+    /**
+     * adds a rectangle of cells to the cursor; cells are visited column by
+     * column, top to bottom.  A null sheet yields empty cells.
+     */
+    void addRange(Boundsheet sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        ensureCapacity();
+        sheets[blocks] = sheet;
+        int b = blocks << 2;
+        bounds[b] = firstRow;
+        bounds[b + 1] = firstCol;
+        bounds[b + 2] = lastRow;
+        bounds[b + 3] = lastCol;
+        blocks++;
+    }
+
+    /**
+     * @return the bounds of the cursor's cells as first row, first col, last
+     * row and last col, or null unless they are a single rectangle on an
+     * existing sheet
+     */
+    int[] getSingleRange() {
+        if (blocks != 1 || ptgs[0] != null || sheets[0] == null)
+            return null;
+        return new int[]{bounds[0], bounds[1], bounds[2], bounds[3]};
+    }
+
+    /**
+     * @return the sheet of the cursor's first rectangle of cells
+     */
+    Boundsheet getRangeSheet() {
+        return sheets[0];
+    }
+
+    /**
+     * @return false if empty cells evaluate to null rather than 0
+     */
+    boolean showsZeroValues() {
+        return showZeroValues;
+    }
+
+    /**
+     * adds a single cell reference to the cursor
+     */
+    void addRef(PtgRef ref) {
+        if (ref.getClass() != PtgRef.class && ref.getClass() != PtgRef3d.class) {
+            addPtg(ref);    // error refs etc. evaluate themselves
+            return;
+        }
+        String sn = ref.sheetname;
+        if (sn == null && ref instanceof PtgRef3d)
+            sn = ((PtgRef3d) ref).getSheetName();
+        Boundsheet bs = null;
+        XLSRecord parent = ref.getParentRec();
+        if (sn != null && parent != null) {
+            bs = getSheet(parent.getWorkBook(), sn);
+        } else if (parent != null) {
+            bs = parent.getSheet();
+        }
+        addRange(bs, ref.rw, ref.col, ref.rw, ref.col);
+    }
+
+    /**
+     * adds a Ptg which is visited as a single value via {@link Ptg#getValue()}
+     */
+    void addPtg(Ptg p) {
+        ensureCapacity();
+        ptgs[blocks] = p;
+        blocks++;
+    }
+
+    /**
+     * looks up a referenced sheet by name, remembering the last one found as
+     * consecutive references nearly always point to the same sheet
+     */
+    Boundsheet getSheet(WorkBook book, String sheetName) {
+        if (sheetName.equals(lastSheetName))
+            return lastSheet;
+        Boundsheet bs = null;
+        try {
+            bs = book.getWorkSheetByName(sheetName);
+        } catch (SheetNotFoundException e) {
+        } catch (NullPointerException e) {
+        }
+        lastSheetName = sheetName;
+        lastSheet = bs;
+        return bs;
+    }
+
+    private void ensureCapacity() {
+        if (blocks < ptgs.length)
+            return;
+        int n = blocks * 2;
+        Boundsheet[] s = new Boundsheet[n];
+        System.arraycopy(sheets, 0, s, 0, blocks);
+        sheets = s;
+        Ptg[] p = new Ptg[n];
+        System.arraycopy(ptgs, 0, p, 0, blocks);
+        ptgs = p;
+        int[] b = new int[n << 2];
+        System.arraycopy(bounds, 0, b, 0, blocks << 2);
+        bounds = b;
+    }
+
+    /**
+     * advances to the next cell in the range
+     *
+     * @return false once all cells have been visited
+     */
+    public boolean next() {
+        evaluated = false;
+        value = null;
+        cell = null;
+        if (block >= 0 && block < blocks && ptgs[block] == null) {
+            int b = block << 2;
+            if (row < bounds[b + 2]) {
+                row++;
+                return locate();
+            }
+            if (col < bounds[b + 3]) {
+                col++;
+                row = bounds[b];
+                return locate();
+            }
+        }
+        while (++block < blocks) {
+            if (ptgs[block] != null) {
+                row = -1;
+                col = -1;
+                return true;
+            }
+            int b = block << 2;
+            if (bounds[b] <= bounds[b + 2] && bounds[b + 1] <= bounds[b + 3]) {
+                row = bounds[b];
+                col = bounds[b + 1];
+                return locate();
+            }
+        }
+        return false;
+    }
+
+    private boolean locate() {
+        Boundsheet bs = sheets[block];
+        if (bs != null)
+            cell = bs.peekCell(row, col);
+        return true;
+    }
+
+    /**
+     * @return the zero-based row of the current cell, or -1 if the current
+     * value is not a cell
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * @return the zero-based column of the current cell, or -1 if the current
+     * value is not a cell
+     */
+    public int getCol() {
+        return col;
+    }
+
+    /**
+     * @return the current cell record, or null if the cell is empty
+     */
+    public BiffRec getCell() {
+        return cell;
+    }
+
+    /**
+     * @return true if the current position holds no cell at all
+     */
+    public boolean isBlank() {
+        return cell == null && ptgs[block] == null;
+    }
+
+    /**
+     * @return true if the current value is numeric; its value is then
+     * available unboxed from {@link #getDoubleValue()}
+     */
+    public boolean isNumber() {
+        if (!evaluated)
+            evaluate();
+        return number;
+    }
+
+    /**
+     * @return the current numeric value, or 0 if the current value is not a
+     * number
+     */
+    public double getDoubleValue() {
+        if (!evaluated)
+            evaluate();
+        return dval;
+    }
+
+    /**
+     * Returns the value of the current cell exactly as {@link PtgRef#getValue()}
+     * would: formulas are calculated, numbers are returned as Double and empty
+     * cells evaluate to 0, or null if the sheet hides zero values.
+     */
+    public Object getValue() {
+        if (!evaluated)
+            evaluate();
+        if (number && value == null)
+            value = Double.valueOf(dval);
+        return value;
+    }
+
+    private void evaluate() {
+        evaluated = true;
+        number = false;
+        dval = 0;
+        value = null;
+        Object o;
+        if (ptgs[block] != null) {
+            o = ptgs[block].getValue();
+        } else if (cell == null) {
+            o = showZeroValues ? Integer.valueOf(0) : null;
+        } else {
+            Formula f = cell.getFormulaRec();
+            if (f != null) {
+                o = f.calculateFormula();
+            } else {
+                int type = ((XLSRecord) cell).getCellType();
+                if (type == Cell.TYPE_FP || type == Cell.TYPE_DOUBLE) {
+                    number = true;
+                    dval = cell.getDblVal();
+                    return;
+                }
+                o = cell.getInternalVal();
+            }
+        }
+        value = o;
+        if (o instanceof Number) {
+            number = true;
+            dval = ((Number) o).doubleValue();
+        }
+    }
+}
@@ -477,60 +477,103 @@ import com.valkyrlabs.toolkit.Logger;
              return PtgCalculator.getError();
          }
  
-         String matchStr = String.valueOf(operands[1].getValue());
-         boolean matchIsNumber = true;
-         double matchDub = 0;
-         try {
-             matchDub = Double.parseDouble(matchStr);
-         } catch (Exception e) {
-             matchIsNumber = false;
-         }
- 
+         CountifCriteria criteria = new CountifCriteria(operands[1]);
          double count = 0;
-         Ptg[] pref = operands[0].getComponents();
-         if (pref != null) {
-             for (Ptg c : pref) {
-                 Object o = c.getValue();
-                 if (o != null) {
-                     String cellVal = o.toString();
-                     if (matchIsNumber) {
-                         try {
-                             double d = Double.parseDouble(cellVal);
-                             if (Double.compare(d, matchDub) == 0) {
-                                 count++;
-                             }
-                         } catch (NumberFormatException ignored) {
-                         }
-                     } else {
-                         // case-insensitive string match
-                         if (matchStr.equalsIgnoreCase(cellVal)) {
-                             count++;
-                         }
-                     }
+         RangeCursor cells = operands[0].getRangeCursor();
+         if (cells != null) {
+             // read the range in place rather than as a Ptg per cell
+             while (cells.next()) {
+                 if (cells.isNumber() ? criteria.matches(cells.getDoubleValue()) : criteria.matches(cells.getValue())) {
+                     count++;
                  }
              }
-         } else {
+             return new PtgNumber(count);
+         }
+         Ptg[] pref = operands[0].getComponents();
+         if (pref == null) {
              // single cell
-             Object o = operands[0].getValue();
-             if (o != null) {
-                 String cellVal = o.toString();
-                 if (matchIsNumber) {
-                     try {
-                         double d = Double.parseDouble(cellVal);
-                         if (Double.compare(d, matchDub) == 0) {
-                             count++;
-                         }
-                     } catch (NumberFormatException ignored) {
-                     }
-                 } else {
-                     if (matchStr.equalsIgnoreCase(cellVal)) {
-                         count++;
-                     }
-                 }
+             pref = new Ptg[]{operands[0]};
+         }
+         EvalValue v = EvalValue.forThread();
+         for (Ptg c : pref) {
+             c.getValue(v);
+             if (v.isNumber() ? criteria.matches(v.getDouble()) : criteria.matches(v.getValue())) {
+                 count++;
              }
          }
          return new PtgNumber(count);
      }
+
+     /**
+      * the condition of a COUNTIF: a number matches cells equal to it,
+      * including text which parses as that number, and any other value
+      * matches text equal to it ignoring case
+      */
+     private static final class CountifCriteria {
+         private final String text;
+         private final boolean numeric;
+         private final double number;
+
+         CountifCriteria(Ptg condition) {
+             text = String.valueOf(condition.getValue());
+             boolean isNumber = true;
+             double d = 0;
+             try {
+                 d = Double.parseDouble(text);
+             } catch (NumberFormatException e) {
+                 isNumber = false;
+             }
+             numeric = isNumber;
+             number = d;
+         }
+
+         /**
+          * @return true if a numeric cell value matches; text conditions
+          * never match numbers, as any text equal to a number parses as one
+          */
+         boolean matches(double d) {
+             return numeric && Double.compare(d, number) == 0;
+         }
+
+         /**
+          * @return true if a cell value, compared as text, matches
+          */
+         boolean matches(Object o) {
+             if (o == null) {
+                 return false;
+             }
+             String cellVal = o.toString();
+             if (!numeric) {
+                 return text.equalsIgnoreCase(cellVal);
+             }
+             // text cells which cannot be numbers are skipped without an exception
+             if (!mayParseAsDouble(cellVal)) {
+                 return false;
+             }
+             try {
+                 return Double.compare(Double.parseDouble(cellVal), number) == 0;
+             } catch (NumberFormatException e) {
+                 return false;
+             }
+         }
+     }
+
+     /**
+      * returns false for strings which Double.parseDouble certainly cannot
+      * parse: those not starting, after any white space and sign, with a
+      * digit, a point or the start of NaN or Infinity
+      */
+     private static boolean mayParseAsDouble(String s) {
+         int i = 0, n = s.length();
+         while (i < n && s.charAt(i) <= ' ')
+             i++;
+         if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+             i++;
+         if (i >= n)
+             return false;
+         char c = s.charAt(i);
+         return (c >= '0' && c <= '9') || c == '.' || c == 'N' || c == 'I';
+     }
  
      /**
       * COUNTIFS
@@ -697,18 +740,14 @@ import com.valkyrlabs.toolkit.Logger;
              }
          }
  
-         // build the array string
-         StringBuilder sb = new StringBuilder("{");
+         // a single-row array is read down the cells of a vertical range
+         Object[][] result = new Object[1][counts.length];
          for (int i = 0; i < counts.length; i++) {
-             sb.append(counts[i]);
-             if (i < counts.length - 1) {
-                 sb.append(",");
-             }
+             result[0][i] = Integer.valueOf(counts[i]);
          }
-         sb.append("}");
  
          PtgArray returnArr = new PtgArray();
-         returnArr.setVal(sb.toString());
+         returnArr.setVal(result);
          return returnArr;
      }
  
@@ -792,15 +831,15 @@ import com.valkyrlabs.toolkit.Logger;
       */
      protected static Ptg calcLineSt(Ptg[] operands) throws CalculationException {
          double[] ys = PtgCalculator.getDoubleValueArray(operands[0]);
-         if (ys == null) {
+         if (ys == null || ys.length == 0) {
              return new PtgErr(PtgErr.ERROR_NA);
          }
          double[] xs;
          if (operands.length == 1 || (operands[1] instanceof PtgMissArg)) {
-             // create a default x array {0,1,2,...}
+             // create a default x array {1,2,3,...}
              xs = new double[ys.length];
              for (int i = 0; i < ys.length; i++) {
-                 xs[i] = i;
+                 xs[i] = i + 1;
              }
          } else {
              xs = PtgCalculator.getDoubleValueArray(operands[1]);
@@ -808,83 +847,109 @@ import com.valkyrlabs.toolkit.Logger;
                  return new PtgErr(PtgErr.ERROR_NA);
              }
          }
- 
+         if (xs.length != ys.length) {
+             return new PtgErr(PtgErr.ERROR_REF);
+         }
+         boolean useConst = true;
+         if (operands.length > 2 && !(operands[2] instanceof PtgMissArg)) {
+             useConst = PtgCalculator.getBooleanValue(operands[2]);
+         }
          boolean stats = false;
          if (operands.length > 3 && !(operands[3] instanceof PtgMissArg)) {
              stats = PtgCalculator.getBooleanValue(operands[3]);
          }
  
-         // slope & intercept
-         double slope = ((PtgNumber) calcSlope(operands)).getVal();
-         double intercept = ((PtgNumber) calcIntercept(operands)).getVal();
+         double[] line = fitLine(xs, ys, useConst);
+         if (line == null) {
+             return new PtgErr(PtgErr.ERROR_DIV_ZERO);
+         }
+         double slope = line[0];
+         double intercept = line[1];
  
-         // if stats = false, just return basic slope & intercept repeated, a quick approach
+         // if stats = false, just return slope & intercept
          if (!stats) {
-             String ret = "{" + slope + "," + intercept + "},"
-                        + "{" + slope + "," + intercept + "},"
-                        + "{" + slope + "," + intercept + "},"
-                        + "{" + slope + "," + intercept + "},"
-                        + "{" + slope + "," + intercept + "}";
              PtgArray pa = new PtgArray();
-             pa.setVal(ret);
+             pa.setVal(new Object[][] { { new Double(slope), new Double(intercept) } });
              return pa;
          }
  
-         // advanced stats if stats=true:
-         double steyx = ((PtgNumber) calcSteyx(operands)).getVal();
-         // partial analysis for yError, standard error, regression SS, residual SS, etc.
-         // (see original code for details)
-         // ...
-         // For brevity, we replicate the original logic:
-         double sumX = 0;
-         for (double x : xs) {
-             sumX += x;
-         }
-         double sumY = 0;
-         for (double y : ys) {
-             sumY += y;
-         }
- 
-         // predicted values, residual SS
-         double[] predicted = new double[xs.length];
-         double residualSS = 0;
-         for (int i = 0; i < xs.length; i++) {
-             predicted[i] = intercept + xs[i] * slope;
-             double diff = predicted[i] - ys[i];
+         // the total sum of squares is taken about the mean only when there is a constant
+         int n = ys.length;
+         double meanX = 0, meanY = 0;
+         for (int i = 0; i < n; i++) {
+             meanX += xs[i];
+             meanY += ys[i];
+         }
+         meanX /= n;
+         meanY /= n;
+         double totalSS = 0, residualSS = 0, sxx = 0;
+         for (int i = 0; i < n; i++) {
+             double dy = useConst ? ys[i] - meanY : ys[i];
+             double dx = useConst ? xs[i] - meanX : xs[i];
+             double diff = ys[i] - (intercept + xs[i] * slope);
+             totalSS += dy * dy;
              residualSS += diff * diff;
+             sxx += dx * dx;
          }
- 
-         // average of y
-         Ptg[] yPtg = new Ptg[] { operands[0] };
-         double yMean = ((PtgNumber) calcAverage(yPtg)).getVal();
-         double regressionSS = 0;
-         for (int i = 0; i < ys.length; i++) {
-             double d = predicted[i] - yMean;
-             regressionSS += d * d;
+         double regressionSS = totalSS - residualSS;
+         int dof = n - (useConst ? 2 : 1);
+         if (dof <= 0) {
+             return new PtgErr(PtgErr.ERROR_NUM);
          }
+         double steyx = Math.sqrt(residualSS / dof);
+         double r2 = (totalSS == 0) ? 1 : regressionSS / totalSS;
+         double F = regressionSS / (residualSS / dof);
+         // an intercept fixed at 0 has no standard error
+         Object interceptErr = useConst
+                 ? (Object) new Double(steyx * Math.sqrt(1.0 / n + meanX * meanX / sxx))
+                 : "#N/A";
  
-         // R-squared
-         double r2 = ((PtgNumber) calcRsq(operands)).getVal();
-         int dof = ys.length - 2;
-         double F = (regressionSS / 1) / (residualSS / dof);
- 
-         // structure matches original:
          // slope, intercept
          // slope_stdErr, intercept_stdErr
          // r2, steyx
          // F, dof
          // regressionSS, residualSS
-         String retstr = "{" + slope + "," + intercept + "},"
-                 + "{" + 0.0 + "," + 0.0 + "},"  
-                 + "{" + r2 + "," + steyx + "},"
-                 + "{" + F + "," + dof + "},"
-                 + "{" + regressionSS + "," + residualSS + "}";
+         Object[][] ret = {
+                 { new Double(slope), new Double(intercept) },
+                 { new Double(steyx / Math.sqrt(sxx)), interceptErr },
+                 { new Double(r2), new Double(steyx) },
+                 { new Double(F), Integer.valueOf(dof) },
+                 { new Double(regressionSS), new Double(residualSS) } };
  
          PtgArray parr = new PtgArray();
-         parr.setVal(retstr);
+         parr.setVal(ret);
          return parr;
      }
  
+     /**
+      * fits y = slope * x + intercept to the known values by least squares,
+      * with the intercept fixed at 0 if useConst is false
+      *
+      * @return {slope, intercept}, or null if the x values do not vary
+      */
+     private static double[] fitLine(double[] xs, double[] ys, boolean useConst) {
+         int n = ys.length;
+         double sumX = 0, sumY = 0, sumXY = 0, sqrX = 0;
+         for (int i = 0; i < n; i++) {
+             sumX += xs[i];
+             sumY += ys[i];
+             sumXY += xs[i] * ys[i];
+             sqrX += xs[i] * xs[i];
+         }
+         if (!useConst) {
+             if (sqrX == 0) {
+                 return null;
+             }
+             return new double[] { sumXY / sqrX, 0 };
+         }
+         double bottom = (n * sqrX) - (sumX * sumX);
+         if (bottom == 0) {
+             return null;
+         }
+         double slope = ((n * sumXY) - (sumX * sumY)) / bottom;
+         return new double[] { slope, (sumY - slope * sumX) / n };
+     }
+ 
      /**
       * MAX
       * <p>
@@ -1695,9 +1760,70 @@ import com.valkyrlabs.toolkit.Logger;
          return numerator / denominator;
      }
 
-    public static Ptg calcTrend(Ptg[] operands) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'calcTrend'");
-    }
+     /**
+      * TREND
+      * <p>
+      * Returns values along a linear trend fitted to known data by least squares.
+      *
+      * @param operands [0]: known_y, [1]: known_x, [2]: new_x, [3]: const
+      * @return A {@code PtgNumber} for a single new x, else a {@code PtgArray}
+      *         of the values for each new x, or PtgErr.
+      * @throws CalculationException if something fails
+      */
+     public static Ptg calcTrend(Ptg[] operands) throws CalculationException {
+         if (operands.length < 1 || operands.length > 4) {
+             return new PtgErr(PtgErr.ERROR_VALUE);
+         }
+         double[] ys = PtgCalculator.getDoubleValueArray(operands[0]);
+         if (ys == null || ys.length == 0) {
+             return new PtgErr(PtgErr.ERROR_NA);
+         }
+         double[] xs;
+         if (operands.length < 2 || operands[1] instanceof PtgMissArg) {
+             // default x array {1,2,3,...}
+             xs = new double[ys.length];
+             for (int i = 0; i < ys.length; i++) {
+                 xs[i] = i + 1;
+             }
+         } else {
+             xs = PtgCalculator.getDoubleValueArray(operands[1]);
+             if (xs == null) {
+                 return new PtgErr(PtgErr.ERROR_NA);
+             }
+         }
+         if (xs.length != ys.length) {
+             return new PtgErr(PtgErr.ERROR_REF);
+         }
+         double[] newXs = xs;
+         if (operands.length > 2 && !(operands[2] instanceof PtgMissArg)) {
+             newXs = PtgCalculator.getDoubleValueArray(operands[2]);
+             if (newXs == null) {
+                 return new PtgErr(PtgErr.ERROR_NA);
+             }
+         }
+         boolean useConst = true;
+         if (operands.length > 3 && !(operands[3] instanceof PtgMissArg)) {
+             useConst = PtgCalculator.getBooleanValue(operands[3]);
+         }
+ 
+         double[] line = fitLine(xs, ys, useConst);
+         if (line == null) {
+             return new PtgErr(PtgErr.ERROR_DIV_ZERO);
+         }
+         double slope = line[0];
+         double intercept = line[1];
+ 
+         if (newXs.length == 1) {
+             return new PtgNumber(intercept + slope * newXs[0]);
+         }
+         // a single-row array is read down the cells of a vertical range
+         Object[][] result = new Object[1][newXs.length];
+         for (int i = 0; i < newXs.length; i++) {
+             result[0][i] = new Double(intercept + slope * newXs[i]);
+         }
+         PtgArray pa = new PtgArray();
+         pa.setVal(result);
+         return pa;
+     }
  }
  
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.valkyrlabs.OpenXLS;
+
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 ValkyrLabs Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+
+import java.util.Stack;
+
+import com.valkyrlabs.formats.XLS.formulas.CompiledExpression;
+import com.valkyrlabs.formats.XLS.formulas.FormulaCalculator;
+
+/**
+ * Times formula calculation, comparing compiled expressions with
+ * FormulaCalculator and timing a full recalc of the workbook.
+ * <p>
+ * This is a plain timing harness, not a test; run it from the project
+ * directory after <code>mvn test-compile</code>:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *     com.valkyrlabs.OpenXLS.CalculationBenchmark [rows] [repetitions]
+ * </pre>
+ * Each line gives the best time per calculation over the repetitions, and
+ * fails if the two paths give different results.
+ */
+public class CalculationBenchmark {
+	static final String[] FORMULAS = { "=A{r}*B{r}+A{r}/3-B{r}", "=((A{r}+B{r})*(A{r}-B{r}))/(B{r}+1)",
+			"=IF(A{r}>B{r},A{r}-B{r},IF(A{r}=B{r},0,B{r}-A{r}))", "=SUM(A{r},B{r},A{r}*2,B{r}/2)",
+			"=ROUND(MAX(A{r},B{r})/MIN(A{r}+1,B{r}+1),3)" };
+
+	public static void main(String[] args) throws Exception {
+		int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int reps = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+		WorkBookHandle book = new WorkBookHandle();
+		book.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+		WorkSheetHandle sheet = book.getWorkSheet(0);
+		for (int r = 1; r <= rows; r++) {
+			sheet.add(Double.valueOf(r % 97), "A" + r);
+			sheet.add(Double.valueOf(r / 7.0), "B" + r);
+		}
+		String cols = "CDEFG";
+		for (int i = 0; i < FORMULAS.length; i++) {
+			Stack[] expressions = new Stack[rows];
+			CompiledExpression[] compiled = new CompiledExpression[rows];
+			for (int r = 1; r <= rows; r++) {
+				String cell = cols.charAt(i) + String.valueOf(r);
+				sheet.add(FORMULAS[i].replace("{r}", String.valueOf(r)), cell);
+				expressions[r - 1] = sheet.getCell(cell).getFormulaHandle().getFormulaRec().getExpression();
+				compiled[r - 1] = CompiledExpression.compile(expressions[r - 1]);
+			}
+			long interpreted = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+			for (int k = 0; k < reps; k++) {
+				double a = 0, b = 0;
+				long t = System.nanoTime();
+				for (int r = 0; r < rows; r++)
+					a += value(FormulaCalculator.calculateFormulaPtg(expressions[r]).getValue());
+				interpreted = Math.min(interpreted, System.nanoTime() - t);
+				t = System.nanoTime();
+				for (int r = 0; r < rows; r++)
+					b += value(compiled[r].calculate().getValue());
+				fast = Math.min(fast, System.nanoTime() - t);
+				if (a != b)
+					throw new IllegalStateException(FORMULAS[i] + ": " + a + " != " + b);
+			}
+			System.out.printf("%-55s calculator %7.0fns  compiled %7.0fns%n", FORMULAS[i],
+					(double) interpreted / rows, (double) fast / rows);
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int k = 0; k < reps; k++) {
+			book.markFormulasDirty();
+			long t = System.nanoTime();
+			book.recalc();
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		System.out.printf("recalc of %d formulas %.1fms%n", rows * FORMULAS.length, best / 1e6);
+	}
+
+	private static double value(Object o) {
+		return (o instanceof Number) ? ((Number) o).doubleValue() : 0;
+	}
+}
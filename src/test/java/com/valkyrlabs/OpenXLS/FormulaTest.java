@@ -31,6 +31,7 @@ package com.valkyrlabs.OpenXLS;
  */
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 
@@ -68,6 +69,198 @@ public class FormulaTest {
 		t.changeSingleCellLoc();
 	}
 
+	@Test
+	public void testRecalcDependents() {
+		testformula t = new testformula();
+		t.testRecalcDependents();
+	}
+
+	@Test
+	public void testRecalcStaleFileValues() {
+		testformula t = new testformula();
+		t.testRecalcStaleFileValues();
+	}
+
+	@Test
+	public void testParallelRecalc() {
+		testformula t = new testformula();
+		t.testParallelRecalc();
+	}
+
+	@Test
+	public void testParallelRecalcCompactCells() {
+		testformula t = new testformula();
+		t.testParallelRecalcCompactCells();
+	}
+
+	@Test
+	public void testParallelRecalcLazyFormulas() {
+		testformula t = new testformula();
+		t.testParallelRecalcLazyFormulas();
+	}
+
+	@Test
+	public void testRangeAggregates() {
+		testformula t = new testformula();
+		t.testRangeAggregates();
+	}
+
+	@Test
+	public void testTypedArithmetic() {
+		testformula t = new testformula();
+		t.testTypedArithmetic();
+	}
+
+	@Test
+	public void testArrayFunctions() {
+		testformula t = new testformula();
+		t.testArrayFunctions();
+	}
+
+	@Test
+	public void testLookups() {
+		testformula t = new testformula();
+		t.testLookups();
+	}
+
+	@Test
+	public void testLookupCache() {
+		testformula t = new testformula();
+		t.testLookupCache();
+	}
+
+	@Test
+	public void testCompiledExpressions() {
+		testformula t = new testformula();
+		t.testCompiledExpressions();
+	}
+
+	@Test
+	public void testSharedFormulaMembers() {
+		testformula t = new testformula();
+		t.testSharedFormulaMembers();
+	}
+
+	@Test
+	public void testSharedStrings() {
+		testformula t = new testformula();
+		t.testSharedStrings();
+	}
+
+	@Test
+	public void testAreaDependents() {
+		testformula t = new testformula();
+		t.testAreaDependents();
+	}
+
+	@Test
+	public void testWideAreaDependents() {
+		testformula t = new testformula();
+		t.testWideAreaDependents();
+	}
+
+	@Test
+	public void testCompactCells() {
+		testformula t = new testformula();
+		t.testCompactCells();
+	}
+
+	@Test
+	public void testLazySheetLoading() {
+		testformula t = new testformula();
+		t.testLazySheetLoading();
+	}
+
+	@Test
+	public void testLazySheetLoadingThreads() {
+		testformula t = new testformula();
+		t.testLazySheetLoadingThreads();
+	}
+
+	@Test
+	public void testPassThroughWrite() {
+		testformula t = new testformula();
+		t.testPassThroughWrite();
+	}
+
+	@Test
+	public void testRecordRoundTrip() {
+		testformula t = new testformula();
+		t.testRecordRoundTrip();
+	}
+
+	@Test
+	public void testSectorChains() {
+		testformula t = new testformula();
+		t.testSectorChains();
+	}
+
+	@Test
+	public void testWindowedMapping() {
+		testformula t = new testformula();
+		t.testWindowedMapping();
+	}
+
+	@Test
+	public void testParallelSheetLoading() {
+		testformula t = new testformula();
+		t.testParallelSheetLoading();
+	}
+
+	@Test
+	public void testCompactCellLoading() {
+		testformula t = new testformula();
+		t.testCompactCellLoading();
+	}
+
+	@Test
+	public void testLazyFormulaParsing() {
+		testformula t = new testformula();
+		t.testLazyFormulaParsing();
+	}
+
+	@Test
+	public void testRowCursor() {
+		testformula t = new testformula();
+		t.testRowCursor();
+	}
+
+	@Test
+	public void testXlsxRowCursor() {
+		testformula t = new testformula();
+		t.testXlsxRowCursor();
+	}
+
+	@Test
+	public void testStreamingXlsxWriter() {
+		testformula t = new testformula();
+		t.testStreamingXlsxWriter();
+	}
+
+	@Test
+	public void testSharedWorkBook() {
+		testformula t = new testformula();
+		t.testSharedWorkBook();
+	}
+
+	@Test
+	public void testSharedWorkBookFormats() {
+		testformula t = new testformula();
+		t.testSharedWorkBookFormats();
+	}
+
+	@Test
+	public void testForkLargeWorkBook() {
+		testformula t = new testformula();
+		t.testForkLargeWorkBook();
+	}
+
+	@Test
+	public void testForkLeavesSource() {
+		testformula t = new testformula();
+		t.testForkLeavesSource();
+	}
+
 }
 
 /**
@@ -111,6 +304,1800 @@ class testformula {
 		}
 	}
 
+	/**
+	 * recalc only recalculates the formulas which depend upon changed cells,
+	 * precedents before dependents
+	 */
+	public void testRecalcDependents() {
+		WorkBookHandle wbx = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			sheet1.add(Double.valueOf(1), "A1");
+			sheet1.add(Double.valueOf(2), "A2");
+			sheet1.add("=A1+A2", "B1");
+			sheet1.add("=B1*10", "C1");
+			sheet1.add("=SUM(A1:A2)+C1", "D1");
+			CellHandle unrelated = sheet1.add("=A2*2", "E1");
+			wbx.calculateFormulas();
+			org.junit.Assert.assertEquals(33.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+
+			wbx.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+			sheet1.getCell("A1").setVal(5);
+			wbx.recalc();
+			org.junit.Assert.assertEquals(77.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertFalse(unrelated.getFormulaHandle().getFormulaRec().needsCalculation());
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * the first recalc of a workbook read from a file recalculates results
+	 * which were out of date in the file, later ones only dirty formulas
+	 */
+	public void testRecalcStaleFileValues() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			sheet1.add(Double.valueOf(1), "A1");
+			sheet1.add(Double.valueOf(2), "A2");
+			sheet1.add("=A1*2", "B1");
+			sheet1.add("=A2*2", "B2");
+			wbx.calculateFormulas();
+			// A1 changes without recalculating B1, so the file holds a stale B1
+			wbx.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+			sheet1.getCell("A1").setVal(5);
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+
+			WorkBookHandle reread = new WorkBookHandle(new java.io.ByteArrayInputStream(out.toByteArray()));
+			sheet1 = reread.getWorkSheet(0);
+			org.junit.Assert.assertEquals(2.0, ((Number) sheet1.getCell("B1").getVal()).doubleValue(), 0);
+			reread.recalc();
+			org.junit.Assert.assertEquals(10.0, ((Number) sheet1.getCell("B1").getVal()).doubleValue(), 0);
+
+			sheet1.getCell("A1").setVal(6);
+			reread.recalc();
+			org.junit.Assert.assertEquals(12.0, ((Number) sheet1.getCell("B1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertFalse(sheet1.getCell("B2").getFormulaHandle().getFormulaRec().needsCalculation());
+			org.junit.Assert.assertEquals(4.0, ((Number) sheet1.getCell("B2").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * edits inside referenced areas invalidate exactly the formulas whose areas
+	 * contain the cell, also after the formula is changed to another area
+	 */
+	public void testAreaDependents() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet1 = book.getWorkSheet(0);
+			for (int i = 1; i <= 20; i++) {
+				sheet1.add(Double.valueOf(1), "A" + i);
+				sheet1.add(Double.valueOf(1), "B" + i);
+			}
+			sheet1.add("=SUM(A1:A10)", "D1");
+			sheet1.add("=SUM(A11:B20)", "D2");
+			sheet1.add("=SUM(B5)", "D3");
+			book.calculateFormulas();
+			sheet1.getCell("A5").setVal(5);
+			sheet1.getCell("B15").setVal(7);
+			sheet1.getCell("B5").setVal(3);
+			org.junit.Assert.assertEquals(14.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(26.0, ((Number) sheet1.getCell("D2").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(3.0, ((Number) sheet1.getCell("D3").getVal()).doubleValue(), 0);
+			sheet1.getCell("D1").setFormula("=SUM(B1:B10)");
+			sheet1.getCell("D1").getVal();
+			sheet1.getCell("B2").setVal(10);
+			org.junit.Assert.assertEquals(21.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * cells in compact storage read, calculate, edit and write like records
+	 */
+	public void testCompactCells() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 100; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add("row" + i, "B" + i);
+			}
+			sheet1.add(Boolean.TRUE, "C1");
+			sheet1.add("=SUM(A1:A100)", "D1");
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+
+			WorkBookHandle compact = new WorkBookHandle(new java.io.ByteArrayInputStream(out.toByteArray()));
+			compact.setCompactCellStorage(true);
+			org.junit.Assert.assertTrue(compact.getCompactCellStorage());
+			sheet1 = compact.getWorkSheet(0);
+			org.junit.Assert.assertEquals(5050.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals("row7", sheet1.getCell("B7").getStringVal());
+			org.junit.Assert.assertEquals(Boolean.TRUE, sheet1.getCell("C1").getVal());
+			sheet1.getCell("A10").setVal(110);
+			sheet1.add(Double.valueOf(1000), "A20");
+			org.junit.Assert.assertEquals(6130.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+
+			out = new java.io.ByteArrayOutputStream();
+			compact.write(out, WorkBookHandle.FORMAT_XLS);
+			WorkBookHandle reread = new WorkBookHandle(new java.io.ByteArrayInputStream(out.toByteArray()));
+			sheet1 = reread.getWorkSheet(0);
+			org.junit.Assert.assertEquals(110.0, ((Number) sheet1.getCell("A10").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(1000.0, ((Number) sheet1.getCell("A20").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(99.0, ((Number) sheet1.getCell("A99").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals("row100", sheet1.getCell("B100").getStringVal());
+			org.junit.Assert.assertEquals(202, sheet1.getCells().length);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * sheets opened lazily parse their cells on first use, see their changes
+	 * to other sheets and write the same bytes
+	 */
+	public void testLazySheetLoading() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.LAZYSHEETLOADING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			WorkSheetHandle sheet2 = wbx.getWorkSheet(1);
+			for (int i = 1; i <= 50; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet2.add("=Sheet1!A" + i + "*2", "B" + i);
+			}
+			sheet2.add("=SUM(B1:B50)", "C1");
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+			out = new java.io.ByteArrayOutputStream();
+			new WorkBookHandle(new java.io.ByteArrayInputStream(bytes)).write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] eager = out.toByteArray();
+
+			System.setProperty(prop, "true");
+			WorkBookHandle lazy = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			WorkBookHandle touched = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.clearProperty(prop);
+			org.junit.Assert.assertTrue(lazy.getWorkBook().getWorkSheetByNumber(1).hasDeferredCells());
+			out = new java.io.ByteArrayOutputStream();
+			lazy.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(eager, out.toByteArray()));
+
+			sheet1 = touched.getWorkSheet("Sheet1");
+			org.junit.Assert.assertFalse(touched.getWorkBook().getWorkSheetByNumber(0).hasDeferredCells());
+			org.junit.Assert.assertTrue(touched.getWorkBook().getWorkSheetByNumber(1).hasDeferredCells());
+			sheet1.getCell("A10").setVal(110);
+			sheet2 = touched.getWorkSheet("Sheet2");
+			org.junit.Assert.assertEquals(220.0, ((Number) sheet2.getCell("B10").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(2750.0, ((Number) sheet2.getCell("C1").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(prop);
+		}
+	}
+
+	/**
+	 * records left untouched are copied from the source file on write
+	 */
+	public void testPassThroughWrite() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 500; i++) {
+				sheet1.add(Double.valueOf(i + 0.5), "A" + i);
+				sheet1.add("row " + i, "B" + i);
+				sheet1.add("=A" + i + "*2", "C" + i);
+			}
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+
+			WorkBookHandle read = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			out = new java.io.ByteArrayOutputStream();
+			read.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] first = out.toByteArray();
+			out = new java.io.ByteArrayOutputStream();
+			read.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(first, out.toByteArray()));
+
+			read.getWorkSheet("Sheet1").getCell("A250").setVal(1000);
+			out = new java.io.ByteArrayOutputStream();
+			read.write(out, WorkBookHandle.FORMAT_XLS);
+			WorkSheetHandle check = new WorkBookHandle(new java.io.ByteArrayInputStream(
+					out.toByteArray())).getWorkSheet("Sheet1");
+			org.junit.Assert.assertEquals(1000.0, ((Number) check.getCell("A250").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(2000.0, ((Number) check.getCell("C250").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(499.5, ((Number) check.getCell("A499").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals("row 500", check.getCell("B500").getVal());
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * files mapped in windows or copy-on-write read and write the same as
+	 * files mapped whole
+	 */
+	public void testWindowedMapping() {
+		File f = null;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 2000; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add("=A" + i + "+1", "B" + i);
+			}
+			f = File.createTempFile("windowed", ".xls");
+			FileOutputStream fos = new FileOutputStream(f);
+			wbx.write(fos, WorkBookHandle.FORMAT_XLS);
+			fos.close();
+
+			// 4k windows with two kept mapped: reads spanning each window edge, forwards
+			// and then backwards so windows are dropped and mapped again, match the file
+			byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+			org.junit.Assert.assertTrue(bytes.length > 4096 * 4);
+			com.valkyrlabs.formats.LEO.FileBuffer fb = com.valkyrlabs.formats.LEO.FileBuffer.readFileWindowed(f, false, 4096, 2);
+			try {
+				org.junit.Assert.assertTrue(fb.isWindowed());
+				org.junit.Assert.assertEquals(bytes.length, fb.length());
+				byte[] got = new byte[100];
+				for (int pass = 0; pass < 2; pass++) {
+					for (int k = 1; k * 4096 < bytes.length; k++) {
+						int edge = (pass == 0 ? k : bytes.length / 4096 + 1 - k) * 4096;
+						int len = Math.min(got.length, bytes.length - edge + 50);
+						fb.read(edge - 50, got, 0, len);
+						org.junit.Assert.assertTrue("edge " + edge, java.util.Arrays.equals(
+								java.util.Arrays.copyOfRange(bytes, edge - 50, edge - 50 + len), java.util.Arrays.copyOf(got, len)));
+					}
+				}
+				byte[] all = new byte[bytes.length];
+				fb.read(0, all, 0, all.length);
+				org.junit.Assert.assertTrue(java.util.Arrays.equals(bytes, all));
+			} finally {
+				fb.close();
+			}
+
+			WorkBookHandle whole = new WorkBookHandle(f.getPath());
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			whole.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] expected = out.toByteArray();
+			whole.close();
+
+			System.setProperty(WorkBookHandle.WINDOWEDMAPPING_PROP, "true");
+			System.setProperty(WorkBookHandle.USETEMPFILE_PROP, "true");
+			WorkBookHandle windowed = new WorkBookHandle(f.getPath());
+			System.clearProperty(WorkBookHandle.WINDOWEDMAPPING_PROP);
+			System.clearProperty(WorkBookHandle.USETEMPFILE_PROP);
+			org.junit.Assert.assertEquals(1500.0, ((Number) windowed.getWorkSheet(0).getCell("A1500").getVal()).doubleValue(), 0);
+			out = new java.io.ByteArrayOutputStream();
+			windowed.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(expected, out.toByteArray()));
+			windowed.close();
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(WorkBookHandle.WINDOWEDMAPPING_PROP);
+			System.clearProperty(WorkBookHandle.USETEMPFILE_PROP);
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	/**
+	 * threads using lazily loaded sheets at once, also while the sheets are
+	 * parsed on a pool, each see all the cells of a sheet
+	 */
+	public void testLazySheetLoadingThreads() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.LAZYSHEETLOADING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			for (int s = 3; s < 8; s++)
+				wbx.createWorkSheet("Sheet" + (s + 1));
+			for (int s = 0; s < 8; s++) {
+				WorkSheetHandle sh = wbx.getWorkSheet(s);
+				for (int i = 1; i <= 500; i++) {
+					sh.add(Double.valueOf(i), "A" + i);
+					sh.add("s" + s + " row " + i, "B" + i);
+				}
+			}
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+
+			for (int round = 0; round < 10; round++) {
+				System.setProperty(prop, "true");
+				final WorkBookHandle lazy = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+				System.clearProperty(prop);
+				final com.valkyrlabs.formats.XLS.WorkBook book = lazy.getWorkBook();
+				final java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+				java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(9);
+				java.util.List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<java.util.concurrent.Future<String>>();
+				results.add(pool.submit(() -> {
+					start.await();
+					book.loadDeferredCells(4);
+					return "";
+				}));
+				for (int t = 0; t < 8; t++) {
+					final int offset = t;
+					results.add(pool.submit(() -> {
+						start.await();
+						StringBuilder wrong = new StringBuilder();
+						for (int s = 0; s < 8; s++) {
+							com.valkyrlabs.formats.XLS.Boundsheet sheet = book.getWorkSheetByNumber((s + offset) % 8);
+							sheet.ensureCellsLoaded();
+							if (sheet.getNumCells() != 1000)
+								wrong.append(sheet.getSheetName()).append(" has ").append(sheet.getNumCells()).append(' ');
+						}
+						return wrong.toString();
+					}));
+				}
+				start.countDown();
+				for (int t = 0; t < results.size(); t++)
+					org.junit.Assert.assertEquals("", results.get(t).get());
+				pool.shutdown();
+				org.junit.Assert.assertEquals("s5 row 321", lazy.getWorkSheet(5).getCell("B321").getVal());
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * sheets parsed on several threads make the same workbook as sheets
+	 * parsed one by one
+	 */
+	public void testParallelSheetLoading() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.PARALLELSHEETLOADING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			for (int s = 3; s < 8; s++)
+				wbx.createWorkSheet("Sheet" + (s + 1));
+			for (int s = 0; s < 8; s++) {
+				WorkSheetHandle sh = wbx.getWorkSheet(s);
+				for (int i = 1; i <= 200; i++) {
+					sh.add(Double.valueOf(i * (s + 1) + 0.25), "A" + i);
+					sh.add("s" + s + " row " + (i % 50), "B" + i);
+					sh.add("=A" + i + "*2", "C" + i);
+				}
+			}
+			wbx.getWorkSheet(7).add("=SUM(Sheet1!A1:A200)", "D1");
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+			out = new java.io.ByteArrayOutputStream();
+			new WorkBookHandle(new java.io.ByteArrayInputStream(bytes)).write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] serial = out.toByteArray();
+
+			System.setProperty(prop, "4");
+			WorkBookHandle parallel = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.clearProperty(prop);
+			org.junit.Assert.assertFalse(parallel.getWorkBook().getWorkSheetByNumber(5).hasDeferredCells());
+			out = new java.io.ByteArrayOutputStream();
+			parallel.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(serial, out.toByteArray()));
+			org.junit.Assert.assertEquals("s4 row 17", parallel.getWorkSheet(4).getCell("B117").getVal());
+			parallel.getWorkSheet(0).getCell("A10").setVal(1000);
+			org.junit.Assert.assertEquals(2000.0, ((Number) parallel.getWorkSheet(0).getCell("C10").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(20150.0 - 10.25 + 1000,
+					((Number) parallel.getWorkSheet(7).getCell("D1").getVal()).doubleValue(), 0.0001);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(prop);
+		}
+	}
+
+	/**
+	 * value cells read straight into compact storage make the same workbook
+	 * as records compacted after loading
+	 */
+	public void testCompactCellLoading() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.COMPACTCELLSTORAGE;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 300; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add(Double.valueOf(i + 0.125), "B" + i);
+				sheet1.add("row " + (i % 20), "C" + i);
+				sheet1.add(Integer.valueOf(i * 3), "D" + i);
+			}
+			sheet1.add(Boolean.FALSE, "E1");
+			sheet1.add("=SUM(A1:A300)", "F1");
+			sheet1.add("merged", "G1");
+			new CellRange("Sheet1!G1:H2", wbx).mergeCells(true);
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+
+			WorkBookHandle after = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			after.setCompactCellStorage(true);
+			out = new java.io.ByteArrayOutputStream();
+			after.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] expected = out.toByteArray();
+
+			System.setProperty(prop, "true");
+			WorkBookHandle compact = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.clearProperty(prop);
+			org.junit.Assert.assertTrue(compact.getCompactCellStorage());
+			out = new java.io.ByteArrayOutputStream();
+			compact.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(expected, out.toByteArray()));
+
+			sheet1 = compact.getWorkSheet(0);
+			org.junit.Assert.assertEquals(45150.0, ((Number) sheet1.getCell("F1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(7.125, ((Number) sheet1.getCell("B7").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals("row 13", sheet1.getCell("C113").getStringVal());
+			org.junit.Assert.assertEquals(Boolean.FALSE, sheet1.getCell("E1").getVal());
+			org.junit.Assert.assertNotNull(sheet1.getCell("G1").getMergedCellRange());
+			sheet1.getCell("A10").setVal(1010);
+			org.junit.Assert.assertEquals(46150.0, ((Number) sheet1.getCell("F1").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(prop);
+		}
+	}
+
+	/**
+	 * formulas read with their parsing deferred keep their results and bytes,
+	 * and are parsed when a precedent changes or rows are inserted
+	 */
+	public void testLazyFormulaParsing() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.LAZYFORMULAPARSING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 5; i++)
+				sheet1.add(Double.valueOf(i), "A" + i);
+			sheet1.add("=A1*2", "B1");
+			sheet1.add("=SUM(A1:A5)", "C1");
+			sheet1.add("=B1+C1", "D1");
+			sheet1.add("=INDIRECT(\"A2\")*10", "E1");
+			wbx.calculateFormulas();
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+
+			WorkBookHandle eager = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			out = new java.io.ByteArrayOutputStream();
+			eager.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] expected = out.toByteArray();
+
+			System.setProperty(prop, "true");
+			WorkBookHandle lazy = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.clearProperty(prop);
+			out = new java.io.ByteArrayOutputStream();
+			lazy.write(out, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(expected, out.toByteArray()));
+
+			sheet1 = lazy.getWorkSheet(0);
+			org.junit.Assert.assertEquals(17.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			sheet1.getCell("A1").setVal(11);
+			org.junit.Assert.assertEquals(47.0, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			sheet1.getCell("A2").setVal(7);
+			org.junit.Assert.assertEquals(70.0, ((Number) sheet1.getCell("E1").getVal()).doubleValue(), 0);
+
+			System.setProperty(prop, "true");
+			lazy = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.clearProperty(prop);
+			sheet1 = lazy.getWorkSheet(0);
+			sheet1.insertRow(2);
+			org.junit.Assert.assertEquals("=SUM(A1:A6)", sheet1.getCell("C1").getFormulaHandle().getFormulaString());
+			sheet1.getCell("A6").setVal(10);
+			org.junit.Assert.assertEquals(20.0, ((Number) sheet1.getCell("C1").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(prop);
+		}
+	}
+
+	/**
+	 * a row cursor streams cell values and cached formula results from a file
+	 */
+	public void testRowCursor() {
+		checkRowCursor(WorkBookHandle.FORMAT_XLS, ".xls");
+	}
+
+	/**
+	 * a row cursor streams cell values and cached formula results from the sheet XML of an XLSX file
+	 */
+	public void testXlsxRowCursor() {
+		// reading XLSX needs an XmlPull implementation at runtime; the tests register StaxPullParser
+		checkRowCursor(WorkBookHandle.FORMAT_XLSX, ".xlsx");
+	}
+
+	/**
+	 * the streaming XLSX writer flushes rows past its window and writes the rest of the workbook on close
+	 */
+	public void testStreamingXlsxWriter() {
+		File f = null;
+		try {
+			WorkBookHandle book = new WorkBookHandle();
+			book.getWorkSheet(1).add("built", "A1");
+			FormatHandle fmt = new FormatHandle(book);
+			fmt.setFormatPattern("0.00");
+			f = File.createTempFile("streaming", ".xlsx");
+			FileOutputStream out = new FileOutputStream(f);
+			com.valkyrlabs.formats.XLS.OOXMLStreamingWriter w = new com.valkyrlabs.formats.XLS.OOXMLStreamingWriter(book, out, 10);
+			w.startSheet(book.getWorkSheet(0));
+			for (int i = 0; i < 5000; i++)
+				w.appendRow(new Object[] { "name" + (i % 50), Double.valueOf(i), null, Boolean.valueOf(i % 2 == 0) },
+						new int[] { 0, fmt.getFormatId() });
+			w.setCell(4995, 2, "=B4996*2", 0);
+			try {
+				w.setCell(4000, 2, "late", 0);
+				org.junit.Assert.fail("changed a row outside the window");
+			} catch (RowNotFoundException e) {
+				// expected
+			}
+			w.close();
+			out.close();
+
+			java.util.zip.ZipFile zip = new java.util.zip.ZipFile(f);
+			String sheet1 = readEntry(zip, "xl/worksheets/sheet1.xml");
+			String sheet2 = readEntry(zip, "xl/worksheets/sheet2.xml");
+			String sst = readEntry(zip, "xl/sharedStrings.xml");
+			zip.close();
+			org.junit.Assert.assertTrue(sheet1.contains("<c r=\"B5000\" s=\"" + fmt.getFormatId() + "\" t=\"n\"><v>4999.0</v></c>"));
+			org.junit.Assert.assertTrue(sheet1.contains("<c r=\"C4996\"><f>B4996*2</f></c>"));
+			org.junit.Assert.assertTrue(sheet1.contains("<c r=\"D5000\" t=\"b\"><v>0</v></c>"));
+			org.junit.Assert.assertTrue(sheet2.contains("<c r=\"A1\""));
+			// one shared string per distinct value
+			org.junit.Assert.assertTrue(sst.contains("uniqueCount=\"51\""));
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	private static String readEntry(java.util.zip.ZipFile zip, String name) throws java.io.IOException {
+		java.io.InputStream in = zip.getInputStream(zip.getEntry(name));
+		java.io.ByteArrayOutputStream b = new java.io.ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n; (n = in.read(buf)) > 0;)
+			b.write(buf, 0, n);
+		in.close();
+		return b.toString("UTF-8");
+	}
+
+	private void checkRowCursor(int format, String suffix) {
+
+		File f = null;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			wbx.createWorkSheet("Data");
+			WorkSheetHandle data = wbx.getWorkSheet("Data");
+			for (int i = 0; i < 300; i++) {
+				data.add(Double.valueOf(i * 1.5), "A" + (i + 1));
+				data.add("name" + i, "B" + (i + 1));
+			}
+			data.add(Boolean.TRUE, "C1");
+			data.add("=A2*2", "D1");
+			data.add("=B3&\"!\"", "D2");
+			wbx.calculateFormulas();
+			f = File.createTempFile("rowcursor", suffix);
+			FileOutputStream out = new FileOutputStream(f);
+			wbx.write(out, format);
+			out.close();
+
+			RowCursor cursor = WorkBookHandle.openRowCursor(f, "Data");
+			int cells = 0;
+			try {
+				while (cursor.next()) {
+					cells++;
+					if (cursor.getCellAddress().equals("B250"))
+						org.junit.Assert.assertEquals("name249", cursor.getStringVal());
+					else if (cursor.getCellAddress().equals("A101"))
+						org.junit.Assert.assertEquals(150.0, cursor.getDoubleVal(), 0);
+					else if (cursor.getCellAddress().equals("C1"))
+						org.junit.Assert.assertEquals(Boolean.TRUE, cursor.getVal());
+					else if (cursor.getCellAddress().equals("D1")) {
+						org.junit.Assert.assertTrue(cursor.isFormula());
+						org.junit.Assert.assertEquals(3.0, cursor.getDoubleVal(), 0);
+					} else if (cursor.getCellAddress().equals("D2"))
+						org.junit.Assert.assertEquals("name2!", cursor.getVal());
+				}
+			} finally {
+				cursor.close();
+			}
+			org.junit.Assert.assertEquals(603, cells);
+			try {
+				WorkBookHandle.openRowCursor(f, "Missing").close();
+				org.junit.Assert.fail("opened a missing sheet");
+			} catch (SheetNotFoundException e) {
+				// expected
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	/** an edit tried on a frozen workbook */
+	interface Edit {
+		void apply(WorkBookHandle book) throws Exception;
+	}
+
+	/**
+	 * a shared workbook rejects edits of every kind and keeps its formula
+	 * results, while readers on several threads read and write it at once
+	 */
+	public void testSharedWorkBook() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 200; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add("=A" + i + "*2", "B" + i);
+			}
+			sheet1.add("text", "C1");
+			wbx.calculateFormulas();
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			final SharedWorkBook shared = new SharedWorkBook(out.toByteArray());
+
+			Edit[] edits = {
+					b -> b.getWorkSheet("Sheet1").getCell("A1").setVal(5),
+					b -> b.getWorkSheet("Sheet1").getCell("B1").setFormula("=A1*3"),
+					b -> b.getWorkSheet("Sheet1").getCell("A1").setFormatId(0),
+					b -> b.getWorkSheet("Sheet1").getCell("A1").setURL("http://openxls.org/"),
+					b -> b.getWorkSheet("Sheet1").getCell("A1").setBold(true),
+					b -> b.getWorkSheet("Sheet1").getCell("A1").createComment("note", "me"),
+					b -> b.getWorkSheet("Sheet1").getRow(0).setHeight(600),
+					b -> b.getWorkSheet("Sheet1").getRow(0).setHidden(true),
+					b -> b.getWorkSheet("Sheet1").getCol("A").setWidth(5000),
+					b -> b.getWorkSheet("Sheet1").setHidden(true),
+					b -> b.getWorkSheet("Sheet2").setSelected(true),
+					b -> b.getWorkSheet("Sheet2").setTabIndex(0),
+					b -> b.getWorkSheet("Sheet1").freezeRow(1),
+					b -> b.getWorkSheet("Sheet1").setProtected(true),
+					b -> b.getWorkSheet("Sheet1").insertRow(0),
+					b -> b.getWorkSheet("Sheet2").remove(),
+					b -> b.createWorkSheet("New"),
+					b -> b.copyWorkSheet("Sheet1", "Copy"),
+					b -> b.setShowSheetTabs(false),
+					b -> b.setProtected(true),
+					b -> new NameHandle("range", "Sheet1!A1:A2", b),
+					b -> b.markFormulasDirty(),
+			};
+			for (int i = 0; i < edits.length; i++) {
+				WorkBookHandle reader = shared.getWorkBook();
+				try {
+					edits[i].apply(reader);
+					org.junit.Assert.fail("edit " + i + " changed a frozen workbook");
+				} catch (WorkBookException e) {
+					org.junit.Assert.assertEquals("edit " + i, WorkBookException.READ_ONLY_EXCEPTION, e.getErrorCode());
+				}
+			}
+			WorkBookHandle reader = shared.getWorkBook();
+			org.junit.Assert.assertEquals(2.0, ((Number) reader.getWorkSheet("Sheet1").getCell("B1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(3, reader.getNumWorkSheets());
+			org.junit.Assert.assertEquals("Sheet1", reader.getWorkSheet(0).getSheetName());
+			reader.close();
+
+			out = new java.io.ByteArrayOutputStream();
+			shared.getWorkBook().write(out, WorkBookHandle.FORMAT_XLS);
+			final byte[] expected = out.toByteArray();
+			java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(8);
+			java.util.List<java.util.concurrent.Future<Boolean>> results = new java.util.ArrayList<java.util.concurrent.Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				results.add(pool.submit(() -> {
+					WorkBookHandle book = shared.getWorkBook();
+					boolean same = true;
+					for (int n = 0; n < 10; n++) {
+						WorkSheetHandle sheet = book.getWorkSheet("Sheet1");
+						for (int i = 1 + offset; i <= 200; i += 8) {
+							same &= ((Number) sheet.getCell("B" + i).getVal()).doubleValue() == i * 2;
+						}
+						java.io.ByteArrayOutputStream o = new java.io.ByteArrayOutputStream();
+						book.write(o, WorkBookHandle.FORMAT_XLS);
+						same &= java.util.Arrays.equals(expected, o.toByteArray());
+					}
+					return Boolean.valueOf(same);
+				}));
+			}
+			for (int t = 0; t < results.size(); t++)
+				org.junit.Assert.assertTrue("reader " + t, results.get(t).get().booleanValue());
+			pool.shutdown();
+
+			WorkBookHandle fork = shared.fork();
+			fork.getWorkSheet("Sheet1").getCell("A1").setVal(5);
+			org.junit.Assert.assertEquals(10.0, ((Number) fork.getWorkSheet("Sheet1").getCell("B1").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * readers on several threads see every cell's own format, also for the
+	 * blank cells of a Mulblank, which a frozen workbook splits up
+	 */
+	public void testSharedWorkBookFormats() {
+		try {
+			java.io.File f = new java.io.File(System.getProperty("user.dir")
+					+ "/docs/samples/PrinterSettings/InvoiceTemplate.xls");
+			WorkBookHandle plain = new WorkBookHandle(f.getPath());
+			final java.util.List<String> addresses = new java.util.ArrayList<String>();
+			final java.util.List<Integer> formats = new java.util.ArrayList<Integer>();
+			boolean mulblanks = false;
+			for (WorkSheetHandle sheet : plain.getWorkSheets()) {
+				for (int r = 0; r <= sheet.getLastRow(); r++) {
+					for (int c = 0; c <= sheet.getLastCol(); c++) {
+						try {
+							CellHandle cell = sheet.getCell(r, c);
+							mulblanks |= cell.getCell().getOpcode() == com.valkyrlabs.formats.XLS.XLSConstants.MULBLANK;
+							addresses.add(sheet.getSheetName() + "!" + cell.getCellAddress());
+							formats.add(Integer.valueOf(cell.getFormatId()));
+						} catch (CellNotFoundException e) {
+						}
+					}
+				}
+			}
+			plain.close();
+			org.junit.Assert.assertTrue(mulblanks);
+
+			final SharedWorkBook shared = new SharedWorkBook(f);
+			java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(8);
+			java.util.List<java.util.concurrent.Future<Integer>> results = new java.util.ArrayList<java.util.concurrent.Future<Integer>>();
+			for (int t = 0; t < 8; t++) {
+				results.add(pool.submit(() -> {
+					WorkBookHandle book = shared.getWorkBook();
+					int wrong = 0;
+					for (int n = 0; n < 100; n++) {
+						for (int i = 0; i < addresses.size(); i++) {
+							String[] loc = addresses.get(i).split("!");
+							CellHandle cell = book.getWorkSheet(loc[0]).getCell(loc[1]);
+							if (cell.getCell().getOpcode() == com.valkyrlabs.formats.XLS.XLSConstants.MULBLANK
+									|| cell.getFormatId() != formats.get(i).intValue())
+								wrong++;
+						}
+					}
+					return Integer.valueOf(wrong);
+				}));
+			}
+			try {
+				for (int t = 0; t < results.size(); t++)
+					org.junit.Assert.assertEquals("reader " + t, 0, results.get(t).get().intValue());
+			} finally {
+				pool.shutdown();
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * a fork of an Excel 2007 workbook keeps the cells beyond the BIFF8 row
+	 * and column limits, and so does a sheet copied into it
+	 */
+	public void testForkLargeWorkBook() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			wbx.setIsExcel2007(true);
+			WorkSheetHandle sheet = wbx.getWorkSheet(0);
+			sheet.add("tall", "A70000");
+			sheet.add(Integer.valueOf(7), "JZ5");
+			sheet.add("=JZ5*2", "B1");
+
+			WorkBookHandle fork = wbx.fork();
+			org.junit.Assert.assertTrue(fork.getIsExcel2007());
+			WorkSheetHandle forked = fork.getWorkSheet("Sheet1");
+			org.junit.Assert.assertEquals("tall", forked.getCell("A70000").getVal());
+			org.junit.Assert.assertEquals(7, ((Number) forked.getCell("JZ5").getVal()).intValue());
+			org.junit.Assert.assertEquals(14.0, ((Number) forked.getCell("B1").getVal()).doubleValue(), 0);
+
+			// the fork is independent of its source
+			forked.getCell("JZ5").setVal(9);
+			org.junit.Assert.assertEquals(18.0, ((Number) forked.getCell("B1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(14.0, ((Number) sheet.getCell("B1").getVal()).doubleValue(), 0);
+
+			WorkBookHandle empty = wbx.getNoSheetWorkBook();
+			org.junit.Assert.assertEquals(0, empty.getNumWorkSheets());
+			WorkSheetHandle copy = sheet.copyTo(empty, "Copy");
+			org.junit.Assert.assertEquals("tall", copy.getCell("A70000").getVal());
+			org.junit.Assert.assertEquals(7, ((Number) copy.getCell("JZ5").getVal()).intValue());
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * forking an Excel 2007 workbook calculates the copy and leaves the
+	 * source's cached values alone, and a frozen workbook can be forked
+	 */
+	public void testForkLeavesSource() {
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			wbx.setIsExcel2007(true);
+			wbx.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+			WorkSheetHandle sheet = wbx.getWorkSheet(0);
+			sheet.add(Double.valueOf(1), "A1");
+			sheet.add("=A1*2", "B1");
+			wbx.calculateFormulas();
+			// B1 is written with its stale cached value
+			sheet.getCell("A1").setVal(5);
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			wbx.write(bout, WorkBookHandle.FORMAT_XLSX);
+
+			WorkBookHandle src = new WorkBookHandle(bout.toByteArray());
+			org.junit.Assert.assertTrue(src.getFormulaCalculationMode() != WorkBookHandle.CALCULATE_EXPLICIT);
+			WorkBookHandle fork = src.fork();
+			org.junit.Assert.assertEquals(10.0,
+					((Number) fork.getWorkSheet(0).getCell("B1").getVal()).doubleValue(), 0);
+			src.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+			org.junit.Assert.assertEquals(2.0,
+					((Number) src.getWorkSheet(0).getCell("B1").getVal()).doubleValue(), 0);
+
+			src.getWorkBook().freeze();
+			WorkBookHandle frozen = src.fork();
+			org.junit.Assert.assertEquals(5,
+					((Number) frozen.getWorkSheet(0).getCell("A1").getVal()).intValue());
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * + - * and / on numbers, blanks, error cells and numeric text
+	 */
+	public void testTypedArithmetic() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			sheet.add(Double.valueOf(6), "A1");
+			sheet.add(Double.valueOf(1.5), "A2");
+			sheet.add(Integer.valueOf(4), "A3");
+			sheet.add("=1/0", "A5");
+			sheet.add("2", "A6");
+			sheet.add("=NA()", "A7");
+			String[] ops = { "+", "-", "*", "/" };
+			String[] operands = { "A2", "A3", "A4", "A5", "A6", "A7" };
+			for (int i = 0; i < ops.length; i++) {
+				for (int j = 0; j < operands.length; j++) {
+					sheet.add("=A1" + ops[i] + operands[j], (char) ('B' + i) + String.valueOf(j + 1));
+				}
+			}
+			book.calculateFormulas();
+			Object[][] expected = {
+					{ 7.5, 10.0, 6.0, "#DIV/0!", 8.0, "#N/A" },
+					{ 4.5, 2.0, 6.0, "#DIV/0!", 4.0, "#N/A" },
+					{ 9.0, 24.0, 0.0, "#DIV/0!", 12.0, "#N/A" },
+					{ 4.0, 1.5, "#DIV/0!", "#DIV/0!", 3.0, "#N/A" } };
+			for (int i = 0; i < ops.length; i++) {
+				for (int j = 0; j < operands.length; j++) {
+					String addr = (char) ('B' + i) + String.valueOf(j + 1);
+					Object val = sheet.getCell(addr).getVal();
+					if (expected[i][j] instanceof Double)
+						org.junit.Assert.assertEquals(addr, ((Double) expected[i][j]).doubleValue(), ((Number) val).doubleValue(), 0);
+					else
+						org.junit.Assert.assertEquals(addr, expected[i][j], val.toString());
+				}
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * MMULT, TRANSPOSE, LINEST and TREND entered over array ranges, before and after a precedent changes
+	 */
+	public void testArrayFunctions() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			sheet.add(Double.valueOf(1), "A1");
+			sheet.add(Double.valueOf(2), "B1");
+			sheet.add(Double.valueOf(3), "A2");
+			sheet.add(Double.valueOf(4), "B2");
+			sheet.add(Double.valueOf(5), "D1");
+			sheet.add(Double.valueOf(6), "E1");
+			sheet.add(Double.valueOf(7), "D2");
+			sheet.add(Double.valueOf(8), "E2");
+			double[] ys = { 3.5, 5, 7.5, 9 };
+			for (int i = 0; i < ys.length; i++) {
+				sheet.add(Double.valueOf(i + 1), "G" + (i + 1));
+				sheet.add(Double.valueOf(ys[i]), "H" + (i + 1));
+			}
+			sheet.add(Double.valueOf(5), "I1");
+			sheet.add(Double.valueOf(6), "I2");
+			addArrayRange(sheet, "{=MMULT(A1:B2,D1:E2)}", "K1:L2");
+			addArrayRange(sheet, "{=TRANSPOSE(A1:B2)}", "K4:L5");
+			addArrayRange(sheet, "{=TRANSPOSE(G1:G4)}", "K7:N7");
+			addArrayRange(sheet, "{=LINEST(H1:H4,G1:G4,TRUE,FALSE)}", "K9:L9");
+			addArrayRange(sheet, "{=LINEST(H1:H4,G1:G4,TRUE,TRUE)}", "K11:L15");
+			addArrayRange(sheet, "{=LINEST(H1:H4,G1:G4,FALSE)}", "K17:L17");
+			addArrayRange(sheet, "{=TREND(H1:H4,G1:G4,I1:I2)}", "K19:K20");
+			sheet.add("=MMULT(A1:B2,G1:G4)", "P1");
+			book.calculateFormulas();
+			assertRange(sheet, "K1:L2", new double[][] { { 19, 22 }, { 43, 50 } });
+			assertRange(sheet, "K4:L5", new double[][] { { 1, 3 }, { 2, 4 } });
+			assertRange(sheet, "K7:N7", new double[][] { { 1, 2, 3, 4 } });
+			// slope and intercept of y = 1.9x + 1.5, fitted with residuals of .1, -.3, .3 and -.1
+			assertRange(sheet, "K9:L9", new double[][] { { 1.9, 1.5 } });
+			assertRange(sheet, "K11:L15", new double[][] { { 1.9, 1.5 },
+					{ Math.sqrt(0.1 / 5), Math.sqrt(0.1 * 1.5) },
+					{ 18.05 / 18.25, Math.sqrt(0.1) },
+					{ 180.5, 2 },
+					{ 18.05, 0.2 } });
+			assertRange(sheet, "K17:L17", new double[][] { { 2.4, 0 } });
+			assertRange(sheet, "K19:K20", new double[][] { { 11 }, { 12.9 } });
+			org.junit.Assert.assertEquals("#VALUE!", sheet.getCell("P1").getVal().toString());
+
+			// every cell of the ranges follows a precedent edit
+			sheet.getCell("A2").setVal(10);
+			book.calculateFormulas();
+			assertRange(sheet, "K1:L2", new double[][] { { 19, 22 }, { 78, 92 } });
+			assertRange(sheet, "K4:L5", new double[][] { { 1, 10 }, { 2, 4 } });
+			sheet.getCell("H4").setVal(11);
+			book.calculateFormulas();
+			assertRange(sheet, "K19:K20", new double[][] { { 13 }, { 15.5 } });
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * enters formula as one array formula over range, as a file read would hold it
+	 */
+	private static void addArrayRange(WorkSheetHandle sheet, String formula, String range) throws Exception {
+		int[] rc = ExcelTools.getRangeRowCol(range);
+		String first = ExcelTools.formatLocation(new int[] { rc[0], rc[1] });
+		sheet.add(formula, first);
+		com.valkyrlabs.formats.XLS.Formula host = sheet.getCell(first).getFormulaHandle().getFormulaRec();
+		host.setArrayRefs(range);
+		sheet.getMysheet().addParentArrayRef(first, range);
+		sheet.getMysheet().addArrayFormula(host.getArray());
+		for (int r = rc[0]; r <= rc[2]; r++) {
+			for (int c = rc[1]; c <= rc[3]; c++) {
+				String addr = ExcelTools.formatLocation(new int[] { r, c });
+				if (addr.equals(first))
+					continue;
+				// the other cells only refer to the first one
+				sheet.add(formula, addr);
+				sheet.getCell(addr).getFormulaHandle().getFormulaRec().getInternalRecords().clear();
+			}
+		}
+	}
+
+	private static void assertRange(WorkSheetHandle sheet, String range, double[][] expected) throws Exception {
+		int[] rc = ExcelTools.getRangeRowCol(range);
+		for (int r = rc[0]; r <= rc[2]; r++) {
+			for (int c = rc[1]; c <= rc[3]; c++) {
+				String addr = ExcelTools.formatLocation(new int[] { r, c });
+				Object val = sheet.getCell(addr).getVal();
+				org.junit.Assert.assertTrue(addr + " " + val, val instanceof Number);
+				org.junit.Assert.assertEquals(addr, expected[r - rc[0]][c - rc[1]], ((Number) val).doubleValue(), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * VLOOKUP, HLOOKUP, MATCH and LOOKUP on sorted, descending, unsorted, blank and mixed data, before and after edits in the ranges
+	 */
+	public void testLookups() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			String[] names = { "ten", "twenty", "thirty", "forty", "fifty", "sixty" };
+			for (int i = 0; i < names.length; i++) {
+				sheet.add(Double.valueOf((i + 1) * 10), "A" + (i + 1));
+				sheet.add(names[i], "B" + (i + 1));
+			}
+			for (int i = 0; i < 5; i++)
+				sheet.add(Double.valueOf(50 - i * 10), "C" + (i + 1));
+			// unsorted, mixed and with a blank at D5
+			sheet.add(Double.valueOf(30), "D1");
+			sheet.add(Double.valueOf(10), "D2");
+			sheet.add("apple", "D3");
+			sheet.add(Double.valueOf(50), "D4");
+			sheet.add(Double.valueOf(20), "D6");
+			String[] fruit = { "Apple", "banana", "Cherry", "date" };
+			String[] colors = { "red", "green", "blue", "pink" };
+			for (int i = 0; i < 4; i++) {
+				sheet.add(fruit[i], "E" + (i + 1));
+				sheet.add(colors[i], (char) ('H' + i) + "1");
+				sheet.add(Double.valueOf(i + 1), (char) ('H' + i) + "2");
+			}
+			String[] formulas = {
+					"=VLOOKUP(30,A1:B6,2,FALSE)",
+					"=VLOOKUP(35,A1:B6,2,TRUE)",
+					"=VLOOKUP(5,A1:B6,2,TRUE)",
+					"=VLOOKUP(99,A1:B6,2)",
+					"=VLOOKUP(30,A1:B6,0,FALSE)",
+					"=VLOOKUP(30,A1:B6,3,FALSE)",
+					"=MATCH(35,A1:A6,1)",
+					"=MATCH(35,A1:A6)",
+					"=MATCH(25,C1:C5,-1)",
+					"=MATCH(50,D1:D6,0)",
+					"=MATCH(\"APPLE\",D1:D6,0)",
+					"=MATCH(\"cherry\",E1:E4,0)",
+					"=MATCH(\"c\",E1:E4,1)",
+					"=VLOOKUP(20,D1:D6,1,FALSE)",
+					"=MATCH(15,D1:D6,0)",
+					"=HLOOKUP(\"blue\",H1:K2,2,FALSE)",
+					"=HLOOKUP(\"BLUE\",H1:K2,2,FALSE)",
+					"=HLOOKUP(\"c\",H1:K2,2,FALSE)",
+					"=LOOKUP(45,A1:A6,B1:B6)",
+					"=MATCH(\"Apple\",A1:A6,0)",
+					"=MATCH(10,E1:E4,0)",
+					"=HLOOKUP(3,H2:K2,1,TRUE)" };
+			for (int i = 0; i < formulas.length; i++)
+				sheet.add(formulas[i], "M" + (i + 1));
+			book.calculateFormulas();
+			assertColumn(sheet, "M", new Object[] { "thirty", "thirty", "#N/A", "sixty", "#VALUE!", "#REF!", 3, 3, 3, 4, 3, 3, 2,
+					20, "#N/A", 3, 3, "#N/A", "forty", "#N/A", "#N/A", 3 });
+
+			// edits inside the ranges drop their cached indexes
+			sheet.getCell("A3").setVal(33.0);
+			sheet.getCell("B3").setVal("thirty-three");
+			sheet.getCell("D4").setVal(55.0);
+			sheet.add(Double.valueOf(15), "D5");
+			sheet.getCell("H1").setVal("BLUE");
+			book.calculateFormulas();
+			assertColumn(sheet, "M", new Object[] { "#N/A", "thirty-three", "#N/A", "sixty", "#VALUE!", "#REF!", 3, 3, 3, "#N/A", 3, 3, 2,
+					20, 5, 1, 1, "#N/A", "forty", "#N/A", "#N/A", 3 });
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	private static void assertColumn(WorkSheetHandle sheet, String col, Object[] expected) throws Exception {
+		for (int i = 0; i < expected.length; i++) {
+			String addr = col + (i + 1);
+			Object val = sheet.getCell(addr).getVal();
+			if (expected[i] instanceof Number)
+				org.junit.Assert.assertEquals(addr, ((Number) expected[i]).doubleValue(), ((Number) val).doubleValue(), 0);
+			else
+				org.junit.Assert.assertEquals(addr, expected[i], val.toString());
+		}
+	}
+
+	/**
+	 * the lookup index cache drops its least recently used entries, counts hits and misses and drops the entries of edited cells
+	 */
+	public void testLookupCache() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			for (int i = 1; i <= 10; i++) {
+				sheet.add(Double.valueOf(i), "A" + i);
+				sheet.add(Double.valueOf(i * 2), "B" + i);
+				sheet.add(Double.valueOf(i * 3), "C" + i);
+			}
+			com.valkyrlabs.formats.XLS.formulas.LookupCache<?> cache = book.getWorkBook().getRefTracker().getLookupIndexCache();
+			cache.setMaxSize(2);
+			org.junit.Assert.assertEquals(2, cache.getMaxSize());
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			// each MATCH reads the index of its column once: A, B, A again, then C, which drops B
+			String[] formulas = { "=MATCH(3,A1:A10,0)", "=MATCH(4,B1:B10,0)", "=MATCH(5,A1:A10,0)", "=MATCH(9,C1:C10,0)",
+					"=MATCH(6,A1:A10,0)", "=MATCH(8,B1:B10,0)" };
+			int[] expected = { 3, 2, 5, 3, 6, 4 };
+			boolean[] hit = { false, false, true, false, true, false };
+			for (int i = 0; i < formulas.length; i++) {
+				sheet.add(formulas[i], "F" + (i + 1));
+				org.junit.Assert.assertEquals(expected[i], ((Number) sheet.getCell("F" + (i + 1)).getVal()).intValue());
+				if (hit[i])
+					hits++;
+				else
+					misses++;
+				org.junit.Assert.assertEquals(formulas[i], hits, cache.getHits());
+				org.junit.Assert.assertEquals(formulas[i], misses, cache.getMisses());
+				org.junit.Assert.assertTrue(cache.size() <= 2);
+			}
+
+			// shrinking keeps the most recently used entry, B
+			cache.setMaxSize(1);
+			org.junit.Assert.assertEquals(1, cache.size());
+			sheet.add("=MATCH(2,B1:B10,0)", "G1");
+			org.junit.Assert.assertEquals(1, ((Number) sheet.getCell("G1").getVal()).intValue());
+			org.junit.Assert.assertEquals(hits + 1, cache.getHits());
+
+			cache.setMaxSize(4);
+			sheet.add("=MATCH(7,A1:A10,0)", "G2");
+			sheet.getCell("G2").getVal();
+			org.junit.Assert.assertEquals(2, cache.size());
+			// edits outside the cached columns keep them
+			sheet.getCell("C5").setVal(99.0);
+			sheet.add(Double.valueOf(1), "Z100");
+			org.junit.Assert.assertEquals(2, cache.size());
+			// an edit in A drops its index only
+			sheet.getCell("A5").setVal(50.0);
+			org.junit.Assert.assertEquals(1, cache.size());
+			org.junit.Assert.assertEquals("#N/A", sheet.getCell("F3").getVal().toString());
+			org.junit.Assert.assertEquals(2, ((Number) sheet.getCell("F2").getVal()).intValue());
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * compiled expressions give the same results as FormulaCalculator, with
+	 * parens, attribute Ptgs, variable argument functions, errors and shared
+	 * formula instances
+	 */
+	public void testCompiledExpressions() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			sheet.add(Double.valueOf(2), "A1");
+			sheet.add(Double.valueOf(3), "A2");
+			sheet.add("x", "A3");
+			sheet.add("=1/0", "A4");
+			String[] formulas = { "=(A1+A2)*2", "=-(A1-A2)", "=((A1))", "=A1^A2", "=IF(A1>A2,1,\"no\")",
+					"=SUM(A1:A2,4,A1)", "=MAX(A1,A2,7)", "=CHOOSE(2,A1,A2,5)", "=CONCATENATE(A3,A1,A2)",
+					"=ROUND(A1/A2,2)", "=AND(A1<A2,TRUE)", "=A4+1", "=A3*2", "=IF(ISERROR(A4),-1,A4)",
+					"=SUM(A1:A3)", "=VLOOKUP(9,A1:A2,1,FALSE)" };
+			Object[] expected = { 10.0, 1.0, 2, 8.0, "no", 11.0, 7.0, 3, "x23", 0.67, true, "#DIV/0!", "#VALUE!", -1,
+					5.0, "#N/A" };
+			for (int i = 0; i < formulas.length; i++) {
+				sheet.add(formulas[i], "C" + (i + 1));
+				com.valkyrlabs.formats.XLS.Formula f = sheet.getCell("C" + (i + 1)).getFormulaHandle().getFormulaRec();
+				assertCompiledAsCalculator(formulas[i], f.getExpression());
+				org.junit.Assert.assertEquals(formulas[i], String.valueOf(expected[i]), String.valueOf(sheet.getCell("C" + (i + 1)).getVal()));
+			}
+
+			// parens are kept in the expression but not calculated
+			java.util.Stack exp = sheet.getCell("C3").getFormulaHandle().getFormulaRec().getExpression();
+			org.junit.Assert.assertTrue(exp.get(1) instanceof com.valkyrlabs.formats.XLS.formulas.PtgParen);
+			// as are attribute Ptgs such as spaces
+			java.util.Stack spaced = new java.util.Stack();
+			spaced.addAll(sheet.getCell("C1").getFormulaHandle().getFormulaRec().getExpression());
+			spaced.add(1, new com.valkyrlabs.formats.XLS.formulas.PtgAtr((byte) 0x40));
+			assertCompiledAsCalculator("spaced", spaced);
+
+			// an expression changed after compiling is compiled again
+			sheet.getCell("C1").getFormulaHandle().setFormula("=A1*10");
+			org.junit.Assert.assertEquals(20.0, ((Number) sheet.getCell("C1").getVal()).doubleValue(), 0);
+
+			// formulas read from a file hold attribute sums and shared formulas
+			WorkBookHandle file = new WorkBookHandle(finpath);
+			int attrs = 0;
+			for (WorkSheetHandle s : file.getWorkSheets()) {
+				for (CellHandle c : s.getCells()) {
+					if (!c.isFormula())
+						continue;
+					java.util.Stack e = c.getFormulaHandle().getFormulaRec().getExpression();
+					for (Object o : e) {
+						if (o instanceof com.valkyrlabs.formats.XLS.formulas.PtgAtr)
+							attrs++;
+					}
+					assertCompiledAsCalculator(c.getCellAddress(), e);
+				}
+			}
+			org.junit.Assert.assertTrue(attrs > 0);
+
+			// the shared instance is re-pointed at each member in turn
+			WorkSheetHandle sheet2 = file.getWorkSheet("Sheet2");
+			com.valkyrlabs.formats.XLS.Shrfmla shared = sheet2.getCell("F5").getFormulaHandle().getFormulaRec().shared;
+			org.junit.Assert.assertNotNull(shared);
+			for (int pass = 0; pass < 2; pass++) {
+				for (int r = 12; r >= 5; r--) {
+					com.valkyrlabs.formats.XLS.Formula m = sheet2.getCell("F" + r).getFormulaHandle().getFormulaRec();
+					Object calculated = com.valkyrlabs.formats.XLS.formulas.FormulaCalculator.calculateFormula(shared.instantiate(m));
+					org.junit.Assert.assertEquals("F" + r, String.valueOf(calculated), String.valueOf(shared.calculate(m)));
+					double sum = ((Number) sheet2.getCell("C" + r).getVal()).doubleValue()
+							+ ((Number) sheet2.getCell("D" + r).getVal()).doubleValue();
+					org.junit.Assert.assertEquals("F" + r, sum, ((Number) shared.calculate(m)).doubleValue(), 0);
+				}
+				sheet2.getCell("C7").setVal(100);
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	private static void assertCompiledAsCalculator(String what, java.util.Stack expression) throws Exception {
+		com.valkyrlabs.formats.XLS.formulas.CompiledExpression c = com.valkyrlabs.formats.XLS.formulas.CompiledExpression.compile(expression);
+		org.junit.Assert.assertNotNull(what, c);
+		org.junit.Assert.assertTrue(what, c.isCompiledFrom(expression));
+		Object calculated = com.valkyrlabs.formats.XLS.formulas.FormulaCalculator.calculateFormulaPtg(expression).getValue();
+		org.junit.Assert.assertEquals(what, String.valueOf(calculated), String.valueOf(c.calculate().getValue()));
+	}
+
+	/**
+	 * shared formula members calculate on the one re-pointed instance and only
+	 * the members whose references reach an edited cell are affected by it
+	 */
+	public void testSharedFormulaMembers() {
+		try {
+			// Sheet2 F5:F12 share =Cn+Dn; F4 holds the same formula unshared
+			WorkBookHandle file = new WorkBookHandle(finpath);
+			WorkSheetHandle sheet2 = file.getWorkSheet("Sheet2");
+			for (int r = 5; r <= 12; r++)
+				org.junit.Assert.assertTrue("F" + r, sheet2.getCell("F" + r).getFormulaHandle().getFormulaRec().isSharedFormula());
+
+			org.junit.Assert.assertEquals("[Sheet2!F7]", affected(sheet2.getCell("C7")));
+			org.junit.Assert.assertEquals("[Sheet2!F12]", affected(sheet2.getCell("D12")));
+			org.junit.Assert.assertEquals("[Sheet2!F5]", affected(sheet2.getCell("D5")));
+			org.junit.Assert.assertEquals("[Sheet2!F4]", affected(sheet2.getCell("C4")));
+			sheet2.add(Double.valueOf(1), "E7");
+			org.junit.Assert.assertEquals("[]", affected(sheet2.getCell("E7")));
+			sheet2.add(Double.valueOf(1), "C13");
+			org.junit.Assert.assertEquals("[]", affected(sheet2.getCell("C13")));
+
+			sheet2.getCell("C7").setVal(1000);
+			sheet2.getCell("D10").setVal(-5);
+			for (int r = 4; r <= 12; r++) {
+				double sum = ((Number) sheet2.getCell("C" + r).getVal()).doubleValue()
+						+ ((Number) sheet2.getCell("D" + r).getVal()).doubleValue();
+				org.junit.Assert.assertEquals("F" + r, sum, ((Number) sheet2.getCell("F" + r).getVal()).doubleValue(), 0);
+			}
+			org.junit.Assert.assertEquals(1000 + ((Number) sheet2.getCell("D7").getVal()).doubleValue(),
+					((Number) sheet2.getCell("F7").getVal()).doubleValue(), 0);
+
+			// and again after a full recalc, calculating the members in order
+			sheet2.getCell("C5").setVal(7);
+			sheet2.getCell("D12").setVal(8);
+			file.recalc();
+			for (int r = 4; r <= 12; r++) {
+				double sum = ((Number) sheet2.getCell("C" + r).getVal()).doubleValue()
+						+ ((Number) sheet2.getCell("D" + r).getVal()).doubleValue();
+				org.junit.Assert.assertEquals("F" + r, sum, ((Number) sheet2.getCell("F" + r).getVal()).doubleValue(), 0);
+			}
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	private static String affected(CellHandle cell) {
+		java.util.List<String> cells = new java.util.ArrayList<String>();
+		for (CellHandle c : cell.calculateAffectedCells())
+			cells.add(c.getWorkSheetName() + "!" + c.getCellAddress());
+		java.util.Collections.sort(cells);
+		return cells.toString();
+	}
+
+	/**
+	 * the shared string table keeps one entry per distinct string, keeps the
+	 * index of each as more are added, reads them back from its packed bytes
+	 * and writes them out unchanged
+	 */
+	public void testSharedStrings() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			book.setDupeStringMode(WorkBookHandle.SHAREDUPES);
+			WorkSheetHandle sheet = book.getWorkSheet(0);
+			com.valkyrlabs.formats.XLS.Sst sst = book.getWorkBook().getSharedStringTable();
+			int unique = sst.getAllStrings().size();
+			String[] words = { "alpha", "beta", "gr\u00fc\u00dfe", "\u65e5\u672c\u8a9e", "" + "x".hashCode() };
+			for (int i = 0; i < 300; i++)
+				sheet.add(words[i % words.length], "A" + (i + 1));
+			java.util.List first = new java.util.ArrayList(sst.getAllStrings());
+			org.junit.Assert.assertEquals(unique + words.length, first.size());
+			for (String w : words)
+				org.junit.Assert.assertEquals(w, first.indexOf(w), first.lastIndexOf(w));
+
+			// more strings than the lookup table and decoded strings hold; those
+			// already there keep their places
+			for (int i = 0; i < 3000; i++)
+				sheet.add("s" + i, "B" + (i + 1));
+			for (int i = 0; i < 3000; i++)
+				sheet.add("s" + i, "C" + (i + 1));
+			java.util.List all = sst.getAllStrings();
+			org.junit.Assert.assertEquals(first.size() + 3000, all.size());
+			org.junit.Assert.assertEquals(first, all.subList(0, first.size()));
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < 300; i++)
+					org.junit.Assert.assertEquals(words[i % words.length], sheet.getCell("A" + (i + 1)).getStringVal());
+				for (int i = 0; i < 3000; i++)
+					org.junit.Assert.assertEquals("s" + i, sheet.getCell("C" + (i + 1)).getStringVal());
+			}
+			sheet.getCell("A2").setVal("changed");
+			org.junit.Assert.assertEquals("beta", sheet.getCell("A7").getStringVal());
+			org.junit.Assert.assertEquals("changed", sheet.getCell("A2").getStringVal());
+
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			book.write(out, WorkBookHandle.FORMAT_XLS);
+			WorkBookHandle reread = new WorkBookHandle(new java.io.ByteArrayInputStream(out.toByteArray()));
+			WorkSheetHandle sheet2 = reread.getWorkSheet(0);
+			for (int i = 0; i < 300; i++)
+				org.junit.Assert.assertEquals(sheet.getCell("A" + (i + 1)).getStringVal(), sheet2.getCell("A" + (i + 1)).getStringVal());
+			for (int i = 0; i < 3000; i++) {
+				org.junit.Assert.assertEquals("s" + i, sheet2.getCell("B" + (i + 1)).getStringVal());
+				org.junit.Assert.assertEquals("s" + i, sheet2.getCell("C" + (i + 1)).getStringVal());
+			}
+			java.util.List reread_strings = reread.getWorkBook().getSharedStringTable().getAllStrings();
+			org.junit.Assert.assertEquals(new java.util.HashSet(reread_strings).size(), reread_strings.size());
+			out = new java.io.ByteArrayOutputStream();
+			reread.write(out, WorkBookHandle.FORMAT_XLS);
+			java.io.ByteArrayOutputStream again = new java.io.ByteArrayOutputStream();
+			new WorkBookHandle(new java.io.ByteArrayInputStream(out.toByteArray())).write(again, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(out.toByteArray(), again.toByteArray()));
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * records read from a file, with headers on sector edges and strings long
+	 * enough to need CONTINUE records, come back with the same values whether
+	 * the book is opened from the file, from a stream, with sheets loaded
+	 * lazily or through a RowCursor, and write out the same bytes
+	 */
+	public void testRecordRoundTrip() {
+		File f = null;
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.LAZYSHEETLOADING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			StringBuilder pad = new StringBuilder();
+			// long enough to cross into a CONTINUE record; Sst reads a string crossing one boundary only
+			for (int i = 0; i < 3000; i++)
+				pad.append((char) ('a' + i % 26));
+			for (int n = 0; n < 2; n++) {
+				WorkSheetHandle sheet = wbx.getWorkSheet(n);
+				for (int i = 1; i <= 2000; i++) {
+					sheet.add(Double.valueOf(i * 1.25 + n), "A" + i);
+					// strings of varied length so records fall across sector edges everywhere
+					sheet.add("r" + i + pad.substring(0, i % 37), "B" + i);
+					sheet.add("=A" + i + "*2", "C" + i);
+					if (i % 400 == 0)
+						sheet.add(i + pad.toString(), "D" + i);
+				}
+			}
+			wbx.calculateFormulas();
+			f = File.createTempFile("records", ".xls");
+			FileOutputStream fos = new FileOutputStream(f);
+			wbx.write(fos, WorkBookHandle.FORMAT_XLS);
+			fos.close();
+			byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+
+			WorkBookHandle fromFile = new WorkBookHandle(f.getPath());
+			WorkBookHandle fromStream = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			System.setProperty(prop, "true");
+			WorkBookHandle lazy = new WorkBookHandle(f.getPath());
+			System.clearProperty(prop);
+			for (WorkBookHandle read : new WorkBookHandle[] { fromFile, fromStream, lazy }) {
+				for (int n = 0; n < 2; n++) {
+					WorkSheetHandle expected = wbx.getWorkSheet(n);
+					WorkSheetHandle sheet = read.getWorkSheet(n);
+					org.junit.Assert.assertEquals(expected.getCells().length, sheet.getCells().length);
+					for (CellHandle c : expected.getCells())
+						org.junit.Assert.assertEquals(c.getCellAddress(), String.valueOf(c.getVal()),
+								String.valueOf(sheet.getCell(c.getCellAddress()).getVal()));
+				}
+			}
+
+			RowCursor cursor = WorkBookHandle.openRowCursor(f, "Sheet2");
+			int cells = 0;
+			try {
+				WorkSheetHandle expected = wbx.getWorkSheet(1);
+				while (cursor.next()) {
+					cells++;
+					Object v = expected.getCell(cursor.getCellAddress()).getVal();
+					if (v instanceof Number)
+						org.junit.Assert.assertEquals(cursor.getCellAddress(), ((Number) v).doubleValue(), cursor.getDoubleVal(), 0);
+					else
+						org.junit.Assert.assertEquals(cursor.getCellAddress(), v, cursor.getStringVal());
+				}
+			} finally {
+				cursor.close();
+			}
+			org.junit.Assert.assertEquals(wbx.getWorkSheet(1).getCells().length, cells);
+
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			fromFile.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] written = out.toByteArray();
+			for (WorkBookHandle read : new WorkBookHandle[] { fromStream, lazy,
+					new WorkBookHandle(new java.io.ByteArrayInputStream(written)) }) {
+				out = new java.io.ByteArrayOutputStream();
+				read.write(out, WorkBookHandle.FORMAT_XLS);
+				org.junit.Assert.assertTrue(java.util.Arrays.equals(written, out.toByteArray()));
+			}
+			fromFile.close();
+			lazy.close();
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			System.clearProperty(prop);
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	/**
+	 * compound file streams read through the sector table match the streams
+	 * read straight from the file's FAT, including mini streams and a stream
+	 * whose sectors are laid out in reverse
+	 */
+	public void testSectorChains() {
+		File f = null;
+		String[] streams = { "Workbook", "\u0005SummaryInformation", "\u0005DocumentSummaryInformation" };
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			for (int i = 1; i <= 1500; i++) {
+				sheet1.add(Double.valueOf(i * 1.5), "A" + i);
+				sheet1.add("row " + i, "B" + i);
+				sheet1.add("=A" + i + "*2", "C" + i);
+			}
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] written = out.toByteArray();
+			byte[] reversed = reverseStream(written, "Workbook");
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(cfbStream(written, "Workbook"), cfbStream(reversed, "Workbook")));
+
+			// DataEntry.xls was written by Excel and keeps its small streams in the mini stream
+			byte[] excel = java.nio.file.Files.readAllBytes(new File(System.getProperty("user.dir")
+					+ "/docs/samples/RoundTripReporting/DataEntry.xls").toPath());
+			org.junit.Assert.assertTrue(cfbStream(excel, streams[1]).length < 4096);
+
+			f = File.createTempFile("sectors", ".xls");
+			for (byte[] file : new byte[][] { written, reversed, excel }) {
+				java.nio.file.Files.write(f.toPath(), file);
+				com.valkyrlabs.formats.LEO.LEOFile mapped = new com.valkyrlabs.formats.LEO.LEOFile(f, false);
+				com.valkyrlabs.formats.LEO.LEOFile wrapped = new com.valkyrlabs.formats.LEO.LEOFile(java.nio.ByteBuffer.wrap(file).order(java.nio.ByteOrder.LITTLE_ENDIAN));
+				for (String name : streams) {
+					byte[] expected = cfbStream(file, name);
+					for (com.valkyrlabs.formats.LEO.LEOFile leo : new com.valkyrlabs.formats.LEO.LEOFile[] { mapped, wrapped }) {
+						byte[] got = leo.getStorageByName(name).getBytes();
+						org.junit.Assert.assertTrue(name, got.length >= expected.length);
+						org.junit.Assert.assertTrue(name, java.util.Arrays.equals(expected, java.util.Arrays.copyOf(got, expected.length)));
+					}
+				}
+				mapped.shutdown();
+			}
+
+			// the book with its sectors reversed reads and writes as the original
+			java.nio.file.Files.write(f.toPath(), reversed);
+			WorkBookHandle read = new WorkBookHandle(f.getPath());
+			for (CellHandle c : sheet1.getCells())
+				org.junit.Assert.assertEquals(c.getCellAddress(), String.valueOf(c.getVal()),
+						String.valueOf(read.getWorkSheet(0).getCell(c.getCellAddress()).getVal()));
+			out = new java.io.ByteArrayOutputStream();
+			read.write(out, WorkBookHandle.FORMAT_XLS);
+			java.io.ByteArrayOutputStream original = new java.io.ByteArrayOutputStream();
+			new WorkBookHandle(new java.io.ByteArrayInputStream(written)).write(original, WorkBookHandle.FORMAT_XLS);
+			org.junit.Assert.assertTrue(java.util.Arrays.equals(original.toByteArray(), out.toByteArray()));
+			read.close();
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	// a minimal compound file reader, for checking LEOFile against; 512 byte sectors only
+
+	private static int cfbOffset(int sector) {
+		return (sector + 1) * 512;
+	}
+
+	private static int[] cfbFat(java.nio.ByteBuffer b) {
+		int[] fat = new int[b.getInt(0x2C) * 128];
+		for (int i = 0; i < fat.length; i++)
+			fat[i] = b.getInt(cfbOffset(b.getInt(0x4C + (i / 128) * 4)) + (i % 128) * 4);
+		return fat;
+	}
+
+	private static int[] cfbChain(int[] fat, int start) {
+		java.util.List<Integer> chain = new java.util.ArrayList<Integer>();
+		for (int s = start; s >= 0; s = fat[s])
+			chain.add(s);
+		int[] ret = new int[chain.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = chain.get(i);
+		return ret;
+	}
+
+	/**
+	 * returns the position in the file of the directory entry with the given name
+	 */
+	private static int cfbEntry(java.nio.ByteBuffer b, int[] fat, String name) {
+		for (int s : cfbChain(fat, b.getInt(0x30))) {
+			for (int off = cfbOffset(s); off < cfbOffset(s + 1); off += 128) {
+				StringBuilder sb = new StringBuilder();
+				for (int c = 0; c < b.getShort(off + 0x40) / 2 - 1; c++)
+					sb.append(b.getChar(off + c * 2));
+				if (sb.toString().equals(name))
+					return off;
+			}
+		}
+		throw new IllegalArgumentException("no stream " + name);
+	}
+
+	private static byte[] cfbStream(byte[] file, String name) {
+		java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(file).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		int[] fat = cfbFat(b);
+		int e = cfbEntry(b, fat, name);
+		byte[] ret = new byte[b.getInt(e + 0x78)];
+		int[] chain, mini = null;
+		int size = 512;
+		if (ret.length >= b.getInt(0x38)) {
+			chain = cfbChain(fat, b.getInt(e + 0x74));
+		} else {
+			// held in 64 byte sectors of the root entry's stream, chained by the mini FAT
+			int[] miniFatSectors = cfbChain(fat, b.getInt(0x3C));
+			int[] miniFat = new int[miniFatSectors.length * 128];
+			for (int i = 0; i < miniFat.length; i++)
+				miniFat[i] = b.getInt(cfbOffset(miniFatSectors[i / 128]) + (i % 128) * 4);
+			chain = cfbChain(miniFat, b.getInt(e + 0x74));
+			mini = cfbChain(fat, b.getInt(cfbEntry(b, fat, "Root Entry") + 0x74));
+			size = 64;
+		}
+		for (int k = 0, p = 0; p < ret.length; k++, p += size) {
+			int pos = (mini == null) ? cfbOffset(chain[k]) : cfbOffset(mini[chain[k] / 8]) + (chain[k] % 8) * 64;
+			System.arraycopy(file, pos, ret, p, Math.min(size, ret.length - p));
+		}
+		return ret;
+	}
+
+	/**
+	 * returns a copy of a compound file with the sectors of a stream laid out
+	 * in reverse order and chained to match, so its contents are unchanged
+	 */
+	private static byte[] reverseStream(byte[] file, String name) {
+		byte[] ret = file.clone();
+		java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(file).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		java.nio.ByteBuffer r = java.nio.ByteBuffer.wrap(ret).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		int[] fat = cfbFat(b);
+		int e = cfbEntry(b, fat, name);
+		int[] chain = cfbChain(fat, b.getInt(e + 0x74));
+		int n = chain.length;
+		for (int k = 0; k < n; k++) {
+			int to = chain[n - 1 - k];
+			System.arraycopy(file, cfbOffset(chain[k]), ret, cfbOffset(to), 512);
+			r.putInt(cfbOffset(b.getInt(0x4C + (to / 128) * 4)) + (to % 128) * 4, (k + 1 < n) ? chain[n - 2 - k] : -2);
+		}
+		r.putInt(e + 0x74, chain[n - 1]);
+		return ret;
+	}
+
+	/**
+	 * edits inside areas spanning several columns invalidate exactly the
+	 * formulas whose areas contain the cell, and stop doing so once the
+	 * formula refers elsewhere
+	 */
+	public void testWideAreaDependents() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet1 = book.getWorkSheet(0);
+			for (int i = 1; i <= 20; i++)
+				for (char c = 'A'; c <= 'H'; c++)
+					sheet1.add(Double.valueOf(1), String.valueOf(c) + i);
+			sheet1.add("=SUM(B2:E9)", "J1");
+			sheet1.add("=SUM(C5:H20)", "J2");
+			sheet1.add("=SUM(A1:H1)", "J3");
+			sheet1.add("=SUM(F1:G3)", "J4");
+			book.calculateFormulas();
+			sheet1.getCell("D6").setVal(2);	// in J1 and J2
+			sheet1.getCell("B9").setVal(3);	// in J1 only
+			sheet1.getCell("H1").setVal(4);	// in J3 only
+			sheet1.getCell("G3").setVal(5);	// in J4 only
+			sheet1.getCell("A20").setVal(6);	// in none
+			org.junit.Assert.assertEquals(35.0, ((Number) sheet1.getCell("J1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(97.0, ((Number) sheet1.getCell("J2").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(11.0, ((Number) sheet1.getCell("J3").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(10.0, ((Number) sheet1.getCell("J4").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals("[]", affected(sheet1.getCell("A20")));
+			org.junit.Assert.assertEquals("[Sheet1!J4]", affected(sheet1.getCell("F2")));
+			org.junit.Assert.assertEquals("[Sheet1!J1, Sheet1!J2]", affected(sheet1.getCell("E8")));
+			sheet1.getCell("J1").setFormula("=SUM(A10:B12)");
+			sheet1.getCell("J1").getVal();
+			org.junit.Assert.assertEquals("[Sheet1!J2]", affected(sheet1.getCell("D6")));
+			sheet1.getCell("B11").setVal(10);
+			org.junit.Assert.assertEquals(15.0, ((Number) sheet1.getCell("J1").getVal()).doubleValue(), 0);
+			// more areas over the same rows than are tested one by one
+			for (int k = 0; k < 12; k++)
+				sheet1.add("=SUM(" + ExcelTools.getAlphaVal(k) + "21:" + ExcelTools.getAlphaVal(k + 2) + "40)", "L" + (k + 1));
+			sheet1.add(Double.valueOf(1), "E30");
+			sheet1.add(Double.valueOf(1), "A40");
+			org.junit.Assert.assertEquals("[Sheet1!L3, Sheet1!L4, Sheet1!L5]", affected(sheet1.getCell("E30")));
+			org.junit.Assert.assertEquals("[Sheet1!L1]", affected(sheet1.getCell("A40")));
+			sheet1.getCell("L4").setFormula("=SUM(A1)");
+			sheet1.getCell("L4").getVal();
+			org.junit.Assert.assertEquals("[Sheet1!L3, Sheet1!L5]", affected(sheet1.getCell("E30")));
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * SUM and COUNTIF over ranges with gaps, text and formulas, on this and other sheets
+	 */
+	public void testRangeAggregates() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet1 = book.getWorkSheet(0);
+			WorkSheetHandle sheet2 = book.getWorkSheet(1);
+			sheet1.add(Double.valueOf(3), "A1");
+			sheet1.add("text", "A2");
+			sheet1.add(Double.valueOf(4.5), "A4");
+			sheet1.add("=A1*2", "B1");
+			sheet1.add(Double.valueOf(3), "B3");
+			sheet2.add(Double.valueOf(10), "A1");
+			sheet2.add(Double.valueOf(3), "A3");
+			sheet1.add("=SUM(A1:B4)", "D1");
+			sheet1.add("=COUNTIF(A1:B4,3)", "D2");
+			sheet1.add("=COUNTIF(A1:A4,\"TEXT\")", "D3");
+			sheet1.add("=SUM(" + sheet2.getSheetName() + "!A1:A5)", "D4");
+			sheet1.add("=COUNTIF(" + sheet2.getSheetName() + "!A1:A5,3)", "D5");
+			sheet1.add(Integer.valueOf(3), "C1");
+			sheet1.add("3.0 ", "C2");
+			sheet1.add("=COUNTIF(C1:C3,3)", "D6");
+			sheet1.add("=COUNTIF(A1,3)", "D7");
+			sheet1.add("=COUNTIF(A2,\"Text\")", "D8");
+			book.calculateFormulas();
+			org.junit.Assert.assertEquals(16.5, ((Number) sheet1.getCell("D1").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(2.0, ((Number) sheet1.getCell("D2").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(1.0, ((Number) sheet1.getCell("D3").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(13.0, ((Number) sheet1.getCell("D4").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(1.0, ((Number) sheet1.getCell("D5").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(2.0, ((Number) sheet1.getCell("D6").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(1.0, ((Number) sheet1.getCell("D7").getVal()).doubleValue(), 0);
+			org.junit.Assert.assertEquals(1.0, ((Number) sheet1.getCell("D8").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
+	/**
+	 * parallel recalc produces the same results as serial recalc
+	 */
+	public void testParallelRecalc() {
+		WorkBookHandle serial = new WorkBookHandle();
+		WorkBookHandle parallel = new WorkBookHandle();
+		parallel.setRecalcParallelism(4);
+		try {
+			WorkBookHandle[] books = { serial, parallel };
+			for (int b = 0; b < books.length; b++) {
+				WorkSheetHandle sheet1 = books[b].getWorkSheet(0);
+				for (int i = 1; i <= 500; i++) {
+					sheet1.add(Double.valueOf(i), "A" + i);
+					sheet1.add("=A" + i + "*2", "B" + i);
+					sheet1.add("=B" + i + "+A" + i, "C" + i);
+				}
+				sheet1.add("=SUM(C1:C500)", "D1");
+				books[b].calculateFormulas();
+				sheet1.getCell("A7").setVal(1000);
+				books[b].recalc();
+			}
+			org.junit.Assert.assertEquals(serial.getWorkSheet(0).getCell("D1").getVal(),
+					parallel.getWorkSheet(0).getCell("D1").getVal());
+			org.junit.Assert.assertEquals(3000.0,
+					((Number) parallel.getWorkSheet(0).getCell("C7").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			parallel.close();
+		}
+	}
+
+	/**
+	 * parallel recalc reads cells held in compact storage without restoring
+	 * them, so no cells are lost and every result is right
+	 */
+	public void testParallelRecalcCompactCells() {
+		WorkBookHandle book = new WorkBookHandle();
+		try {
+			WorkSheetHandle sheet1 = book.getWorkSheet(0);
+			int rows = 5000;
+			for (int i = 1; i <= rows; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add("=A" + i + "*2+1", "B" + i);
+				sheet1.add("=SUM(A" + i + ":A" + (i + 9) + ")", "C" + i);
+			}
+			book.calculateFormulas();
+			book.setCompactCellStorage(true);
+			book.setRecalcParallelism(8);
+			org.junit.Assert.assertTrue(book.getCompactCellStorage());
+			for (int k = 0; k < 3; k++) {
+				book.markFormulasDirty();
+				book.recalc();
+				for (int i = 1; i <= rows; i++) {
+					int n = Math.min(i + 9, rows);
+					org.junit.Assert.assertEquals("B" + i, 2.0 * i + 1,
+							((Number) sheet1.getCell("B" + i).getVal()).doubleValue(), 0);
+					org.junit.Assert.assertEquals("C" + i, (n * (n + 1) - i * (i - 1)) / 2.0,
+							((Number) sheet1.getCell("C" + i).getVal()).doubleValue(), 0);
+				}
+			}
+			org.junit.Assert.assertTrue(book.getCompactCellStorage());
+			org.junit.Assert.assertEquals(3 * rows, sheet1.getCells().length);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		} finally {
+			book.close();
+		}
+	}
+
+	/**
+	 * parallel recalc of formulas parsed on first use, with string results and
+	 * shared database function caches, gives the serial results
+	 */
+	public void testParallelRecalcLazyFormulas() {
+		String prop = com.valkyrlabs.formats.XLS.WorkBookFactory.LAZYFORMULAPARSING;
+		try {
+			WorkBookHandle wbx = new WorkBookHandle();
+			WorkSheetHandle sheet1 = wbx.getWorkSheet(0);
+			sheet1.add("n", "A1");
+			sheet1.add("dbl", "B1");
+			sheet1.add("n", "F1");
+			sheet1.add(">100", "F2");
+			for (int i = 2; i <= 301; i++) {
+				sheet1.add(Double.valueOf(i), "A" + i);
+				sheet1.add("=A" + i + "*2", "B" + i);
+				sheet1.add("=\"r\"&A" + i, "C" + i);
+				sheet1.add("=DSUM($A$1:$B$301,\"dbl\",$F$1:$F$2)+B" + i, "D" + i);
+			}
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			wbx.write(out, WorkBookHandle.FORMAT_XLS);
+			byte[] bytes = out.toByteArray();
+
+			WorkBookHandle serial = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+			serial.recalc();
+			for (int round = 0; round < 5; round++) {
+				System.setProperty(prop, "true");
+				WorkBookHandle parallel = new WorkBookHandle(new java.io.ByteArrayInputStream(bytes));
+				System.clearProperty(prop);
+				parallel.setRecalcParallelism(4);
+				try {
+					parallel.recalc();
+					for (int i = 2; i <= 301; i++) {
+						for (String col : new String[] { "B", "C", "D" }) {
+							org.junit.Assert.assertEquals(col + i,
+									serial.getWorkSheet(0).getCell(col + i).getVal(),
+									parallel.getWorkSheet(0).getCell(col + i).getVal());
+						}
+					}
+				} finally {
+					parallel.close();
+				}
+			}
+			org.junit.Assert.assertEquals("r17", serial.getWorkSheet(0).getCell("C17").getVal());
+			org.junit.Assert.assertEquals(80802.0 + 34,
+					((Number) serial.getWorkSheet(0).getCell("D17").getVal()).doubleValue(), 0);
+		} catch (Exception e) {
+			Logger.logErr("TestFormulas failed.", e);
+			org.junit.Assert.fail(e.toString());
+		}
+	}
+
 	/**
 	 * Demonstrates Dynamic Formula Calculation
 	 * 
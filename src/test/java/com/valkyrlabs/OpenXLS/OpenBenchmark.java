@@ -0,0 +1,129 @@
+package com.valkyrlabs.OpenXLS;
+
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 ValkyrLabs Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import com.valkyrlabs.formats.XLS.WorkBookFactory;
+
+/**
+ * Times opening a workbook: parsing its records eagerly, with sheets loaded
+ * lazily, and reading one sheet through a RowCursor.
+ * <p>
+ * This is a plain timing harness, not a test; run it from the project
+ * directory after <code>mvn test-compile</code>:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *     com.valkyrlabs.OpenXLS.OpenBenchmark [file.xls | rows] [repetitions]
+ * </pre>
+ * Given a number of rows rather than a file, it writes a three sheet
+ * workbook of numbers, strings and formulas to a temp file and opens that.
+ */
+public class OpenBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String arg = (args.length > 0) ? args[0] : "50000";
+		int reps = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		File f;
+		boolean temp = arg.matches("\\d+");
+		if (temp) {
+			f = File.createTempFile("openbenchmark", ".xls");
+			write(f, Integer.parseInt(arg));
+		} else {
+			f = new File(arg);
+		}
+		try {
+			WorkBookHandle first = new WorkBookHandle(f.getPath());
+			String sheet = first.getWorkSheet(0).getSheetName();
+			first.close();
+			System.out.printf("%s, %d bytes%n", f.getName(), f.length());
+			System.out.printf("open         %8.1fms%n", best(f, reps) / 1e6);
+			System.setProperty(WorkBookFactory.LAZYSHEETLOADING, "true");
+			try {
+				System.out.printf("open lazily  %8.1fms%n", best(f, reps) / 1e6);
+			} finally {
+				System.clearProperty(WorkBookFactory.LAZYSHEETLOADING);
+			}
+			long cursor = Long.MAX_VALUE;
+			int cells = 0;
+			for (int k = 0; k < reps; k++) {
+				long t = System.nanoTime();
+				RowCursor c = WorkBookHandle.openRowCursor(f, sheet);
+				try {
+					for (cells = 0; c.next(); cells++)
+						;
+				} finally {
+					c.close();
+				}
+				cursor = Math.min(cursor, System.nanoTime() - t);
+			}
+			System.out.printf("row cursor   %8.1fms, %d cells%n", cursor / 1e6, cells);
+		} finally {
+			if (temp)
+				f.delete();
+		}
+	}
+
+	/**
+	 * returns the best time in nanoseconds to open the file
+	 */
+	private static long best(File f, int reps) {
+		long best = Long.MAX_VALUE;
+		for (int k = 0; k < reps; k++) {
+			long t = System.nanoTime();
+			WorkBookHandle book = new WorkBookHandle(f.getPath());
+			best = Math.min(best, System.nanoTime() - t);
+			book.close();
+		}
+		return best;
+	}
+
+	private static void write(File f, int rows) throws Exception {
+		WorkBookHandle book = new WorkBookHandle();
+		book.setFormulaCalculationMode(WorkBookHandle.CALCULATE_EXPLICIT);
+		for (int n = 0; n < 3; n++) {
+			WorkSheetHandle sheet = book.getWorkSheet(n);
+			for (int r = 1; r <= rows; r++) {
+				sheet.add(Double.valueOf(r * 1.5), "A" + r);
+				sheet.add("item " + (r % 1000), "B" + r);
+				sheet.add("=A" + r + "*2", "C" + r);
+			}
+		}
+		book.calculateFormulas();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			book.write(out, WorkBookHandle.FORMAT_XLS);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.valkyrlabs.OpenXLS;
+
+/*
+ * --------- BEGIN COPYRIGHT NOTICE ---------
+ * Copyright 2002-2012 ValkyrLabs Inc.
+ * Copyright 2013 Infoteria America Corp.
+ *
+ * This file is part of OpenXLS.
+ *
+ * OpenXLS is free software: you can redistribute it and/or
+ * modify
+ * it under the terms of the GNU Lesser General Public
+ * License as
+ * published by the Free Software Foundation, either version
+ * 3 of
+ * the License, or (at your option) any later version.
+ *
+ * OpenXLS is distributed in the hope that it will be
+ * useful,
+ * but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public
+ * License along with OpenXLS. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * ---------- END COPYRIGHT NOTICE ----------
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * An XmlPullParser over the JDK's StAX parser, so the tests can read XLSX
+ * files without an XmlPull implementation on the classpath.
+ * <p>
+ * The xmlpull jar OpenXLS builds against is only the API; applications supply
+ * the implementation.  This one is registered for the tests in
+ * META-INF/services/org.xmlpull.v1.XmlPullParserFactory.  It reports the
+ * START_DOCUMENT, START_TAG, TEXT, END_TAG and END_DOCUMENT events, with text
+ * coalesced, which is all OpenXLS asks for.
+ */
+public class StaxPullParser implements XmlPullParser {
+	private XMLStreamReader reader;
+	private int event = START_DOCUMENT;
+	private int depth;
+	private boolean namespaces;
+
+	public void setFeature(String name, boolean state) throws XmlPullParserException {
+		if (FEATURE_PROCESS_NAMESPACES.equals(name))
+			namespaces = state;
+		else if (state)
+			throw new XmlPullParserException("unsupported feature " + name);
+	}
+
+	public boolean getFeature(String name) {
+		return FEATURE_PROCESS_NAMESPACES.equals(name) && namespaces;
+	}
+
+	public void setProperty(String name, Object value) throws XmlPullParserException {
+		throw new XmlPullParserException("unsupported property " + name);
+	}
+
+	public Object getProperty(String name) {
+		return null;
+	}
+
+	private XMLInputFactory factory() {
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.valueOf(namespaces));
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return f;
+	}
+
+	public void setInput(Reader in) throws XmlPullParserException {
+		try {
+			start(factory().createXMLStreamReader(in));
+		} catch (XMLStreamException e) {
+			throw new XmlPullParserException(e.getMessage(), this, e);
+		}
+	}
+
+	public void setInput(InputStream in, String encoding) throws XmlPullParserException {
+		try {
+			start((encoding == null) ? factory().createXMLStreamReader(in)
+					: factory().createXMLStreamReader(in, encoding));
+		} catch (XMLStreamException e) {
+			throw new XmlPullParserException(e.getMessage(), this, e);
+		}
+	}
+
+	private void start(XMLStreamReader r) {
+		reader = r;
+		event = START_DOCUMENT;
+		depth = 0;
+	}
+
+	public String getInputEncoding() {
+		return reader.getEncoding();
+	}
+
+	public void defineEntityReplacementText(String entityName, String replacementText) throws XmlPullParserException {
+		throw new XmlPullParserException("entity replacement is not supported");
+	}
+
+	public int getNamespaceCount(int depth) {
+		return 0;
+	}
+
+	public String getNamespacePrefix(int pos) {
+		return null;
+	}
+
+	public String getNamespaceUri(int pos) {
+		return null;
+	}
+
+	public String getNamespace(String prefix) {
+		return reader.getNamespaceURI(prefix);
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public String getPositionDescription() {
+		return (reader == null) ? "" : "line " + getLineNumber() + " column " + getColumnNumber();
+	}
+
+	public int getLineNumber() {
+		return reader.getLocation().getLineNumber();
+	}
+
+	public int getColumnNumber() {
+		return reader.getLocation().getColumnNumber();
+	}
+
+	public boolean isWhitespace() throws XmlPullParserException {
+		if (event != TEXT)
+			throw new XmlPullParserException("not text", this, null);
+		return reader.isWhiteSpace();
+	}
+
+	public String getText() {
+		return (event == TEXT) ? reader.getText() : null;
+	}
+
+	public char[] getTextCharacters(int[] holderForStartAndLength) {
+		String s = getText();
+		if (s == null) {
+			holderForStartAndLength[0] = holderForStartAndLength[1] = -1;
+			return null;
+		}
+		holderForStartAndLength[0] = 0;
+		holderForStartAndLength[1] = s.length();
+		return s.toCharArray();
+	}
+
+	public String getNamespace() {
+		return isTag() ? nullToEmpty(reader.getNamespaceURI()) : null;
+	}
+
+	public String getName() {
+		return isTag() ? reader.getLocalName() : null;
+	}
+
+	public String getPrefix() {
+		return isTag() ? reader.getPrefix() : null;
+	}
+
+	public boolean isEmptyElementTag() {
+		return false;
+	}
+
+	public int getAttributeCount() {
+		return (event == START_TAG) ? reader.getAttributeCount() : -1;
+	}
+
+	public String getAttributeNamespace(int index) {
+		return nullToEmpty(reader.getAttributeNamespace(index));
+	}
+
+	public String getAttributeName(int index) {
+		return reader.getAttributeLocalName(index);
+	}
+
+	public String getAttributePrefix(int index) {
+		return reader.getAttributePrefix(index);
+	}
+
+	public String getAttributeType(int index) {
+		return reader.getAttributeType(index);
+	}
+
+	public boolean isAttributeDefault(int index) {
+		return !reader.isAttributeSpecified(index);
+	}
+
+	public String getAttributeValue(int index) {
+		return reader.getAttributeValue(index);
+	}
+
+	public String getAttributeValue(String namespace, String name) {
+		return reader.getAttributeValue(namespace, name);
+	}
+
+	public int getEventType() {
+		return event;
+	}
+
+	public int next() throws XmlPullParserException, IOException {
+		if (event == END_TAG)
+			depth--;
+		try {
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					return event = START_TAG;
+				case XMLStreamConstants.END_ELEMENT:
+					return event = END_TAG;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					return event = TEXT;
+				case XMLStreamConstants.END_DOCUMENT:
+					return event = END_DOCUMENT;
+				default:
+					// comments, processing instructions and the like are skipped
+				}
+			}
+			return event = END_DOCUMENT;
+		} catch (XMLStreamException e) {
+			throw new XmlPullParserException(e.getMessage(), this, e);
+		}
+	}
+
+	public int nextToken() throws XmlPullParserException, IOException {
+		return next();
+	}
+
+	public void require(int type, String namespace, String name) throws XmlPullParserException {
+		if (type != event || (namespace != null && !namespace.equals(getNamespace()))
+				|| (name != null && !name.equals(getName())))
+			throw new XmlPullParserException("expected " + TYPES[type] + " " + name + " but was "
+					+ TYPES[event] + " " + getName(), this, null);
+	}
+
+	public String nextText() throws XmlPullParserException, IOException {
+		require(START_TAG, null, null);
+		String text = "";
+		if (next() == TEXT) {
+			text = getText();
+			next();
+		}
+		require(END_TAG, null, null);
+		return text;
+	}
+
+	public int nextTag() throws XmlPullParserException, IOException {
+		int e = next();
+		if (e == TEXT && isWhitespace())
+			e = next();
+		if (e != START_TAG && e != END_TAG)
+			throw new XmlPullParserException("expected a start or end tag", this, null);
+		return e;
+	}
+
+	private boolean isTag() {
+		return event == START_TAG || event == END_TAG;
+	}
+
+	private static String nullToEmpty(String s) {
+		return (s == null) ? "" : s;
+	}
+}